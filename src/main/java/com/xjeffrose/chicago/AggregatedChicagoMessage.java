@@ -1,8 +1,10 @@
 package com.xjeffrose.chicago;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.handler.codec.DecoderResult;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
@@ -16,7 +18,8 @@ public class AggregatedChicagoMessage implements ChicagoMessage {
   private final byte[] colFam;
   private final byte[] key;
 
-  private byte[] val;
+  // STREAM_RESPONSE chunks, merged into one record batch on first read
+  private final List<byte[]> chunks = new ArrayList<>();
   private DecoderResult decoderResult;
 
 
@@ -29,11 +32,11 @@ public class AggregatedChicagoMessage implements ChicagoMessage {
     this._op = _op;
     this.colFam = colFam;
     this.key = key;
-    this.val = val;
+    this.chunks.add(val);
   }
 
   public ByteBuf encode() {
-    return Unpooled.directBuffer().writeBytes(new ChicagoObjectEncoder().encode(id, _op, colFam, key, getVal()));
+    return new ChicagoObjectEncoder().encode(UnpooledByteBufAllocator.DEFAULT, this);
   }
 
   @Override
@@ -63,17 +66,16 @@ public class AggregatedChicagoMessage implements ChicagoMessage {
 
   @Override
   public byte[] getVal() {
-    return val;
+    if (chunks.size() > 1) {
+      byte[] merged = ChicagoRecordBatch.merge(chunks);
+      chunks.clear();
+      chunks.add(merged);
+    }
+    return chunks.get(0);
   }
 
   public void appendVal(byte[] valToAppend) {
-    byte[] newVal = new byte[val.length + valToAppend.length + 1];
-
-    System.arraycopy(val, 0, newVal, 0, val.length);
-    System.arraycopy("\0".getBytes(), 0, newVal, val.length, 1);
-    System.arraycopy(valToAppend, 0, newVal, val.length + 1, valToAppend.length);
-
-    val = newVal;
+    chunks.add(valToAppend);
   }
 
   @Override
@@ -0,0 +1,159 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.client.ChicagoClientException;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.StorageProvider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Copies a column family to another node, for a rebalance.
+ *
+ * The records are read from a snapshot of the local store and sent as BULK_LOAD batches of about
+ * BATCH_BYTES, which the receiver commits with a single write each. Up to WINDOW batches are in
+ * flight at a time, so the copy runs at the speed of the link instead of one round trip per key.
+ * Records are sent in key order and a time series receiver moves its sequence past the offsets it
+ * loads.
+ *
+ * Batches can be loaded out of order, progress is only reported up to the last batch loaded with all
+ * the ones before it, so a copy resumed from the reported key misses nothing.
+ */
+public class BulkTransfer {
+  static final int BATCH_BYTES = 4 * 1024 * 1024;
+  static final int WINDOW = 8;
+  static final long BATCH_TIMEOUT_MILLIS = 30000;
+
+  public interface Progress {
+    /**
+     * Every record up to {@code lastKey} (inclusive) is loaded, {@code records} and {@code bytes} more
+     * than last reported.
+     */
+    void loaded(byte[] lastKey, int records, long bytes);
+  }
+
+  private static final class Batch {
+    final byte[] lastKey;
+    final int records;
+    final long bytes;
+    boolean done;
+
+    Batch(byte[] lastKey, int records, long bytes) {
+      this.lastKey = lastKey;
+      this.records = records;
+      this.bytes = bytes;
+    }
+  }
+
+  private BulkTransfer() {
+  }
+
+  /**
+   * Sends every record {@code db} holds in {@code colFam} to {@code target} and returns how many
+   * were sent. Fails on the first batch the target does not load.
+   */
+  public static long send(StorageProvider db, byte[] colFam, boolean timeSeries, ChicagoAsyncClient client, String target)
+      throws ChicagoClientException {
+    return send(db, colFam, timeSeries, client, target, new byte[0], null, (lastKey, records, bytes) -> {});
+  }
+
+  /**
+   * Sends the records of {@code colFam} from key {@code from} (inclusive) on to {@code target}, at no
+   * more bytes per second than {@code limiter} lets through if there is one, and returns how many
+   * were sent. Fails on the first batch the target does not load.
+   */
+  public static long send(StorageProvider db, byte[] colFam, boolean timeSeries, ChicagoAsyncClient client, String target,
+                          byte[] from, RateLimiter limiter, Progress progress) throws ChicagoClientException {
+    byte[] type = (timeSeries ? ChiUtil.TS : ChiUtil.KV).getBytes();
+    Semaphore window = new Semaphore(WINDOW);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    // batches sent and not yet reported, in key order
+    Deque<Batch> inFlight = new ArrayDeque<>();
+    List<DBRecord> records = new ArrayList<>();
+    long[] batchBytes = {0};
+    long[] sent = {0};
+
+    Runnable flush = () -> {
+      if (records.isEmpty() || failure.get() != null) {
+        return;
+      }
+      if (limiter != null) {
+        limiter.acquire((int) Math.min(batchBytes[0], Integer.MAX_VALUE));
+      }
+      try {
+        if (!window.tryAcquire(BATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          failure.compareAndSet(null, new ChicagoClientException("Timed out loading into " + target));
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure.compareAndSet(null, e);
+        return;
+      }
+      Batch batch = new Batch(records.get(records.size() - 1).getKey(), records.size(), batchBytes[0]);
+      synchronized (inFlight) {
+        inFlight.add(batch);
+      }
+      byte[] val = ChicagoRecordBatch.encode(records, true, 0);
+      Futures.addCallback(client.request(target, Op.BULK_LOAD, colFam, type, val), new FutureCallback<byte[]>() {
+        @Override
+        public void onSuccess(byte[] result) {
+          synchronized (inFlight) {
+            batch.done = true;
+            while (!inFlight.isEmpty() && inFlight.peek().done && failure.get() == null) {
+              Batch loaded = inFlight.poll();
+              progress.loaded(loaded.lastKey, loaded.records, loaded.bytes);
+            }
+          }
+          window.release();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          failure.compareAndSet(null, t);
+          window.release();
+        }
+      }, MoreExecutors.directExecutor());
+      sent[0] += records.size();
+      records.clear();
+      batchBytes[0] = 0;
+    };
+
+    db.scan(colFam, from, (key, val) -> {
+      if (failure.get() != null) {
+        return;
+      }
+      DBRecord record = new DBRecord(colFam, key, val);
+      records.add(record);
+      batchBytes[0] += ChicagoRecordBatch.sizeOf(record);
+      if (batchBytes[0] >= BATCH_BYTES) {
+        flush.run();
+      }
+    });
+    flush.run();
+
+    // wait for the batches still in flight
+    try {
+      if (!window.tryAcquire(WINDOW, BATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        failure.compareAndSet(null, new ChicagoClientException("Timed out loading into " + target));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, e);
+    }
+    if (failure.get() != null) {
+      throw new ChicagoClientException("Could not load " + new String(colFam) + " into " + target
+          + ": " + failure.get().getMessage());
+    }
+    return sent[0];
+  }
+}
@@ -0,0 +1,151 @@
+package com.xjeffrose.chicago;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DecoderResult;
+import io.netty.util.ReferenceCounted;
+import java.util.UUID;
+
+/**
+ * A {@link ChicagoMessage} that keeps its colFam, key and value as slices of the (retained) inbound
+ * frame instead of copying them onto the heap.
+ *
+ * The message owns one reference to the frame and must be released once the storage operation or
+ * response it feeds has completed. The byte[] accessors still work but copy (once) on first use, so
+ * the hot paths should use {@link #colFamBuf()}, {@link #keyBuf()} and {@link #valBuf()} instead.
+ */
+public class ByteBufChicagoMessage implements ChicagoMessage, ReferenceCounted {
+  private final UUID id;
+  private final Op _op;
+  private final boolean success;
+  private final ByteBuf frame;
+  private final ByteBuf colFam;
+  private final ByteBuf key;
+  private final ByteBuf val;
+  private DecoderResult decoderResult;
+
+  private byte[] colFamBytes;
+  private byte[] keyBytes;
+  private byte[] valBytes;
+
+  /**
+   * @param frame the retained frame, ownership of that reference moves to this message
+   * @param colFam slice of {@code frame}
+   * @param key slice of {@code frame}
+   * @param val slice of {@code frame}
+   */
+  public ByteBufChicagoMessage(UUID id, Op _op, boolean success, ByteBuf frame, ByteBuf colFam, ByteBuf key, ByteBuf val) {
+    this.id = id;
+    this._op = _op;
+    this.success = success;
+    this.frame = frame;
+    this.colFam = colFam;
+    this.key = key;
+    this.val = val;
+  }
+
+  public ByteBuf colFamBuf() {
+    return colFam;
+  }
+
+  public ByteBuf keyBuf() {
+    return key;
+  }
+
+  public ByteBuf valBuf() {
+    return val;
+  }
+
+  @Override
+  public DecoderResult decoderResult() {
+    return decoderResult;
+  }
+
+  @Override
+  public void setDecoderResult(DecoderResult decoderResult) {
+    this.decoderResult = decoderResult;
+  }
+
+  @Override
+  public UUID getId() {
+    return id;
+  }
+
+  @Override
+  public Op getOp() {
+    return _op;
+  }
+
+  @Override
+  public byte[] getKey() {
+    if (keyBytes == null) {
+      keyBytes = ChiUtil.toBytes(key);
+    }
+    return keyBytes;
+  }
+
+  @Override
+  public byte[] getVal() {
+    if (valBytes == null) {
+      valBytes = ChiUtil.toBytes(val);
+    }
+    return valBytes;
+  }
+
+  @Override
+  public boolean getSuccess() {
+    return success;
+  }
+
+  @Override
+  public byte[] getColFam() {
+    if (colFamBytes == null) {
+      colFamBytes = ChiUtil.toBytes(colFam);
+    }
+    return colFamBytes;
+  }
+
+  @Override
+  public int refCnt() {
+    return frame.refCnt();
+  }
+
+  @Override
+  public ByteBufChicagoMessage retain() {
+    frame.retain();
+    return this;
+  }
+
+  @Override
+  public ByteBufChicagoMessage retain(int increment) {
+    frame.retain(increment);
+    return this;
+  }
+
+  @Override
+  public ByteBufChicagoMessage touch() {
+    frame.touch();
+    return this;
+  }
+
+  @Override
+  public ByteBufChicagoMessage touch(Object hint) {
+    frame.touch(hint);
+    return this;
+  }
+
+  @Override
+  public boolean release() {
+    return frame.release();
+  }
+
+  @Override
+  public boolean release(int decrement) {
+    return frame.release(decrement);
+  }
+
+  @Override
+  public String toString() {
+    return "id: " + id + " op: " + _op + " colFam: " + colFam.readableBytes() + "B key: " + key.readableBytes()
+      + "B value: " + val.readableBytes() + "B";
+  }
+}
@@ -3,9 +3,8 @@ package com.xjeffrose.chicago;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
 
-import com.google.common.primitives.Longs;
+import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,35 +15,38 @@ public class ChiUtil {
   public static final String TS = "timeSeries";
   public static final String KV = "KV";
   public static final int MaxBufferSize = 100000;
+  // Status a server answers with, in place of true / false, when it turns a request away under load
+  public static final String OVERLOADED = "overloaded";
+  // Status of a GET_OFFSET sent to a node that does not own the sequence, the value names the owner
+  public static final String REDIRECT = "redirect";
+  // Column families named with this prefix belong to the node itself, e.g. its hint log: they are
+  // neither registered in ZooKeeper nor replicated
+  public static final String LOCAL_COLFAM_PREFIX = "_chicago.";
+
+  public static boolean isLocalColFam(String colFam) {
+    return colFam.startsWith(LOCAL_COLFAM_PREFIX);
+  }
+
   public static byte[] getTimeStamp() {
     return ZonedDateTime
         .now(ZoneId.of("UTC"))
         .format(DateTimeFormatter.RFC_1123_DATE_TIME).getBytes();
   }
 
-  public static long findOffset(byte[] input) {
-    if (input != null && input.length > 0 && new String(input).contains(delimiter)) {
-      int lastIndex = findLastOffsetIndex(input,delimiter.getBytes());
-      long offset = Longs.fromByteArray(Arrays.copyOfRange(input,lastIndex+1,input.length-1));
-      //Incrementing by 1 because this offset is already processed.
-      return offset;
-    }else{
-      return -1;
+  /**
+   * Returns the readable bytes of {@code bb}, reusing the backing array when it is exactly that
+   * range so that a heap buffer wrapping a byte[] is not copied again.
+   */
+  public static byte[] toBytes(ByteBuf bb) {
+    if (bb == null) {
+      return null;
     }
-  }
-
-  public static int findLastOffsetIndex(byte[] input, byte[] delimiter){
-    for(int i = input.length -1; i >= (0+delimiter.length-1)  ; --i) {
-      boolean found = true;
-      int k =i;
-      for(int j = delimiter.length -1; j >=0 ; --j, --k) {
-        if (input[k] != delimiter[j]) {
-          found = false;
-          break;
-        }
-      }
-      if (found) return i;
+    int length = bb.readableBytes();
+    if (bb.hasArray() && bb.arrayOffset() + bb.readerIndex() == 0 && bb.array().length == length) {
+      return bb.array();
     }
-    return -1;
+    byte[] bytes = new byte[length];
+    bb.getBytes(bb.readerIndex(), bytes);
+    return bytes;
   }
 }
@@ -13,6 +13,21 @@ public class ChicagoCodec extends CombinedChannelDuplexHandler<ChicagoObjectDeco
     super(new ChicagoObjectDecoder(), new ChicagoObjectEncoder());
   }
 
+  /**
+   * @param wireVersion the frame version used for messages this side originates, replies always
+   *                    follow the version the peer spoke (see {@link ChicagoWireFormat})
+   */
+  public ChicagoCodec(int wireVersion) {
+    this(wireVersion, false);
+  }
+
+  /**
+   * @param zeroCopy emit reference counted ByteBufChicagoMessages that the application handler must release
+   */
+  public ChicagoCodec(int wireVersion, boolean zeroCopy) {
+    super(new ChicagoObjectDecoder(zeroCopy), new ChicagoObjectEncoder(wireVersion));
+  }
+
   @Override
   public void upgradeFrom(ChannelHandlerContext channelHandlerContext) {
 
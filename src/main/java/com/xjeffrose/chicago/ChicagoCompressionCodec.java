@@ -0,0 +1,150 @@
+package com.xjeffrose.chicago;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.Snappy;
+import java.nio.ByteBuffer;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/*
+ * The block codecs ChicagoCompressionHandler can negotiate. The id goes on the wire both in the
+ * handshake (as a bit of the offered mask) and in front of every block.
+ */
+public enum ChicagoCompressionCodec {
+  NONE(0) {
+    @Override
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf in) {
+      return in.retain();
+    }
+
+    @Override
+    ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in, int rawLength) {
+      return in.retain();
+    }
+  },
+
+  SNAPPY(1) {
+    @Override
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf in) {
+      ByteBuf out = alloc.directBuffer(in.readableBytes());
+      // Snappy instances carry per call state, they are cheap so use a fresh one
+      new Snappy().encode(in, out, in.readableBytes());
+      return out;
+    }
+
+    @Override
+    ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in, int rawLength) {
+      ByteBuf out = alloc.directBuffer(rawLength, rawLength);
+      try {
+        new Snappy().decode(in, out);
+      } catch (RuntimeException e) {
+        out.release();
+        throw e;
+      }
+      return out;
+    }
+  },
+
+  LZ4(2) {
+    @Override
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf in) {
+      LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+      int length = in.readableBytes();
+      int maxLength = compressor.maxCompressedLength(length);
+      ByteBuf out = alloc.directBuffer(maxLength, maxLength);
+      ByteBuffer src = in.nioBuffer(in.readerIndex(), length);
+      ByteBuffer dest = out.nioBuffer(0, maxLength);
+      int written = compressor.compress(src, src.position(), length, dest, dest.position(), maxLength);
+      in.skipBytes(length);
+      return out.writerIndex(written);
+    }
+
+    @Override
+    ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in, int rawLength) {
+      LZ4FastDecompressor decompressor = LZ4_FACTORY.fastDecompressor();
+      int length = in.readableBytes();
+      ByteBuf out = alloc.directBuffer(rawLength, rawLength);
+      try {
+        ByteBuffer src = in.nioBuffer(in.readerIndex(), length);
+        ByteBuffer dest = out.nioBuffer(0, rawLength);
+        int read = decompressor.decompress(src, src.position(), dest, dest.position(), rawLength);
+        if (read != length) {
+          throw new CorruptedFrameException("LZ4 block of " + length + " bytes only used " + read);
+        }
+      } catch (RuntimeException e) {
+        out.release();
+        throw e;
+      }
+      in.skipBytes(length);
+      return out.writerIndex(rawLength);
+    }
+  };
+
+  private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+  private final int id;
+
+  ChicagoCompressionCodec(int id) {
+    this.id = id;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  int mask() {
+    return 1 << id;
+  }
+
+  /**
+   * Compresses the readable bytes of {@code in} into a new buffer, consuming them.
+   */
+  abstract ByteBuf compress(ByteBufAllocator alloc, ByteBuf in);
+
+  /**
+   * Inflates the readable bytes of {@code in} into a new buffer of exactly {@code rawLength} bytes.
+   */
+  abstract ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in, int rawLength);
+
+  public static ChicagoCompressionCodec fromInt(int id) {
+    for (ChicagoCompressionCodec codec : values()) {
+      if (codec.id == id) {
+        return codec;
+      }
+    }
+    throw new CorruptedFrameException("Unknown compression codec: " + id);
+  }
+
+  /**
+   * Parses the {@code chicago.wire.compression} style names, anything unknown means no compression.
+   */
+  public static ChicagoCompressionCodec fromName(String name) {
+    if (name == null) {
+      return NONE;
+    }
+    switch (name.trim().toLowerCase()) {
+      case "lz4":
+        return LZ4;
+      case "snappy":
+        return SNAPPY;
+      default:
+        return NONE;
+    }
+  }
+
+  /**
+   * The codec a server picks from the offered mask, the cheapest it supports first.
+   */
+  static ChicagoCompressionCodec choose(int offered) {
+    if ((offered & LZ4.mask()) != 0) {
+      return LZ4;
+    }
+    if ((offered & SNAPPY.mask()) != 0) {
+      return SNAPPY;
+    }
+    return NONE;
+  }
+}
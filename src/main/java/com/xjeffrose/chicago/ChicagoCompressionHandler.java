@@ -0,0 +1,379 @@
+package com.xjeffrose.chicago;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Optional block compression underneath ChicagoCodec.
+ *
+ * A client that wants compression opens the connection with a handshake offering the codecs it can
+ * use, the server answers with the one it picked:
+ *
+ * | HANDSHAKE_MAGIC | HANDSHAKE_VERSION | offered codec mask (client) or chosen codec id (server) |
+ *
+ * From then on both directions carry blocks, each holding everything written between two flushes:
+ *
+ * | codec id (byte) | rawLength (int) | blockLength (int) | block |
+ *
+ * Blocks smaller than the threshold, or that would not shrink, go out with codec NONE. A client keeps
+ * sending NONE blocks until the server's answer arrives. A server that does not see the handshake as
+ * the first byte passes everything through untouched, so clients without compression keep working.
+ *
+ * Per connection ratio and time spent compressing are kept in a Stats object on the channel, server
+ * connections also add them to SERVER_TOTALS for the stats server.
+ */
+public class ChicagoCompressionHandler extends CombinedChannelDuplexHandler<ChicagoCompressionHandler.BlockDecoder, ChicagoCompressionHandler.BlockEncoder> {
+  private static final Logger log = LoggerFactory.getLogger(ChicagoCompressionHandler.class);
+
+  public static final byte HANDSHAKE_MAGIC = (byte) 0xC3;
+  public static final int HANDSHAKE_VERSION = 1;
+  public static final int HANDSHAKE_SIZE = 3;
+  public static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  public static final AttributeKey<Stats> STATS = AttributeKey.valueOf("chicagoCompressionStats");
+
+  /** Summed over every server connection of this process, closed ones included. */
+  public static final Stats SERVER_TOTALS = new Stats();
+
+  /** What clients offer, e.g. -Dchicago.wire.compression=lz4 */
+  public static final ChicagoCompressionCodec CLIENT_CODEC =
+    ChicagoCompressionCodec.fromName(System.getProperty("chicago.wire.compression"));
+
+  private enum State {
+    // server, waiting for the first byte
+    UNKNOWN,
+    // server, the peer did not ask for compression
+    PASSTHROUGH,
+    // client, handshake sent, waiting for the answer
+    AWAIT_ANSWER,
+    BLOCKS
+  }
+
+  private final boolean client;
+  private final int threshold;
+  private final Stats stats;
+  private State state;
+  private final ChicagoCompressionCodec offered;
+  private ChicagoCompressionCodec codec = ChicagoCompressionCodec.NONE;
+  private boolean handshakeSent;
+
+  private ChicagoCompressionHandler(boolean client, ChicagoCompressionCodec offered, int threshold) {
+    this.client = client;
+    this.offered = offered;
+    this.threshold = threshold;
+    this.stats = client ? new Stats() : new Stats(SERVER_TOTALS);
+    this.state = client ? State.AWAIT_ANSWER : State.UNKNOWN;
+    init(new BlockDecoder(), new BlockEncoder());
+  }
+
+  /**
+   * Accepts compression from any client that asks for it.
+   */
+  public static ChicagoCompressionHandler server() {
+    return new ChicagoCompressionHandler(false, null, DEFAULT_THRESHOLD);
+  }
+
+  public static ChicagoCompressionHandler client(ChicagoCompressionCodec offered) {
+    return client(offered, DEFAULT_THRESHOLD);
+  }
+
+  public static ChicagoCompressionHandler client(ChicagoCompressionCodec offered, int threshold) {
+    return new ChicagoCompressionHandler(true, offered, threshold);
+  }
+
+  public ChicagoCompressionCodec codec() {
+    return codec;
+  }
+
+  public Stats stats() {
+    return stats;
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    ctx.channel().attr(STATS).set(stats);
+    super.handlerAdded(ctx);
+  }
+
+  class BlockDecoder extends ByteToMessageDecoder {
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+      while (in.isReadable()) {
+        switch (state) {
+          case UNKNOWN:
+            if (in.getByte(in.readerIndex()) != HANDSHAKE_MAGIC) {
+              state = State.PASSTHROUGH;
+              break;
+            }
+            if (in.readableBytes() < HANDSHAKE_SIZE) {
+              return;
+            }
+            readHandshake(in);
+            codec = ChicagoCompressionCodec.choose(in.readUnsignedByte());
+            state = State.BLOCKS;
+            ByteBuf answer = ctx.alloc().buffer(HANDSHAKE_SIZE);
+            answer.writeByte(HANDSHAKE_MAGIC).writeByte(HANDSHAKE_VERSION).writeByte(codec.getId());
+            // written from the decoder so it skips our own encoder and goes out as is
+            ctx.writeAndFlush(answer);
+            log.debug("Negotiated " + codec + " compression with " + ctx.channel().remoteAddress());
+            break;
+          case AWAIT_ANSWER:
+            if (in.readableBytes() < HANDSHAKE_SIZE) {
+              return;
+            }
+            if (in.getByte(in.readerIndex()) != HANDSHAKE_MAGIC) {
+              throw new CorruptedFrameException("Expected a compression handshake answer");
+            }
+            readHandshake(in);
+            codec = ChicagoCompressionCodec.fromInt(in.readUnsignedByte());
+            state = State.BLOCKS;
+            break;
+          case PASSTHROUGH:
+            out.add(in.readSlice(in.readableBytes()).retain());
+            return;
+          case BLOCKS:
+            ByteBuf block = readBlock(ctx, in);
+            if (block == null) {
+              return;
+            }
+            out.add(block);
+            break;
+        }
+      }
+    }
+
+    private void readHandshake(ByteBuf in) {
+      in.skipBytes(1);
+      int version = in.readUnsignedByte();
+      if (version != HANDSHAKE_VERSION) {
+        throw new CorruptedFrameException("Unsupported compression handshake version: " + version);
+      }
+    }
+
+    private ByteBuf readBlock(ChannelHandlerContext ctx, ByteBuf in) {
+      if (in.readableBytes() < BLOCK_HEADER_SIZE) {
+        return null;
+      }
+      final int start = in.readerIndex();
+      final int rawLength = in.getInt(start + 1);
+      final int blockLength = in.getInt(start + 5);
+      if (rawLength < 0 || blockLength < 0) {
+        throw new CorruptedFrameException("Negative block length: " + rawLength + "/" + blockLength);
+      }
+      if (in.readableBytes() - BLOCK_HEADER_SIZE < blockLength) {
+        return null;
+      }
+
+      ChicagoCompressionCodec blockCodec = ChicagoCompressionCodec.fromInt(in.getUnsignedByte(start));
+      in.skipBytes(BLOCK_HEADER_SIZE);
+      ByteBuf block = in.readSlice(blockLength);
+      if (blockCodec == ChicagoCompressionCodec.NONE) {
+        return block.retain();
+      }
+
+      long startNanos = System.nanoTime();
+      ByteBuf raw = blockCodec.decompress(ctx.alloc(), block, rawLength);
+      stats.decompressed(blockLength, rawLength, System.nanoTime() - startNanos);
+      return raw;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      if (codec != ChicagoCompressionCodec.NONE) {
+        log.info("Compression stats for " + ctx.channel().remoteAddress() + ": " + stats);
+      }
+      super.channelInactive(ctx);
+    }
+  }
+
+  class BlockEncoder extends ChannelOutboundHandlerAdapter {
+    private CompositeByteBuf pending;
+    private final List<ChannelPromise> promises = new ArrayList<>();
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+      if ((!client && state != State.BLOCKS) || !(msg instanceof ByteBuf)) {
+        ctx.write(msg, promise);
+        return;
+      }
+      if (pending == null) {
+        pending = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+      }
+      ByteBuf bb = (ByteBuf) msg;
+      pending.addComponent(bb);
+      pending.writerIndex(pending.writerIndex() + bb.readableBytes());
+      promises.add(promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+      if (pending != null) {
+        if (client && !handshakeSent) {
+          ByteBuf handshake = ctx.alloc().buffer(HANDSHAKE_SIZE);
+          handshake.writeByte(HANDSHAKE_MAGIC).writeByte(HANDSHAKE_VERSION).writeByte(offered.mask());
+          ctx.write(handshake, ctx.voidPromise());
+          handshakeSent = true;
+        }
+        writeBlock(ctx);
+      }
+      ctx.flush();
+    }
+
+    private void writeBlock(ChannelHandlerContext ctx) {
+      final CompositeByteBuf raw = pending;
+      final List<ChannelPromise> blockPromises = new ArrayList<>(promises);
+      pending = null;
+      promises.clear();
+
+      final int rawLength = raw.readableBytes();
+      ChicagoCompressionCodec blockCodec = ChicagoCompressionCodec.NONE;
+      ByteBuf block = raw;
+      if (state == State.BLOCKS && codec != ChicagoCompressionCodec.NONE && rawLength >= threshold) {
+        long startNanos = System.nanoTime();
+        ByteBuf compressed = codec.compress(ctx.alloc(), raw.duplicate());
+        long nanos = System.nanoTime() - startNanos;
+        if (compressed.readableBytes() < rawLength) {
+          blockCodec = codec;
+          block = compressed;
+          raw.release();
+          stats.compressed(rawLength, compressed.readableBytes(), nanos);
+        } else {
+          compressed.release();
+          stats.compressed(0, 0, nanos);
+        }
+      }
+
+      ByteBuf header = ctx.alloc().buffer(BLOCK_HEADER_SIZE);
+      header.writeByte(blockCodec.getId()).writeInt(rawLength).writeInt(block.readableBytes());
+      ctx.write(header, ctx.voidPromise());
+      ctx.write(block).addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+          for (ChannelPromise promise : blockPromises) {
+            if (future.isSuccess()) {
+              promise.trySuccess();
+            } else {
+              promise.tryFailure(future.cause());
+            }
+          }
+        }
+      });
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+      discardPending();
+      ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      discardPending();
+    }
+
+    private void discardPending() {
+      if (pending != null) {
+        ReferenceCountUtil.release(pending);
+        pending = null;
+        for (ChannelPromise promise : promises) {
+          promise.tryFailure(new IllegalStateException("Channel closed before flush"));
+        }
+        promises.clear();
+      }
+    }
+  }
+
+  /**
+   * Byte counts on both sides of the codec and the time spent in it, for this connection. Whatever is
+   * counted here is also added to the parent, if there is one.
+   */
+  public static class Stats {
+    private final Stats parent;
+    final LongAdder rawBytesOut = new LongAdder();
+    final LongAdder compressedBytesOut = new LongAdder();
+    final LongAdder rawBytesIn = new LongAdder();
+    final LongAdder compressedBytesIn = new LongAdder();
+    final LongAdder compressNanos = new LongAdder();
+    final LongAdder decompressNanos = new LongAdder();
+
+    public Stats() {
+      this(null);
+    }
+
+    Stats(Stats parent) {
+      this.parent = parent;
+    }
+
+    void compressed(long rawBytes, long compressedBytes, long nanos) {
+      rawBytesOut.add(rawBytes);
+      compressedBytesOut.add(compressedBytes);
+      compressNanos.add(nanos);
+      if (parent != null) {
+        parent.compressed(rawBytes, compressedBytes, nanos);
+      }
+    }
+
+    void decompressed(long compressedBytes, long rawBytes, long nanos) {
+      compressedBytesIn.add(compressedBytes);
+      rawBytesIn.add(rawBytes);
+      decompressNanos.add(nanos);
+      if (parent != null) {
+        parent.decompressed(compressedBytes, rawBytes, nanos);
+      }
+    }
+
+    public long getRawBytesOut() {
+      return rawBytesOut.sum();
+    }
+
+    public long getCompressedBytesOut() {
+      return compressedBytesOut.sum();
+    }
+
+    public long getRawBytesIn() {
+      return rawBytesIn.sum();
+    }
+
+    public long getCompressedBytesIn() {
+      return compressedBytesIn.sum();
+    }
+
+    public long getCompressNanos() {
+      return compressNanos.sum();
+    }
+
+    public long getDecompressNanos() {
+      return decompressNanos.sum();
+    }
+
+    /** Raw over compressed bytes for everything this side compressed, 1 when nothing was. */
+    public double getCompressionRatio() {
+      long compressed = getCompressedBytesOut();
+      return compressed == 0 ? 1.0 : (double) getRawBytesOut() / compressed;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("out %d -> %d bytes (ratio %.2f, %d us), in %d -> %d bytes (%d us)",
+        getRawBytesOut(), getCompressedBytesOut(), getCompressionRatio(), getCompressNanos() / 1000,
+        getCompressedBytesIn(), getRawBytesIn(), getDecompressNanos() / 1000);
+    }
+  }
+}
@@ -2,38 +2,65 @@ package com.xjeffrose.chicago;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.UUID;
 
+/*
+ * Joins the chunks of STREAM_RESPONSEs into one message per request. Partial responses are kept per
+ * request id, so any number of streams can be in flight on one connection and finish in any order.
+ *
+ * Not sharable, the partial responses belong to the channel and are only touched from its event loop.
+ */
 public class ChicagoMessageAggregator extends MessageToMessageDecoder<ChicagoMessage> {
-  private final AtomicBoolean started = new AtomicBoolean();
-  private AggregatedChicagoMessage aggregatedMessage;
-
-  private void aggregate(ChicagoMessage msg) {
-    if (started.get()) {
-      aggregatedMessage.appendVal(msg.getVal());
-    } else {
-      aggregatedMessage = new AggregatedChicagoMessage(msg);
-      started.set(true);
-    }
-  }
-
+  private final Map<UUID, AggregatedChicagoMessage> inFlight = new HashMap<>();
 
   @Override
   protected void decode(ChannelHandlerContext ctx, ChicagoMessage msg, List<Object> out) throws Exception {
 
     switch (msg.getOp()) {
       case STREAM_RESPONSE:
-        aggregate(msg);
-        if (new String(msg.getVal()).contains(ChiUtil.delimiter)) {
-          out.add(aggregatedMessage);
-          started.set(false);
+        boolean last = ChicagoRecordBatch.isLast(msg.getVal());
+        AggregatedChicagoMessage aggregatedMessage = inFlight.get(msg.getId());
+        if (aggregatedMessage == null) {
+          if (last) {
+            // single chunk response, nothing to join
+            out.add(msg);
+            break;
+          }
+          inFlight.put(msg.getId(), new AggregatedChicagoMessage(msg));
+          break;
         }
 
+        if (last && !Boolean.valueOf(new String(msg.getKey()))) {
+          // the server gave up part way (failed or overloaded), the chunks so far are not a usable answer
+          inFlight.remove(msg.getId());
+          out.add(msg);
+          break;
+        }
+        aggregatedMessage.appendVal(msg.getVal());
+        if (last) {
+          inFlight.remove(msg.getId());
+          out.add(aggregatedMessage);
+        }
         break;
       default:
         out.add(msg);
     }
 
   }
+
+  /**
+   * Number of responses that are partially received.
+   */
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    inFlight.clear();
+    super.channelInactive(ctx);
+  }
 }
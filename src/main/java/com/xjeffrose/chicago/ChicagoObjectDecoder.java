@@ -1,27 +1,41 @@
 package com.xjeffrose.chicago;
 
-import com.google.common.primitives.Ints;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.DecoderResult;
 import java.util.List;
 import java.util.UUID;
 import lombok.extern.slf4j.Slf4j;
 
 /*
- * | id | op | ColFam | keySize | key | valSize | val |
+ * Decodes both V1 and V2 frames, see ChicagoWireFormat for the layouts.
  *
+ * Each frame is first parsed in place (absolute reads only, the reader index is not touched) so
+ * that a partial frame costs nothing but a few bounds checks; the message is only materialized
+ * once the whole frame is available.
+ *
+ * In zero copy mode the decoder emits ByteBufChicagoMessages holding slices of a retained frame rather
+ * than DefaultChicagoMessages with copied fields; whoever consumes those must release them.
  */
 
 @Slf4j
 public class ChicagoObjectDecoder extends ByteToMessageDecoder {
 
-  private static final int MINIMUM_CHICAGO_MESSAGE_SIZE = 50;
+  private final boolean zeroCopy;
+
+  public ChicagoObjectDecoder() {
+    this(false);
+  }
+
+  public ChicagoObjectDecoder(boolean zeroCopy) {
+    this.zeroCopy = zeroCopy;
+  }
 
   public ChicagoMessage decode(byte[] msg) {
-    return decode(Unpooled.wrappedBuffer(msg));
+    return decode(null, Unpooled.wrappedBuffer(msg));
   }
 
   @Override
@@ -29,97 +43,212 @@ public class ChicagoObjectDecoder extends ByteToMessageDecoder {
     // Populate the output List
 
     ChicagoMessage chicagoMessage;
-    while ((chicagoMessage = decode(msg)) != null) {
+    while ((chicagoMessage = decode(ctx, msg)) != null) {
       out.add(chicagoMessage);
     }
   }
 
-  private ChicagoMessage decode(ByteBuf msg) {
-    if (msg.readableBytes() < MINIMUM_CHICAGO_MESSAGE_SIZE) {
+  private ChicagoMessage decode(ChannelHandlerContext ctx, ByteBuf msg) {
+    if (!msg.isReadable()) {
       return null;
     }
-    int startingPosition = msg.readerIndex();
-    //    final byte[] hash = new byte[4];
-    final byte[] id = new byte[36];
-    final byte[] op = new byte[4];
-    final byte[] colFamSize = new byte[4];
-    final byte[] keySize = new byte[4];
-    final byte[] valSize = new byte[4];
 
-    // Determine the message ID
-    if (msg.readableBytes() < id.length) {
+    final Frame frame;
+    if (msg.getByte(msg.readerIndex()) == ChicagoWireFormat.V2_MAGIC) {
+      frame = parseV2(msg);
+      if (frame == null) {
+        return null;
+      }
+      ChicagoWireFormat.recordVersion(ctx, ChicagoWireFormat.V2);
+    } else {
+      frame = parseV1(msg);
+      if (frame == null) {
+        return null;
+      }
+      ChicagoWireFormat.recordVersion(ctx, ChicagoWireFormat.V1);
+    }
+
+    ChicagoMessage chicagoMessage = newMessage(msg, frame);
+    msg.readerIndex(frame.end);
+    return chicagoMessage;
+  }
+
+  private Frame parseV1(ByteBuf msg) {
+    final int start = msg.readerIndex();
+    final int end = msg.writerIndex();
+    if (end - start < ChicagoWireFormat.V1_HEADER_SIZE) {
       return null;
     }
-    msg.readBytes(id, 0, id.length);
 
-    // Determine the operation type
-    if (msg.readableBytes() < op.length) {
-      msg.readerIndex(startingPosition);
+    Frame frame = new Frame();
+    frame.version = ChicagoWireFormat.V1;
+    frame.start = start;
+    frame.op = msg.getInt(start + ChicagoWireFormat.V1_ID_SIZE);
+
+    int pos = start + ChicagoWireFormat.V1_ID_SIZE + 4;
+    frame.colFamLength = checkLength(msg.getInt(pos));
+    frame.colFamIndex = pos + 4;
+    if (frame.colFamLength > end - frame.colFamIndex) {
       return null;
     }
-    msg.readBytes(op, 0, op.length);
+    pos = frame.colFamIndex + frame.colFamLength;
 
-    // Get the colFam Length
-    if (msg.readableBytes() < colFamSize.length) {
-      msg.readerIndex(startingPosition);
+    if (end - pos < 4) {
       return null;
     }
-    msg.readBytes(colFamSize, 0, colFamSize.length);
-    final int colFamLength = Ints.fromByteArray(colFamSize);
-    final byte[] colFam = new byte[colFamLength];
+    frame.keyLength = checkLength(msg.getInt(pos));
+    frame.keyIndex = pos + 4;
+    if (frame.keyLength > end - frame.keyIndex) {
+      return null;
+    }
+    pos = frame.keyIndex + frame.keyLength;
 
-    // Get the Col Fam
-    if (msg.readableBytes() < colFam.length) {
-      msg.readerIndex(startingPosition);
+    if (end - pos < 4) {
       return null;
     }
-    msg.readBytes(colFam);
+    frame.valLength = checkLength(msg.getInt(pos));
+    frame.valIndex = pos + 4;
+    if (frame.valLength > end - frame.valIndex) {
+      return null;
+    }
+    frame.end = frame.valIndex + frame.valLength;
+    return frame;
+  }
 
-    // Get the Key Length
-    if (msg.readableBytes() < keySize.length) {
-      msg.readerIndex(startingPosition);
+  private Frame parseV2(ByteBuf msg) {
+    final int start = msg.readerIndex();
+    final int end = msg.writerIndex();
+    if (end - start < ChicagoWireFormat.V2_HEADER_SIZE) {
       return null;
     }
-    msg.readBytes(keySize);
-    final int keyLength = Ints.fromByteArray(keySize);
-    final byte[] key = new byte[keyLength];
 
-    // Get the Key
-    if (msg.readableBytes() < key.length) {
-      msg.readerIndex(startingPosition);
+    Frame frame = new Frame();
+    frame.version = ChicagoWireFormat.V2;
+    frame.start = start;
+    frame.op = msg.getUnsignedByte(start + 17);
+    frame.status = msg.getUnsignedByte(start + 18);
+
+    int pos = start + ChicagoWireFormat.V2_HEADER_SIZE;
+    long varInt = ChicagoWireFormat.getVarInt(msg, pos, end);
+    if (varInt < 0) {
+      return null;
+    }
+    frame.colFamLength = (int) varInt;
+    frame.colFamIndex = pos + (int) (varInt >>> 32);
+    if (frame.colFamLength > end - frame.colFamIndex) {
       return null;
     }
-    msg.readBytes(key);
+    pos = frame.colFamIndex + frame.colFamLength;
+
+    if ((frame.status & ChicagoWireFormat.STATUS_KEY_IS_STATUS) == 0) {
+      varInt = ChicagoWireFormat.getVarInt(msg, pos, end);
+      if (varInt < 0) {
+        return null;
+      }
+      frame.keyLength = (int) varInt;
+      frame.keyIndex = pos + (int) (varInt >>> 32);
+      if (frame.keyLength > end - frame.keyIndex) {
+        return null;
+      }
+      pos = frame.keyIndex + frame.keyLength;
+    } else {
+      frame.keyIndex = -1;
+    }
 
-    // Get the Value Length
-    if (msg.readableBytes() < valSize.length) {
-      msg.readerIndex(startingPosition);
+    varInt = ChicagoWireFormat.getVarInt(msg, pos, end);
+    if (varInt < 0) {
       return null;
     }
-    msg.readBytes(valSize);
+    frame.valLength = (int) varInt;
+    frame.valIndex = pos + (int) (varInt >>> 32);
+    if (frame.valLength > end - frame.valIndex) {
+      return null;
+    }
+    frame.end = frame.valIndex + frame.valLength;
+    return frame;
+  }
 
-    final int valLength = Ints.fromByteArray(valSize);
-    final byte[] val = new byte[valLength];
-    log.debug("val size = " + valLength);
+  private static int checkLength(int length) {
+    if (length < 0) {
+      throw new CorruptedFrameException("Negative field length: " + length);
+    }
+    return length;
+  }
 
-    // Get the Value
-    if (msg.readableBytes() < val.length) {
-      msg.readerIndex(startingPosition);
-      return null;
+  private ChicagoMessage newMessage(ByteBuf msg, Frame frame) {
+    final Op op = Op.fromInt(frame.op);
+    if (zeroCopy) {
+      try {
+        return newByteBufMessage(msg, frame, readId(msg, frame), op);
+      } catch (IllegalArgumentException e) {
+        // fall through, the failed message is built from copies below
+      }
+    }
+    final byte[] colFam = copy(msg, frame.colFamIndex, frame.colFamLength);
+    final byte[] key;
+    if (frame.keyIndex < 0) {
+      key = ChicagoWireFormat.statusKey((frame.status & ChicagoWireFormat.STATUS_SUCCESS) != 0);
+    } else {
+      key = copy(msg, frame.keyIndex, frame.keyLength);
     }
-    msg.readBytes(val);
+    final byte[] val = copy(msg, frame.valIndex, frame.valLength);
+    log.debug("val size = " + frame.valLength);
 
     try {
-      DefaultChicagoMessage _msg = new DefaultChicagoMessage(UUID.fromString(new String(id)),
-        Op.fromInt(Ints.fromByteArray(op)), colFam, key, val);
+      DefaultChicagoMessage _msg = new DefaultChicagoMessage(readId(msg, frame), op, colFam, key, val);
       _msg.setDecoderResult(DecoderResult.SUCCESS);
       return _msg;
     } catch (IllegalArgumentException e) {
       log.error("Failure during Decode: ", e);
-      DefaultChicagoMessage _msg =
-        new DefaultChicagoMessage(null, Op.fromInt(Ints.fromByteArray(op)), colFam, key, val);
+      DefaultChicagoMessage _msg = new DefaultChicagoMessage(null, op, colFam, key, val);
       _msg.setDecoderResult(DecoderResult.failure(e));
       return _msg;
     }
   }
+
+  private static ChicagoMessage newByteBufMessage(ByteBuf msg, Frame frame, UUID id, Op op) {
+    // Like DefaultChicagoMessage, only an explicit "false" status reads as a failure
+    final boolean success = frame.keyIndex >= 0 || (frame.status & ChicagoWireFormat.STATUS_SUCCESS) != 0;
+    final ByteBuf frameBuf = msg.slice(frame.start, frame.end - frame.start).retain();
+    final ByteBuf colFam = frameBuf.slice(frame.colFamIndex - frame.start, frame.colFamLength);
+    final ByteBuf key;
+    if (frame.keyIndex < 0) {
+      key = Unpooled.wrappedBuffer(ChicagoWireFormat.statusKey(success));
+    } else {
+      key = frameBuf.slice(frame.keyIndex - frame.start, frame.keyLength);
+    }
+    final ByteBuf val = frameBuf.slice(frame.valIndex - frame.start, frame.valLength);
+
+    ByteBufChicagoMessage _msg = new ByteBufChicagoMessage(id, op, success, frameBuf, colFam, key, val);
+    _msg.setDecoderResult(DecoderResult.SUCCESS);
+    return _msg;
+  }
+
+  private static UUID readId(ByteBuf msg, Frame frame) {
+    if (frame.version == ChicagoWireFormat.V2) {
+      return new UUID(msg.getLong(frame.start + 1), msg.getLong(frame.start + 9));
+    }
+    return ChicagoWireFormat.getAsciiUuid(msg, frame.start);
+  }
+
+  private static byte[] copy(ByteBuf msg, int index, int length) {
+    byte[] bytes = new byte[length];
+    msg.getBytes(index, bytes);
+    return bytes;
+  }
+
+  /** Absolute offsets of the fields of one complete frame. */
+  private static final class Frame {
+    int version;
+    int start;
+    int end;
+    int op;
+    int status;
+    int colFamIndex;
+    int colFamLength;
+    int keyIndex;
+    int keyLength;
+    int valIndex;
+    int valLength;
+  }
 }
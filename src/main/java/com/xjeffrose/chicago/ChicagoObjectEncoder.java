@@ -1,13 +1,13 @@
 package com.xjeffrose.chicago;
 
-import com.google.common.hash.Hashing;
-import com.google.common.primitives.Ints;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 import io.netty.util.ReferenceCountUtil;
-import io.netty.util.ReferenceCounted;
 import java.util.List;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -16,14 +16,29 @@ import org.slf4j.LoggerFactory;
 /*
  * | id | op | ColFam | keySize | key | valSize | val |
  *
+ * Writes V1 or V2 frames, see ChicagoWireFormat. When the peer has already spoken on the channel the
+ * encoder answers in the peer's version, otherwise it uses the version it was configured with.
  *
+ * The frame size is computed up front so the header goes into one buffer of exactly the right size.
+ * Values of COMPOSITE_THRESHOLD bytes or more are not copied behind the header but attached to it as
+ * a second component of a CompositeByteBuf.
  */
 
 public class ChicagoObjectEncoder extends MessageToMessageEncoder<Object> {
   private static final Logger log = LoggerFactory.getLogger(ChicagoObjectEncoder.class);
 
+  static final int COMPOSITE_THRESHOLD = 4 * 1024;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final int version;
 
   public ChicagoObjectEncoder() {
+    this(ChicagoWireFormat.V1);
+  }
+
+  public ChicagoObjectEncoder(int version) {
+    this.version = version;
   }
 
   public ByteBuf encode(ChicagoMessage msg) {
@@ -31,46 +46,132 @@ public class ChicagoObjectEncoder extends MessageToMessageEncoder<Object> {
   }
 
   public ByteBuf encode(ChannelHandlerContext ctx, ChicagoMessage msg) {
+    if (ctx != null && msg instanceof ByteBufChicagoMessage) {
+      ByteBufChicagoMessage bbMsg = (ByteBufChicagoMessage) msg;
+      return encode(ctx.alloc(), true, ChicagoWireFormat.negotiatedVersion(ctx, version), msg.getId(), msg.getOp(),
+        msg.getColFam(), msg.getKey(), bbMsg.valBuf().slice().retain());
+    }
     return encode(ctx, msg.getId(), msg.getOp(), msg.getColFam(), msg.getKey(), msg.getVal());
   }
 
+  /**
+   * Encodes into direct buffers from {@code alloc} using the configured version.
+   */
+  public ByteBuf encode(ByteBufAllocator alloc, ChicagoMessage msg) {
+    return encode(alloc, true, version, msg.getId(), msg.getOp(), msg.getColFam(), msg.getKey(), wrap(msg.getVal()));
+  }
+
   public ByteBuf encode(UUID _id, Op _op, byte[] colFam, byte[] key, byte[] val) {
     return encode(null, _id, _op, colFam, key, val);
   }
 
   public ByteBuf encode(ChannelHandlerContext ctx, UUID _id, Op _op, byte[] colFam, byte[] key, byte[] val) {
+    if (ctx == null) {
+      return encode(UnpooledByteBufAllocator.DEFAULT, false, version, _id, _op, colFam, key, wrap(val));
+    }
+    return encode(ctx.alloc(), true, ChicagoWireFormat.negotiatedVersion(ctx, version), _id, _op, colFam, key, wrap(val));
+  }
+
+  private static ByteBuf wrap(byte[] val) {
+    return val == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(val);
+  }
+
+  /**
+   * @param val ownership moves to the encoder, it is either attached to the result or released
+   */
+  private ByteBuf encode(ByteBufAllocator alloc, boolean direct, int version, UUID id, Op op, byte[] colFam,
+                         byte[] key, ByteBuf val) {
+    if (colFam == null) {
+      colFam = EMPTY;
+    }
 
     if (key == null) {
-      key = new byte[0];
+      key = EMPTY;
+    }
+
+    final int valLength = val.readableBytes();
+    final boolean v2 = version == ChicagoWireFormat.V2;
+    final boolean keyIsStatus = v2 && ChicagoWireFormat.isStatusKey(op, key);
+    final int headerSize = v2 ? v2HeaderSize(colFam, key, keyIsStatus, valLength) : v1HeaderSize(colFam, key);
+    final boolean attachVal = valLength >= COMPOSITE_THRESHOLD;
+
+    ByteBuf header;
+    int capacity = attachVal ? headerSize : headerSize + valLength;
+    if (direct) {
+      header = alloc.directBuffer(capacity, capacity);
+    } else {
+      header = alloc.heapBuffer(capacity, capacity);
     }
 
-    if (val == null) {
-      val = new byte[0];
+    if (v2) {
+      writeV2Header(header, id, op, colFam, key, keyIsStatus, valLength);
+    } else {
+      writeV1Header(header, id, op, colFam, key, valLength);
     }
 
-    byte[] id = _id.toString().getBytes();
-    byte[] op = Ints.toByteArray(_op.getOp());
-    byte[] colFamSize = Ints.toByteArray(colFam.length);
-    byte[] keySize = Ints.toByteArray(key.length);
-    byte[] valSize = Ints.toByteArray(val.length);
+    if (!attachVal) {
+      header.writeBytes(val, val.readerIndex(), valLength);
+      val.release();
+      return header;
+    }
 
-    ByteBuf bb;
-    if (ctx == null ) {
-      bb = Unpooled.buffer();
+    CompositeByteBuf frame;
+    if (direct) {
+      frame = alloc.compositeDirectBuffer(2);
     } else {
-      bb = ctx.alloc().directBuffer();
+      frame = alloc.compositeHeapBuffer(2);
     }
+    frame.addComponents(header, val);
+    frame.writerIndex(headerSize + valLength);
+    return frame;
+  }
+
+  private static int v1HeaderSize(byte[] colFam, byte[] key) {
+    return ChicagoWireFormat.V1_HEADER_SIZE + colFam.length + 4 + key.length + 4;
+  }
 
-    bb.writeBytes(id);
-    bb.writeBytes(op);
-    bb.writeBytes(colFamSize);
+  private static void writeV1Header(ByteBuf bb, UUID id, Op op, byte[] colFam, byte[] key, int valLength) {
+    ChicagoWireFormat.writeAsciiUuid(bb, id);
+    bb.writeInt(op.getOp());
+    bb.writeInt(colFam.length);
     bb.writeBytes(colFam);
-    bb.writeBytes(keySize);
+    bb.writeInt(key.length);
     bb.writeBytes(key);
-    bb.writeBytes(valSize);
-    bb.writeBytes(val);
+    bb.writeInt(valLength);
+  }
 
-    return bb;
+  private static int v2HeaderSize(byte[] colFam, byte[] key, boolean keyIsStatus, int valLength) {
+    int size = ChicagoWireFormat.V2_HEADER_SIZE
+      + ChicagoWireFormat.varIntSize(colFam.length) + colFam.length
+      + ChicagoWireFormat.varIntSize(valLength);
+    if (!keyIsStatus) {
+      size += ChicagoWireFormat.varIntSize(key.length) + key.length;
+    }
+    return size;
+  }
+
+  private static void writeV2Header(ByteBuf bb, UUID id, Op op, byte[] colFam, byte[] key, boolean keyIsStatus,
+                                    int valLength) {
+    int status = 0;
+    if (keyIsStatus) {
+      status |= ChicagoWireFormat.STATUS_KEY_IS_STATUS;
+      if (ChicagoWireFormat.statusKeyValue(key)) {
+        status |= ChicagoWireFormat.STATUS_SUCCESS;
+      }
+    }
+
+    bb.writeByte(ChicagoWireFormat.V2_MAGIC);
+    bb.writeLong(id.getMostSignificantBits());
+    bb.writeLong(id.getLeastSignificantBits());
+    bb.writeByte(op.getOp());
+    bb.writeByte(status);
+    ChicagoWireFormat.writeVarInt(bb, colFam.length);
+    bb.writeBytes(colFam);
+    if (!keyIsStatus) {
+      ChicagoWireFormat.writeVarInt(bb, key.length);
+      bb.writeBytes(key);
+    }
+    ChicagoWireFormat.writeVarInt(bb, valLength);
   }
 
   @Override
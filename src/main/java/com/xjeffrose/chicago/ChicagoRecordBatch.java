@@ -0,0 +1,197 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.db.DBRecord;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The value of a STREAM_RESPONSE:
+ *
+ * | flags (byte) | count (int) | nextOffset (long) | keySize (int) | key | valSize (int) | val | ... count times
+ *
+ * FLAG_LAST marks the final chunk of a response, nextOffset is where the next stream request should
+ * start. Records are read in place, no delimiters and no string conversion.
+ *
+ * MULTI_GET and MULTI_PUT carry their keys and values in the same layout. A valSize of -1 marks a key
+ * with no value (a MULTI_GET miss), which the visitor sees as a null val.
+ */
+public final class ChicagoRecordBatch {
+  public static final int FLAG_LAST = 0x01;
+  public static final int HEADER_SIZE = 1 + 4 + 8;
+
+  private static final int ABSENT = -1;
+
+  private static final int FLAGS_INDEX = 0;
+  private static final int COUNT_INDEX = 1;
+  private static final int NEXT_OFFSET_INDEX = 5;
+
+  public interface RecordVisitor {
+    /**
+     * @param key slice of the batch, only valid during the call
+     * @param val slice of the batch, only valid during the call, null for a key without a value
+     */
+    void visit(ByteBuf key, ByteBuf val);
+  }
+
+  private final ByteBuf buf;
+
+  private ChicagoRecordBatch(ByteBuf buf) {
+    if (buf.readableBytes() < HEADER_SIZE) {
+      throw new IllegalArgumentException("Record batch shorter than its header: " + buf.readableBytes());
+    }
+    this.buf = buf;
+  }
+
+  public static ChicagoRecordBatch wrap(byte[] bytes) {
+    return new ChicagoRecordBatch(Unpooled.wrappedBuffer(bytes));
+  }
+
+  public static ChicagoRecordBatch wrap(ByteBuf buf) {
+    return new ChicagoRecordBatch(buf);
+  }
+
+  public static boolean isLast(byte[] bytes) {
+    return bytes != null && bytes.length >= HEADER_SIZE && (bytes[FLAGS_INDEX] & FLAG_LAST) != 0;
+  }
+
+  public boolean isLast() {
+    return (buf.getByte(buf.readerIndex() + FLAGS_INDEX) & FLAG_LAST) != 0;
+  }
+
+  public int count() {
+    return buf.getInt(buf.readerIndex() + COUNT_INDEX);
+  }
+
+  public long nextOffset() {
+    return buf.getLong(buf.readerIndex() + NEXT_OFFSET_INDEX);
+  }
+
+  public void forEach(RecordVisitor visitor) {
+    int pos = buf.readerIndex() + HEADER_SIZE;
+    for (int i = 0, count = count(); i < count; i++) {
+      int keySize = buf.getInt(pos);
+      ByteBuf key = buf.slice(pos + 4, keySize);
+      pos += 4 + keySize;
+      int valSize = buf.getInt(pos);
+      pos += 4;
+      ByteBuf val = null;
+      if (valSize != ABSENT) {
+        val = buf.slice(pos, valSize);
+        pos += valSize;
+      }
+      visitor.visit(key, val);
+    }
+  }
+
+  public List<byte[]> values() {
+    List<byte[]> values = new ArrayList<>(count());
+    forEach((key, val) -> values.add(val == null ? null : ChiUtil.toBytes(val)));
+    return values;
+  }
+
+  public List<byte[]> keys() {
+    List<byte[]> keys = new ArrayList<>(count());
+    forEach((key, val) -> keys.add(ChiUtil.toBytes(key)));
+    return keys;
+  }
+
+  /**
+   * Copies the batch back out into records, keys and values as byte arrays.
+   */
+  public List<DBRecord> records(byte[] colFam) {
+    List<DBRecord> records = new ArrayList<>(count());
+    forEach((key, val) -> records.add(new DBRecord(colFam, ChiUtil.toBytes(key), val == null ? null : ChiUtil.toBytes(val))));
+    return records;
+  }
+
+  /**
+   * A batch of keys only, as sent by MULTI_GET.
+   */
+  public static byte[] encodeKeys(List<byte[]> keys) {
+    List<DBRecord> records = new ArrayList<>(keys.size());
+    for (byte[] key : keys) {
+      records.add(new DBRecord(null, key, null));
+    }
+    return encode(records, true, 0);
+  }
+
+  public static byte[] encode(List<DBRecord> records, boolean last, long nextOffset) {
+    int size = HEADER_SIZE;
+    for (DBRecord record : records) {
+      size += sizeOf(record);
+    }
+
+    ByteBuf bb = Unpooled.wrappedBuffer(new byte[size]).writerIndex(0);
+    bb.writeByte(last ? FLAG_LAST : 0);
+    bb.writeInt(records.size());
+    bb.writeLong(nextOffset);
+    for (DBRecord record : records) {
+      bb.writeInt(record.getKey().length);
+      bb.writeBytes(record.getKey());
+      if (record.getValue() == null) {
+        bb.writeInt(ABSENT);
+      } else {
+        bb.writeInt(record.getValue().length);
+        bb.writeBytes(record.getValue());
+      }
+    }
+    return bb.array();
+  }
+
+  /**
+   * Bytes {@code record} takes up in a batch.
+   */
+  public static int sizeOf(DBRecord record) {
+    int size = 4 + record.getKey().length + 4;
+    if (record.getValue() != null) {
+      size += record.getValue().length;
+    }
+    return size;
+  }
+
+  /**
+   * Where a stream that returned {@code records} continues: one past the last time series key, or
+   * {@code requestedOffset} when nothing came back.
+   */
+  public static long nextOffset(List<DBRecord> records, long requestedOffset) {
+    if (records == null || records.isEmpty()) {
+      return requestedOffset;
+    }
+    byte[] lastKey = records.get(records.size() - 1).getKey();
+    if (lastKey.length != Longs.BYTES) {
+      return requestedOffset;
+    }
+    return Longs.fromByteArray(lastKey) + 1;
+  }
+
+  /**
+   * Joins the chunks of one response into a single batch, copying each record exactly once. Flags
+   * and nextOffset come from the final chunk.
+   */
+  public static byte[] merge(List<byte[]> chunks) {
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+
+    int size = HEADER_SIZE;
+    int count = 0;
+    for (byte[] chunk : chunks) {
+      size += chunk.length - HEADER_SIZE;
+      count += wrap(chunk).count();
+    }
+
+    byte[] lastChunk = chunks.get(chunks.size() - 1);
+    byte[] merged = new byte[size];
+    ByteBuf bb = Unpooled.wrappedBuffer(merged).writerIndex(0);
+    bb.writeByte(lastChunk[FLAGS_INDEX]);
+    bb.writeInt(count);
+    bb.writeLong(wrap(lastChunk).nextOffset());
+    for (byte[] chunk : chunks) {
+      bb.writeBytes(chunk, HEADER_SIZE, chunk.length - HEADER_SIZE);
+    }
+    return merged;
+  }
+}
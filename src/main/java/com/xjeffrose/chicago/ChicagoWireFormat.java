@@ -0,0 +1,191 @@
+package com.xjeffrose.chicago;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.util.UUID;
+
+/*
+ * V1 (legacy):
+ * | id (36 byte ascii uuid) | op (int) | colFamSize (int) | colFam | keySize (int) | key | valSize (int) | val |
+ *
+ * V2:
+ * | magic (0xC2) | id (16 byte binary uuid) | op (byte) | status (byte) | colFamSize (varint) | colFam |
+ * [ keySize (varint) | key ] | valSize (varint) | val |
+ *
+ * The version is chosen per connection by the peer that opens it: the decoder sniffs the first byte of
+ * every frame (a V1 frame always starts with an ascii hex digit, never 0xC2) and records the version on
+ * the channel, and the encoder answers in whatever version the peer last spoke. Old clients keep talking
+ * V1 and never see a V2 frame.
+ */
+public final class ChicagoWireFormat {
+  public static final int V1 = 1;
+  public static final int V2 = 2;
+
+  public static final byte V2_MAGIC = (byte) 0xC2;
+
+  public static final int V1_ID_SIZE = 36;
+  public static final int V1_HEADER_SIZE = V1_ID_SIZE + 4 + 4;
+  public static final int V2_HEADER_SIZE = 1 + 16 + 1 + 1;
+
+  // Status byte flags
+  public static final int STATUS_SUCCESS = 0x01;
+  // The key is the "true"/"false" response status and is carried by STATUS_SUCCESS instead of on the wire
+  public static final int STATUS_KEY_IS_STATUS = 0x02;
+
+  public static final AttributeKey<Integer> VERSION = AttributeKey.valueOf("chicagoWireVersion");
+
+  // Version used by clients for the frames they originate, e.g. -Dchicago.wire.version=2
+  public static final int CLIENT_VERSION = Integer.getInteger("chicago.wire.version", V1);
+
+  private static final byte[] TRUE = Boolean.toString(true).getBytes();
+  private static final byte[] FALSE = Boolean.toString(false).getBytes();
+
+  private ChicagoWireFormat() {
+  }
+
+  public static int negotiatedVersion(ChannelHandlerContext ctx, int defaultVersion) {
+    if (ctx == null) {
+      return defaultVersion;
+    }
+    Integer version = ctx.channel().attr(VERSION).get();
+    return version == null ? defaultVersion : version;
+  }
+
+  static void recordVersion(ChannelHandlerContext ctx, int version) {
+    if (ctx == null) {
+      return;
+    }
+    Attribute<Integer> attr = ctx.channel().attr(VERSION);
+    Integer current = attr.get();
+    if (current == null || current != version) {
+      attr.set(version);
+    }
+  }
+
+  static boolean isStatusKey(Op op, byte[] key) {
+    if (op != Op.RESPONSE && op != Op.STREAM_RESPONSE) {
+      return false;
+    }
+    return equals(key, TRUE) || equals(key, FALSE);
+  }
+
+  static boolean statusKeyValue(byte[] key) {
+    return equals(key, TRUE);
+  }
+
+  static byte[] statusKey(boolean success) {
+    return Boolean.toString(success).getBytes();
+  }
+
+  private static boolean equals(byte[] a, byte[] b) {
+    if (a == null || a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int varIntSize(int value) {
+    if ((value & (0xffffffff << 7)) == 0) {
+      return 1;
+    } else if ((value & (0xffffffff << 14)) == 0) {
+      return 2;
+    } else if ((value & (0xffffffff << 21)) == 0) {
+      return 3;
+    } else if ((value & (0xffffffff << 28)) == 0) {
+      return 4;
+    }
+    return 5;
+  }
+
+  public static void writeVarInt(ByteBuf bb, int value) {
+    while ((value & ~0x7F) != 0) {
+      bb.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bb.writeByte(value);
+  }
+
+  /**
+   * Reads an unsigned varint at an absolute index without moving the reader index.
+   *
+   * @return -1 if the buffer does not yet hold the whole varint, otherwise the value in the low
+   * 32 bits and the number of bytes it took in the high 32 bits.
+   */
+  public static long getVarInt(ByteBuf bb, int index, int end) {
+    int value = 0;
+    for (int i = 0; i < 5; i++) {
+      if (index + i >= end) {
+        return -1;
+      }
+      byte b = bb.getByte(index + i);
+      value |= (b & 0x7F) << (7 * i);
+      if ((b & 0x80) == 0) {
+        if (value < 0 || varIntSize(value) != i + 1) {
+          throw new CorruptedFrameException("Malformed varint length: " + value);
+        }
+        return ((long) (i + 1) << 32) | (value & 0xffffffffL);
+      }
+    }
+    throw new CorruptedFrameException("Varint length wider than 32 bits");
+  }
+
+  public static void writeAsciiUuid(ByteBuf bb, UUID id) {
+    long msb = id.getMostSignificantBits();
+    long lsb = id.getLeastSignificantBits();
+    writeHex(bb, msb >>> 32, 8);
+    bb.writeByte('-');
+    writeHex(bb, msb >>> 16, 4);
+    bb.writeByte('-');
+    writeHex(bb, msb, 4);
+    bb.writeByte('-');
+    writeHex(bb, lsb >>> 48, 4);
+    bb.writeByte('-');
+    writeHex(bb, lsb, 12);
+  }
+
+  private static void writeHex(ByteBuf bb, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      int nibble = (int) (value >>> (4 * i)) & 0xF;
+      bb.writeByte(nibble < 10 ? '0' + nibble : 'a' + nibble - 10);
+    }
+  }
+
+  /**
+   * Parses the 36 byte ascii form of {@link UUID#toString()} in place, without building a String.
+   *
+   * @throws IllegalArgumentException if the bytes are not a canonical uuid
+   */
+  public static UUID getAsciiUuid(ByteBuf bb, int index) {
+    long msb = 0;
+    long lsb = 0;
+    int digits = 0;
+    for (int i = 0; i < V1_ID_SIZE; i++) {
+      byte c = bb.getByte(index + i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          throw new IllegalArgumentException("Invalid UUID string at position " + i);
+        }
+        continue;
+      }
+      int nibble = Character.digit(c, 16);
+      if (nibble < 0) {
+        throw new IllegalArgumentException("Invalid UUID string at position " + i);
+      }
+      if (digits < 16) {
+        msb = (msb << 4) | nibble;
+      } else {
+        lsb = (lsb << 4) | nibble;
+      }
+      digits++;
+    }
+    return new UUID(msb, lsb);
+  }
+}
@@ -2,7 +2,7 @@ package com.xjeffrose.chicago;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufHolder;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.handler.codec.DecoderResult;
 import java.util.UUID;
 import lombok.EqualsAndHashCode;
@@ -31,7 +31,7 @@ public class DefaultChicagoMessage implements ChicagoMessage {
   }
 
   public ByteBuf encode() {
-    return Unpooled.directBuffer().writeBytes(new ChicagoObjectEncoder().encode(id, _op, colFam, key, val));
+    return new ChicagoObjectEncoder().encode(UnpooledByteBufAllocator.DEFAULT, this);
   }
 
   @Override
@@ -1,14 +1,7 @@
 package com.xjeffrose.chicago;
 
-import com.google.common.hash.Funnels;
-import com.google.common.primitives.Longs;
-import com.xjeffrose.chicago.client.*;
-
 import com.xjeffrose.chicago.db.RocksDBImpl;
 import com.xjeffrose.chicago.db.StorageProvider;
-import java.nio.charset.Charset;
-import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.*;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -20,20 +13,19 @@ import org.slf4j.LoggerFactory;
 public class NodeWatcher {
   private static final Logger log = LoggerFactory.getLogger(NodeWatcher.class);
   private final String NODE_LIST_PATH;
-  private final String REPLICATION_LOCK_PATH;
-  private final int quorum;
+  private final Rebalancer rebalancer;
   private final CountDownLatch latch = new CountDownLatch(1);
   private final GenericListener genericListener = new GenericListener();
   private TreeCacheInstance nodeList;
   private ZkClient zkClient;
   private StorageProvider db;
-  private ExecutorService replicationWorker = Executors.newFixedThreadPool(5);
+  // plans the rebalances one membership change at a time, the rebalancer runs the moves
+  private ExecutorService replicationWorker = Executors.newSingleThreadExecutor();
   private String advertisedEndpoint;
 
-  public NodeWatcher(String nodeListPath, String replicationLockPath, int quorum) {
+  public NodeWatcher(String nodeListPath, Rebalancer rebalancer) {
     NODE_LIST_PATH = nodeListPath;
-    REPLICATION_LOCK_PATH = replicationLockPath;
-    this.quorum = quorum;
+    this.rebalancer = rebalancer;
   }
 
   /**
@@ -51,6 +43,8 @@ public class NodeWatcher {
       throw new RuntimeException(e);
     }
 
+    rebalancer.start(zkClient, advertisedEndpoint);
+
     try {
       latch.await();
       log.info("NodeWatcher initialization completed");
@@ -68,77 +62,14 @@ public class NodeWatcher {
       log.info("Couldn't remove genericListener without NPE");
     }
     replicationWorker.shutdownNow();
+    rebalancer.close();
     if (nodeList != null) {
       nodeList.stop();
     }
   }
 
   private void redistributeKeys(String node, TreeCacheEvent.Type type) {
-      log.info("Starting replication...");
-      long startTime = System.currentTimeMillis();
-      RendezvousHash rendezvousHash = new RendezvousHash(Funnels.stringFunnel(Charset.defaultCharset()), zkClient.list(NODE_LIST_PATH), quorum);
-      RendezvousHash rendezvousHashnOld = new RendezvousHash(Funnels.stringFunnel(Charset.defaultCharset()), zkClient.list(NODE_LIST_PATH), quorum);
-      switch(type){
-        case NODE_ADDED: rendezvousHashnOld.remove(node);
-                         break;
-        case NODE_REMOVED: rendezvousHashnOld.add(node);
-                           break;
-      }
-
-      //todo: Need to do faster replication with multi threading and future listeners.
-      //For all the column family present on this server.
-      db.getColFams().parallelStream().forEach(cf -> {
-        List<String> newS = rendezvousHash.get(cf.getBytes());
-        List<String> oldS = rendezvousHashnOld.get(cf.getBytes());
-        String bounceLockPath = "";
-        boolean bounceLock=false;
-        newS.removeAll(oldS);
-
-        if(type == TreeCacheEvent.Type.NODE_REMOVED){
-          bounceLockPath = REPLICATION_LOCK_PATH + "/" + cf + "/" + node;
-          zkClient.createLockPath(bounceLockPath, advertisedEndpoint, "BOUNCE_LOCK");
-          bounceLock=true;
-        }
-
-        //For all the nodes that have been newly added to the hash.
-        newS.forEach(s -> {
-            if(!s.equals(advertisedEndpoint)) {
-              log.info("Replicatng colFam " + cf + " to " + s);
-              String lockPath = REPLICATION_LOCK_PATH + "/" + cf + "/" + s;
-              try {
-                zkClient.createLockPath(lockPath, advertisedEndpoint, "REPLICATION_LOCK");
-                ChicagoAsyncClient c = new ChicagoAsyncClient((String) s);
-                c.start();
-                byte[] offset = new byte[]{};
-                List<byte[]> keys = db.getKeys(cf.getBytes(), offset);
-                // Start replicating all the keys to the new server.
-                while(!Arrays.equals(keys.get(keys.size()-1),offset)) {
-                  for(byte[] k : keys){
-                    log.debug("Writing key :"+ Longs.fromByteArray(k));
-                    try {
-                      c.tsWrite(cf.getBytes(), k, db.read(cf.getBytes(), k)).get();
-                    } catch (Exception e) {
-                      e.printStackTrace();
-                      throw new ChicagoClientException(e.getCause().getMessage());
-                    }
-                    offset = k;
-                  }
-                  keys= db.getKeys(cf.getBytes(),offset);
-                }
-              } catch (ChicagoClientException e) {
-                log.error("Something bad happened while replication");
-              } finally {
-                zkClient.deleteLockPath(lockPath, advertisedEndpoint);
-              }
-            }
-          });
-
-          //Remove the bounce lock.
-          if(bounceLock){
-            zkClient.deleteLockPath(bounceLockPath, advertisedEndpoint);
-          }
-        });
-      log.info("Replication ended in " + (System.currentTimeMillis() - startTime) + "ms");
+    rebalancer.rebalance(node, type == TreeCacheEvent.Type.NODE_ADDED);
   }
 
   private void nodeAdded(String path, TreeCacheEvent.Type type) {
@@ -0,0 +1,53 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import lombok.Getter;
+
+/*
+ * A lease of offsets [start, start + count) of a time series column family, handed out by the
+ * column family's sequencer in answer to GET_OFFSET. The value of the response is
+ *
+ * | start (long) | count (int) |
+ *
+ * No other producer is ever given an offset of the range, so the holder stamps its writes with them
+ * and every replica stores the record under the same offset.
+ */
+public final class OffsetRange {
+  public static final int SIZE = Longs.BYTES + Ints.BYTES;
+
+  @Getter
+  private final long start;
+  @Getter
+  private final int count;
+
+  public OffsetRange(long start, int count) {
+    this.start = start;
+    this.count = count;
+  }
+
+  public long end() {
+    return start + count;
+  }
+
+  public byte[] encode() {
+    byte[] bytes = new byte[SIZE];
+    System.arraycopy(Longs.toByteArray(start), 0, bytes, 0, Longs.BYTES);
+    System.arraycopy(Ints.toByteArray(count), 0, bytes, Longs.BYTES, Ints.BYTES);
+    return bytes;
+  }
+
+  public static OffsetRange decode(byte[] bytes) {
+    if (bytes == null || bytes.length != SIZE) {
+      throw new IllegalArgumentException("Not an offset range: " + (bytes == null ? null : bytes.length + " bytes"));
+    }
+    return new OffsetRange(
+        Longs.fromBytes(bytes[0], bytes[1], bytes[2], bytes[3], bytes[4], bytes[5], bytes[6], bytes[7]),
+        Ints.fromBytes(bytes[8], bytes[9], bytes[10], bytes[11]));
+  }
+
+  @Override
+  public String toString() {
+    return "[" + start + ", " + end() + ")";
+  }
+}
@@ -10,7 +10,21 @@ public enum Op {
   STREAM(6),
   GET_OFFSET(7),
   STREAM_RESPONSE(8),
-  SCAN_KEYS(9);
+  SCAN_KEYS(9),
+  MULTI_GET(10),
+  MULTI_PUT(11),
+  REPLICATED_WRITE(12),
+  REPLICATED_TS_WRITE(13),
+  MERKLE_TREE(14),
+  MERKLE_KEYS(15),
+  BULK_LOAD(16),
+  SUBSCRIBE(17),
+  CREDIT(18),
+  UNSUBSCRIBE(19),
+  COMMIT_OFFSETS(20),
+  FETCH_OFFSETS(21),
+  SEEK_TIME(22),
+  RELEASE_OFFSETS(23);
 
 
   private int i;
@@ -46,6 +60,34 @@ public enum Op {
         return STREAM_RESPONSE;
       case 9:
         return SCAN_KEYS;
+      case 10:
+        return MULTI_GET;
+      case 11:
+        return MULTI_PUT;
+      case 12:
+        return REPLICATED_WRITE;
+      case 13:
+        return REPLICATED_TS_WRITE;
+      case 14:
+        return MERKLE_TREE;
+      case 15:
+        return MERKLE_KEYS;
+      case 16:
+        return BULK_LOAD;
+      case 17:
+        return SUBSCRIBE;
+      case 18:
+        return CREDIT;
+      case 19:
+        return UNSUBSCRIBE;
+      case 20:
+        return COMMIT_OFFSETS;
+      case 21:
+        return FETCH_OFFSETS;
+      case 22:
+        return SEEK_TIME;
+      case 23:
+        return RELEASE_OFFSETS;
 //      case 8:
 //        return CHILD_NODE_REMOVED;
 //      case 9:
@@ -0,0 +1,457 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.client.RendezvousHash;
+import com.xjeffrose.chicago.db.StorageProvider;
+import com.xjeffrose.chicago.server.ConsumerOffsets;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Copies column families to the nodes that became their replicas when a node joined or left.
+ *
+ * A membership change is planned by comparing the RendezvousHash of the node list before and after
+ * it: every column family is moved to the nodes that are its replicas now and were not before. Each
+ * move has one source, the first of the column family's replicas before the change that is still in
+ * the node list, so the data is copied once however many replicas hold it; the other replicas leave
+ * the move to it. Moves run a few at a time through BulkTransfer and share one budget of bytes per
+ * second, so a rebalance does not starve the foreground traffic.
+ *
+ * Once the records are copied, so are the offsets consumer groups committed for the column family,
+ * see ConsumerOffsets.
+ *
+ * Each move keeps a checkpoint in a node local column family: the last key the target has loaded and
+ * how much was copied so far. A move that is interrupted, by a failure or a restart, resumes from its
+ * checkpoint instead of copying the column family again: after a failure it is retried, backing off
+ * from RETRY_MIN_MILLIS to RETRY_MAX_MILLIS, after a restart it resumes when the rebalancer starts. The
+ * target stays behind its replication lock until the move is done. A move whose target no longer is a
+ * replica of the column family, or whose source no longer is this node, is dropped instead. The
+ * checkpoint is removed once the move is done or dropped.
+ *
+ * Checkpoint key: <colFam> 0x00 <target>
+ * Checkpoint value: <records, 8 bytes> <bytes, 8 bytes> <last key loaded>
+ */
+@Slf4j
+public class Rebalancer implements Closeable {
+  public static final int DEFAULT_PARALLELISM = 4;
+  static final long RETRY_MIN_MILLIS = 1000;
+  static final long RETRY_MAX_MILLIS = 60000;
+  static final long OFFSETS_TIMEOUT_MILLIS = 3000;
+  static final byte[] COL_FAM = (ChiUtil.LOCAL_COLFAM_PREFIX + "rebalance").getBytes();
+
+  public enum State {
+    PENDING,
+    RUNNING,
+    DONE,
+    // dropped, or could not be retried
+    FAILED
+  }
+
+  public static final class Move {
+    private final String colFam;
+    private final String target;
+    private final long resumedBytes;
+    private final AtomicLong records;
+    private final AtomicLong bytes;
+    private volatile byte[] lastKey;
+    private volatile State state = State.PENDING;
+    private volatile long totalBytes;
+    private volatile long startedMillis;
+    private volatile int failures;
+    // done or failed for good
+    private final SettableFuture<Void> finished = SettableFuture.create();
+
+    Move(String colFam, String target, long records, long bytes, byte[] lastKey) {
+      this.colFam = colFam;
+      this.target = target;
+      this.resumedBytes = bytes;
+      this.records = new AtomicLong(records);
+      this.bytes = new AtomicLong(bytes);
+      this.lastKey = lastKey;
+    }
+
+    public String getColFam() {
+      return colFam;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /**
+     * Attempts that failed so far, the move is retried after each one.
+     */
+    public int getFailures() {
+      return failures;
+    }
+
+    public long getRecords() {
+      return records.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    /**
+     * Estimated size of the column family, 0 if the storage engine cannot tell.
+     */
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    /**
+     * Estimated time left at the rate the move has copied at so far, -1 if it is not known yet.
+     */
+    public long getEtaMillis() {
+      if (state == State.DONE) {
+        return 0;
+      }
+      double rate = bytesPerMilli();
+      if (rate <= 0 || totalBytes == 0) {
+        return -1;
+      }
+      return (long) (remainingBytes() / rate);
+    }
+
+    long remainingBytes() {
+      return Math.max(totalBytes - bytes.get(), 0);
+    }
+
+    // copy rate of this run, a resumed move does not count what was copied before
+    double bytesPerMilli() {
+      if (state != State.RUNNING) {
+        return 0;
+      }
+      long elapsed = Math.max(System.currentTimeMillis() - startedMillis, 1);
+      return (double) (bytes.get() - resumedBytes) / elapsed;
+    }
+
+    byte[] key() {
+      return key(colFam, target);
+    }
+
+    static byte[] key(String colFam, String target) {
+      byte[] colFamBytes = colFam.getBytes();
+      byte[] targetBytes = target.getBytes();
+      return ByteBuffer.allocate(colFamBytes.length + 1 + targetBytes.length)
+          .put(colFamBytes)
+          .put((byte) 0)
+          .put(targetBytes)
+          .array();
+    }
+
+    byte[] checkpoint() {
+      return ByteBuffer.allocate(Long.BYTES * 2 + lastKey.length)
+          .putLong(records.get())
+          .putLong(bytes.get())
+          .put(lastKey)
+          .array();
+    }
+
+    static Move resume(byte[] key, byte[] checkpoint) {
+      int separator = 0;
+      while (key[separator] != 0) {
+        separator++;
+      }
+      ByteBuffer buf = ByteBuffer.wrap(checkpoint);
+      long records = buf.getLong();
+      long bytes = buf.getLong();
+      byte[] lastKey = new byte[buf.remaining()];
+      buf.get(lastKey);
+      return new Move(new String(key, 0, separator), new String(key, separator + 1, key.length - separator - 1),
+          records, bytes, lastKey);
+    }
+
+    // resumes after the last key loaded, the whole column family if there is none
+    byte[] from() {
+      return lastKey.length == 0 ? lastKey : Arrays.copyOf(lastKey, lastKey.length + 1);
+    }
+  }
+
+  private final StorageProvider db;
+  private final String nodeListPath;
+  private final String replicationLockPath;
+  private final int quorum;
+  private final RateLimiter limiter;
+  private final ListeningScheduledExecutorService workers;
+  // by colFam and target, moves are kept once done so their progress can still be read
+  private final Map<String, Move> moves = PlatformDependent.newConcurrentHashMap();
+  private volatile ZkClient zkClient;
+  private volatile String self;
+
+  /**
+   * Runs at most {@code parallelism} moves at a time and copies at most {@code bytesPerSecond} over
+   * all of them, 0 for no limit.
+   */
+  public Rebalancer(StorageProvider db, String nodeListPath, String replicationLockPath, int quorum,
+                    int parallelism, long bytesPerSecond) {
+    this.db = db;
+    this.nodeListPath = nodeListPath;
+    this.replicationLockPath = replicationLockPath;
+    this.quorum = quorum;
+    this.limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    this.workers = MoreExecutors.listeningDecorator(
+        Executors.newScheduledThreadPool(parallelism, new ThreadFactoryBuilder()
+            .setNameFormat("chicago-rebalance-%d")
+            .setDaemon(true)
+            .build()));
+  }
+
+  /**
+   * Starts the moves an earlier run left unfinished, if their target still is a replica of the
+   * column family and this node still its source.
+   */
+  public void start(ZkClient zkClient, String self) {
+    this.zkClient = zkClient;
+    this.self = self;
+
+    List<String> nodes = zkClient.list(nodeListPath);
+    List<Move> resumed = new ArrayList<>();
+    db.scan(COL_FAM, (key, val) -> resumed.add(Move.resume(key, val)));
+    for (Move move : resumed) {
+      if (stillWanted(move, nodes)) {
+        log.info("Resuming the move of " + move.colFam + " to " + move.target + " after " + move.getRecords() + " records");
+        schedule(move);
+      }
+    }
+  }
+
+  /**
+   * Whether {@code move} still has to be made by this node with {@code nodes}, it is dropped if not.
+   * The source of a move is the first replica of its column family other than the target, see
+   * {@link #plan}.
+   */
+  private boolean stillWanted(Move move, List<String> nodes) {
+    String reason = null;
+    if (!hash(nodes).get(move.colFam.getBytes()).contains(move.target)) {
+      reason = "it no longer is a replica";
+    } else {
+      List<String> others = new ArrayList<>(nodes);
+      others.remove(move.target);
+      List<String> sources = hash(others).get(move.colFam.getBytes());
+      if (sources.isEmpty() || !sources.get(0).equals(self)) {
+        reason = "this node no longer is its source";
+      }
+    }
+    if (reason == null) {
+      return true;
+    }
+    log.info("Dropping the move of " + move.colFam + " to " + move.target + ", " + reason);
+    db.delete(COL_FAM, move.key());
+    zkClient.deleteLockPath(replicationLockPath + "/" + move.colFam + "/" + move.target, self);
+    move.state = State.FAILED;
+    move.finished.set(null);
+    return false;
+  }
+
+  /**
+   * Plans and starts the moves for {@code node} having joined ({@code added}) or left the cluster.
+   */
+  public void rebalance(String node, boolean added) {
+    moves.values().removeIf(move -> move.state == State.DONE);
+    List<String> colFams = new ArrayList<>();
+    for (String colFam : db.getColFams()) {
+      if (!ChiUtil.isLocalColFam(colFam)) {
+        colFams.add(colFam);
+      }
+    }
+    List<Move> planned = plan(colFams, zkClient.list(nodeListPath), node, added);
+    log.info("Rebalancing " + colFams.size() + " column families for " + node + (added ? " joining" : " leaving")
+        + ", " + planned.size() + " moves");
+
+    for (String colFam : colFams) {
+      // while it is rebalanced, clients keep reading the column family from the replicas that have it
+      String bounceLockPath = replicationLockPath + "/" + colFam + "/" + node;
+      if (!added) {
+        zkClient.createLockPath(bounceLockPath, self, "BOUNCE_LOCK");
+      }
+      List<ListenableFuture<?>> colFamMoves = new ArrayList<>();
+      for (Move move : planned) {
+        if (move.colFam.equals(colFam)) {
+          ListenableFuture<?> f = schedule(move);
+          if (f != null) {
+            colFamMoves.add(f);
+          }
+        }
+      }
+      if (!added) {
+        Futures.successfulAsList(colFamMoves).addListener(
+            () -> zkClient.deleteLockPath(bounceLockPath, self), MoreExecutors.directExecutor());
+      }
+    }
+  }
+
+  /**
+   * The moves of {@code colFams} to the nodes that are their replicas with {@code nodes} and were not
+   * before {@code node} joined ({@code added}) or left, that this node is the source of.
+   */
+  List<Move> plan(Collection<String> colFams, List<String> nodes, String node, boolean added) {
+    return plan(self, colFams, nodes, node, added);
+  }
+
+  List<Move> plan(String source, Collection<String> colFams, List<String> nodes, String node, boolean added) {
+    RendezvousHash<String> now = hash(nodes);
+    RendezvousHash<String> before = hash(nodes);
+    if (added) {
+      before.remove(node);
+    } else {
+      before.add(node);
+    }
+
+    List<Move> planned = new ArrayList<>();
+    for (String colFam : colFams) {
+      List<String> previous = before.get(colFam.getBytes());
+      String first = previous.stream().filter(nodes::contains).findFirst().orElse(null);
+      if (first == null || !first.equals(source)) {
+        continue;
+      }
+      List<String> targets = new ArrayList<>(now.get(colFam.getBytes()));
+      targets.removeAll(previous);
+      for (String target : targets) {
+        planned.add(new Move(colFam, target, 0, 0, new byte[0]));
+      }
+    }
+    return planned;
+  }
+
+  private RendezvousHash<String> hash(List<String> nodes) {
+    return new RendezvousHash<>(Funnels.stringFunnel(Charset.defaultCharset()), nodes, quorum);
+  }
+
+  private long estimateBytes(String colFam) {
+    Map<String, String> properties = db.getColFamProperties(colFam.getBytes());
+    if (properties == null) {
+      return 0;
+    }
+    String size = properties.get("rocksdb.estimate-live-data-size");
+    if (size == null || Long.parseLong(size) == 0) {
+      size = properties.get("rocksdb.total-sst-files-size");
+    }
+    long memtables = Long.parseLong(properties.getOrDefault("rocksdb.cur-size-all-mem-tables", "0"));
+    return (size == null ? 0 : Long.parseLong(size)) + memtables;
+  }
+
+  // done once the move is done or dropped, null if the same move is already under way
+  private ListenableFuture<?> schedule(Move move) {
+    String id = move.colFam + "/" + move.target;
+    Move running = moves.get(id);
+    if (running != null && (running.state == State.PENDING || running.state == State.RUNNING)) {
+      return null;
+    }
+    move.totalBytes = estimateBytes(move.colFam);
+    moves.put(id, move);
+    db.write(COL_FAM, move.key(), move.checkpoint());
+    // clients do not read the column family from the target until it has been copied
+    zkClient.createLockPath(replicationLockPath + "/" + move.colFam + "/" + move.target, self, "REPLICATION_LOCK");
+    workers.submit(() -> run(move));
+    return move.finished;
+  }
+
+  // the wait before the next attempt after the failures so far
+  static long retryDelayMillis(int failures) {
+    return Math.min(RETRY_MIN_MILLIS << Math.min(failures - 1, 16), RETRY_MAX_MILLIS);
+  }
+
+  private void retry(Move move) {
+    if (stillWanted(move, zkClient.list(nodeListPath))) {
+      run(move);
+    }
+  }
+
+  private void run(Move move) {
+    String lockPath = replicationLockPath + "/" + move.colFam + "/" + move.target;
+    move.startedMillis = System.currentTimeMillis();
+    move.state = State.RUNNING;
+    log.info("Moving colFam " + move.colFam + " to " + move.target);
+    ChicagoAsyncClient client = new ChicagoAsyncClient(move.target);
+    try {
+      client.start();
+      boolean timeSeries = ChiUtil.TS.equals(zkClient.get(replicationLockPath + "/" + move.colFam));
+      BulkTransfer.send(db, move.colFam.getBytes(), timeSeries, client, move.target, move.from(), limiter,
+          (lastKey, records, bytes) -> {
+            move.lastKey = lastKey;
+            move.records.addAndGet(records);
+            move.bytes.addAndGet(bytes);
+            db.write(COL_FAM, move.key(), move.checkpoint());
+          });
+      // consumer groups read on from the target where they left off
+      ConsumerOffsets.copy(db, move.colFam.getBytes(), client, move.target, OFFSETS_TIMEOUT_MILLIS);
+      db.delete(COL_FAM, move.key());
+      zkClient.deleteLockPath(lockPath, self);
+      move.state = State.DONE;
+      move.finished.set(null);
+      log.info("Moved colFam " + move.colFam + " to " + move.target + ": " + move.getRecords() + " records in "
+          + (System.currentTimeMillis() - move.startedMillis) + "ms");
+    } catch (Exception e) {
+      // the target keeps its lock, it does not have the column family yet
+      long delay = retryDelayMillis(++move.failures);
+      move.state = State.PENDING;
+      log.error("Could not move colFam " + move.colFam + " to " + move.target + ", retrying in " + delay + "ms", e);
+      try {
+        workers.schedule(() -> retry(move), delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException stopped) {
+        // resumes from the checkpoint on the next start
+        move.state = State.FAILED;
+      }
+    } finally {
+      try {
+        client.close();
+      } catch (Exception e) {
+        log.error("Error closing the client to " + move.target, e);
+      }
+    }
+  }
+
+  public List<Move> getMoves() {
+    return new ArrayList<>(moves.values());
+  }
+
+  /**
+   * Estimated time until every move is done at the rate the running ones copy at together, -1 if it
+   * is not known.
+   */
+  public long getEtaMillis() {
+    long remaining = 0;
+    double rate = 0;
+    for (Move move : moves.values()) {
+      if (move.state == State.PENDING || move.state == State.RUNNING) {
+        remaining += move.remainingBytes();
+        rate += move.bytesPerMilli();
+      }
+    }
+    if (remaining == 0) {
+      return 0;
+    }
+    return rate > 0 ? (long) (remaining / rate) : -1;
+  }
+
+  @Override
+  public void close() {
+    workers.shutdownNow();
+  }
+}
@@ -0,0 +1,183 @@
+package com.xjeffrose.chicago;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/*
+ * Latency of the server request path, per stage, broken down by Op and by column family.
+ *
+ * Recording is wait free and does not allocate once a histogram exists: HdrHistogram Recorders take
+ * the values, the column family table is an array that is only replaced (under a lock) when a new
+ * column family shows up. Readers swap each recorder's interval histogram out and fold it into a
+ * running total, so a snapshot covers everything since the server started.
+ */
+public class RequestMetrics {
+  public enum Stage {
+    // frame read off the socket until the handler has the message
+    DECODE,
+    // posted to DBManager until a worker or the read pool picks it up
+    QUEUE,
+    // the StorageProvider call
+    STORAGE,
+    // response handed to the channel until it is flushed
+    RESPONSE,
+    // handler got the request until the response is flushed
+    TOTAL;
+
+    public String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  static final long LOWEST = TimeUnit.MICROSECONDS.toNanos(1);
+  static final long HIGHEST = TimeUnit.MINUTES.toNanos(1);
+  static final int DIGITS = 2;
+  // column families tracked on their own, the rest share OTHER
+  static final int MAX_COL_FAMS = 256;
+  static final String OTHER = "_other";
+
+  private final long startNanos = System.nanoTime();
+  private final Latencies[] byOp;
+  private final Latencies other = new Latencies(OTHER, null);
+  private volatile Latencies[] byColFam = new Latencies[0];
+
+  public RequestMetrics() {
+    Op[] ops = Op.values();
+    byOp = new Latencies[ops.length];
+    for (Op op : ops) {
+      byOp[op.ordinal()] = new Latencies(op.name(), null);
+    }
+  }
+
+  /**
+   * Records {@code nanos} spent in {@code stage} by a request for {@code op} on {@code colFam}. Either
+   * may be null when unknown.
+   */
+  public void record(Op op, byte[] colFam, Stage stage, long nanos) {
+    if (op != null) {
+      byOp[op.ordinal()].record(stage, nanos);
+    }
+    if (colFam != null) {
+      colFam(colFam).record(stage, nanos);
+    }
+  }
+
+  private Latencies colFam(byte[] colFam) {
+    int hash = Arrays.hashCode(colFam);
+    for (Latencies latencies : byColFam) {
+      if (latencies.hash == hash && Arrays.equals(latencies.colFam, colFam)) {
+        return latencies;
+      }
+    }
+    return addColFam(colFam, hash);
+  }
+
+  private synchronized Latencies addColFam(byte[] colFam, int hash) {
+    Latencies[] current = byColFam;
+    for (Latencies latencies : current) {
+      if (latencies.hash == hash && Arrays.equals(latencies.colFam, colFam)) {
+        return latencies;
+      }
+    }
+    if (current.length >= MAX_COL_FAMS) {
+      return other;
+    }
+    Latencies added = new Latencies(new String(colFam), colFam.clone());
+    Latencies[] next = Arrays.copyOf(current, current.length + 1);
+    next[current.length] = added;
+    byColFam = next;
+    return added;
+  }
+
+  public double getUptimeSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  /**
+   * Everything recorded so far, per Op and stage.
+   */
+  public List<Snapshot> opSnapshots() {
+    List<Snapshot> snapshots = new ArrayList<>();
+    for (Latencies latencies : byOp) {
+      latencies.snapshot(snapshots);
+    }
+    return snapshots;
+  }
+
+  /**
+   * Everything recorded so far, per column family and stage.
+   */
+  public List<Snapshot> colFamSnapshots() {
+    List<Snapshot> snapshots = new ArrayList<>();
+    for (Latencies latencies : byColFam) {
+      latencies.snapshot(snapshots);
+    }
+    other.snapshot(snapshots);
+    return snapshots;
+  }
+
+  public static final class Snapshot {
+    public final String name;
+    public final Stage stage;
+    public final Histogram histogram;
+
+    Snapshot(String name, Stage stage, Histogram histogram) {
+      this.name = name;
+      this.stage = stage;
+      this.histogram = histogram;
+    }
+  }
+
+  // The stages of one Op or column family, each histogram created the first time it is used
+  private static final class Latencies {
+    final String name;
+    final byte[] colFam;
+    final int hash;
+    final AtomicReferenceArray<StageLatency> stages = new AtomicReferenceArray<>(Stage.values().length);
+
+    Latencies(String name, byte[] colFam) {
+      this.name = name;
+      this.colFam = colFam;
+      this.hash = colFam == null ? 0 : Arrays.hashCode(colFam);
+    }
+
+    void record(Stage stage, long nanos) {
+      StageLatency latency = stages.get(stage.ordinal());
+      if (latency == null) {
+        stages.compareAndSet(stage.ordinal(), null, new StageLatency());
+        latency = stages.get(stage.ordinal());
+      }
+      latency.record(nanos);
+    }
+
+    void snapshot(List<Snapshot> into) {
+      for (Stage stage : Stage.values()) {
+        StageLatency latency = stages.get(stage.ordinal());
+        if (latency != null) {
+          into.add(new Snapshot(name, stage, latency.snapshot()));
+        }
+      }
+    }
+  }
+
+  private static final class StageLatency {
+    final Recorder recorder = new Recorder(LOWEST, HIGHEST, DIGITS);
+    final Histogram total = new Histogram(LOWEST, HIGHEST, DIGITS);
+    Histogram interval;
+
+    void record(long nanos) {
+      recorder.recordValue(Math.min(Math.max(nanos, 0), HIGHEST));
+    }
+
+    synchronized Histogram snapshot() {
+      interval = recorder.getIntervalHistogram(interval);
+      total.add(interval);
+      return total.copy();
+    }
+  }
+}
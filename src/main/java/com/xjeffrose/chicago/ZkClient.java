@@ -6,15 +6,19 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.common.primitives.Longs;
 import com.xjeffrose.chicago.server.ChicagoServer;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
+import org.apache.curator.framework.recipes.leader.Participant;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,8 +83,63 @@ public class ZkClient  implements  AutoCloseable {
     leaderSelector.start();
   }
 
+  /**
+   * Joins the election under {@code id}, which the other participants see as {@link #getLeaderId()}
+   * while this node leads.
+   */
+  public void electLeader(String ELECTION_PATH, String id) {
+    leaderSelector = new LeaderSelector(client, ELECTION_PATH, leaderListener);
+    leaderSelector.setId(id);
+    leaderSelector.autoRequeue();
+    leaderSelector.start();
+  }
+
   public boolean isLeader(){
-    return leaderSelector.hasLeadership();
+    return leaderSelector != null && leaderSelector.hasLeadership();
+  }
+
+  /**
+   * Id of the current leader, null if there is none or it is not known.
+   */
+  public String getLeaderId() {
+    if (leaderSelector == null) {
+      return null;
+    }
+    try {
+      Participant leader = leaderSelector.getLeader();
+      return leader.isLeader() && !leader.getId().isEmpty() ? leader.getId() : null;
+    } catch (Exception e) {
+      log.error("Error looking up the leader", e);
+      return null;
+    }
+  }
+
+  /**
+   * Atomically adds {@code delta} to the long stored at {@code path}, created as 0 if missing, and
+   * returns the value before the add. Concurrent callers never see the same value.
+   */
+  public long getAndAdd(String path, long delta) throws Exception {
+    while (true) {
+      Stat stat = new Stat();
+      byte[] data;
+      try {
+        data = client.getData().storingStatIn(stat).forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        try {
+          client.create().creatingParentsIfNeeded().forPath(path, Longs.toByteArray(delta));
+          return 0;
+        } catch (KeeperException.NodeExistsException raced) {
+          continue;
+        }
+      }
+      long current = Longs.fromByteArray(data);
+      try {
+        client.setData().withVersion(stat.getVersion()).forPath(path, Longs.toByteArray(current + delta));
+        return current;
+      } catch (KeeperException.BadVersionException raced) {
+        // someone else added in between, retry on the new value
+      }
+    }
   }
 
   public void start() throws InterruptedException {
@@ -1,16 +1,22 @@
 package com.xjeffrose.chicago.client;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.Funnels;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
 import com.xjeffrose.chicago.Op;
 import com.xjeffrose.chicago.ZkClient;
+import com.xjeffrose.chicago.db.DBRecord;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -25,17 +31,29 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
 
 @Slf4j
 public class ChicagoAsyncClient implements Client {
   private final static String REPLICATION_LOCK_PATH = "/chicago/replication-lock";
   private final static String NODE_LIST_PATH = "/chicago/node-list";
   private final static long TIMEOUT = 3000;
+  // offsets leased from the sequencer at a time for time series writes
+  private final static int OFFSET_LEASE_SIZE = 1000;
+  // what is left of a lease after this long is dropped, subscribers only wait so long for a gap to fill
+  final static long OFFSET_LEASE_MILLIS = 500;
 
   private final ZkClient zkClient;
+  // a ZkClient handed in is stopped by its owner
+  private final boolean ownsZkClient;
+  private final AtomicBoolean closed = new AtomicBoolean();
   private final Map<UUID, SettableFuture<byte[]>> futureMap;
+  private final Map<UUID, Subscription> subscriptions = PlatformDependent.newConcurrentHashMap();
   private final ChannelHandler handler;
   private ClientNodeWatcher clientNodeWatcher;
   private final NioEventLoopGroup workerLoop = new NioEventLoopGroup(5,
@@ -51,12 +69,18 @@ public class ChicagoAsyncClient implements Client {
   private String singleServerAddr = null;
   private EmbeddedChannel ech = null;
   private CountDownLatch latch;
+  private final Map<String, OffsetLease> leases = PlatformDependent.newConcurrentHashMap();
+  // node that answered the last GET_OFFSET, null until one has
+  private volatile String sequencer;
+  // writes go to the first replica only, which forwards them to the others
+  private volatile boolean serverReplication = false;
 
 
   public ChicagoAsyncClient(String addr) {
     this.zkClient = null;
+    this.ownsZkClient = false;
     this.futureMap = PlatformDependent.newConcurrentHashMap();
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
     this.singleServer = true;
     this.singleServerAddr = addr;
     this.clientNodeWatcher=null;
@@ -65,8 +89,22 @@ public class ChicagoAsyncClient implements Client {
 
   public ChicagoAsyncClient(String zkConnectionString, int q) {
     this.zkClient = new ZkClient(zkConnectionString, false);
+    this.ownsZkClient = true;
     this.futureMap = PlatformDependent.newConcurrentHashMap();
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
+    this.quorum = q;
+    this.singleServer = false;
+  }
+
+  /**
+   * A client sharing a {@link ZkClient} its owner has started already, e.g. a server talking to its
+   * peers.
+   */
+  public ChicagoAsyncClient(ZkClient zkClient, int q) {
+    this.zkClient = zkClient;
+    this.ownsZkClient = false;
+    this.futureMap = PlatformDependent.newConcurrentHashMap();
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
     this.quorum = q;
     this.singleServer = false;
   }
@@ -75,15 +113,16 @@ public class ChicagoAsyncClient implements Client {
     // This constructor is for testing only
     this.ech = ech;
     this.zkClient = null;
+    this.ownsZkClient = false;
     this.futureMap = futureMap;
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
     this.quorum = q;
     this.singleServer = false;
   }
 
   @Override
   public void start() {
-    if (zkClient != null) {
+    if (zkClient != null && zkClient.getClient().getState() != CuratorFrameworkState.STARTED) {
       try {
         zkClient.start();
       } catch (InterruptedException e) {
@@ -116,6 +155,14 @@ public class ChicagoAsyncClient implements Client {
 
   }
 
+  /**
+   * Tells {@code listener} about nodes joining and leaving the cluster once this client has a
+   * connection pool for them. Only for clients started in ZooKeeper mode.
+   */
+  public void registerNodeListener(NodeListener listener) {
+    clientNodeWatcher.registerListener(listener);
+  }
+
   protected List<String> buildNodeList() {
     return zkClient.list(NODE_LIST_PATH);
   }
@@ -135,6 +182,62 @@ public class ChicagoAsyncClient implements Client {
     return hashList;
   }
 
+  /**
+   * Sends writes to the first replica of their column family only, which forwards them to the other
+   * replicas and answers once enough of them have the write. Cuts what a producer sends by the
+   * replication factor.
+   */
+  public void setServerReplication(boolean serverReplication) {
+    this.serverReplication = serverReplication;
+  }
+
+  /**
+   * Sends a single request to {@code node}. The future fails if the request cannot be written, the
+   * node does not answer "true" or does not answer within TIMEOUT.
+   */
+  public ListenableFuture<byte[]> request(String node, Op op, byte[] colFam, byte[] key, byte[] val) {
+    return request(node, op, colFam, key, val, TIMEOUT);
+  }
+
+  ListenableFuture<byte[]> request(String node, Op op, byte[] colFam, byte[] key, byte[] val, long timeoutMillis) {
+    UUID id = UUID.randomUUID();
+    SettableFuture<byte[]> f = SettableFuture.create();
+    futureMap.put(id, f);
+    // a node that is down but still listed may never answer, its entry must not stay behind
+    workerLoop.schedule(() -> {
+      if (futureMap.remove(id) != null) {
+        f.setException(new TimeoutException(op + " to " + node + " not answered in " + timeoutMillis + "ms"));
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+    Futures.addCallback(connectionManager.write(node, new DefaultChicagoMessage(id, op, colFam, key, val)), new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(@Nullable Boolean aBoolean) {
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        futureMap.remove(id);
+        f.setException(throwable);
+      }
+    });
+
+    return f;
+  }
+
+  // The first replica coordinates the write, the second takes over if the first fails it
+  private ListenableFuture<byte[]> replicatedRequest(Op op, byte[] colFam, byte[] key, byte[] val) {
+    List<String> nodes = getEffectiveNodes(colFam);
+    if (nodes.isEmpty()) {
+      return Futures.immediateFailedFuture(new ChicagoClientException("No node to write to"));
+    }
+    ListenableFuture<byte[]> f = request(nodes.get(0), op, colFam, key, val);
+    if (nodes.size() > 1) {
+      f = Futures.catchingAsync(f, Throwable.class, throwable -> request(nodes.get(1), op, colFam, key, val));
+    }
+    return f;
+  }
+
   public List<String> scanColFamily() throws Exception {
     List<String> resp = new ArrayList<>();
     if(this.zkClient != null) {
@@ -254,12 +357,126 @@ public class ChicagoAsyncClient implements Client {
     return f;
   }
 
+  /**
+   * Reads all {@code keys} of {@code colFam} with a single MULTI_GET. The values line up with the keys,
+   * a missing key reads as null.
+   */
+  public ListenableFuture<List<byte[]>> multiRead(byte[] colFam, List<byte[]> keys) {
+    List<String> nodes = getEffectiveNodes(colFam);
+    UUID id = UUID.randomUUID();
+    byte[] val = ChicagoRecordBatch.encodeKeys(keys);
+    SettableFuture<byte[]> f = SettableFuture.create();
+    futureMap.put(id, f);
+
+    Futures.addCallback(connectionManager.write(nodes.get(0), new DefaultChicagoMessage(id, Op.MULTI_GET, colFam, null, val)), new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(@Nullable Boolean aBoolean) {
+
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+
+      }
+    });
+
+    workerLoop.schedule(() -> {
+      if (nodes.size() > 1) {
+        Futures.addCallback(connectionManager.write(nodes.get(1), new DefaultChicagoMessage(id, Op.MULTI_GET, colFam, null, val)), new FutureCallback<Boolean>() {
+          @Override
+          public void onSuccess(@Nullable Boolean aBoolean) {
+
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            try {
+              f.set(ChicagoRecordBatch.encode(
+                recordsOf(colFam, keys, multiRead(colFam, keys).get(TIMEOUT, TimeUnit.MILLISECONDS)), true, 0));
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+              f.setException(throwable);
+            }
+          }
+        });
+      }
+    }, 2, TimeUnit.MILLISECONDS);
+
+    return Futures.transform(f, (Function<byte[], List<byte[]>>) bytes -> ChicagoRecordBatch.wrap(bytes).values());
+  }
+
+  private static List<DBRecord> recordsOf(byte[] colFam, List<byte[]> keys, List<byte[]> vals) {
+    List<DBRecord> records = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      records.add(new DBRecord(colFam, keys.get(i), vals.get(i)));
+    }
+    return records;
+  }
+
+  /**
+   * Writes all {@code records} to {@code colFam} with a single MULTI_PUT per replica, which the server
+   * applies as one atomic batch.
+   */
+  public ListenableFuture<Boolean> multiWrite(byte[] colFam, List<DBRecord> records) {
+    final List<SettableFuture<byte[]>> futureList = new ArrayList<>();
+    final SettableFuture<Boolean> respFuture = SettableFuture.create();
+    final List<String> nodes = getEffectiveNodes(colFam);
+    if (nodes.size() < quorum) {
+      log.error("Unable to establish Quorum");
+      return null;
+    }
+    final byte[] val = ChicagoRecordBatch.encode(records, true, 0);
+    nodes.stream().forEach(xs -> {
+      UUID id = UUID.randomUUID();
+      SettableFuture<byte[]> f = SettableFuture.create();
+      futureMap.put(id, f);
+      futureList.add(f);
+
+      Futures.addCallback(connectionManager.write(xs, new DefaultChicagoMessage(id, Op.MULTI_PUT, colFam, null, val)), new FutureCallback<Boolean>() {
+        @Override
+        public void onSuccess(@Nullable Boolean aBoolean) {
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          Futures.addCallback(connectionManager.write(xs, new DefaultChicagoMessage(id, Op.MULTI_PUT, colFam, null, val)), new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(@Nullable Boolean aBoolean) {
+
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+
+            }
+          });
+        }
+      });
+    });
+
+    Futures.addCallback(Futures.allAsList(futureList), new FutureCallback<List<byte[]>>() {
+      @Override
+      public void onSuccess(@Nullable List<byte[]> bytes) {
+        respFuture.set(true);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        respFuture.setException(throwable);
+      }
+    });
+
+    return respFuture;
+  }
+
   public ListenableFuture<Boolean> write(byte[] key, byte[] value) {
     return write(ChiUtil.defaultColFam.getBytes(), key, value);
   }
 
   @Override
   public ListenableFuture<Boolean> write(byte[] colFam, byte[] key, byte[] val) {
+    if (serverReplication) {
+      return Futures.transform(replicatedRequest(Op.REPLICATED_WRITE, colFam, key, val), (Function<byte[], Boolean>) bytes -> true);
+    }
     final List<SettableFuture<byte[]>> futureList = new ArrayList<>();
     final SettableFuture<Boolean> respFuture = SettableFuture.create();
     final List<String> nodes = getEffectiveNodes(colFam);
@@ -327,6 +544,9 @@ public class ChicagoAsyncClient implements Client {
   }
 
   public ListenableFuture<byte[]> tsWrite(byte[] topic, byte[] key,  byte[] val) {
+    if (serverReplication) {
+      return replicatedRequest(Op.REPLICATED_TS_WRITE, topic, key, val);
+    }
     final List<SettableFuture<byte[]>> futureList = new ArrayList<>();
     final SettableFuture<byte[]> respFuture = SettableFuture.create();
     final List<String> nodes = getEffectiveNodes(topic);
@@ -393,9 +613,194 @@ public class ChicagoAsyncClient implements Client {
     return respFuture;
   }
 
+  /**
+   * Appends {@code val} to {@code topic}. With several replicas the offset is stamped here, from a
+   * lease of the cluster's offset sequencer, so that every replica stores the record under the same
+   * offset. A single server numbers the records itself. Writers with leases of their own commit out of
+   * offset order, a lease is dropped after OFFSET_LEASE_MILLIS and what is left of it released to the
+   * replicas, so subscribers skip the gap it leaves rather than wait on it.
+   */
   @Override
   public ListenableFuture<byte[]> tsWrite(byte[] topic, byte[] val) {
-    return tsWrite(topic,null,val);
+    if (singleServer || ech != null) {
+      return tsWrite(topic, null, val);
+    }
+    OffsetLease lease = leases.computeIfAbsent(new String(topic),
+        k -> new OffsetLease(range -> releaseOffsets(topic, range)));
+    long offset = lease.take();
+    if (offset >= 0) {
+      return stampedTsWrite(topic, offset, val);
+    }
+    return Futures.transformAsync(lease.next(() -> leaseOffsets(topic, OFFSET_LEASE_SIZE)),
+        next -> stampedTsWrite(topic, next, val));
+  }
+
+  private ListenableFuture<byte[]> stampedTsWrite(byte[] topic, long offset, byte[] val) {
+    ListenableFuture<byte[]> write = tsWrite(topic, Longs.toByteArray(offset), val);
+    if (write == null) {
+      return Futures.immediateFailedFuture(new ChicagoClientException("Unable to establish Quorum"));
+    }
+    return write;
+  }
+
+  // tells the replicas of topic nothing will be written at range, it is fine if one never hears
+  private void releaseOffsets(byte[] topic, OffsetRange range) {
+    for (String node : getEffectiveNodes(topic)) {
+      Futures.addCallback(connectionManager.write(node,
+          new DefaultChicagoMessage(UUID.randomUUID(), Op.RELEASE_OFFSETS, topic, null, range.encode())),
+          new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(@Nullable Boolean aBoolean) {
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+              log.warn("Could not release offsets of " + new String(topic) + " on " + node, throwable);
+            }
+          });
+    }
+  }
+
+  /**
+   * Leases {@code count} offsets of {@code topic} from the cluster's offset sequencer. The request goes
+   * to the node that answered last, or a replica of the topic, and follows one redirect to the owner.
+   */
+  public ListenableFuture<OffsetRange> leaseOffsets(byte[] topic, int count) {
+    String node = sequencer;
+    if (node == null) {
+      List<String> nodes = getEffectiveNodes(topic);
+      if (nodes.isEmpty()) {
+        return Futures.immediateFailedFuture(new ChicagoClientException("No node to ask for offsets"));
+      }
+      node = nodes.get(0);
+    }
+    return leaseOffsets(node, topic, count, true);
+  }
+
+  private ListenableFuture<OffsetRange> leaseOffsets(String node, byte[] topic, int count, boolean followRedirect) {
+    UUID id = UUID.randomUUID();
+    SettableFuture<byte[]> f = SettableFuture.create();
+    SettableFuture<OffsetRange> respFuture = SettableFuture.create();
+    futureMap.put(id, f);
+
+    Futures.addCallback(connectionManager.write(node, new DefaultChicagoMessage(id, Op.GET_OFFSET, topic, null, Ints.toByteArray(count))), new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(@Nullable Boolean aBoolean) {
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        futureMap.remove(id);
+        f.setException(throwable);
+      }
+    });
+
+    Futures.addCallback(f, new FutureCallback<byte[]>() {
+      @Override
+      public void onSuccess(@Nullable byte[] bytes) {
+        sequencer = node;
+        try {
+          respFuture.set(OffsetRange.decode(bytes));
+        } catch (IllegalArgumentException e) {
+          respFuture.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        String owner = throwable instanceof ChicagoRedirectException ? ((ChicagoRedirectException) throwable).getOwner() : null;
+        if (owner != null && followRedirect) {
+          sequencer = owner;
+          respFuture.setFuture(leaseOffsets(owner, topic, count, false));
+        } else {
+          sequencer = null;
+          respFuture.setException(throwable);
+        }
+      }
+    });
+
+    return respFuture;
+  }
+
+  // Offsets of a lease not yet used, handed out one at a time. Callers that find it used up all wait on
+  // the same GET_OFFSET and then take from the range it brings. What is left when it runs out goes to
+  // release.
+  static final class OffsetLease {
+    private final long ttlNanos;
+    private final Consumer<OffsetRange> release;
+    private long next;
+    private long end;
+    private long expiresAt;
+    private ListenableFuture<Void> refilling;
+
+    OffsetLease() {
+      this(range -> { });
+    }
+
+    OffsetLease(Consumer<OffsetRange> release) {
+      this(OFFSET_LEASE_MILLIS, release);
+    }
+
+    OffsetLease(long ttlMillis, Consumer<OffsetRange> release) {
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+      this.release = release;
+    }
+
+    long take() {
+      OffsetRange unused;
+      synchronized (this) {
+        if (next < end && System.nanoTime() - expiresAt < 0) {
+          return next++;
+        }
+        unused = next < end ? new OffsetRange(next, (int) (end - next)) : null;
+        next = end;
+      }
+      if (unused != null) {
+        release.accept(unused);
+      }
+      return -1;
+    }
+
+    /**
+     * The next offset of the lease, once {@code leaser} has brought a new range if it is used up.
+     */
+    ListenableFuture<Long> next(Supplier<ListenableFuture<OffsetRange>> leaser) {
+      long offset = take();
+      if (offset >= 0) {
+        return Futures.immediateFuture(offset);
+      }
+      // more waiters than the range holds go around again for another one
+      return Futures.transformAsync(refill(leaser), v -> next(leaser));
+    }
+
+    private synchronized ListenableFuture<Void> refill(Supplier<ListenableFuture<OffsetRange>> leaser) {
+      if (refilling != null) {
+        return refilling;
+      }
+      SettableFuture<Void> done = SettableFuture.create();
+      refilling = done;
+      Futures.addCallback(leaser.get(), new FutureCallback<OffsetRange>() {
+        @Override
+        public void onSuccess(@Nullable OffsetRange range) {
+          synchronized (OffsetLease.this) {
+            next = range.getStart();
+            end = range.end();
+            expiresAt = System.nanoTime() + ttlNanos;
+            refilling = null;
+          }
+          done.set(null);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          synchronized (OffsetLease.this) {
+            refilling = null;
+          }
+          done.setException(throwable);
+        }
+      });
+      return done;
+    }
   }
 
   @Override
@@ -451,6 +856,81 @@ public class ChicagoAsyncClient implements Client {
     return f;
   }
 
+  /**
+   * Has the records appended to {@code topic} pushed to {@code listener} as they are written, from
+   * {@code offset} on or, if it is null, from after the newest record. The subscription is served by the
+   * first replica of the topic and ends when it is closed or the connection to that replica is lost,
+   * {@link Subscription#getNextOffset()} is where to pick up again.
+   */
+  public Subscription subscribe(byte[] topic, byte[] offset, Subscription.Listener listener) throws ChicagoClientException {
+    return subscribe(topic, offset, Subscription.DEFAULT_WINDOW, listener);
+  }
+
+  /**
+   * Like {@link #subscribe(byte[], byte[], Subscription.Listener)}, with at most {@code window} bytes sent
+   * ahead of what the listener has taken.
+   */
+  public Subscription subscribe(byte[] topic, byte[] offset, int window, Subscription.Listener listener)
+      throws ChicagoClientException {
+    List<String> nodes = getEffectiveNodes(topic);
+    if (nodes.isEmpty()) {
+      throw new ChicagoClientException("No node to subscribe to " + new String(topic));
+    }
+    String node = nodes.get(0);
+    Subscription[] subscription = new Subscription[1];
+    subscription[0] = new Subscription(topic, window, listener, msg ->
+        Futures.addCallback(connectionManager.write(node, msg), new FutureCallback<Boolean>() {
+          @Override
+          public void onSuccess(@Nullable Boolean aBoolean) {
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            subscription[0].fail(throwable);
+          }
+        }), subscriptions);
+    return subscription[0].start(offset);
+  }
+
+  /**
+   * The first offset of time series {@code colFam} written at or after {@code millis}, looked up in the
+   * time index of its first replica, the second one's if that fails. Nothing written since reads as the
+   * offset the next record will take.
+   */
+  public ListenableFuture<Long> seekTime(byte[] colFam, long millis) {
+    List<String> nodes = getEffectiveNodes(colFam);
+    if (nodes.isEmpty()) {
+      return Futures.immediateFailedFuture(new ChicagoClientException("No node to seek " + new String(colFam) + " on"));
+    }
+    byte[] val = Longs.toByteArray(millis);
+    ListenableFuture<byte[]> f = request(nodes.get(0), Op.SEEK_TIME, colFam, null, val);
+    if (nodes.size() > 1) {
+      f = Futures.catchingAsync(f, Throwable.class, throwable -> request(nodes.get(1), Op.SEEK_TIME, colFam, null, val));
+    }
+    return Futures.transform(f, (Function<byte[], Long>) Longs::fromByteArray);
+  }
+
+  /**
+   * Joins consumer group {@code group} reading {@code topic}: the partitions of the topic are split
+   * among the members of the group and read from the offsets the group committed, see
+   * {@link ConsumerGroup}. Needs ZooKeeper.
+   */
+  public ConsumerGroup joinGroup(String group, String topic, ConsumerGroup.Listener listener) throws ChicagoClientException {
+    return joinGroup(group, topic, ConsumerGroup.DEFAULT_COMMIT_INTERVAL_MILLIS, listener);
+  }
+
+  /**
+   * Like {@link #joinGroup(String, String, ConsumerGroup.Listener)}, committing what was read every
+   * {@code commitIntervalMillis}.
+   */
+  public ConsumerGroup joinGroup(String group, String topic, long commitIntervalMillis, ConsumerGroup.Listener listener)
+      throws ChicagoClientException {
+    if (zkClient == null) {
+      throw new ChicagoClientException("Consumer groups need ZooKeeper");
+    }
+    return new ConsumerGroup(this, zkClient, group, topic, commitIntervalMillis, listener).start();
+  }
+
   @Override
   public ListenableFuture<Boolean> deleteColFam(byte[] colFam) {
     List<SettableFuture<byte[]>> futureList = new ArrayList<>();
@@ -515,8 +995,23 @@ public class ChicagoAsyncClient implements Client {
     return respFuture;
   }
 
+  /**
+   * Closes the connections to the cluster and stops the event loops. A second close does nothing.
+   */
   @Override
   public void close() throws Exception {
-//    zkClient.stop();
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (clientNodeWatcher != null) {
+      clientNodeWatcher.stop();
+    }
+    if (connectionManager != null) {
+      connectionManager.stop();
+    }
+    workerLoop.shutdownGracefully();
+    if (ownsZkClient) {
+      zkClient.stop();
+    }
   }
 }
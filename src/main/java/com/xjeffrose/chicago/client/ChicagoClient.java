@@ -7,6 +7,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
 import com.xjeffrose.chicago.Op;
 import io.netty.buffer.ByteBuf;
@@ -23,7 +24,6 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -152,66 +152,70 @@ public class ChicagoClient extends BaseChicagoClient implements AutoCloseable {
   }
 
   public void aggregatedStream(byte[] key, byte[] offset, ByteBuf responseStream) {
-    //System.out.println("New Stream called with key = "+ new String(key) +" and Offset ="+ Longs.fromByteArray(offset));
+    // every partition of the topic pushes what is appended to it, from offset on or from its end
     zkClient.getChildren(REPLICATION_LOCK_PATH).stream()
       .filter(xs -> xs.startsWith(new String(key)))
-      .collect(Collectors.toList())
-      .stream()
-      .parallel()
       .forEach(xs -> {
           try {
-            FutureCallback<List<byte[]>> cb = new FutureCallback<List<byte[]>>() {
-              @Override
-              public void onSuccess(@Nullable List<byte[]> bytes) {
-                byte[] resultArray = bytes.get(0);
-                Long newOffset = Longs.fromByteArray(offset);
-                if (resultArray != null) {
-                  newOffset = ChiUtil.findOffset(resultArray);
-                  if (newOffset != -1) {
-                    responseStream.writeBytes(
-                      new String(resultArray).split(ChiUtil.delimiter)[0].getBytes());
-                  }
-
-                  if (new String(resultArray).split(ChiUtil.delimiter)[0].contains("\0")) {
-                    newOffset++;
-                  }
-
-                  Long lastOffset = lastOffsetMap.get(xs);
-                  if (lastOffset != null && lastOffset.equals(newOffset)) {
-                    //try {
-                    //  //Thread.sleep(500);
-                    //} catch (InterruptedException e) {
-                    //  e.printStackTrace();
-                    //}
-                  } else {
-                    lastOffsetMap.put(xs, newOffset);
-                  }
-                }
-
-                try {
-                  Futures.addCallback(stream(xs.getBytes(),Longs.toByteArray(newOffset)),this);
-                } catch (ChicagoClientTimeoutException e) {
-                  e.printStackTrace();
-                }
+            subscribe(xs.getBytes(), offset, batch -> {
+              // records are handed to the caller NUL terminated
+              synchronized (responseStream) {
+                batch.forEach((k, v) -> responseStream.writeBytes(v).writeByte(0));
               }
-
-              @Override
-              public void onFailure(Throwable throwable) {
-
-              }
-            };
-
-            if (offset != null) {
-              Futures.addCallback(stream(xs.getBytes(), offset), cb);
-            } else {
-              Futures.addCallback(stream(xs.getBytes()), cb);
-            }
-          } catch (ChicagoClientTimeoutException e) {
-            e.printStackTrace();
+              lastOffsetMap.put(xs, batch.nextOffset());
+            });
+          } catch (ChicagoClientException | ChicagoClientTimeoutException e) {
+            log.error("Could not subscribe to " + xs, e);
           }
     });
   }
 
+  /**
+   * The first offset of time series {@code key} written at or after {@code millis}, looked up in the
+   * time index of its first replica in one round trip. See
+   * {@link ChicagoAsyncClient#seekTime(byte[], long)}.
+   */
+  public long seekTime(byte[] key, long millis) throws ChicagoClientException, ChicagoClientTimeoutException {
+    List<String> hashList = getEffectiveNodes(key);
+    if (hashList.isEmpty()) {
+      throw new ChicagoClientException("No node to seek " + new String(key) + " on");
+    }
+    UUID id = UUID.randomUUID();
+    SettableFuture<byte[]> f = SettableFuture.create();
+    futureMap.put(id, f);
+    try {
+      Channel ch = connectionPoolMgr.getNode(hashList.get(0)).get(TIMEOUT, TimeUnit.MILLISECONDS);
+      ch.writeAndFlush(new DefaultChicagoMessage(id, Op.SEEK_TIME, key, null, Longs.toByteArray(millis)), ch.voidPromise());
+      connectionPoolMgr.releaseChannel(hashList.get(0), ch);
+      return Longs.fromByteArray(f.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      futureMap.remove(id);
+      throw new ChicagoClientException(e);
+    }
+  }
+
+  /**
+   * Has the records appended to {@code key} pushed to {@code listener} as they are written, from
+   * {@code offset} on or, if it is null, from after the newest record. See
+   * {@link ChicagoAsyncClient#subscribe(byte[], byte[], Subscription.Listener)}.
+   */
+  public Subscription subscribe(byte[] key, byte[] offset, Subscription.Listener listener)
+      throws ChicagoClientException, ChicagoClientTimeoutException {
+    List<String> hashList = getEffectiveNodes(key);
+    if (hashList.isEmpty()) {
+      throw new ChicagoClientException("No node to subscribe to " + new String(key));
+    }
+    Channel ch;
+    try {
+      ch = connectionPoolMgr.getNode(hashList.get(0)).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      throw new ChicagoClientException(e);
+    }
+    Subscription subscription = new Subscription(key, Subscription.DEFAULT_WINDOW, listener,
+        msg -> ch.writeAndFlush(msg, ch.voidPromise()), connectionPoolMgr.getSubscriptions());
+    return subscription.start(offset);
+  }
+
   public ListenableFuture<List<byte[]>> stream(byte[] key) throws ChicagoClientTimeoutException {
     return stream(key, null);
   }
@@ -1,11 +1,13 @@
 package com.xjeffrose.chicago.client;
 
 import com.google.common.util.concurrent.SettableFuture;
+import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoMessage;
 import com.xjeffrose.xio.core.XioIdleDisconnectException;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.internal.PlatformDependent;
 import java.util.Map;
 import java.util.UUID;
 import lombok.extern.slf4j.Slf4j;
@@ -15,9 +17,25 @@ import lombok.extern.slf4j.Slf4j;
 public class ChicagoClientHandler extends SimpleChannelInboundHandler<ChicagoMessage> {
 
   private Map<UUID, SettableFuture<byte[]>> futureMap;
+  private final Map<UUID, Subscription> subscriptions;
 
   public ChicagoClientHandler(Map<UUID, SettableFuture<byte[]>> futureMap) {
+    this(futureMap, PlatformDependent.newConcurrentHashMap());
+  }
+
+  /**
+   * @param subscriptions open subscriptions, their pushes are handed to them rather than completing a
+   *                      future
+   */
+  public ChicagoClientHandler(Map<UUID, SettableFuture<byte[]>> futureMap, Map<UUID, Subscription> subscriptions) {
     this.futureMap = futureMap;
+    this.subscriptions = subscriptions;
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    subscriptions.values().forEach(subscription -> subscription.channelClosed(ctx.channel()));
+    super.channelInactive(ctx);
   }
 
   @Override
@@ -31,9 +49,19 @@ public class ChicagoClientHandler extends SimpleChannelInboundHandler<ChicagoMes
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, ChicagoMessage chicagoMessage) throws Exception {
     if (chicagoMessage != null) {
-      if (futureMap.containsKey(chicagoMessage.getId())) {
-        if (Boolean.valueOf(new String(chicagoMessage.getKey()))) {
+      Subscription subscription = subscriptions.get(chicagoMessage.getId());
+      if (subscription != null) {
+        subscription.deliver(ctx.channel(), chicagoMessage);
+      } else if (futureMap.containsKey(chicagoMessage.getId())) {
+        String status = new String(chicagoMessage.getKey());
+        if (Boolean.valueOf(status)) {
           futureMap.get(chicagoMessage.getId()).set(chicagoMessage.getVal());
+        } else if (ChiUtil.OVERLOADED.equals(status)) {
+          futureMap.get(chicagoMessage.getId()).setException(new ChicagoClientException("Server overloaded: " + ctx.channel().remoteAddress()));
+        } else if (ChiUtil.REDIRECT.equals(status)) {
+          byte[] owner = chicagoMessage.getVal();
+          futureMap.get(chicagoMessage.getId()).setException(
+              new ChicagoRedirectException(owner == null || owner.length == 0 ? null : new String(owner)));
         } else {
           futureMap.get(chicagoMessage.getId()).setException(new ChicagoClientException("Request Failed"));
         }
@@ -4,7 +4,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.xjeffrose.chicago.ChicagoCodec;
+import com.xjeffrose.chicago.ChicagoCompressionCodec;
+import com.xjeffrose.chicago.ChicagoCompressionHandler;
 import com.xjeffrose.chicago.ChicagoMessageAggregator;
+import com.xjeffrose.chicago.ChicagoWireFormat;
 import com.xjeffrose.xio.SSL.XioSecurityHandlerImpl;
 import com.xjeffrose.xio.client.retry.BoundedExponentialBackoffRetry;
 import com.xjeffrose.xio.client.retry.RetryLoop;
@@ -68,7 +71,10 @@ public class ChicagoConnector {
             ChannelPipeline cp = channel.pipeline();
             cp.addLast(new XioSecurityHandlerImpl(true).getEncryptionHandler());
             //cp.addLast(new XioIdleDisconnectHandler(20, 20, 20));
-            cp.addLast(new ChicagoCodec());
+            if (ChicagoCompressionHandler.CLIENT_CODEC != ChicagoCompressionCodec.NONE) {
+              cp.addLast(ChicagoCompressionHandler.client(ChicagoCompressionHandler.CLIENT_CODEC));
+            }
+            cp.addLast(new ChicagoCodec(ChicagoWireFormat.CLIENT_VERSION));
             cp.addLast(new ChicagoMessageAggregator());
             cp.addLast(handler);
           }
@@ -0,0 +1,17 @@
+package com.xjeffrose.chicago.client;
+
+/**
+ * The node asked does not serve the request, {@link #getOwner()} does (null if it is not known).
+ */
+public class ChicagoRedirectException extends ChicagoClientException {
+  private final String owner;
+
+  public ChicagoRedirectException(String owner) {
+    super("Redirected to " + owner);
+    this.owner = owner;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+}
@@ -8,4 +8,9 @@ public interface ConnectionPoolManager<N> {
   ListenableFuture<Boolean> write(String addr, ChicagoMessage msg);
 
   void start();
+
+  /**
+   * Closes the connections to every node.
+   */
+  void stop();
 }
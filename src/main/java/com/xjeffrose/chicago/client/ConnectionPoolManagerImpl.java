@@ -77,6 +77,14 @@ public class ConnectionPoolManagerImpl implements ConnectionPoolManager, NodeLis
     connectionMap.get(addr).rebuildConnectionQ();
   }
 
+  @Override
+  public void stop() {
+    for (RequestMuxer<ChicagoMessage> mux : connectionMap.values()) {
+      mux.close();
+    }
+    connectionMap.clear();
+  }
+
   @Override
   public void nodeAdded(Object node) {
     RequestMuxer<ChicagoMessage> mux = new RequestMuxer<>((String)node, handler, workerLoop);
@@ -4,6 +4,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.xjeffrose.chicago.ChicagoCodec;
+import com.xjeffrose.chicago.ChicagoCompressionCodec;
+import com.xjeffrose.chicago.ChicagoCompressionHandler;
+import com.xjeffrose.chicago.ChicagoMessageAggregator;
+import com.xjeffrose.chicago.ChicagoWireFormat;
 import com.xjeffrose.chicago.ZkClient;
 import com.xjeffrose.xio.SSL.XioSecurityHandlerImpl;
 import com.xjeffrose.xio.client.retry.BoundedExponentialBackoffRetry;
@@ -58,6 +62,7 @@ public class ConnectionPoolManagerX {
           .setNameFormat("chicago-connection-check")
           .build());
   private final Map<UUID, SettableFuture<byte[]>> futureMap;
+  private final Map<UUID, Subscription> subscriptions = PlatformDependent.newConcurrentHashMap();
   private final ChannelHandler handler;
   private boolean singleClient = false;
   private String singleClientServer;
@@ -65,21 +70,21 @@ public class ConnectionPoolManagerX {
   public ConnectionPoolManagerX(ZkClient zkClient, Map<UUID, SettableFuture<byte[]>> futureMap) {
     this.zkClient = zkClient;
     this.futureMap = futureMap;
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
   }
 
   public ConnectionPoolManagerX(String hostname, Map<UUID, SettableFuture<byte[]>> futureMap) {
     this.zkClient = null;
     connect(new InetSocketAddress(hostname.split(":")[0], Integer.parseInt(hostname.split(":")[1])));
     this.futureMap = futureMap;
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
     this.singleClient = true;
   }
 
   public ConnectionPoolManagerX(List<EmbeddedChannel> hostPool, Map<UUID, SettableFuture<byte[]>> futureMap) {
     this.zkClient = null;
     this.futureMap = futureMap;
-    this.handler = new ChicagoClientHandler(futureMap);
+    this.handler = new ChicagoClientHandler(futureMap, subscriptions);
 
     connectionMap.put("embedded", hostPool.get(0));
   }
@@ -93,6 +98,10 @@ public class ConnectionPoolManagerX {
     futureMap.put(id, f);
   }
 
+  Map<UUID, Subscription> getSubscriptions() {
+    return subscriptions;
+  }
+
   public void stop() {
     log.info("ConnectionPoolManagerX stopping");
     running.set(false);
@@ -244,7 +253,11 @@ public class ConnectionPoolManagerX {
             ChannelPipeline cp = channel.pipeline();
             cp.addLast(new XioSecurityHandlerImpl(true).getEncryptionHandler());
             //cp.addLast(new XioIdleDisconnectHandler(20, 20, 20));
-            cp.addLast(new ChicagoCodec());
+            if (ChicagoCompressionHandler.CLIENT_CODEC != ChicagoCompressionCodec.NONE) {
+              cp.addLast(ChicagoCompressionHandler.client(ChicagoCompressionHandler.CLIENT_CODEC));
+            }
+            cp.addLast(new ChicagoCodec(ChicagoWireFormat.CLIENT_VERSION));
+            cp.addLast(new ChicagoMessageAggregator());
             cp.addLast(handler);
           }
         });
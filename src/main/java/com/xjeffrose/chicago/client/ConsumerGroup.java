@@ -0,0 +1,373 @@
+package com.xjeffrose.chicago.client;
+
+import com.google.common.base.Function;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.TreeCacheInstance;
+import com.xjeffrose.chicago.ZkClient;
+import com.xjeffrose.chicago.db.DBRecord;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.zookeeper.CreateMode;
+
+/*
+ * A member of a consumer group reading a topic. The partitions of the topic, the column families
+ * named after it, are split among the members of the group, so each is read by one member only, from
+ * the offset the group committed for it.
+ *
+ * Members register as ephemeral nodes under /chicago/consumer-groups/<group>/<topic>. Whenever one
+ * joins or leaves or a partition shows up, every member works out the same assignment: the partitions
+ * in name order dealt out round robin over the members in name order. Partitions a member gives up
+ * are closed and their offsets committed before it subscribes to the ones it takes on, from the
+ * highest offset any of their replicas has committed, or after their newest record if none has.
+ *
+ * The nextOffset of each batch handed to the listener is kept here and committed every commit
+ * interval, one COMMIT_OFFSETS per node with the offsets of all the partitions it holds. Writers commit
+ * records out of offset order, the server only moves a subscription up to the first offset still
+ * missing, so nothing below a committed offset is left to read. What a member read after its last
+ * commit is read again by whoever takes its partitions over, records are delivered at least once.
+ * Except for two cases the server gives up on: a record committed into a gap it stopped waiting for,
+ * and one committed below where a partition without a committed offset was started at.
+ */
+@Slf4j
+public class ConsumerGroup implements Closeable {
+  public static final String GROUP_PATH = "/chicago/consumer-groups";
+  public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 1000;
+  private static final String REPLICATION_LOCK_PATH = "/chicago/replication-lock";
+  private static final long TIMEOUT = 3000;
+
+  public interface Listener {
+    /**
+     * Records of {@code partition}, in offset order per partition. The first batch of a partition may be
+     * empty, it tells where reading starts.
+     */
+    void onBatch(String partition, ChicagoRecordBatch batch);
+
+    /**
+     * The partitions this member reads changed.
+     */
+    default void onAssigned(List<String> partitions) {
+    }
+  }
+
+  private final ChicagoAsyncClient client;
+  private final ZkClient zkClient;
+  private final String group;
+  private final String topic;
+  private final long commitIntervalMillis;
+  private final Listener listener;
+  private final String memberId = UUID.randomUUID().toString();
+  private final String membersPath;
+  private final TreeCacheInstance members;
+  private final TreeCacheInstance partitions;
+  // membership changes, commits and subscribing all run here, one at a time
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean rebalancePending = new AtomicBoolean();
+  // partitions this member reads, only touched from the executor
+  private final Map<String, Subscription> assigned = new HashMap<>();
+  // partitions this member reads, for the event loops handing batches over
+  private final Set<String> owned = Collections.newSetFromMap(PlatformDependent.newConcurrentHashMap());
+  // where each owned partition continues, once it has handed over a batch
+  private final Map<String, Long> positions = PlatformDependent.newConcurrentHashMap();
+  // offsets not committed yet
+  private final Map<String, Long> pending = PlatformDependent.newConcurrentHashMap();
+  private volatile boolean closed;
+
+  ConsumerGroup(ChicagoAsyncClient client, ZkClient zkClient, String group, String topic, long commitIntervalMillis,
+                Listener listener) {
+    this.client = client;
+    this.zkClient = zkClient;
+    this.group = group;
+    this.topic = topic;
+    this.commitIntervalMillis = commitIntervalMillis;
+    this.listener = listener;
+    this.membersPath = GROUP_PATH + "/" + group + "/" + topic;
+    this.members = new TreeCacheInstance(zkClient, membersPath);
+    this.partitions = new TreeCacheInstance(zkClient, REPLICATION_LOCK_PATH);
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("chicago-consumer-group-" + group + "-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /**
+   * Joins the group and starts reading whatever partitions it is assigned.
+   */
+  ConsumerGroup start() throws ChicagoClientException {
+    try {
+      zkClient.getClient().create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+          .forPath(membersPath + "/" + memberId);
+      members.getCache().getListenable().addListener((framework, event) -> {
+        if (event.getType() == TreeCacheEvent.Type.NODE_ADDED || event.getType() == TreeCacheEvent.Type.NODE_REMOVED) {
+          requestRebalance();
+        }
+      });
+      partitions.getCache().getListenable().addListener((framework, event) -> {
+        // partitions are the direct children, their replicas below them do not matter here
+        if (event.getType() == TreeCacheEvent.Type.NODE_ADDED && event.getData() != null) {
+          String path = event.getData().getPath();
+          if (path.startsWith(REPLICATION_LOCK_PATH + "/") && isPartition(path.substring(REPLICATION_LOCK_PATH.length() + 1))) {
+            requestRebalance();
+          }
+        }
+      });
+      members.start();
+      partitions.start();
+    } catch (Exception e) {
+      throw new ChicagoClientException(e);
+    }
+    requestRebalance();
+    executor.scheduleWithFixedDelay(this::commitPending, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * Partitions this member reads.
+   */
+  public List<String> getAssigned() {
+    List<String> sorted = new ArrayList<>(owned);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private boolean isPartition(String colFam) {
+    return !colFam.isEmpty() && colFam.indexOf('/') < 0 && colFam.startsWith(topic) && !ChiUtil.isLocalColFam(colFam);
+  }
+
+  private void requestRebalance() {
+    if (!closed && rebalancePending.compareAndSet(false, true)) {
+      executor.execute(this::rebalance);
+    }
+  }
+
+  private void rebalance() {
+    rebalancePending.set(false);
+    if (closed) {
+      return;
+    }
+    List<String> memberIds = new ArrayList<>(zkClient.list(membersPath));
+    Collections.sort(memberIds);
+    int self = memberIds.indexOf(memberId);
+    List<String> all = zkClient.list(REPLICATION_LOCK_PATH).stream()
+        .filter(this::isPartition)
+        .sorted()
+        .collect(Collectors.toList());
+    List<String> mine = new ArrayList<>();
+    for (int i = 0; self >= 0 && i < all.size(); i++) {
+      if (i % memberIds.size() == self) {
+        mine.add(all.get(i));
+      }
+    }
+
+    // given up first, so whoever takes them over finds what was read committed
+    List<String> revoked = new ArrayList<>(assigned.keySet());
+    revoked.removeAll(mine);
+    for (String partition : revoked) {
+      owned.remove(partition);
+      assigned.remove(partition).close();
+    }
+    if (!revoked.isEmpty()) {
+      await(commit());
+      revoked.forEach(positions::remove);
+    }
+
+    boolean changed = !revoked.isEmpty();
+    for (String partition : mine) {
+      if (!assigned.containsKey(partition)) {
+        try {
+          assigned.put(partition, subscribe(partition));
+          changed = true;
+        } catch (Exception e) {
+          log.error("Could not start reading " + partition + " for group " + group + ", retrying", e);
+          executor.schedule(this::requestRebalance, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+    if (changed) {
+      listener.onAssigned(getAssigned());
+    }
+  }
+
+  private Subscription subscribe(String partition) throws Exception {
+    // after a lost connection pick up where this member was, otherwise where the group was
+    Long offset = positions.get(partition);
+    if (offset == null) {
+      offset = fetch(partition);
+    }
+    owned.add(partition);
+    return client.subscribe(partition.getBytes(), offset == null ? null : Longs.toByteArray(offset),
+        new Subscription.Listener() {
+          @Override
+          public void onBatch(ChicagoRecordBatch batch) {
+            listener.onBatch(partition, batch);
+            // the low watermark, never past an offset that may still be committed
+            commit(partition, batch.nextOffset());
+          }
+
+          @Override
+          public void onClose(Throwable cause) {
+            if (cause != null && !closed) {
+              log.error("Lost " + partition + " of group " + group + ", resubscribing", cause);
+              executor.execute(() -> {
+                Subscription subscription = assigned.get(partition);
+                if (subscription != null && subscription.isClosed()) {
+                  assigned.remove(partition);
+                  owned.remove(partition);
+                }
+                requestRebalance();
+              });
+            }
+          }
+        });
+  }
+
+  /**
+   * The highest offset the replicas of {@code partition} have committed for the group, null if none
+   * has. Fails if none of them answered.
+   */
+  private Long fetch(String partition) throws Exception {
+    List<ListenableFuture<byte[]>> replies = new ArrayList<>();
+    for (String node : client.getEffectiveNodes(partition.getBytes())) {
+      replies.add(client.request(node, Op.FETCH_OFFSETS, group.getBytes(), null,
+          ChicagoRecordBatch.encodeKeys(Collections.singletonList(partition.getBytes()))));
+    }
+    List<byte[]> answers = Futures.successfulAsList(replies).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    Long offset = null;
+    boolean answered = false;
+    for (byte[] answer : answers) {
+      if (answer == null) {
+        continue;
+      }
+      answered = true;
+      byte[] committed = ChicagoRecordBatch.wrap(answer).values().get(0);
+      if (committed != null && (offset == null || Longs.fromByteArray(committed) > offset)) {
+        offset = Longs.fromByteArray(committed);
+      }
+    }
+    if (!answered) {
+      throw new ChicagoClientException("No replica of " + partition + " has the offsets of group " + group);
+    }
+    return offset;
+  }
+
+  /**
+   * Records that the group continues reading {@code partition} at {@code offset}, committed with the
+   * next batch of commits.
+   */
+  public void commit(String partition, long offset) {
+    if (owned.contains(partition)) {
+      positions.put(partition, offset);
+      pending.put(partition, offset);
+    }
+  }
+
+  private void commitPending() {
+    if (!pending.isEmpty()) {
+      commit();
+    }
+  }
+
+  /**
+   * Sends the offsets recorded since the last commit, one COMMIT_OFFSETS per node. Offsets a node
+   * turns down are sent again with the next commit unless a newer one came in meanwhile.
+   */
+  private ListenableFuture<List<Boolean>> commit() {
+    Map<String, Long> offsets = new HashMap<>(pending);
+    offsets.forEach(pending::remove);
+    Map<String, List<DBRecord>> byNode = new HashMap<>();
+    offsets.forEach((partition, offset) -> {
+      for (String node : client.getEffectiveNodes(partition.getBytes())) {
+        byNode.computeIfAbsent(node, k -> new ArrayList<>())
+            .add(new DBRecord(null, partition.getBytes(), Longs.toByteArray(offset)));
+      }
+    });
+    List<ListenableFuture<Boolean>> commits = new ArrayList<>();
+    byNode.forEach((node, records) -> {
+      ListenableFuture<Boolean> done = Futures.transform(
+          client.request(node, Op.COMMIT_OFFSETS, group.getBytes(), null, ChicagoRecordBatch.encode(records, true, 0)),
+          (Function<byte[], Boolean>) reply -> true);
+      Futures.addCallback(done, new FutureCallback<Boolean>() {
+        @Override
+        public void onSuccess(Boolean result) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          log.error("Could not commit offsets of group " + group + " to " + node, t);
+          for (DBRecord record : records) {
+            String partition = new String(record.getKey());
+            if (owned.contains(partition)) {
+              pending.putIfAbsent(partition, Longs.fromByteArray(record.getValue()));
+            }
+          }
+        }
+      }, MoreExecutors.directExecutor());
+      commits.add(done);
+    });
+    return Futures.successfulAsList(commits);
+  }
+
+  private static void await(ListenableFuture<?> future) {
+    try {
+      future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      log.error("Timed out committing offsets", e);
+    }
+  }
+
+  /**
+   * Stops reading, commits what was read and leaves the group, its partitions go to the remaining
+   * members.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    executor.execute(() -> {
+      owned.clear();
+      assigned.values().forEach(Subscription::close);
+      assigned.clear();
+      await(commit());
+      members.stop();
+      partitions.stop();
+      zkClient.delete(membersPath + "/" + memberId);
+    });
+    executor.shutdown();
+    try {
+      executor.awaitTermination(2 * TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
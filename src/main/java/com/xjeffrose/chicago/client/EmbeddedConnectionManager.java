@@ -28,4 +28,9 @@ public class EmbeddedConnectionManager implements ConnectionPoolManager {
   public void start() {
 
   }
+
+  @Override
+  public void stop() {
+
+  }
 }
@@ -0,0 +1,145 @@
+package com.xjeffrose.chicago.client;
+
+import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import io.netty.channel.Channel;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * A tail subscription to a time series column family: the server pushes records to the listener as
+ * they are appended instead of the client polling with STREAM.
+ *
+ * The server sends at most the window in bytes ahead of what the listener has taken. Batches are
+ * handed to the listener on the connection's event loop, in offset order, and once it has taken half
+ * the window that much is granted back, so a listener that falls behind holds the server back rather
+ * than piling records up here.
+ */
+@Slf4j
+public class Subscription implements Closeable {
+  public static final int DEFAULT_WINDOW = 1024 * 1024;
+
+  public interface Listener {
+    /**
+     * Records appended to the column family. The first batch may be empty, it tells where the
+     * subscription starts.
+     */
+    void onBatch(ChicagoRecordBatch batch);
+
+    /**
+     * The subscription ended, {@code cause} is null when it was closed by the client.
+     */
+    default void onClose(Throwable cause) {
+    }
+  }
+
+  private final UUID id;
+  private final byte[] colFam;
+  private final int window;
+  private final Listener listener;
+  private final Consumer<ChicagoMessage> sender;
+  private final Map<UUID, Subscription> subscriptions;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  // only touched from the event loop of the connection
+  private long consumed;
+  private volatile Channel channel;
+  private volatile long nextOffset = -1;
+
+  /**
+   * @param sender writes a message to the node the subscription is on
+   */
+  Subscription(byte[] colFam, int window, Listener listener, Consumer<ChicagoMessage> sender,
+               Map<UUID, Subscription> subscriptions) {
+    this.id = UUID.randomUUID();
+    this.colFam = colFam;
+    this.window = window;
+    this.listener = listener;
+    this.sender = sender;
+    this.subscriptions = subscriptions;
+  }
+
+  /**
+   * Registers the subscription and sends the SUBSCRIBE, from {@code offset} on or after the newest
+   * record if it is null.
+   */
+  Subscription start(byte[] offset) {
+    subscriptions.put(id, this);
+    sender.accept(new DefaultChicagoMessage(id, Op.SUBSCRIBE, colFam, Longs.toByteArray(window), offset));
+    return this;
+  }
+
+  public UUID getId() {
+    return id;
+  }
+
+  /**
+   * Where the next batch starts, -1 until the first one came in. Every record below it was handed over,
+   * those committed later than the server waits for a gap aside.
+   */
+  public long getNextOffset() {
+    return nextOffset;
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  void deliver(Channel channel, ChicagoMessage msg) {
+    if (closed.get()) {
+      return;
+    }
+    this.channel = channel;
+    String status = new String(msg.getKey());
+    if (!Boolean.valueOf(status)) {
+      fail(new ChicagoClientException(ChiUtil.OVERLOADED.equals(status)
+          ? "Server overloaded: " + channel.remoteAddress()
+          : "Subscription to " + new String(colFam) + " failed"));
+      return;
+    }
+    ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(msg.getVal());
+    nextOffset = batch.nextOffset();
+    try {
+      listener.onBatch(batch);
+    } catch (Exception e) {
+      log.error("Error in subscription listener for " + new String(colFam), e);
+    }
+    consumed += msg.getVal().length;
+    if (consumed >= window / 2 && !closed.get()) {
+      sender.accept(new DefaultChicagoMessage(id, Op.CREDIT, colFam, Longs.toByteArray(consumed), null));
+      consumed = 0;
+    }
+  }
+
+  /**
+   * Ends the subscription if it came over {@code channel}, which closed.
+   */
+  void channelClosed(Channel channel) {
+    if (this.channel == channel) {
+      fail(new ChicagoClientException("Connection to " + channel.remoteAddress() + " closed"));
+    }
+  }
+
+  void fail(Throwable cause) {
+    if (closed.compareAndSet(false, true)) {
+      subscriptions.remove(id);
+      listener.onClose(cause);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      subscriptions.remove(id);
+      sender.accept(new DefaultChicagoMessage(id, Op.UNSUBSCRIBE, colFam, null, null));
+      listener.onClose(null);
+    }
+  }
+}
@@ -1,29 +1,80 @@
 package com.xjeffrose.chicago.db;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.RequestMetrics;
+import com.xjeffrose.chicago.RequestMetrics.Stage;
+import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
-public class DBManager extends AbstractExecutionThreadService {
+public class DBManager extends AbstractIdleService {
+  /**
+   * Told about records appended to a time series column family once they are committed, on the
+   * worker that committed them.
+   */
+  public interface AppendListener {
+    void appended(byte[] colFam);
+  }
+
   abstract class Message {
+    // what the message is recorded as in the metrics, null for internal messages
+    final Op op;
+    final byte[] colFam;
+    long postedNanos;
+
+    Message(Op op, byte[] colFam) {
+      this.op = op;
+      this.colFam = colFam;
+    }
+
     abstract void process();
     abstract void fail(Throwable t);
   }
 
+  /*
+   * A write that can share a group commit with the writes queued right behind it.
+   */
+  abstract class WriteClassMessage extends Message {
+    WriteClassMessage(Op op, byte[] colFam) {
+      super(op, colFam);
+    }
+
+    abstract int size();
+    abstract GroupWrite toGroupWrite();
+    abstract void complete(GroupWrite write);
+  }
+
   class StopMessage extends Message {
+    final Worker worker;
+
+    StopMessage(Worker worker) {
+      super(null, null);
+      this.worker = worker;
+    }
+
     @Override
     void process() {
-      // stop accepting new messages
-      running.set(false);
+      // stop taking messages, whatever is left is drained on shutdown
+      worker.running = false;
     }
 
     @Override
@@ -32,20 +83,23 @@ public class DBManager extends AbstractExecutionThreadService {
   }
 
   class WaitMessage extends Message {
+    final Worker worker;
     final SettableFuture<Boolean> promise;
 
-    WaitMessage(SettableFuture<Boolean> promise) {
+    WaitMessage(Worker worker, SettableFuture<Boolean> promise) {
+      super(null, null);
+      this.worker = worker;
       this.promise = promise;
     }
 
     @Override
     void process() {
-      if (queue.size() == 0) {
+      if (worker.queue.size() == 0 && pendingReads.get() == 0) {
         log.debug("queue is empty!");
         promise.set(true);
       } else {
         log.error("queue size wasn't 0, waiting again");
-        post(new WaitMessage(promise));
+        worker.post(new WaitMessage(worker, promise));
       }
     }
 
@@ -56,12 +110,11 @@ public class DBManager extends AbstractExecutionThreadService {
   }
 
   class ReadMessage extends Message {
-    final byte[] colFam;
     final byte[] key;
     final SettableFuture<byte[]> promise;
 
     ReadMessage(byte[] colFam, byte[] key, SettableFuture<byte[]> promise) {
-      this.colFam = colFam;
+      super(Op.READ, colFam);
       this.key = key;
       this.promise = promise;
     }
@@ -77,14 +130,51 @@ public class DBManager extends AbstractExecutionThreadService {
     }
   }
 
-  class WriteMessage extends Message {
-    final byte[] colFam;
+  class WriteMessage extends WriteClassMessage {
     final byte[] key;
     final byte[] value;
     final SettableFuture<Boolean> promise;
 
     WriteMessage(byte[] colFam, byte[] key, byte[] value, SettableFuture<Boolean> promise) {
-      this.colFam = colFam;
+      super(Op.WRITE, colFam);
+      this.key = key;
+      this.value = value;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.write(colFam, key, value));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
+
+    @Override
+    int size() {
+      return sizeOf(key) + sizeOf(value);
+    }
+
+    @Override
+    GroupWrite toGroupWrite() {
+      return GroupWrite.write(colFam, key, value);
+    }
+
+    @Override
+    void complete(GroupWrite write) {
+      promise.set(write.isSuccess());
+    }
+  }
+
+  class BufferWriteMessage extends WriteClassMessage {
+    final byte[] key;
+    final ByteBuf value;
+    final SettableFuture<Boolean> promise;
+
+    BufferWriteMessage(byte[] colFam, byte[] key, ByteBuf value, SettableFuture<Boolean> promise) {
+      super(Op.WRITE, colFam);
       this.key = key;
       this.value = value;
       this.promise = promise;
@@ -99,15 +189,94 @@ public class DBManager extends AbstractExecutionThreadService {
     void fail(Throwable t) {
       promise.setException(t);
     }
+
+    @Override
+    int size() {
+      return sizeOf(key) + value.readableBytes();
+    }
+
+    @Override
+    GroupWrite toGroupWrite() {
+      return GroupWrite.write(colFam, key, ChiUtil.toBytes(value));
+    }
+
+    @Override
+    void complete(GroupWrite write) {
+      promise.set(write.isSuccess());
+    }
+  }
+
+  class MultiReadMessage extends Message {
+    final List<byte[]> keys;
+    final SettableFuture<List<byte[]>> promise;
+
+    MultiReadMessage(byte[] colFam, List<byte[]> keys, SettableFuture<List<byte[]>> promise) {
+      super(Op.MULTI_GET, colFam);
+      this.keys = keys;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.multiRead(colFam, keys));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
+  }
+
+  class MultiWriteMessage extends Message {
+    final List<DBRecord> records;
+    final SettableFuture<Boolean> promise;
+
+    MultiWriteMessage(byte[] colFam, List<DBRecord> records, SettableFuture<Boolean> promise) {
+      super(Op.MULTI_PUT, colFam);
+      this.records = records;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.multiWrite(colFam, records));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
+  }
+
+  class BulkLoadMessage extends Message {
+    final boolean timeSeries;
+    final List<DBRecord> records;
+    final SettableFuture<Boolean> promise;
+
+    BulkLoadMessage(byte[] colFam, boolean timeSeries, List<DBRecord> records, SettableFuture<Boolean> promise) {
+      super(Op.BULK_LOAD, colFam);
+      this.timeSeries = timeSeries;
+      this.records = records;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.bulkLoad(colFam, timeSeries, records));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
   }
 
   class BatchWriteMessage extends Message {
-    final byte[] colFam;
     final byte[] value;
     final SettableFuture<byte[]> promise;
 
     BatchWriteMessage(byte[] colFam, byte[] value, SettableFuture<byte[]> promise) {
-      this.colFam = colFam;
+      super(Op.BATCH_WRITE, colFam);
       this.value = value;
       this.promise = promise;
     }
@@ -123,14 +292,13 @@ public class DBManager extends AbstractExecutionThreadService {
     }
   }
 
-  class TimeSeriesWriteMessage extends Message {
-    final byte[] colFam;
+  class TimeSeriesWriteMessage extends WriteClassMessage {
     final byte[] key;
     final byte[] value;
     final SettableFuture<byte[]> promise;
 
     TimeSeriesWriteMessage(byte[] colFam, byte[] key, byte[] value, SettableFuture<byte[]> promise) {
-      this.colFam = colFam;
+      super(Op.TS_WRITE, colFam);
       this.key = key;
       this.value = value;
       this.promise = promise;
@@ -149,15 +317,67 @@ public class DBManager extends AbstractExecutionThreadService {
     void fail(Throwable t) {
       promise.setException(t);
     }
+
+    @Override
+    int size() {
+      return sizeOf(key) + sizeOf(value);
+    }
+
+    @Override
+    GroupWrite toGroupWrite() {
+      return GroupWrite.tsWrite(colFam, key, value);
+    }
+
+    @Override
+    void complete(GroupWrite write) {
+      promise.set(write.getResultKey());
+    }
+  }
+
+  class BufferTimeSeriesWriteMessage extends WriteClassMessage {
+    final byte[] key;
+    final ByteBuf value;
+    final SettableFuture<byte[]> promise;
+
+    BufferTimeSeriesWriteMessage(byte[] colFam, byte[] key, ByteBuf value, SettableFuture<byte[]> promise) {
+      super(Op.TS_WRITE, colFam);
+      this.key = key;
+      this.value = value;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.tsWrite(colFam, key, value));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
+
+    @Override
+    int size() {
+      return sizeOf(key) + value.readableBytes();
+    }
+
+    @Override
+    GroupWrite toGroupWrite() {
+      return GroupWrite.tsWrite(colFam, key, ChiUtil.toBytes(value));
+    }
+
+    @Override
+    void complete(GroupWrite write) {
+      promise.set(write.getResultKey());
+    }
   }
 
   class DeleteMessage extends Message {
-    final byte[] colFam;
     final byte[] key;
     final SettableFuture<Boolean> promise;
 
     DeleteMessage(byte[] colFam, byte[] key, SettableFuture<Boolean> promise) {
-      this.colFam = colFam;
+      super(Op.DELETE, colFam);
       this.key = key;
       this.promise = promise;
     }
@@ -178,12 +398,11 @@ public class DBManager extends AbstractExecutionThreadService {
   }
 
   class StreamingReadMessage extends Message {
-    final byte[] colFam;
     final byte[] key;
     final SettableFuture<List<DBRecord>> promise;
 
     StreamingReadMessage(byte[] colFam, byte[] key, SettableFuture<List<DBRecord>> promise) {
-      this.colFam = colFam;
+      super(Op.STREAM, colFam);
       this.key = key;
       this.promise = promise;
     }
@@ -204,6 +423,7 @@ public class DBManager extends AbstractExecutionThreadService {
     final SettableFuture<List<String>> promise;
 
     ScanColFamilyMessage(SettableFuture<List<String>> promise) {
+      super(null, null);
       this.promise = promise;
     }
 
@@ -219,17 +439,20 @@ public class DBManager extends AbstractExecutionThreadService {
   }
 
   class ScanKeyMessage extends Message {
-    final byte[] colFam;
+    final byte[] offset;
+    final int limit;
     final SettableFuture<List<byte[]>> promise;
 
-    ScanKeyMessage(byte[] colFam, SettableFuture<List<byte[]>> promise) {
-      this.colFam = colFam;
+    ScanKeyMessage(byte[] colFam, byte[] offset, int limit, SettableFuture<List<byte[]>> promise) {
+      super(Op.SCAN_KEYS, colFam);
+      this.offset = offset;
+      this.limit = limit;
       this.promise = promise;
     }
 
     @Override
     void process() {
-      promise.set(backend.getKeys(colFam, new byte[0]));
+      promise.set(backend.getKeys(colFam, offset, limit));
     }
 
     @Override
@@ -238,12 +461,156 @@ public class DBManager extends AbstractExecutionThreadService {
     }
   }
 
-  private final AtomicBoolean running = new AtomicBoolean(false);
-  private final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+  class SeekTimeMessage extends Message {
+    final long millis;
+    final SettableFuture<byte[]> promise;
+
+    SeekTimeMessage(byte[] colFam, long millis, SettableFuture<byte[]> promise) {
+      super(Op.SEEK_TIME, colFam);
+      this.millis = millis;
+      this.promise = promise;
+    }
+
+    @Override
+    void process() {
+      promise.set(backend.seekTime(colFam, millis));
+    }
+
+    @Override
+    void fail(Throwable t) {
+      promise.setException(t);
+    }
+  }
+
+  /*
+   * One thread and its queue. Messages are striped over the workers by column family, so everything
+   * for one column family is applied in the order it was posted while other column families proceed
+   * on other cores.
+   */
+  class Worker implements Runnable {
+    final int index;
+    final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+    volatile boolean running = true;
+    Thread thread;
+
+    Worker(int index) {
+      this.index = index;
+    }
+
+    void post(Message message) {
+      message.postedNanos = System.nanoTime();
+      try {
+        log.debug("posting message: {} to worker {}", message, index);
+        queue.put(message); // use offer with timeout?
+      } catch (InterruptedException e) {
+        log.error("Couldn't post message ", e);
+        message.fail(e);
+      }
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          Message message = waitStrategy.next(queue);
+          if (message instanceof WriteClassMessage && queue.peek() instanceof WriteClassMessage) {
+            processGroup(nextGroup((WriteClassMessage) message));
+          } else {
+            processMessage(message);
+          }
+        } catch (InterruptedException e) {
+          log.error("DBManager worker " + index + " interrupted", e);
+          running = false;
+        }
+      }
+    }
+
+    /**
+     * {@code first} and the writes queued directly behind it, up to the group commit caps. Under light
+     * load that is just {@code first}, under heavy load the group grows with the backlog.
+     */
+    List<WriteClassMessage> nextGroup(WriteClassMessage first) {
+      List<WriteClassMessage> group = new ArrayList<>();
+      group.add(first);
+      int bytes = first.size();
+      // we are the only consumer, what we peek is what we poll
+      while (group.size() < maxGroupWrites && bytes < maxGroupBytes && queue.peek() instanceof WriteClassMessage) {
+        WriteClassMessage next = (WriteClassMessage) queue.poll();
+        group.add(next);
+        bytes += next.size();
+      }
+      return group;
+    }
+
+    void drain() {
+      List<Message> messages = new ArrayList<>();
+      queue.drainTo(messages);
+      messages.forEach((m) -> processMessage(m));
+    }
+  }
+
+  private static final long READ_POOL_SHUTDOWN_SECONDS = 30;
+  public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_MAX_GROUP_WRITES = 1024;
+  public static final int DEFAULT_MAX_GROUP_BYTES = 4 * 1024 * 1024;
+
+  public static final int DEFAULT_READ_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_READ_QUEUE_SIZE = 1024;
+
   private final StorageProvider backend;
+  private final Worker[] workers;
+  // point reads run here instead of queueing behind writes and scans, null when reads use the workers
+  private final ThreadPoolExecutor readPool;
+  private final AtomicInteger pendingReads = new AtomicInteger();
+  private final RequestMetrics metrics;
+  private final WaitStrategy waitStrategy;
+  // caps on one group commit, a group closes at whichever it reaches first
+  private final int maxGroupWrites;
+  private final int maxGroupBytes;
+  private volatile AppendListener appendListener;
 
   public DBManager(StorageProvider backend) {
+    this(backend, DEFAULT_WORKERS, WaitStrategy.DEFAULT);
+  }
+
+  public DBManager(StorageProvider backend, int workers, WaitStrategy waitStrategy) {
+    this(backend, workers, waitStrategy, DEFAULT_MAX_GROUP_WRITES, DEFAULT_MAX_GROUP_BYTES);
+  }
+
+  public DBManager(StorageProvider backend, int workers, WaitStrategy waitStrategy, int maxGroupWrites, int maxGroupBytes) {
+    this(backend, workers, waitStrategy, maxGroupWrites, maxGroupBytes, DEFAULT_READ_THREADS, DEFAULT_READ_QUEUE_SIZE);
+  }
+
+  /**
+   * @param readThreads size of the read pool, 0 sends reads through the workers like everything else
+   * @param readQueueSize reads that may wait for a read thread, beyond that reads fail fast
+   */
+  public DBManager(StorageProvider backend, int workers, WaitStrategy waitStrategy, int maxGroupWrites, int maxGroupBytes,
+                   int readThreads, int readQueueSize) {
+    this(backend, workers, waitStrategy, maxGroupWrites, maxGroupBytes, readThreads, readQueueSize, new RequestMetrics());
+  }
+
+  public DBManager(StorageProvider backend, int workers, WaitStrategy waitStrategy, int maxGroupWrites, int maxGroupBytes,
+                   int readThreads, int readQueueSize, RequestMetrics metrics) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("DBManager needs at least one worker, got " + workers);
+    }
     this.backend = backend;
+    this.waitStrategy = waitStrategy;
+    this.maxGroupWrites = maxGroupWrites;
+    this.maxGroupBytes = maxGroupBytes;
+    this.metrics = metrics;
+    if (readThreads > 0) {
+      this.readPool = new ThreadPoolExecutor(readThreads, readThreads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(readQueueSize),
+          new ThreadFactoryBuilder().setNameFormat("chicago-db-reader-%d").setDaemon(true).build());
+    } else {
+      this.readPool = null;
+    }
+    this.workers = new Worker[workers];
+    for (int i = 0; i < workers; i++) {
+      this.workers[i] = new Worker(i);
+    }
   }
 
   private void openDatabase() {
@@ -254,13 +621,46 @@ public class DBManager extends AbstractExecutionThreadService {
     backend.close();
   }
 
-  private void post(Message message) {
+  private Worker workerFor(byte[] colFam) {
+    if (colFam == null || workers.length == 1) {
+      return workers[0];
+    }
+    return workers[(Arrays.hashCode(colFam) & Integer.MAX_VALUE) % workers.length];
+  }
+
+  private void post(byte[] colFam, Message message) {
+    workerFor(colFam).post(message);
+  }
+
+  private static int sizeOf(byte[] bytes) {
+    return bytes == null ? 0 : bytes.length;
+  }
+
+  private void processGroup(List<WriteClassMessage> group) {
+    List<GroupWrite> writes = new ArrayList<>(group.size());
+    long start = System.nanoTime();
     try {
-      log.debug("posting message: {}", message);
-      queue.put(message); // use offer with timeout?
-    } catch (InterruptedException e) {
-      log.error("Couldn't post message ", e);
-      message.fail(e);
+      for (WriteClassMessage message : group) {
+        writes.add(message.toGroupWrite());
+      }
+      backend.groupWrite(writes);
+    } catch (Exception e) {
+      log.error("processGroup ", e);
+      group.forEach((m) -> m.fail(e));
+      return;
+    }
+    long end = System.nanoTime();
+    log.debug("group committed {} writes", writes.size());
+    byte[] appendedTo = null;
+    for (int i = 0; i < group.size(); i++) {
+      group.get(i).complete(writes.get(i));
+      // every write in the group waited for the whole commit
+      record(group.get(i), start, end);
+      // once per run of appends to the same column family
+      if (isAppend(group.get(i)) && !Arrays.equals(group.get(i).colFam, appendedTo)) {
+        appendedTo = group.get(i).colFam;
+        appended(appendedTo);
+      }
     }
   }
 
@@ -269,107 +669,250 @@ public class DBManager extends AbstractExecutionThreadService {
     if (message == null) {
       return;
     }
+    long start = System.nanoTime();
     try {
       message.process();
+      if (isAppend(message)) {
+        appended(message.colFam);
+      }
     } catch (Exception e) {
       log.error("processMessage ", e);
       message.fail(e);
     }
+    record(message, start, System.nanoTime());
   }
 
-  private void drainQueue() {
-    List<Message> messages = new ArrayList<>();
-    queue.drainTo(messages);
-    messages.forEach((m) -> processMessage(m));
+  private static boolean isAppend(Message message) {
+    return message.op == Op.TS_WRITE || message.op == Op.BATCH_WRITE;
+  }
+
+  private void appended(byte[] colFam) {
+    AppendListener listener = appendListener;
+    if (listener == null) {
+      return;
+    }
+    try {
+      listener.appended(colFam);
+    } catch (Exception e) {
+      log.error("Error reporting an append to " + new String(colFam), e);
+    }
   }
 
-  @Override // AbstractExecutionThreadService.run
-  protected void run() {
-    while(running.get()) {
-      log.debug("running iteration");
-      // get the next message from the queue
-      Message message = queue.poll(); // block, don't use timeout
-      // process message
-      processMessage(message);
+  private void record(Message message, long start, long end) {
+    if (message.op != null) {
+      metrics.record(message.op, message.colFam, Stage.QUEUE, start - message.postedNanos);
+      metrics.record(message.op, message.colFam, Stage.STORAGE, end - start);
     }
   }
 
-  @Override // AbstractExecutionThreadService.startUp
+  @Override // AbstractIdleService.startUp
   protected void startUp() {
-    log.debug("starting up");
+    log.debug("starting up {} workers with {}", workers.length, waitStrategy);
     // open database
     openDatabase();
     // start accepting messages
-    running.set(true);
-  }
-
-  @Override // AbstractExecutionThreadService.triggerShutdown
-  protected void triggerShutdown() {
-    log.debug("shutdown triggered");
-    post(new StopMessage());
+    for (Worker worker : workers) {
+      worker.thread = new Thread(worker, "chicago-db-worker-" + worker.index);
+      worker.thread.start();
+    }
   }
 
-  @Override // AbstractExecutionThreadService.shutDown
-  protected void shutDown() {
+  @Override // AbstractIdleService.shutDown
+  protected void shutDown() throws InterruptedException {
     log.debug("shutting down");
-    // drain the incoming message queue
-    drainQueue();
+    for (Worker worker : workers) {
+      worker.post(new StopMessage(worker));
+    }
+    for (Worker worker : workers) {
+      worker.thread.join();
+    }
+    // drain the incoming message queues
+    for (Worker worker : workers) {
+      worker.drain();
+    }
+    if (readPool != null) {
+      readPool.shutdown();
+      readPool.awaitTermination(READ_POOL_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+    }
     // close database
     closeDatabase();
   }
 
-  @Override // AbstractExecutionThreadService.serviceName
+  @Override // AbstractIdleService.serviceName
   protected String serviceName() {
     return "DBManager[RocksDB]"; // TODO(CK): get name from impl
   }
 
+  public void setAppendListener(AppendListener listener) {
+    this.appendListener = listener;
+  }
+
+  /**
+   * The offset the next record of time series {@code colFam} takes, read right away rather than in
+   * turn with the column family's other requests, see {@link StorageProvider#nextOffset}.
+   */
+  public byte[] nextOffset(byte[] colFam) {
+    return backend.nextOffset(colFam);
+  }
+
+  public RequestMetrics getMetrics() {
+    return metrics;
+  }
+
+  public int getWorkerCount() {
+    return workers.length;
+  }
+
+  /**
+   * Messages waiting on worker {@code worker}, a gauge of how far behind it is.
+   */
+  public int getQueueDepth(int worker) {
+    return workers[worker].queue.size();
+  }
+
+  public List<Integer> getQueueDepths() {
+    List<Integer> depths = new ArrayList<>(workers.length);
+    for (Worker worker : workers) {
+      depths.add(worker.queue.size());
+    }
+    return depths;
+  }
+
+  /**
+   * Point reads skip the worker queues when there is a read pool, so they see every write that has
+   * completed but not writes still queued.
+   */
   public ListenableFuture<byte[]> read(byte[] colFam, byte[] key) {
     SettableFuture<byte[]> promise = SettableFuture.create();
-    post(new ReadMessage(colFam, key, promise));
+    ReadMessage message = new ReadMessage(colFam, key, promise);
+    if (readPool == null) {
+      post(colFam, message);
+      return promise;
+    }
+
+    pendingReads.incrementAndGet();
+    message.postedNanos = System.nanoTime();
+    try {
+      readPool.execute(() -> {
+        try {
+          processMessage(message);
+        } finally {
+          pendingReads.decrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pendingReads.decrementAndGet();
+      log.error("Read pool is full, rejecting read of " + new String(colFam));
+      message.fail(e);
+    }
     return promise;
   }
 
+  /**
+   * Reads waiting for or running on the read pool.
+   */
+  public int getPendingReads() {
+    return pendingReads.get();
+  }
+
   public ListenableFuture<Boolean> write(byte[] colFam, byte[] key, byte[] value) {
     SettableFuture<Boolean> promise = SettableFuture.create();
-    post(new WriteMessage(colFam, key, value, promise));
+    post(colFam, new WriteMessage(colFam, key, value, promise));
+    return promise;
+  }
+
+  /**
+   * The caller keeps ownership of {@code value} and must not release it before the future completes.
+   */
+  public ListenableFuture<Boolean> write(byte[] colFam, byte[] key, ByteBuf value) {
+    SettableFuture<Boolean> promise = SettableFuture.create();
+    post(colFam, new BufferWriteMessage(colFam, key, value, promise));
+    return promise;
+  }
+
+  public ListenableFuture<List<byte[]>> multiRead(byte[] colFam, List<byte[]> keys) {
+    SettableFuture<List<byte[]>> promise = SettableFuture.create();
+    post(colFam, new MultiReadMessage(colFam, keys, promise));
+    return promise;
+  }
+
+  public ListenableFuture<Boolean> multiWrite(byte[] colFam, List<DBRecord> records) {
+    SettableFuture<Boolean> promise = SettableFuture.create();
+    post(colFam, new MultiWriteMessage(colFam, records, promise));
+    return promise;
+  }
+
+  public ListenableFuture<Boolean> bulkLoad(byte[] colFam, boolean timeSeries, List<DBRecord> records) {
+    SettableFuture<Boolean> promise = SettableFuture.create();
+    post(colFam, new BulkLoadMessage(colFam, timeSeries, records, promise));
     return promise;
   }
 
   public ListenableFuture<byte[]> batchWrite(byte[] colFam, byte[] value) {
     SettableFuture<byte[]> promise = SettableFuture.create();
-    post(new BatchWriteMessage(colFam, value, promise));
+    post(colFam, new BatchWriteMessage(colFam, value, promise));
     return promise;
   }
 
   public ListenableFuture<byte[]> tsWrite(byte[] colFam, byte[] key, byte[] value) {
     SettableFuture<byte[]> promise = SettableFuture.create();
-    post(new TimeSeriesWriteMessage(colFam, key, value, promise));
+    post(colFam, new TimeSeriesWriteMessage(colFam, key, value, promise));
+    return promise;
+  }
+
+  /**
+   * The caller keeps ownership of {@code value} and must not release it before the future completes.
+   */
+  public ListenableFuture<byte[]> tsWrite(byte[] colFam, byte[] key, ByteBuf value) {
+    SettableFuture<byte[]> promise = SettableFuture.create();
+    post(colFam, new BufferTimeSeriesWriteMessage(colFam, key, value, promise));
     return promise;
   }
 
   public ListenableFuture<Boolean> delete(byte[] colFam, byte[] key) {
     SettableFuture<Boolean> promise = SettableFuture.create();
-    post(new DeleteMessage(colFam, key, promise));
+    post(colFam, new DeleteMessage(colFam, key, promise));
     return promise;
   }
 
   public ListenableFuture<List<DBRecord>> stream(byte[] colFam, byte[] key) {
     SettableFuture<List<DBRecord>> promise = SettableFuture.create();
-    post(new StreamingReadMessage(colFam, key, promise));
+    post(colFam, new StreamingReadMessage(colFam, key, promise));
     return promise;
   }
 
   public ListenableFuture<List<byte[]>> getKeys(byte[] colFam) {
+    return getKeys(colFam, new byte[0], Integer.MAX_VALUE);
+  }
+
+  /**
+   * One page of a key scan, at most {@code limit} keys starting at {@code offset}.
+   */
+  public ListenableFuture<List<byte[]>> getKeys(byte[] colFam, byte[] offset, int limit) {
     SettableFuture<List<byte[]>> promise = SettableFuture.create();
-    post(new ScanKeyMessage(colFam, promise));
+    post(colFam, new ScanKeyMessage(colFam, offset, limit, promise));
+    return promise;
+  }
+
+  /**
+   * The first offset of {@code colFam} written at or after {@code millis}, see
+   * {@link StorageProvider#seekTime}. Queued behind the column family's writes, so it sees them.
+   */
+  public ListenableFuture<byte[]> seekTime(byte[] colFam, long millis) {
+    SettableFuture<byte[]> promise = SettableFuture.create();
+    post(colFam, new SeekTimeMessage(colFam, millis, promise));
     return promise;
   }
 
   @VisibleForTesting
   public ListenableFuture<Boolean> waitForEmptyQueue() {
-    SettableFuture<Boolean> promise = SettableFuture.create();
-    post(new WaitMessage(promise));
-    return promise;
+    List<ListenableFuture<Boolean>> empty = new ArrayList<>(workers.length);
+    for (Worker worker : workers) {
+      SettableFuture<Boolean> promise = SettableFuture.create();
+      worker.post(new WaitMessage(worker, promise));
+      empty.add(promise);
+    }
+    return Futures.transform(Futures.allAsList(empty), (Function<List<Boolean>, Boolean>) (all) -> true);
   }
 
 
@@ -9,7 +9,9 @@ import com.xjeffrose.chicago.ZkClient;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -21,7 +23,8 @@ public class EncryptedStorageProvider implements StorageProvider {
   private final byte[] key;
   private final byte[] iv;
   private final Properties properties = new Properties();
-  private Cipher cipher;
+  // Ciphers carry the state of the stream they are working on, DBManager workers each get their own
+  private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(this::newCipher);
 
   public EncryptedStorageProvider(StorageProvider db) {
     this.db = db;
@@ -42,17 +45,21 @@ public class EncryptedStorageProvider implements StorageProvider {
 
   private void configure() {
     properties.setProperty("chimera.crypto.cipher.classes", "com.intel.chimera.cipher.OpensslCipher");
+  }
+
+  private Cipher newCipher() {
     try {
-      cipher = Utils.getCipherInstance(CipherTransformation.AES_CTR_NOPADDING, properties);
+      return Utils.getCipherInstance(CipherTransformation.AES_CTR_NOPADDING, properties);
     } catch (IOException e) {
       log.error("Error while configuring the encryption handler: ", e);
     }
+    return null;
   }
 
   byte[] encrypt(byte[] raw) {
     try {
       ByteArrayOutputStream os = new ByteArrayOutputStream();
-      CryptoOutputStream cos = new CryptoOutputStream(os, cipher, 4096, key, iv);
+      CryptoOutputStream cos = new CryptoOutputStream(os, cipher.get(), 4096, key, iv);
 
       cos.write(raw);
       cos.flush();
@@ -70,7 +77,7 @@ public class EncryptedStorageProvider implements StorageProvider {
     try {
       final byte[] decryptedData = new byte[encryptedData.length];
       CryptoInputStream cis = null;
-      cis = new CryptoInputStream(new ByteArrayInputStream(encryptedData), cipher, 4096, key, iv);
+      cis = new CryptoInputStream(new ByteArrayInputStream(encryptedData), cipher.get(), 4096, key, iv);
       cis.read(decryptedData, 0, encryptedData.length);
 
       return decryptedData;
@@ -122,6 +129,55 @@ public class EncryptedStorageProvider implements StorageProvider {
     return records;
   }
 
+  @Override
+  public List<byte[]> multiRead(byte[] colFam, List<byte[]> keys) {
+    List<byte[]> values = db.multiRead(colFam, keys);
+    if (values == null) {
+      return null;
+    }
+    for (int i = 0; i < values.size(); i++) {
+      if (values.get(i) != null) {
+        values.set(i, decrypt(values.get(i)));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public boolean multiWrite(byte[] colFam, List<DBRecord> records) {
+    List<DBRecord> encrypted = new ArrayList<>(records.size());
+    for (DBRecord record : records) {
+      encrypted.add(new DBRecord(colFam, record.getKey(), encrypt(record.getValue())));
+    }
+    return db.multiWrite(colFam, encrypted);
+  }
+
+  @Override
+  public void groupWrite(List<GroupWrite> writes) {
+    List<GroupWrite> encrypted = new ArrayList<>(writes.size());
+    for (GroupWrite write : writes) {
+      encrypted.add(write.withValue(encrypt(write.getValue())));
+    }
+    db.groupWrite(encrypted);
+    for (int i = 0; i < writes.size(); i++) {
+      writes.get(i).completeFrom(encrypted.get(i));
+    }
+  }
+
+  @Override
+  public void scan(byte[] colFam, byte[] from, RecordVisitor visitor) {
+    db.scan(colFam, from, (key, val) -> visitor.visit(key, decrypt(val)));
+  }
+
+  @Override
+  public boolean bulkLoad(byte[] colFam, boolean timeSeries, List<DBRecord> records) {
+    List<DBRecord> encrypted = new ArrayList<>(records.size());
+    for (DBRecord record : records) {
+      encrypted.add(new DBRecord(colFam, record.getKey(), encrypt(record.getValue())));
+    }
+    return db.bulkLoad(colFam, timeSeries, encrypted);
+  }
+
   @Override
   public byte[] tsWrite(byte[] colFam, byte[] key, byte[] val) {
     return db.tsWrite(colFam, key, encrypt(val));
@@ -145,7 +201,35 @@ public class EncryptedStorageProvider implements StorageProvider {
     return db.getKeys(colFam,offset);
   }
 
+  @Override public List<byte[]> getKeys(byte[] colFam, byte[] offset, int limit) {
+    return db.getKeys(colFam, offset, limit);
+  }
+
   @Override public List<String> getColFams() {
     return db.getColFams();
   }
+
+  @Override public byte[] seekTime(byte[] colFam, long millis) {
+    return db.seekTime(colFam, millis);
+  }
+
+  @Override public byte[] nextOffset(byte[] colFam) {
+    return db.nextOffset(colFam);
+  }
+
+  @Override public Map<String, Number> getStatistics() {
+    return db.getStatistics();
+  }
+
+  @Override public Map<String, String> getColFamProperties(byte[] colFam) {
+    return db.getColFamProperties(colFam);
+  }
+
+  @Override public boolean compact(byte[] colFam) {
+    return db.compact(colFam);
+  }
+
+  @Override public boolean flush(byte[] colFam) {
+    return db.flush(colFam);
+  }
 }
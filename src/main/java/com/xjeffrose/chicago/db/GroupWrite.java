@@ -0,0 +1,68 @@
+package com.xjeffrose.chicago.db;
+
+import lombok.Getter;
+
+/*
+ * One write of a group commit, see {@link StorageProvider#groupWrite}. The storage provider applies
+ * it and records the outcome here: whether it went in and, for time series writes, under which key.
+ */
+public class GroupWrite {
+  @Getter
+  private final byte[] colFam;
+  // null for a time series write that takes the next offset
+  @Getter
+  private final byte[] key;
+  @Getter
+  private final byte[] value;
+  @Getter
+  private final boolean timeSeries;
+
+  @Getter
+  private boolean success;
+  @Getter
+  private byte[] resultKey;
+
+  private GroupWrite(byte[] colFam, byte[] key, byte[] value, boolean timeSeries) {
+    this.colFam = colFam;
+    this.key = key;
+    this.value = value;
+    this.timeSeries = timeSeries;
+  }
+
+  public static GroupWrite write(byte[] colFam, byte[] key, byte[] value) {
+    return new GroupWrite(colFam, key, value, false);
+  }
+
+  public static GroupWrite tsWrite(byte[] colFam, byte[] key, byte[] value) {
+    return new GroupWrite(colFam, key, value, true);
+  }
+
+  /**
+   * A copy of this write carrying {@code value} instead, for providers that transform values.
+   */
+  public GroupWrite withValue(byte[] value) {
+    return new GroupWrite(colFam, key, value, timeSeries);
+  }
+
+  public int size() {
+    return (key == null ? 0 : key.length) + (value == null ? 0 : value.length);
+  }
+
+  public void succeeded(byte[] resultKey) {
+    this.success = true;
+    this.resultKey = resultKey;
+  }
+
+  public void failed() {
+    this.success = false;
+    this.resultKey = null;
+  }
+
+  /**
+   * Takes over the outcome of {@code other}, the copy this write was applied as.
+   */
+  public void completeFrom(GroupWrite other) {
+    this.success = other.success;
+    this.resultKey = other.resultKey;
+  }
+}
@@ -0,0 +1,106 @@
+package com.xjeffrose.chicago.db;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/*
+ * Hash tree over the records of one column family, for replicas to find where they differ without
+ * sending each other their keys.
+ *
+ * A record falls in leaf murmur3(key) mod 2^depth. A leaf's hash is the XOR of the digests of its
+ * records, so it does not depend on the order they were added in, and an inner node hashes its two
+ * children. Replicas holding the same records build the same tree whatever their key order or
+ * storage layout.
+ *
+ * Nodes are addressed by level and index within the level: the root is (0, 0), the children of
+ * (l, i) are (l + 1, 2i) and (l + 1, 2i + 1) and the leaves are level depth.
+ */
+public class MerkleTree {
+  public static final int DEFAULT_DEPTH = 16;
+  public static final int MAX_DEPTH = 24;
+  private static final HashFunction LEAF_HASH = Hashing.murmur3_32();
+  private static final HashFunction DIGEST_HASH = Hashing.murmur3_128();
+
+  private final int depth;
+  // level l starts at 2^l - 1
+  private final long[] nodes;
+  private boolean sealed;
+
+  public MerkleTree(int depth) {
+    if (depth < 0 || depth > MAX_DEPTH) {
+      throw new IllegalArgumentException("Merkle tree depth out of range: " + depth);
+    }
+    this.depth = depth;
+    this.nodes = new long[(1 << (depth + 1)) - 1];
+  }
+
+  /**
+   * The tree of everything {@code db} holds in {@code colFam}.
+   */
+  public static MerkleTree build(StorageProvider db, byte[] colFam, int depth) {
+    MerkleTree tree = new MerkleTree(depth);
+    db.scan(colFam, tree::add);
+    tree.seal();
+    return tree;
+  }
+
+  public static long digest(byte[] key, byte[] val) {
+    return DIGEST_HASH.newHasher()
+        .putInt(key.length)
+        .putBytes(key)
+        .putBytes(val)
+        .hash()
+        .asLong();
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public int leafOf(byte[] key) {
+    return leafOf(key, depth);
+  }
+
+  public static int leafOf(byte[] key, int depth) {
+    return LEAF_HASH.hashBytes(key).asInt() & ((1 << depth) - 1);
+  }
+
+  public void add(byte[] key, byte[] val) {
+    if (sealed) {
+      throw new IllegalStateException("Merkle tree already sealed");
+    }
+    nodes[(1 << depth) - 1 + leafOf(key)] ^= digest(key, val);
+  }
+
+  /**
+   * Computes the inner nodes once all records are added.
+   */
+  public void seal() {
+    for (int level = depth - 1; level >= 0; level--) {
+      int start = (1 << level) - 1;
+      int childStart = (1 << (level + 1)) - 1;
+      for (int i = 0; i < (1 << level); i++) {
+        nodes[start + i] = DIGEST_HASH.newHasher()
+            .putLong(nodes[childStart + 2 * i])
+            .putLong(nodes[childStart + 2 * i + 1])
+            .hash()
+            .asLong();
+      }
+    }
+    sealed = true;
+  }
+
+  public long hash(int level, int index) {
+    if (!sealed) {
+      throw new IllegalStateException("Merkle tree not sealed");
+    }
+    if (level < 0 || level > depth || index < 0 || index >= (1 << level)) {
+      throw new IllegalArgumentException("No node " + index + " at level " + level);
+    }
+    return nodes[(1 << level) - 1 + index];
+  }
+
+  public long root() {
+    return hash(0, 0);
+  }
+}
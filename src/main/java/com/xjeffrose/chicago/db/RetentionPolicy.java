@@ -0,0 +1,31 @@
+package com.xjeffrose.chicago.db;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/*
+ * How much of a time series column family a node keeps: records older than maxAgeMillis and the
+ * oldest records beyond maxBytes are dropped, 0 does not limit either. A column family with a limit is
+ * stored in time buckets of bucketMillis each, see TimeBuckets.
+ */
+@ToString
+public class RetentionPolicy {
+  public static final RetentionPolicy NONE = new RetentionPolicy(0, 0, 0);
+
+  @Getter
+  private final long maxAgeMillis;
+  @Getter
+  private final long maxBytes;
+  @Getter
+  private final long bucketMillis;
+
+  public RetentionPolicy(long maxAgeMillis, long maxBytes, long bucketMillis) {
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxBytes = maxBytes;
+    this.bucketMillis = bucketMillis;
+  }
+
+  public boolean isBounded() {
+    return maxAgeMillis > 0 || maxBytes > 0;
+  }
+}
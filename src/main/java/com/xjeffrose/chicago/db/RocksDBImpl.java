@@ -1,6 +1,7 @@
 package com.xjeffrose.chicago.db;
 
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ZkClient;
 import com.xjeffrose.chicago.server.ChiConfig;
@@ -11,20 +12,35 @@ import io.netty.buffer.Unpooled;
 import io.netty.util.internal.PlatformDependent;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.ColumnFamilyOptions;
 import org.rocksdb.CompactionStyle;
 import org.rocksdb.Env;
+import org.rocksdb.FlushOptions;
 import org.rocksdb.HashLinkedListMemTableConfig;
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
 import org.rocksdb.Options;
 import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Snapshot;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import org.rocksdb.util.SizeUnit;
 import org.slf4j.Logger;
@@ -37,11 +53,48 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     RocksDB.loadLibrary();
   }
 
+  // Buckets are started and expired this often
+  static final long RETENTION_CHECK_MILLIS = 60000;
+
+  // Column family properties reported by the admin server, ones this RocksDB does not know are skipped
+  static final String[] COL_FAM_PROPERTIES = {
+      "rocksdb.estimate-num-keys",
+      "rocksdb.cur-size-all-mem-tables",
+      "rocksdb.num-immutable-mem-table",
+      "rocksdb.mem-table-flush-pending",
+      "rocksdb.num-running-flushes",
+      "rocksdb.estimate-pending-compaction-bytes",
+      "rocksdb.compaction-pending",
+      "rocksdb.num-running-compactions",
+      "rocksdb.estimate-live-data-size",
+      "rocksdb.total-sst-files-size",
+      "rocksdb.actual-delayed-write-rate",
+      "rocksdb.is-write-stopped",
+  };
+  // Properties of a time bucketed column family that are the sum over its buckets, the others are the newest bucket's
+  static final Set<String> SUMMED_PROPERTIES = new HashSet<>(Arrays.asList(
+      "rocksdb.estimate-num-keys",
+      "rocksdb.cur-size-all-mem-tables",
+      "rocksdb.estimate-pending-compaction-bytes",
+      "rocksdb.estimate-live-data-size",
+      "rocksdb.total-sst-files-size"));
+
   private final Options options = new Options();
   private final ReadOptions readOptions = new ReadOptions();
   private final WriteOptions writeOptions = new WriteOptions();
+  private final FlushOptions flushOptions = new FlushOptions().setWaitForFlush(true);
   private final Map<String, ColumnFamilyHandle> columnFamilies = PlatformDependent.newConcurrentHashMap();
   private final Map<String, AtomicLong> counter = PlatformDependent.newConcurrentHashMap();
+  // time series column families with a retention policy, by name, see TimeBuckets
+  private final Map<String, TimeBuckets> timeBuckets = PlatformDependent.newConcurrentHashMap();
+  private final TimeIndex timeIndex;
+  // created with the first time index entry; like the buckets it is not listed among the column families
+  private volatile ColumnFamilyHandle timeIndexHandle;
+  private final ScheduledExecutorService retention = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("chicago-retention-%d")
+          .setDaemon(true)
+          .build());
   private ChiConfig config;
   private ZkClient zkClient;
   private RocksDB db;
@@ -49,6 +102,7 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
 
   public RocksDBImpl(ChiConfig config) {
     this.config = config;
+    this.timeIndex = new TimeIndex(config == null ? TimeIndex.DEFAULT_INTERVAL_MILLIS : config.getTimeIndexInterval());
     configOptions();
     configReadOptions();
     configWriteOptions();
@@ -124,10 +178,7 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
   boolean deleteColumnFamily(byte[] _name) {
     final String name = new String(_name);
     try {
-      if (colFamilyExists(_name)) {
-        db.dropColumnFamily(columnFamilies.get(name));
-        columnFamilies.remove(name);
-      }
+      dropColumnFamily(name);
       return true;
     } catch (RocksDBException e) {
       log.error("Could not delete Column Family: " + name, e);
@@ -135,11 +186,55 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     }
   }
 
+  // Drops colFam, every bucket of a time bucketed one
+  private void dropColumnFamily(String name) throws RocksDBException {
+    TimeBuckets buckets = timeBuckets.remove(name);
+    ColumnFamilyHandle handle = columnFamilies.remove(name);
+    if (buckets != null) {
+      for (TimeBuckets.Bucket bucket : buckets.all()) {
+        buckets.remove(bucket);
+        db.dropColumnFamily(bucket.handle);
+        bucket.release();
+      }
+    } else if (handle != null) {
+      db.dropColumnFamily(handle);
+    }
+  }
+
   private synchronized boolean createColumnFamily(byte[] name, String data) {
     if (colFamilyExists(name)) {
       return true;
     }
 
+    try {
+      RetentionPolicy policy = config == null || !ChiUtil.TS.equals(data) || ChiUtil.isLocalColFam(new String(name))
+          ? RetentionPolicy.NONE
+          : config.getRetention(new String(name));
+      if (policy.isBounded()) {
+        TimeBuckets buckets = new TimeBuckets(policy);
+        buckets.add(newBucket(new String(name), 0, System.currentTimeMillis()));
+        timeBuckets.put(new String(name), buckets);
+        columnFamilies.put(new String(name), buckets.newest().handle);
+      } else {
+        columnFamilies.put(new String(name), db.createColumnFamily(descriptor(name)));
+      }
+      counter.put(new String(name), new AtomicLong(0));
+      if (zkClient != null && !ChiUtil.isLocalColFam(new String(name))) {
+        zkClient.createIfNotExist(ChicagoServer.NODE_LOCK_PATH + "/" + new String(name), data);
+      }
+      return true;
+    } catch (RocksDBException e) {
+      log.error("Could not create Column Family: " + new String(name), e);
+      return false;
+    }
+  }
+
+  private TimeBuckets.Bucket newBucket(String colFam, long firstOffset, long nowMillis) throws RocksDBException {
+    byte[] name = TimeBuckets.name(colFam, firstOffset);
+    return new TimeBuckets.Bucket(firstOffset, nowMillis, name, db.createColumnFamily(descriptor(name)));
+  }
+
+  private ColumnFamilyDescriptor descriptor(byte[] name) {
     ColumnFamilyOptions columnFamilyOptions = new ColumnFamilyOptions();
     if (config == null) {
       columnFamilyOptions
@@ -156,19 +251,256 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
               .setBucketCount(100000));
     }
 
-    ColumnFamilyDescriptor columnFamilyDescriptor = new ColumnFamilyDescriptor(name, columnFamilyOptions);
+    return new ColumnFamilyDescriptor(name, columnFamilyOptions);
+  }
 
-    try {
-      columnFamilies.put(new String(name), db.createColumnFamily(columnFamilyDescriptor));
-      counter.put(new String(name), new AtomicLong(0));
-      if (zkClient != null) {
-        zkClient.createIfNotExist(ChicagoServer.NODE_LOCK_PATH + "/" + new String(name), data);
+  private static final class Offset {
+    final byte[] key;
+    final ColumnFamilyHandle handle;
+
+    Offset(byte[] key, ColumnFamilyHandle handle) {
+      this.key = key;
+      this.handle = handle;
+    }
+  }
+
+  // The buckets an operation uses the handles of, released when it is done, see TimeBuckets
+  private final class Pins implements AutoCloseable {
+    private final List<TimeBuckets.Bucket> pinned = new ArrayList<>(1);
+
+    // the bucket key goes in, retaken if it is dropped in between
+    private ColumnFamilyHandle pin(TimeBuckets buckets, byte[] key) throws RocksDBException {
+      while (true) {
+        if (buckets.isEmpty()) {
+          throw new RocksDBException("The column family was dropped");
+        }
+        TimeBuckets.Bucket bucket = buckets.forKey(key);
+        if (bucket.retain()) {
+          pinned.add(bucket);
+          return bucket.handle;
+        }
       }
-      return true;
-    } catch (RocksDBException e) {
-      log.error("Could not create Column Family: " + new String(name), e);
+    }
+
+    // The column family key of colFam is stored in, the bucket it falls in for a time bucketed one
+    ColumnFamilyHandle handle(byte[] colFam, byte[] key) throws RocksDBException {
+      TimeBuckets buckets = timeBuckets.get(new String(colFam));
+      return buckets == null ? columnFamilies.get(new String(colFam)) : pin(buckets, key);
+    }
+
+    // The column families holding the keys of colFam from `from` on, in key order
+    List<ColumnFamilyHandle> handles(byte[] colFam, byte[] from) {
+      TimeBuckets buckets = timeBuckets.get(new String(colFam));
+      List<ColumnFamilyHandle> handles = new ArrayList<>();
+      if (buckets != null) {
+        for (TimeBuckets.Bucket bucket : buckets.from(from)) {
+          // one that is dropped meanwhile has nothing to read anymore
+          if (bucket.retain()) {
+            pinned.add(bucket);
+            handles.add(bucket.handle);
+          }
+        }
+      } else if (columnFamilies.containsKey(new String(colFam))) {
+        handles.add(columnFamilies.get(new String(colFam)));
+      }
+      return handles;
+    }
+
+    // Takes the next offset of time series colFam, with the column family the record goes in
+    Offset nextOffset(String colFam) throws RocksDBException {
+      TimeBuckets buckets = timeBuckets.get(colFam);
+      if (buckets == null) {
+        return new Offset(takeOffset(colFam), columnFamilies.get(colFam));
+      }
+      synchronized (buckets) {
+        byte[] key = takeOffset(colFam);
+        return new Offset(key, pin(buckets, key));
+      }
+    }
+
+    // Moves the sequence of time series colFam past a record written at its own offset and returns the
+    // column family the record goes in
+    ColumnFamilyHandle placeOffset(String colFam, byte[] key) throws RocksDBException {
+      TimeBuckets buckets = timeBuckets.get(colFam);
+      if (buckets == null) {
+        advance(colFam, key);
+        return columnFamilies.get(colFam);
+      }
+      synchronized (buckets) {
+        advance(colFam, key);
+        return pin(buckets, key);
+      }
+    }
+
+    @Override
+    public void close() {
+      pinned.forEach(TimeBuckets.Bucket::release);
+      pinned.clear();
+    }
+  }
+
+  private byte[] takeOffset(String colFam) {
+    AtomicLong next = counter.get(colFam);
+    byte[] ts = Longs.toByteArray(next.getAndIncrement());
+    resetIfOverflow(next, colFam);
+    return ts;
+  }
+
+  private void advance(String colFam, byte[] key) {
+    AtomicLong next = counter.get(colFam);
+    if (key.length == Longs.BYTES && Longs.fromByteArray(key) >= next.get()) {
+      next.set(Longs.fromByteArray(key) + 1);
+      resetIfOverflow(next, colFam);
+    }
+  }
+
+  private ColumnFamilyHandle timeIndexHandle() throws RocksDBException {
+    if (timeIndexHandle == null) {
+      synchronized (timeIndex) {
+        if (timeIndexHandle == null) {
+          timeIndexHandle = db.createColumnFamily(descriptor(TimeIndex.COL_FAM));
+        }
+      }
+    }
+    return timeIndexHandle;
+  }
+
+  // The time index entry to write with record offset of time series colFam, null if there is none
+  private DBRecord timeIndexEntry(byte[] colFam, byte[] offset) {
+    if (offset.length != Longs.BYTES) {
+      return null;
+    }
+    return timeIndex.record(colFam, Longs.fromByteArray(offset), System.currentTimeMillis());
+  }
+
+  private void indexTime(byte[] colFam, byte[] offset) throws RocksDBException {
+    DBRecord entry = timeIndexEntry(colFam, offset);
+    if (entry != null) {
+      db.put(timeIndexHandle(), writeOptions, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void indexTime(WriteBatch batch, byte[] colFam, byte[] offset) throws RocksDBException {
+    DBRecord entry = timeIndexEntry(colFam, offset);
+    if (entry != null) {
+      batch.put(timeIndexHandle(), entry.getKey(), entry.getValue());
+    }
+  }
+
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    if (bytes.length < prefix.length) {
       return false;
     }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public byte[] nextOffset(byte[] colFam) {
+    AtomicLong next = counter.get(new String(colFam));
+    return next == null ? null : Longs.toByteArray(next.get());
+  }
+
+  @Override
+  public byte[] seekTime(byte[] colFam, long millis) {
+    if (!colFamilyExists(colFam)) {
+      return null;
+    }
+    if (timeIndexHandle != null) {
+      byte[] prefix = TimeIndex.prefix(colFam);
+      try (RocksIterator i = db.newIterator(timeIndexHandle, readOptions)) {
+        i.seek(timeIndex.seekKey(colFam, millis));
+        if (i.isValid() && startsWith(i.key(), prefix) && i.key().length == prefix.length + Longs.BYTES) {
+          return i.value();
+        }
+      }
+    }
+    // nothing written since, the next record is the first
+    AtomicLong next = counter.get(new String(colFam));
+    return Longs.toByteArray(next == null ? 0 : next.get());
+  }
+
+  /**
+   * Removes the time index entries of {@code colFam} that only lead to offsets below
+   * {@code firstOffset}, all of them if it is negative.
+   */
+  private void pruneTimeIndex(byte[] colFam, long firstOffset) throws RocksDBException {
+    ColumnFamilyHandle handle = timeIndexHandle;
+    if (handle == null) {
+      return;
+    }
+    byte[] prefix = TimeIndex.prefix(colFam);
+    try (WriteBatch batch = new WriteBatch(); RocksIterator i = db.newIterator(handle, readOptions)) {
+      byte[] previous = null;
+      for (i.seek(prefix); i.isValid() && startsWith(i.key(), prefix); i.next()) {
+        if (firstOffset >= 0 && Longs.fromByteArray(i.value()) > firstOffset) {
+          // the entry before still leads to the first records kept
+          break;
+        }
+        if (previous != null) {
+          batch.remove(handle, previous);
+        }
+        previous = i.key();
+      }
+      if (firstOffset < 0 && previous != null) {
+        batch.remove(handle, previous);
+      }
+      db.write(writeOptions, batch);
+    }
+  }
+
+  /**
+   * Starts a bucket for every time bucketed column family whose newest one is due, and drops the
+   * buckets past their retention.
+   */
+  void enforceRetention(long nowMillis) {
+    for (Map.Entry<String, TimeBuckets> entry : timeBuckets.entrySet()) {
+      String colFam = entry.getKey();
+      TimeBuckets buckets = entry.getValue();
+      try {
+        synchronized (buckets) {
+          long next = counter.get(colFam).get();
+          if (buckets.isDue(nowMillis, next) && timeBuckets.get(colFam) == buckets) {
+            buckets.add(newBucket(colFam, next, nowMillis));
+            columnFamilies.put(colFam, buckets.newest().handle);
+          }
+        }
+        for (TimeBuckets.Bucket bucket : buckets.expired(nowMillis, this::size)) {
+          buckets.remove(bucket);
+          db.dropColumnFamily(bucket.handle);
+          // closed once no operation uses it anymore
+          bucket.release();
+          log.info("Dropped " + new String(bucket.name) + ", past the retention of " + colFam + ": " + buckets.getPolicy());
+          pruneTimeIndex(colFam.getBytes(), buckets.all().get(0).firstOffset);
+        }
+      } catch (Exception e) {
+        log.error("Could not enforce the retention of " + colFam, e);
+      }
+    }
+  }
+
+  // bytes a bucket takes on disk and in memory
+  private long size(TimeBuckets.Bucket bucket) {
+    long size = 0;
+    if (!bucket.retain()) {
+      return size;
+    }
+    try {
+      for (String property : new String[] {"rocksdb.total-sst-files-size", "rocksdb.cur-size-all-mem-tables"}) {
+        try {
+          size += Long.parseLong(db.getProperty(bucket.handle, property).trim());
+        } catch (RocksDBException | NumberFormatException e) {
+          // not supported by this version
+        }
+      }
+    } finally {
+      bucket.release();
+    }
+    return size;
   }
 
   @Override
@@ -184,8 +516,8 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
         createColumnFamily(colFam, ChiUtil.KV);
       }
     }
-    try {
-      db.put(columnFamilies.get(new String(colFam)), writeOptions, key, value);
+    try (Pins pins = new Pins()) {
+      db.put(pins.handle(colFam, key), writeOptions, key, value);
       return true;
     } catch (RocksDBException e) {
       log.error("Error writing record: " + new String(key), e);
@@ -199,8 +531,8 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
       log.error("Tried to read a null key");
       return null;
     } else {
-      try {
-        return db.get(columnFamilies.get(new String(colFam)), readOptions, key);
+      try (Pins pins = new Pins()) {
+        return db.get(pins.handle(colFam, key), readOptions, key);
       } catch (RocksDBException e) {
         log.error("Error getting record: " + new String(key), e);
         return null;
@@ -208,6 +540,202 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     }
   }
 
+  @Override
+  public List<byte[]> multiRead(byte[] colFam, List<byte[]> keys) {
+    List<byte[]> values = new ArrayList<>(keys.size());
+    if (!colFamilyExists(colFam)) {
+      for (int i = 0; i < keys.size(); i++) {
+        values.add(null);
+      }
+      return values;
+    }
+
+    List<ColumnFamilyHandle> handles = new ArrayList<>(keys.size());
+    try (Pins pins = new Pins()) {
+      for (byte[] key : keys) {
+        handles.add(pins.handle(colFam, key));
+      }
+      // keyed by the very arrays we passed in, so identity lookups line the values back up
+      Map<byte[], byte[]> found = db.multiGet(readOptions, handles, keys);
+      for (byte[] key : keys) {
+        values.add(found.get(key));
+      }
+      return values;
+    } catch (RocksDBException e) {
+      log.error("Error getting " + keys.size() + " records from " + new String(colFam), e);
+      return null;
+    }
+  }
+
+  @Override
+  public boolean multiWrite(byte[] colFam, List<DBRecord> records) {
+    for (DBRecord record : records) {
+      if (record.getKey() == null || record.getValue() == null) {
+        log.error("Tried to write a null key or value in a batch of " + records.size());
+        return false;
+      }
+    }
+    if (!colFamilyExists(colFam)) {
+      synchronized (columnFamilies) {
+        createColumnFamily(colFam, ChiUtil.KV);
+      }
+    }
+
+    try (Pins pins = new Pins(); WriteBatch batch = new WriteBatch()) {
+      for (DBRecord record : records) {
+        batch.put(pins.handle(colFam, record.getKey()), record.getKey(), record.getValue());
+      }
+      db.write(writeOptions, batch);
+      return true;
+    } catch (RocksDBException e) {
+      log.error("Error writing " + records.size() + " records to " + new String(colFam), e);
+      return false;
+    }
+  }
+
+  // keyMayExist may say yes for a key that is not there, a stamped write it turns away is lost
+  private boolean exists(ColumnFamilyHandle handle, byte[] key) throws RocksDBException {
+    return db.keyMayExist(readOptions, handle, key, new StringBuffer()) && db.get(handle, readOptions, key) != null;
+  }
+
+  /**
+   * Puts the whole group into one WriteBatch and commits it with a single write, time series keys are
+   * assigned as the batch is built. Writes are told their outcome once the commit is done. If it fails,
+   * every write in the group fails and the offsets taken for it are given back, unless other writers
+   * took offsets after them meanwhile.
+   */
+  @Override
+  public void groupWrite(List<GroupWrite> writes) {
+    // time series keys already in this batch, exists only sees what is committed
+    Set<String> tsKeys = new HashSet<>();
+    // the writes in the batch and the keys they get
+    List<GroupWrite> batched = new ArrayList<>(writes.size());
+    List<byte[]> keys = new ArrayList<>(writes.size());
+    // per column family, the last run of offsets taken in a row: first and one past the last
+    Map<String, long[]> taken = new HashMap<>();
+    try (Pins pins = new Pins(); WriteBatch batch = new WriteBatch()) {
+      for (GroupWrite write : writes) {
+        byte[] colFam = write.getColFam();
+        if (!isWritable(write)) {
+          log.error("Tried to write a null key or value in a group of " + writes.size());
+          write.failed();
+          continue;
+        }
+        if (!colFamilyExists(colFam)) {
+          synchronized (columnFamilies) {
+            createColumnFamily(colFam, write.isTimeSeries() ? ChiUtil.TS : ChiUtil.KV);
+          }
+        }
+
+        byte[] key = write.getKey();
+        if (!write.isTimeSeries()) {
+          batch.put(pins.handle(colFam, key), key, write.getValue());
+        } else if (key == null) {
+          Offset ts = pins.nextOffset(new String(colFam));
+          long offset = Longs.fromByteArray(ts.key);
+          long[] run = taken.computeIfAbsent(new String(colFam), k -> new long[] {offset, offset});
+          if (run[1] != offset) {
+            // another writer took the ones in between, only what follows can go back
+            run[0] = offset;
+          }
+          run[1] = offset + 1;
+          batch.put(ts.handle, ts.key, write.getValue());
+          indexTime(batch, colFam, ts.key);
+          key = ts.key;
+        } else {
+          //Insert Key/Value only if it does not exists.
+          if (tsKeys.add(new String(colFam) + "/" + Longs.fromByteArray(key))
+              && !exists(pins.handle(colFam, key), key)) {
+            batch.put(pins.placeOffset(new String(colFam), key), key, write.getValue());
+            indexTime(batch, colFam, key);
+          }
+        }
+        batched.add(write);
+        keys.add(key);
+      }
+      db.write(writeOptions, batch);
+    } catch (RocksDBException e) {
+      log.error("Error writing a group of " + writes.size() + " records", e);
+      taken.forEach(this::giveBack);
+      for (GroupWrite write : writes) {
+        if (isWritable(write)) {
+          write.failed();
+        }
+      }
+      return;
+    }
+    for (int i = 0; i < batched.size(); i++) {
+      batched.get(i).succeeded(keys.get(i));
+    }
+  }
+
+  private static boolean isWritable(GroupWrite write) {
+    return write.getValue() != null && (write.getKey() != null || write.isTimeSeries());
+  }
+
+  // Puts the offsets run[0] up to run[1] of colFam back, if they are still the last ones taken
+  private void giveBack(String colFam, long[] run) {
+    AtomicLong next = counter.get(colFam);
+    if (next != null) {
+      next.compareAndSet(run[1], run[0]);
+    }
+  }
+
+  /**
+   * Iterates a snapshot, writes made during the scan are not seen. Blocks read are not cached, a full
+   * scan would only push the working set out.
+   */
+  @Override
+  public void scan(byte[] colFam, byte[] from, RecordVisitor visitor) {
+    if (!colFamilyExists(colFam)) {
+      return;
+    }
+    Snapshot snapshot = db.getSnapshot();
+    try (Pins pins = new Pins(); ReadOptions scanOptions = new ReadOptions().setSnapshot(snapshot).setFillCache(false)) {
+      boolean first = true;
+      for (ColumnFamilyHandle handle : pins.handles(colFam, from)) {
+        try (RocksIterator i = db.newIterator(handle, scanOptions)) {
+          for (i.seek(first ? from : new byte[0]); i.isValid(); i.next()) {
+            visitor.visit(i.key(), i.value());
+          }
+        }
+        first = false;
+      }
+    } finally {
+      db.releaseSnapshot(snapshot);
+    }
+  }
+
+  @Override
+  public boolean bulkLoad(byte[] colFam, boolean timeSeries, List<DBRecord> records) {
+    for (DBRecord record : records) {
+      if (record.getKey() == null || record.getValue() == null) {
+        log.error("Tried to load a null key or value in a batch of " + records.size());
+        return false;
+      }
+    }
+    if (!colFamilyExists(colFam)) {
+      synchronized (columnFamilies) {
+        createColumnFamily(colFam, timeSeries ? ChiUtil.TS : ChiUtil.KV);
+      }
+    }
+
+    try (Pins pins = new Pins(); WriteBatch batch = new WriteBatch()) {
+      for (DBRecord record : records) {
+        // the loaded records' offsets are taken, new records go after them
+        ColumnFamilyHandle handle = timeSeries
+            ? pins.placeOffset(new String(colFam), record.getKey())
+            : pins.handle(colFam, record.getKey());
+        batch.put(handle, record.getKey(), record.getValue());
+      }
+      db.write(writeOptions, batch);
+      return true;
+    } catch (RocksDBException e) {
+      log.error("Error loading " + records.size() + " records into " + new String(colFam), e);
+      return false;
+    }
+  }
+
   public void resetIfOverflow(AtomicLong l, String colFam) {
     if (l.get() < 0 || l.get() == Long.MIN_VALUE) {
       l.set(0);
@@ -218,9 +746,10 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     try {
       if (colFamilyExists(colFam)) {
         log.info("Deleting the column Family :" + new String(colFam));
-        ColumnFamilyHandle ch = columnFamilies.remove(new String(colFam));
-        db.dropColumnFamily(ch);
+        dropColumnFamily(new String(colFam));
         counter.remove(new String(colFam));
+        timeIndex.forget(colFam);
+        pruneTimeIndex(colFam, -1);
         if(zkClient!= null) {
           zkClient.delete(ChicagoServer.NODE_LOCK_PATH + "/" + new String(colFam));
         }
@@ -238,8 +767,8 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
       log.error("Tried to delete a null key");
       return false;
     } else {
-      try {
-        db.remove(columnFamilies.get(new String(colFam)), key);
+      try (Pins pins = new Pins()) {
+        db.remove(pins.handle(colFam, key), key);
         return true;
       } catch (RocksDBException e) {
         log.error("Error deleting record: " + new String(key), e);
@@ -263,6 +792,7 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
   }
 
   public void destroy() {
+    retention.shutdownNow();
     db.close();
   }
 
@@ -276,18 +806,16 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     } else if (!colFamilyExists(colFam)) {
       createColumnFamily(colFam, ChiUtil.TS);
     }
-    try {
+    try (Pins pins = new Pins()) {
       //Insert Key/Value only if it does not exists.
-      if (!db.keyMayExist(readOptions, columnFamilies.get(new String(colFam)), key, new StringBuffer())) {
-        //Set the AtomicInteger for the colFam if the key is bigger than the already set value.
-        if (Longs.fromByteArray(key) > counter.get(new String(colFam)).get()) {
-          counter.get(new String(colFam)).set(Longs.fromByteArray(key) + 1);
-          resetIfOverflow(counter.get(new String(colFam)), new String(colFam));
-        }
+      if (!exists(pins.handle(colFam, key), key)) {
+        //Move the colFam's sequence past the key, and find the bucket it goes in.
+        ColumnFamilyHandle handle = pins.placeOffset(new String(colFam), key);
         if (Longs.fromByteArray(key) % 1000 == 0) {
           log.info("colFam/key reached : " + new String(colFam) + " " + Longs.fromByteArray(key));
         }
-        db.put(columnFamilies.get(new String(colFam)), writeOptions, key, value);
+        db.put(handle, writeOptions, key, value);
+        indexTime(colFam, key);
       }
       return key;
     } catch (RocksDBException e) {
@@ -304,15 +832,15 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     } else if (!colFamilyExists(colFam)) {
       createColumnFamily(colFam, ChiUtil.TS);
     }
-    try {
-      byte[] ts = Longs.toByteArray(counter.get(new String(colFam)).getAndIncrement());
-      if (Longs.fromByteArray(ts) % 1000 == 0) {
-        log.info("key reached " + Longs.fromByteArray(ts) + " for colFam " + new String(colFam));
+    try (Pins pins = new Pins()) {
+      Offset ts = pins.nextOffset(new String(colFam));
+      if (Longs.fromByteArray(ts.key) % 1000 == 0) {
+        log.info("key reached " + Longs.fromByteArray(ts.key) + " for colFam " + new String(colFam));
       }
-      resetIfOverflow(counter.get(new String(colFam)), new String(colFam));
-      db.put(columnFamilies.get(new String(colFam)), writeOptions, ts, value);
+      db.put(ts.handle, writeOptions, ts.key, value);
+      indexTime(colFam, ts.key);
 
-      return ts;
+      return ts.key;
     } catch (RocksDBException e) {
       log.error("Error writing record: " + new String(colFam), e);
       return null;
@@ -331,13 +859,14 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     String[] values = new String(value).split(ChiUtil.delimiter);
     byte[] ts = new byte[0];
     for (String val : values) {
-      ts = Longs.toByteArray(counter.get(new String(colFam)).getAndIncrement());
-      if (Longs.fromByteArray(ts) % 1000 == 0) {
-        log.info("key reached " + Longs.fromByteArray(ts) + " for colFam " + new String(colFam));
-      }
-      resetIfOverflow(counter.get(new String(colFam)), new String(colFam));
-      try {
-        db.put(columnFamilies.get(new String(colFam)), writeOptions, ts, val.getBytes());
+      try (Pins pins = new Pins()) {
+        Offset offset = pins.nextOffset(new String(colFam));
+        ts = offset.key;
+        if (Longs.fromByteArray(ts) % 1000 == 0) {
+          log.info("key reached " + Longs.fromByteArray(ts) + " for colFam " + new String(colFam));
+        }
+        db.put(offset.handle, writeOptions, ts, val.getBytes());
+        indexTime(colFam, ts);
       } catch (RocksDBException e) {
         log.error("Error writing record: " + new String(colFam), e);
         return null;
@@ -356,27 +885,38 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
     List<DBRecord> values = new ArrayList<>();
     log.info("Requesting stream");
     if (colFamilyExists(colFam)) {
-      try (RocksIterator i = db.newIterator(columnFamilies.get(new String(colFam)), readOptions)) {
-        ByteBuf bb = Unpooled.buffer();
+      try (Pins pins = new Pins()) {
+        List<ColumnFamilyHandle> handles = pins.handles(colFam, offset);
         byte[] lastOffset = Longs.toByteArray(0l);
-
+        int first = 0;
         if (offset.length == 0) {
-          i.seekToLast();
+          // the newest record, in the newest bucket that has one
+          first = Math.max(handles.size() - 1, 0);
+          while (first > 0 && isEmpty(handles.get(first))) {
+            first--;
+          }
         } else {
           lastOffset = offset;
-          i.seek(offset);
         }
         int size = 0;
-        while (i.isValid() && size < ChiUtil.MaxBufferSize) {
-          values.add(new DBRecord(colFam,i.key(),i.value()));
-          lastOffset = i.key();
-          size += colFam.length + i.key().length + i.value().length;
-          i.next();
-        }
-
-        if(values.isEmpty()){
-          i.seekToLast();
-          values.add(new DBRecord(colFam,i.key(),i.value()));
+        for (int h = first; h < handles.size() && size < ChiUtil.MaxBufferSize; h++) {
+          try (RocksIterator i = db.newIterator(handles.get(h), readOptions)) {
+            if (h != first) {
+              i.seekToFirst();
+            } else if (offset.length == 0) {
+              i.seekToLast();
+            } else {
+              i.seek(offset);
+            }
+            while (i.isValid() && size < ChiUtil.MaxBufferSize) {
+              byte[] key = i.key();
+              byte[] value = i.value();
+              values.add(new DBRecord(colFam, key, value));
+              lastOffset = key;
+              size += colFam.length + key.length + value.length;
+              i.next();
+            }
+          }
         }
 
         log.info("Stream response from DB : " + (System.currentTimeMillis() - startTime) + "ms with last offset as " + Longs.fromByteArray(lastOffset));
@@ -392,19 +932,149 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
   }
 
   public List<byte[]> getKeys(byte[] colFam, byte[] offset) {
-    try (RocksIterator i = db.newIterator(columnFamilies.get(new String(colFam)), readOptions)) {
-      List<byte[]> keySet = new ArrayList();
-      if (offset.length == 0) {
-        i.seekToFirst();
-      } else {
-        i.seek(offset);
+    return getKeys(colFam, offset, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public List<byte[]> getKeys(byte[] colFam, byte[] offset, int limit) {
+    if (!colFamilyExists(colFam)) {
+      return new ArrayList<>();
+    }
+    List<byte[]> keySet = new ArrayList();
+    boolean first = true;
+    try (Pins pins = new Pins()) {
+      for (ColumnFamilyHandle handle : pins.handles(colFam, offset)) {
+        try (RocksIterator i = db.newIterator(handle, readOptions)) {
+          if (offset.length == 0 || !first) {
+            i.seekToFirst();
+          } else {
+            i.seek(offset);
+          }
+
+          while (i.isValid() && keySet.size() < limit) {
+            keySet.add(i.key());
+            i.next();
+          }
+        }
+        first = false;
       }
+    }
+    return keySet;
+  }
 
-      while (i.isValid()) {
-        keySet.add(i.key());
-        i.next();
+  private boolean isEmpty(ColumnFamilyHandle handle) {
+    try (RocksIterator i = db.newIterator(handle, readOptions)) {
+      i.seekToFirst();
+      return !i.isValid();
+    }
+  }
+
+  /**
+   * Every ticker and histogram of the RocksDB statistics, tickers as counts and histograms as
+   * {@code <name>.p50 / .p95 / .p99 / .avg}, plus the block cache hit rate.
+   */
+  @Override
+  public Map<String, Number> getStatistics() {
+    Map<String, Number> stats = new LinkedHashMap<>();
+    Statistics statistics = options.statisticsPtr();
+    if (db == null || statistics == null) {
+      return stats;
+    }
+    for (TickerType ticker : TickerType.values()) {
+      stats.put(ticker.name().toLowerCase(), statistics.getTickerCount(ticker));
+    }
+    for (HistogramType histogram : HistogramType.values()) {
+      HistogramData data = statistics.getHistogramData(histogram);
+      String name = histogram.name().toLowerCase();
+      stats.put(name + ".p50", data.getMedian());
+      stats.put(name + ".p95", data.getPercentile95());
+      stats.put(name + ".p99", data.getPercentile99());
+      stats.put(name + ".avg", data.getAverage());
+    }
+    long hits = statistics.getTickerCount(TickerType.BLOCK_CACHE_HIT);
+    long misses = statistics.getTickerCount(TickerType.BLOCK_CACHE_MISS);
+    stats.put("block_cache_hit_rate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+    return stats;
+  }
+
+  /**
+   * For a time bucketed column family the sizes are summed over its buckets, the other properties are
+   * the newest bucket's, and chicago.buckets / chicago.oldest-offset tell how many buckets it has and
+   * where the oldest starts.
+   */
+  @Override
+  public Map<String, String> getColFamProperties(byte[] colFam) {
+    ColumnFamilyHandle handle = columnFamilies.get(new String(colFam));
+    if (handle == null) {
+      return null;
+    }
+    TimeBuckets buckets = timeBuckets.get(new String(colFam));
+    if (buckets == null) {
+      return properties(handle);
+    }
+    List<TimeBuckets.Bucket> all = buckets.all();
+    Map<String, String> properties;
+    try (Pins pins = new Pins()) {
+      List<ColumnFamilyHandle> handles = pins.handles(colFam, new byte[0]);
+      properties = properties(handles.get(handles.size() - 1));
+      for (ColumnFamilyHandle bucket : handles.subList(0, handles.size() - 1)) {
+        for (Map.Entry<String, String> property : properties(bucket).entrySet()) {
+          if (SUMMED_PROPERTIES.contains(property.getKey()) && properties.containsKey(property.getKey())) {
+            properties.put(property.getKey(), Long.toString(
+                Long.parseLong(properties.get(property.getKey())) + Long.parseLong(property.getValue())));
+          }
+        }
       }
-      return keySet;
+    }
+    properties.put("chicago.buckets", Integer.toString(all.size()));
+    properties.put("chicago.oldest-offset", Long.toString(all.get(0).firstOffset));
+    return properties;
+  }
+
+  private Map<String, String> properties(ColumnFamilyHandle handle) {
+    Map<String, String> properties = new LinkedHashMap<>();
+    for (String property : COL_FAM_PROPERTIES) {
+      try {
+        String value = db.getProperty(handle, property);
+        if (value != null) {
+          properties.put(property, value.trim());
+        }
+      } catch (RocksDBException e) {
+        // not supported by this version
+      }
+    }
+    return properties;
+  }
+
+  @Override
+  public boolean compact(byte[] colFam) {
+    if (!colFamilyExists(colFam)) {
+      return false;
+    }
+    try (Pins pins = new Pins()) {
+      for (ColumnFamilyHandle handle : pins.handles(colFam, new byte[0])) {
+        db.compactRange(handle);
+      }
+      return true;
+    } catch (RocksDBException e) {
+      log.error("Could not compact Column Family: " + new String(colFam), e);
+      return false;
+    }
+  }
+
+  @Override
+  public boolean flush(byte[] colFam) {
+    if (!colFamilyExists(colFam)) {
+      return false;
+    }
+    try (Pins pins = new Pins()) {
+      for (ColumnFamilyHandle handle : pins.handles(colFam, new byte[0])) {
+        db.flush(flushOptions, handle);
+      }
+      return true;
+    } catch (RocksDBException e) {
+      log.error("Could not flush Column Family: " + new String(colFam), e);
+      return false;
     }
   }
 
@@ -417,6 +1087,8 @@ public class RocksDBImpl implements AutoCloseable, StorageProvider {
   public void open() {
     try {
       this.db = RocksDB.open(options, config.getDbPath());
+      retention.scheduleWithFixedDelay(() -> enforceRetention(System.currentTimeMillis()),
+          RETENTION_CHECK_MILLIS, RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
     } catch (RocksDBException e) {
       log.error("Unable to open RocksDB ", e);
     }
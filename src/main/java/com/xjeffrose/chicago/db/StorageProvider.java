@@ -1,9 +1,21 @@
 package com.xjeffrose.chicago.db;
 
+import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ZkClient;
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public interface StorageProvider extends AutoCloseable {
+  // keys read at a time by the default scan
+  int SCAN_PAGE_SIZE = 1000;
+
+  interface RecordVisitor {
+    void visit(byte[] key, byte[] val);
+  }
 
   boolean write(byte[] colFam, byte[] key, byte[] val);
 
@@ -21,6 +33,49 @@ public interface StorageProvider extends AutoCloseable {
 
   byte[] tsWrite(byte[] colFam, byte[] key, byte[] val);
 
+  /**
+   * Writes a value that still lives in a network buffer. The buffer is only valid for the duration of
+   * the call; implementations that can hand it to their store directly should override this.
+   */
+  default boolean write(byte[] colFam, byte[] key, ByteBuf val) {
+    return write(colFam, key, ChiUtil.toBytes(val));
+  }
+
+  /**
+   * ByteBuf variant of {@link #tsWrite(byte[], byte[], byte[])}, a null key assigns the next offset.
+   */
+  default byte[] tsWrite(byte[] colFam, byte[] key, ByteBuf val) {
+    if (key == null) {
+      return tsWrite(colFam, ChiUtil.toBytes(val));
+    }
+    return tsWrite(colFam, key, ChiUtil.toBytes(val));
+  }
+
+  /**
+   * Reads several keys of one column family in one call. The result lines up with {@code keys}, a
+   * missing key reads as null.
+   */
+  default List<byte[]> multiRead(byte[] colFam, List<byte[]> keys) {
+    List<byte[]> values = new ArrayList<>(keys.size());
+    for (byte[] key : keys) {
+      values.add(read(colFam, key));
+    }
+    return values;
+  }
+
+  /**
+   * Writes several records to one column family. Implementations that can should apply them
+   * atomically, this default writes them one by one and stops at the first failure.
+   */
+  default boolean multiWrite(byte[] colFam, List<DBRecord> records) {
+    for (DBRecord record : records) {
+      if (!write(colFam, record.getKey(), record.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   void close();
 
   void open();
@@ -29,6 +84,138 @@ public interface StorageProvider extends AutoCloseable {
 
   List<byte[]> getKeys(byte[] colFam, byte[] offset);
 
+  /**
+   * Applies a group of writes and records each one's outcome on it. Implementations that can should
+   * commit the whole group at once, this default applies them one by one.
+   */
+  default void groupWrite(List<GroupWrite> writes) {
+    for (GroupWrite write : writes) {
+      if (write.isTimeSeries()) {
+        byte[] key = write.getKey() == null
+            ? tsWrite(write.getColFam(), write.getValue())
+            : tsWrite(write.getColFam(), write.getKey(), write.getValue());
+        if (key == null) {
+          write.failed();
+        } else {
+          write.succeeded(key);
+        }
+      } else if (write(write.getColFam(), write.getKey(), write.getValue())) {
+        write.succeeded(write.getKey());
+      } else {
+        write.failed();
+      }
+    }
+  }
+
+  /**
+   * At most {@code limit} keys of {@code colFam}, starting at {@code offset} (inclusive).
+   */
+  default List<byte[]> getKeys(byte[] colFam, byte[] offset, int limit) {
+    List<byte[]> keys = getKeys(colFam, offset);
+    if (keys == null || keys.size() <= limit) {
+      return keys;
+    }
+    return new ArrayList<>(keys.subList(0, limit));
+  }
+
+  /**
+   * Visits every record of {@code colFam} in key order.
+   */
+  default void scan(byte[] colFam, RecordVisitor visitor) {
+    scan(colFam, new byte[0], visitor);
+  }
+
+  /**
+   * Visits the records of {@code colFam} from key {@code from} (inclusive) on, in key order.
+   * Implementations that can should read from a snapshot, this default pages through the keys and
+   * sees writes made during the scan.
+   */
+  default void scan(byte[] colFam, byte[] from, RecordVisitor visitor) {
+    byte[] offset = from;
+    while (true) {
+      List<byte[]> keys = getKeys(colFam, offset, SCAN_PAGE_SIZE);
+      if (keys == null || keys.isEmpty()) {
+        return;
+      }
+      List<byte[]> vals = multiRead(colFam, keys);
+      for (int i = 0; i < keys.size(); i++) {
+        if (vals.get(i) != null) {
+          visitor.visit(keys.get(i), vals.get(i));
+        }
+      }
+      if (keys.size() < SCAN_PAGE_SIZE) {
+        return;
+      }
+      byte[] last = keys.get(keys.size() - 1);
+      // the smallest key after the last one
+      offset = Arrays.copyOf(last, last.length + 1);
+    }
+  }
+
+  /**
+   * Loads records copied from another node, e.g. while rebalancing. Time series column families keep
+   * the keys as they are and continue their sequence after the largest. Implementations that can
+   * should commit the records as one batch.
+   */
+  default boolean bulkLoad(byte[] colFam, boolean timeSeries, List<DBRecord> records) {
+    if (!timeSeries) {
+      return multiWrite(colFam, records);
+    }
+    for (DBRecord record : records) {
+      if (tsWrite(colFam, record.getKey(), record.getValue()) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   List<String> getColFams();
 
+  /**
+   * The first offset of time series {@code colFam} written at or after {@code millis}, the offset the
+   * next record will take if none was. Null if the column family does not exist or it is not
+   * supported.
+   */
+  default byte[] seekTime(byte[] colFam, long millis) {
+    return null;
+  }
+
+  /**
+   * The offset the next record of time series {@code colFam} takes, one past the newest, without
+   * reading any. Null if the column family does not exist or it is not supported.
+   */
+  default byte[] nextOffset(byte[] colFam) {
+    return null;
+  }
+
+  /**
+   * Counters and latency distributions kept by the storage engine, by name. Empty if it keeps none.
+   */
+  default Map<String, Number> getStatistics() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Engine properties of one column family (estimated keys, memtable size, pending compaction...),
+   * null if the column family does not exist.
+   */
+  default Map<String, String> getColFamProperties(byte[] colFam) {
+    return getColFams().contains(new String(colFam)) ? Collections.emptyMap() : null;
+  }
+
+  /**
+   * Compacts all of {@code colFam}, blocking until done. False if not supported or it failed.
+   */
+  default boolean compact(byte[] colFam) {
+    return false;
+  }
+
+  /**
+   * Flushes the memtables of {@code colFam} to disk, blocking until done. False if not supported or
+   * it failed.
+   */
+  default boolean flush(byte[] colFam) {
+    return false;
+  }
+
 }
@@ -0,0 +1,167 @@
+package com.xjeffrose.chicago.db;
+
+import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.ChiUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import org.rocksdb.ColumnFamilyHandle;
+
+/*
+ * The physical column families a time series column family with a RetentionPolicy is stored in.
+ *
+ * Each bucket holds a contiguous range of offsets, from its first offset up to the next bucket's. A
+ * new bucket is started once the newest is bucketMillis old, at the next offset to be written, so a
+ * bucket's records are no newer than the next bucket's creation. Expiring records is dropping whole
+ * buckets, which costs no compaction: a bucket goes once the next one is older than maxAgeMillis, and
+ * the oldest ones go while the column family is over maxBytes. The newest bucket is never dropped.
+ *
+ * Records below the oldest bucket, e.g. loaded after their bucket expired, are kept in the oldest, so a
+ * key is always in the bucket forKey returns for it. Buckets are named
+ * _chicago.bucket.<colFam>.<first offset>, a node local name, and only the logical column family is
+ * registered and listed.
+ *
+ * Offsets are taken and placed in their bucket holding the TimeBuckets' lock, and buckets are started
+ * under it too, so a bucket cannot start between a writer taking an offset and choosing its bucket.
+ *
+ * A bucket is counted: once by the TimeBuckets while it holds it and once by every operation using its
+ * handle. Its handle is closed when the last one releases it, so a bucket dropped while a read has its
+ * handle is closed after the read.
+ */
+final class TimeBuckets {
+  static final String PREFIX = ChiUtil.LOCAL_COLFAM_PREFIX + "bucket.";
+
+  static final class Bucket {
+    final long firstOffset;
+    final long createdMillis;
+    final byte[] name;
+    final ColumnFamilyHandle handle;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    Bucket(long firstOffset, long createdMillis, byte[] name, ColumnFamilyHandle handle) {
+      this.firstOffset = firstOffset;
+      this.createdMillis = createdMillis;
+      this.name = name;
+      this.handle = handle;
+    }
+
+    /**
+     * Counts one more user of the handle, false once it is closed or about to be.
+     */
+    boolean retain() {
+      while (true) {
+        int count = references.get();
+        if (count == 0) {
+          return false;
+        }
+        if (references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Counts one user less, the last closes the handle.
+     */
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        handle.close();
+      }
+    }
+  }
+
+  private final NavigableMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+  private final RetentionPolicy policy;
+
+  TimeBuckets(RetentionPolicy policy) {
+    this.policy = policy;
+  }
+
+  static byte[] name(String colFam, long firstOffset) {
+    return (PREFIX + colFam + "." + firstOffset).getBytes();
+  }
+
+  RetentionPolicy getPolicy() {
+    return policy;
+  }
+
+  void add(Bucket bucket) {
+    buckets.put(bucket.firstOffset, bucket);
+  }
+
+  void remove(Bucket bucket) {
+    buckets.remove(bucket.firstOffset, bucket);
+  }
+
+  boolean isEmpty() {
+    return buckets.isEmpty();
+  }
+
+  Bucket newest() {
+    return buckets.lastEntry().getValue();
+  }
+
+  /**
+   * The bucket {@code key} is stored in, the newest one for keys that are not offsets.
+   */
+  Bucket forKey(byte[] key) {
+    if (key == null || key.length != Longs.BYTES) {
+      return newest();
+    }
+    Map.Entry<Long, Bucket> floor = buckets.floorEntry(Longs.fromByteArray(key));
+    return floor == null ? buckets.firstEntry().getValue() : floor.getValue();
+  }
+
+  /**
+   * The buckets holding {@code from} and the keys after it in key order, all of them for an empty key.
+   */
+  List<Bucket> from(byte[] from) {
+    if (from == null || from.length == 0) {
+      return all();
+    }
+    return new ArrayList<>(buckets.tailMap(forKey(from).firstOffset, true).values());
+  }
+
+  List<Bucket> all() {
+    return new ArrayList<>(buckets.values());
+  }
+
+  /**
+   * Whether a bucket should be started at {@code nextOffset}: the newest is due and holds records.
+   */
+  boolean isDue(long nowMillis, long nextOffset) {
+    Bucket newest = newest();
+    return policy.getBucketMillis() > 0
+        && newest.createdMillis + policy.getBucketMillis() <= nowMillis
+        && nextOffset > newest.firstOffset;
+  }
+
+  /**
+   * The buckets past the policy at {@code nowMillis}, oldest first.
+   */
+  List<Bucket> expired(long nowMillis, ToLongFunction<Bucket> size) {
+    List<Bucket> all = all();
+    List<Bucket> expired = new ArrayList<>();
+    int kept = 0;
+    if (policy.getMaxAgeMillis() > 0) {
+      while (kept < all.size() - 1 && all.get(kept + 1).createdMillis <= nowMillis - policy.getMaxAgeMillis()) {
+        expired.add(all.get(kept++));
+      }
+    }
+    if (policy.getMaxBytes() > 0) {
+      long total = 0;
+      for (int i = kept; i < all.size(); i++) {
+        total += size.applyAsLong(all.get(i));
+      }
+      while (kept < all.size() - 1 && total > policy.getMaxBytes()) {
+        total -= size.applyAsLong(all.get(kept));
+        expired.add(all.get(kept++));
+      }
+    }
+    return expired;
+  }
+}
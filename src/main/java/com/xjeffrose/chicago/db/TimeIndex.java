@@ -0,0 +1,102 @@
+package com.xjeffrose.chicago.db;
+
+import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.ChiUtil;
+import io.netty.util.internal.PlatformDependent;
+import java.util.Map;
+
+/*
+ * A sparse index from ingest time to offset for the time series column families, so a reader can
+ * start at a point in time without searching the records.
+ *
+ * Time is cut into slots of intervalMillis. The first record of a column family written in a slot
+ * adds an entry for it, in a node local column family shared by all time series:
+ *
+ * Key: <colFam> 0x00 <slot start millis, 8 bytes>, so the entries of a column family are contiguous
+ * and in time order.
+ * Value: <offset, 8 bytes>, the first offset written in the slot.
+ *
+ * The first offset at or after a time is then the offset of the first entry at or after the start of
+ * its slot, at most intervalMillis early. Slots nothing was written in have no entry. Records are
+ * stamped when this node writes them, a replica indexes them when they reach it, and records loaded by
+ * a rebalance are not indexed.
+ */
+final class TimeIndex {
+  static final byte[] COL_FAM = (ChiUtil.LOCAL_COLFAM_PREFIX + "timeindex").getBytes();
+  static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+  private static final class Slot {
+    final long startMillis;
+    final long firstOffset;
+
+    Slot(long startMillis, long firstOffset) {
+      this.startMillis = startMillis;
+      this.firstOffset = firstOffset;
+    }
+  }
+
+  private final long intervalMillis;
+  // the newest slot of each column family written here
+  private final Map<String, Slot> newest = PlatformDependent.newConcurrentHashMap();
+
+  TimeIndex(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  boolean isEnabled() {
+    return intervalMillis > 0;
+  }
+
+  static byte[] prefix(byte[] colFam) {
+    byte[] prefix = new byte[colFam.length + 1];
+    System.arraycopy(colFam, 0, prefix, 0, colFam.length);
+    return prefix;
+  }
+
+  static byte[] key(byte[] colFam, long millis) {
+    byte[] prefix = prefix(colFam);
+    byte[] key = new byte[prefix.length + Longs.BYTES];
+    System.arraycopy(prefix, 0, key, 0, prefix.length);
+    System.arraycopy(Longs.toByteArray(millis), 0, key, prefix.length, Longs.BYTES);
+    return key;
+  }
+
+  /**
+   * Where to start looking for the entry of the first offset at or after {@code millis}.
+   */
+  byte[] seekKey(byte[] colFam, long millis) {
+    return key(colFam, slotStart(Math.max(millis, 0)));
+  }
+
+  private long slotStart(long millis) {
+    return millis - millis % intervalMillis;
+  }
+
+  /**
+   * The entry to write along with record {@code offset} of {@code colFam} written at
+   * {@code nowMillis}, null if its slot has an entry already. A record that took a lower offset than
+   * the slot's entry, but came in after it, rewrites the entry.
+   */
+  DBRecord record(byte[] colFam, long offset, long nowMillis) {
+    if (!isEnabled()) {
+      return null;
+    }
+    long start = slotStart(nowMillis);
+    Slot[] added = new Slot[1];
+    newest.compute(new String(colFam), (k, slot) -> {
+      if (slot == null || start > slot.startMillis || (start == slot.startMillis && offset < slot.firstOffset)) {
+        added[0] = new Slot(start, offset);
+        return added[0];
+      }
+      return slot;
+    });
+    if (added[0] == null) {
+      return null;
+    }
+    return new DBRecord(COL_FAM, key(colFam, start), Longs.toByteArray(offset));
+  }
+
+  void forget(byte[] colFam) {
+    newest.remove(new String(colFam));
+  }
+}
@@ -0,0 +1,51 @@
+package com.xjeffrose.chicago.db;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.ToString;
+
+/*
+ * How an idle DBManager worker waits for its next message: poll the queue {@code spins} times, then
+ * {@code yields} more times giving up the cpu in between, then park on the queue until a message is
+ * posted or {@code parkNanos} pass. Spinning buys latency with a core, parking gives the core back.
+ */
+@ToString
+public class WaitStrategy {
+  public static final WaitStrategy DEFAULT = new WaitStrategy(100, 10, TimeUnit.MILLISECONDS.toNanos(100));
+
+  @Getter
+  private final int spins;
+  @Getter
+  private final int yields;
+  @Getter
+  private final long parkNanos;
+
+  public WaitStrategy(int spins, int yields, long parkNanos) {
+    if (spins < 0 || yields < 0 || parkNanos <= 0) {
+      throw new IllegalArgumentException("Invalid wait strategy: spins=" + spins + " yields=" + yields + " parkNanos=" + parkNanos);
+    }
+    this.spins = spins;
+    this.yields = yields;
+    this.parkNanos = parkNanos;
+  }
+
+  /**
+   * The next message on {@code queue}, or null when none arrived within one full round of waiting.
+   */
+  <T> T next(BlockingQueue<T> queue) throws InterruptedException {
+    T next;
+    for (int i = 0; i < spins; i++) {
+      if ((next = queue.poll()) != null) {
+        return next;
+      }
+    }
+    for (int i = 0; i < yields; i++) {
+      Thread.yield();
+      if ((next = queue.poll()) != null) {
+        return next;
+      }
+    }
+    return queue.poll(parkNanos, TimeUnit.NANOSECONDS);
+  }
+}
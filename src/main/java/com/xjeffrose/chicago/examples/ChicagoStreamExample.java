@@ -3,11 +3,13 @@ package com.xjeffrose.chicago.examples;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.client.ChicagoClientException;
 import com.xjeffrose.chicago.client.ChicagoClientTimeoutException;
 import com.xjeffrose.chicago.client.ChicagoClient;
 
 import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -65,35 +67,17 @@ public class ChicagoStreamExample {
     ListenableFuture<List<byte[]>> resp = chicagoClient.stream(key.getBytes(), Longs.toByteArray(offset));
 
     byte[] resultArray = resp.get().get(0);
-    String result = new String(resultArray);
     long old=-1;
     while(true){
-      if(!result.contains(ChiUtil.delimiter)){
-        System.out.println("No delimetr present");
-        System.out.println(result);
-        break;
-
-      }
-
-      offset = ChiUtil.findOffset(resultArray);
-      String[] lines = (result.split(ChiUtil.delimiter)[0]).split("\0");
-      int count =0;
-      for(String line : lines){
-        if(line.length()!= 0) {
-          System.out.println(offset +":" +line);
-          count++;
-        }
-      }
-      if(count > 0){
-        offset = offset + 1;
-      }
+      ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(resultArray);
+      batch.forEach((k, v) -> System.out.println(Longs.fromByteArray(ChiUtil.toBytes(k)) + ":" + v.toString(StandardCharsets.UTF_8)));
+      offset = batch.nextOffset();
       if(old != -1 && (old == offset)){
         Thread.sleep(500);
       }
 
       ListenableFuture<List<byte[]>> newresp = chicagoClient.stream(key.getBytes(), Longs.toByteArray(offset));
       resultArray = newresp.get().get(0);
-      result = new String(resultArray);
       old = offset;
     }
   }
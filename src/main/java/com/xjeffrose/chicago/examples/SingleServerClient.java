@@ -2,6 +2,7 @@ package com.xjeffrose.chicago.examples;
 
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.client.*;
 
 import java.util.List;
@@ -110,10 +111,8 @@ public class SingleServerClient {
     cc.startAndWaitForNodes(1);
     ListenableFuture<List<byte[]>> f = cc.scanKeys(colFam.getBytes());
     byte[] b = f.get().get(0);
-    String resp = new String(b);
-    String[] lines = resp.split("\0")[0].split("@@@");
-    for(String line: lines) {
-      System.out.println("Keys: " + line);
+    for(byte[] key: ChicagoRecordBatch.wrap(b).keys()) {
+      System.out.println("Keys: " + new String(key));
     }
   }
 }
@@ -0,0 +1,215 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.Rebalancer;
+import com.xjeffrose.chicago.db.StorageProvider;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Storage engine diagnostics and maintenance on the admin server:
+ *
+ *   GET  /rocksdb/stats              engine tickers and histograms
+ *   GET  /colfams                    properties of every column family
+ *   GET  /colfams/<colFam>           properties of one column family
+ *   POST /colfams/<colFam>/compact   manual compaction of the whole column family
+ *   POST /colfams/<colFam>/flush     flush its memtables
+ *   GET  /rebalance                  progress and estimated time left of the column family moves
+ *
+ * Compactions and flushes block until they are done, so they run one at a time on their own thread
+ * and the response is sent when they finish.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class AdminHandler extends SimpleChannelInboundHandler<HttpObject> implements Closeable {
+  private static final String JSON = "application/json";
+
+  private final StorageProvider db;
+  private volatile Rebalancer rebalancer;
+  private final ListeningExecutorService maintenance = MoreExecutors.listeningDecorator(
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("chicago-admin-%d")
+          .setDaemon(true)
+          .build()));
+
+  public AdminHandler(StorageProvider db) {
+    this.db = db;
+  }
+
+  public void setRebalancer(Rebalancer rebalancer) {
+    this.rebalancer = rebalancer;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+    if (!(msg instanceof HttpRequest)) {
+      return;
+    }
+    HttpRequest request = (HttpRequest) msg;
+    String path = new QueryStringDecoder(request.uri()).path();
+    String[] parts = path.replaceAll("^/+|/+$", "").split("/");
+
+    if (path.equals("/rocksdb/stats")) {
+      get(ctx, request, () -> numbers(db.getStatistics()));
+    } else if (path.equals("/rebalance")) {
+      get(ctx, request, this::rebalance);
+    } else if (path.equals("/colfams")) {
+      get(ctx, request, this::allColFams);
+    } else if (parts.length == 2 && parts[0].equals("colfams")) {
+      Map<String, String> properties = db.getColFamProperties(parts[1].getBytes());
+      if (properties == null) {
+        notFound(ctx, request, path);
+      } else {
+        get(ctx, request, () -> strings(properties));
+      }
+    } else if (parts.length == 3 && parts[0].equals("colfams")
+        && (parts[2].equals("compact") || parts[2].equals("flush"))) {
+      maintain(ctx, request, parts[1], parts[2]);
+    } else {
+      notFound(ctx, request, path);
+    }
+  }
+
+  private void get(ChannelHandlerContext ctx, HttpRequest request, Supplier<String> body) {
+    if (!HttpMethod.GET.equals(request.method())) {
+      methodNotAllowed(ctx, request);
+      return;
+    }
+    StatsHandler.send(ctx, request, StatsHandler.response(HttpResponseStatus.OK, JSON, body.get()));
+  }
+
+  private void maintain(ChannelHandlerContext ctx, HttpRequest request, String colFam, String op) {
+    if (!HttpMethod.POST.equals(request.method())) {
+      methodNotAllowed(ctx, request);
+      return;
+    }
+    if (db.getColFamProperties(colFam.getBytes()) == null) {
+      notFound(ctx, request, colFam);
+      return;
+    }
+
+    log.info("Admin request to " + op + " " + colFam);
+    long start = System.currentTimeMillis();
+    ListenableFuture<Boolean> result = maintenance.submit(() ->
+        op.equals("compact") ? db.compact(colFam.getBytes()) : db.flush(colFam.getBytes()));
+    Futures.addCallback(result, new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean success) {
+        long millis = System.currentTimeMillis() - start;
+        log.info(op + " of " + colFam + (success ? " done" : " failed") + " in " + millis + "ms");
+        String body = "{\"colFam\":\"" + StatsHandler.escape(colFam) + "\",\"op\":\"" + op
+            + "\",\"success\":" + success + ",\"millis\":" + millis + "}\n";
+        StatsHandler.send(ctx, request, StatsHandler.response(
+            success ? HttpResponseStatus.OK : HttpResponseStatus.INTERNAL_SERVER_ERROR, JSON, body));
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        log.error("Error running " + op + " of " + colFam, error);
+        StatsHandler.send(ctx, request, StatsHandler.response(
+            HttpResponseStatus.INTERNAL_SERVER_ERROR, "text/plain", error.getMessage() + "\n"));
+      }
+    }, ctx.executor());
+  }
+
+  private void notFound(ChannelHandlerContext ctx, HttpRequest request, String what) {
+    StatsHandler.send(ctx, request,
+        StatsHandler.response(HttpResponseStatus.NOT_FOUND, "text/plain", "Not found: " + what + "\n"));
+  }
+
+  private void methodNotAllowed(ChannelHandlerContext ctx, HttpRequest request) {
+    StatsHandler.send(ctx, request, StatsHandler.response(HttpResponseStatus.METHOD_NOT_ALLOWED, "text/plain",
+        request.method() + " not allowed on " + request.uri() + "\n"));
+  }
+
+  private String allColFams() {
+    StringBuilder sb = new StringBuilder("{");
+    for (String colFam : db.getColFams()) {
+      Map<String, String> properties = db.getColFamProperties(colFam.getBytes());
+      if (properties == null) {
+        // dropped since getColFams
+        continue;
+      }
+      if (sb.length() > 1) {
+        sb.append(',');
+      }
+      sb.append('"').append(StatsHandler.escape(colFam)).append("\":").append(strings(properties).trim());
+    }
+    return sb.append("}\n").toString();
+  }
+
+  private String rebalance() {
+    Rebalancer rebalancer = this.rebalancer;
+    if (rebalancer == null) {
+      return "{\"moves\":[]}\n";
+    }
+    StringBuilder sb = new StringBuilder("{\"moves\":[");
+    boolean first = true;
+    for (Rebalancer.Move move : rebalancer.getMoves()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      sb.append("{\"colFam\":\"").append(StatsHandler.escape(move.getColFam()))
+          .append("\",\"target\":\"").append(StatsHandler.escape(move.getTarget()))
+          .append("\",\"state\":\"").append(move.getState())
+          .append("\",\"records\":").append(move.getRecords())
+          .append(",\"bytes\":").append(move.getBytes())
+          .append(",\"totalBytes\":").append(move.getTotalBytes())
+          .append(",\"etaMillis\":").append(move.getEtaMillis())
+          .append('}');
+    }
+    return sb.append("],\"etaMillis\":").append(rebalancer.getEtaMillis()).append("}\n").toString();
+  }
+
+  static String numbers(Map<String, Number> values) {
+    StringBuilder sb = new StringBuilder("{");
+    for (Map.Entry<String, Number> entry : values.entrySet()) {
+      if (sb.length() > 1) {
+        sb.append(',');
+      }
+      double value = entry.getValue().doubleValue();
+      sb.append('"').append(StatsHandler.escape(entry.getKey())).append("\":")
+          .append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : entry.getValue().toString());
+    }
+    return sb.append("}\n").toString();
+  }
+
+  // numeric properties are written as numbers, anything else as a string
+  static String strings(Map<String, String> values) {
+    StringBuilder sb = new StringBuilder("{");
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      if (sb.length() > 1) {
+        sb.append(',');
+      }
+      sb.append('"').append(StatsHandler.escape(entry.getKey())).append("\":");
+      if (entry.getValue().matches("-?[0-9]+")) {
+        sb.append(entry.getValue());
+      } else {
+        sb.append('"').append(StatsHandler.escape(entry.getValue())).append('"');
+      }
+    }
+    return sb.append("}\n").toString();
+  }
+
+  @Override
+  public void close() {
+    maintenance.shutdownNow();
+  }
+}
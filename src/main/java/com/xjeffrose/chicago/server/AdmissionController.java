@@ -0,0 +1,152 @@
+package com.xjeffrose.chicago.server;
+
+import com.xjeffrose.chicago.Op;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Keeps the work a server has accepted but not finished within a budget of requests and bytes.
+ *
+ * Ops are admitted up to a share of the budget that depends on their priority: point reads, offset
+ * fetches and time seeks and the credits subscribers drain with may use all of it, writes most of it and stream / subscribe / scan
+ * requests and bulk loads only half, so when the node fills up the scans are turned away first and
+ * reads last. A rejected request is answered right away
+ * with an overloaded response, and its channel stops reading until the server has drained back below
+ * RESUME_RATIO of the budget.
+ *
+ * Shared by all connections of a server.
+ */
+@Slf4j
+public class AdmissionController {
+  public static final long DEFAULT_MAX_REQUESTS = 10000;
+  public static final long DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+
+  static final double WRITE_RATIO = 0.9;
+  static final double SCAN_RATIO = 0.5;
+  static final double RESUME_RATIO = 0.5;
+
+  private final long maxRequests;
+  private final long maxBytes;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final LongAdder rejected = new LongAdder();
+  private final Set<Channel> paused = Collections.newSetFromMap(PlatformDependent.newConcurrentHashMap());
+
+  public AdmissionController(long maxRequests, long maxBytes) {
+    this.maxRequests = maxRequests;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * No limits, everything is admitted.
+   */
+  public static AdmissionController unbounded() {
+    return new AdmissionController(Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  static double ratio(Op op) {
+    switch (op) {
+      case READ:
+      case MULTI_GET:
+      case FETCH_OFFSETS:
+      case SEEK_TIME:
+      case CREDIT:
+      case UNSUBSCRIBE:
+      case RELEASE_OFFSETS:
+        return 1.0;
+      case STREAM:
+      case SUBSCRIBE:
+      case SCAN_KEYS:
+      case MERKLE_TREE:
+      case MERKLE_KEYS:
+      case BULK_LOAD:
+        return SCAN_RATIO;
+      default:
+        return WRITE_RATIO;
+    }
+  }
+
+  /**
+   * Admits a request of {@code size} bytes if the budget for its op has room. Every admitted request
+   * must be {@link #release released} once it is done.
+   */
+  public boolean tryAcquire(Op op, long size) {
+    double ratio = ratio(op);
+    long requestLimit = (long) (maxRequests * ratio);
+    long byteLimit = (long) (maxBytes * ratio);
+
+    if (requests.incrementAndGet() > requestLimit) {
+      requests.decrementAndGet();
+      rejected.increment();
+      return false;
+    }
+    // a single request larger than the whole budget still gets in on an idle server
+    long inFlight = bytes.addAndGet(size);
+    if (inFlight > byteLimit && inFlight != size) {
+      bytes.addAndGet(-size);
+      requests.decrementAndGet();
+      rejected.increment();
+      return false;
+    }
+    return true;
+  }
+
+  public void release(long size) {
+    requests.decrementAndGet();
+    bytes.addAndGet(-size);
+    if (!paused.isEmpty() && belowResume()) {
+      resumeAll();
+    }
+  }
+
+  /**
+   * Stops reading from {@code channel} until the server has drained.
+   */
+  public void pause(Channel channel) {
+    if (channel.config().isAutoRead()) {
+      log.warn("Server overloaded ({} requests, {} bytes in flight), pausing reads from {}",
+          requests.get(), bytes.get(), channel.remoteAddress());
+      channel.config().setAutoRead(false);
+      paused.add(channel);
+    }
+    // the last release may have happened before we were added
+    if (belowResume()) {
+      resumeAll();
+    }
+  }
+
+  private boolean belowResume() {
+    return requests.get() <= maxRequests * RESUME_RATIO && bytes.get() <= maxBytes * RESUME_RATIO;
+  }
+
+  private void resumeAll() {
+    Iterator<Channel> it = paused.iterator();
+    while (it.hasNext()) {
+      Channel channel = it.next();
+      it.remove();
+      channel.eventLoop().execute(() -> channel.config().setAutoRead(true));
+    }
+  }
+
+  public long getInFlightRequests() {
+    return requests.get();
+  }
+
+  public long getInFlightBytes() {
+    return bytes.get();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  int paused() {
+    return paused.size();
+  }
+}
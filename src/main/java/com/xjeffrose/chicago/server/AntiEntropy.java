@@ -0,0 +1,319 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.MerkleTree;
+import com.xjeffrose.chicago.db.StorageProvider;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Background anti-entropy: brings the replicas of each column family back in line, transferring only
+ * the records they disagree on.
+ *
+ * The first replica of a column family (the one coordinating its replicated writes) periodically
+ * builds a MerkleTree of it and walks down the tree of each other replica, a level per round trip
+ * (MERKLE_TREE), following only the nodes that differ. For all the differing leaves at once it asks
+ * for the digests of the replica's records (MERKLE_KEYS), then copies what either side lacks: the
+ * records only it holds go to the replica (BULK_LOAD), the ones only the replica holds are fetched
+ * (MULTI_GET) and loaded here.
+ *
+ * Only time series are repaired. Their records are appended under an offset and never rewritten, so a
+ * record missing on one side is one it missed, and a copy can never be older than what it lands on.
+ * Records are not versioned, so for a key/value column family there is no telling which of two values
+ * is the newer one, nor a missed write from a delete: those are left to replication and rebalancing.
+ * A time series record both sides hold differently is not touched either, it is logged. Records one
+ * side's retention dropped already may be copied back to it, they expire with its oldest bucket.
+ *
+ * The first replica also pushes the offsets consumer groups committed for the column family, the
+ * peer keeps those that are ahead of its own, see ConsumerOffsets.
+ *
+ * Building a tree and listing the differing leaves' records are one sequential scan of the column
+ * family on each side; what goes over the network grows with the number of differing records, not the
+ * size of the column family.
+ *
+ * MERKLE_TREE request: depth (int) | level (int) | index (int) ... response: the hashes (long) in the
+ * same order. A request for the root builds a fresh tree, deeper levels are answered from it.
+ * MERKLE_KEYS request: depth (int) | bitmap of the leaves, bit i for leaf i ... response: a
+ * ChicagoRecordBatch of the keys in those leaves with their 8 byte digests as values, sent in chunks
+ * like a stream.
+ */
+@Slf4j
+public class AntiEntropy implements Closeable {
+  // indexes per MERKLE_TREE request
+  static final int MAX_INDEXES_PER_REQUEST = 4096;
+  // records per MULTI_PUT while repairing
+  static final int REPAIR_BATCH = 1000;
+  // building a tree of a large column family takes a while
+  static final long REQUEST_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  // trees served to other replicas are dropped after this long
+  static final long TREE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final StorageProvider db;
+  private final int depth;
+  private final Map<String, ServedTree> trees = PlatformDependent.newConcurrentHashMap();
+  // answering other replicas and syncing run apart, two replicas syncing with each other must not wait
+  // on one another's thread
+  private final ListeningExecutorService server = MoreExecutors.listeningDecorator(
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("chicago-anti-entropy-server-%d")
+          .setDaemon(true)
+          .build()));
+  private final ListeningScheduledExecutorService syncer = MoreExecutors.listeningDecorator(
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("chicago-anti-entropy-%d")
+          .setDaemon(true)
+          .build()));
+  private volatile ChicagoAsyncClient peers;
+  private volatile String self;
+  private volatile Predicate<String> timeSeries;
+
+  public AntiEntropy(StorageProvider db) {
+    this(db, MerkleTree.DEFAULT_DEPTH);
+  }
+
+  AntiEntropy(StorageProvider db, int depth) {
+    this.db = db;
+    this.depth = depth;
+  }
+
+  /**
+   * Syncs the time series this node is the first replica of with their other replicas every
+   * {@code intervalMillis}, 0 never does. {@code timeSeries} tells which column families are time
+   * series.
+   */
+  public void start(ChicagoAsyncClient peers, String self, long intervalMillis, Predicate<String> timeSeries) {
+    this.peers = peers;
+    this.self = self;
+    this.timeSeries = timeSeries;
+    if (intervalMillis > 0) {
+      syncer.scheduleWithFixedDelay(this::syncAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final class ServedTree {
+    final MerkleTree tree;
+    final long builtAt = System.currentTimeMillis();
+
+    ServedTree(MerkleTree tree) {
+      this.tree = tree;
+    }
+  }
+
+  /**
+   * Answers a MERKLE_TREE request.
+   */
+  public ListenableFuture<byte[]> treeHashes(byte[] colFam, byte[] request) {
+    return server.submit(() -> {
+      ByteBuffer buf = ByteBuffer.wrap(request);
+      int treeDepth = buf.getInt();
+      int level = buf.getInt();
+      String name = new String(colFam);
+      ServedTree served = trees.get(name);
+      if (level == 0 || served == null || served.tree.getDepth() != treeDepth) {
+        long now = System.currentTimeMillis();
+        trees.values().removeIf(t -> now - t.builtAt > TREE_TTL_MILLIS);
+        served = new ServedTree(MerkleTree.build(db, colFam, treeDepth));
+        trees.put(name, served);
+      }
+      ByteBuffer hashes = ByteBuffer.allocate(buf.remaining() / Integer.BYTES * Long.BYTES);
+      while (buf.hasRemaining()) {
+        hashes.putLong(served.tree.hash(level, buf.getInt()));
+      }
+      return hashes.array();
+    });
+  }
+
+  /**
+   * Answers a MERKLE_KEYS request with the digests of the records in the requested leaves, in key
+   * order, from one scan of the column family.
+   */
+  public ListenableFuture<List<DBRecord>> leafDigests(byte[] colFam, byte[] request) {
+    return server.submit(() -> {
+      ByteBuffer buf = ByteBuffer.wrap(request);
+      int treeDepth = buf.getInt();
+      if (treeDepth < 0 || treeDepth > MerkleTree.MAX_DEPTH) {
+        throw new IllegalArgumentException("Merkle tree depth out of range: " + treeDepth);
+      }
+      BitSet leaves = BitSet.valueOf(buf);
+      List<DBRecord> digests = new ArrayList<>();
+      db.scan(colFam, (key, val) -> {
+        if (leaves.get(MerkleTree.leafOf(key, treeDepth))) {
+          digests.add(new DBRecord(colFam, key, Longs.toByteArray(MerkleTree.digest(key, val))));
+        }
+      });
+      return digests;
+    });
+  }
+
+  private void syncAll() {
+    try {
+      syncColFams();
+    } catch (Exception e) {
+      // keeps the schedule going
+      log.error("Anti-entropy failed", e);
+    }
+  }
+
+  private void syncColFams() {
+    ChicagoAsyncClient client = peers;
+    for (String colFam : db.getColFams()) {
+      if (ChiUtil.isLocalColFam(colFam) || !timeSeries.test(colFam)) {
+        continue;
+      }
+      List<String> replicas = client.getEffectiveNodes(colFam.getBytes());
+      if (replicas.isEmpty() || !replicas.get(0).equals(self)) {
+        continue;
+      }
+      for (String peer : replicas.subList(1, replicas.size())) {
+        try {
+          long start = System.currentTimeMillis();
+          int repaired = sync(colFam.getBytes(), peer);
+          ConsumerOffsets.copy(db, colFam.getBytes(), client, peer, REQUEST_TIMEOUT_MILLIS);
+          log.info("Anti-entropy of " + colFam + " with " + peer + " repaired " + repaired + " records in "
+              + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+          log.error("Anti-entropy of " + colFam + " with " + peer + " failed", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the records of time series {@code colFam} that only this node or only {@code peer} holds
+   * to the other side, returns the number copied.
+   */
+  int sync(byte[] colFam, String peer) throws Exception {
+    MerkleTree local = MerkleTree.build(db, colFam, depth);
+
+    List<Integer> differing = new ArrayList<>();
+    differing.add(0);
+    for (int level = 0; level < depth && !differing.isEmpty(); level++) {
+      long[] remote = remoteHashes(colFam, peer, level, differing);
+      List<Integer> children = new ArrayList<>();
+      for (int i = 0; i < differing.size(); i++) {
+        if (local.hash(level, differing.get(i)) != remote[i]) {
+          children.add(2 * differing.get(i));
+          children.add(2 * differing.get(i) + 1);
+        }
+      }
+      differing = children;
+    }
+    List<Integer> leaves = new ArrayList<>();
+    if (!differing.isEmpty()) {
+      long[] remote = remoteHashes(colFam, peer, depth, differing);
+      for (int i = 0; i < differing.size(); i++) {
+        if (local.hash(depth, differing.get(i)) != remote[i]) {
+          leaves.add(differing.get(i));
+        }
+      }
+    }
+    if (leaves.isEmpty()) {
+      return 0;
+    }
+
+    BitSet leafSet = new BitSet(1 << depth);
+    leaves.forEach(leafSet::set);
+    // what is left of them once this side's records are crossed off, only the peer holds
+    Map<ByteBuffer, Long> remoteDigests = remoteDigests(colFam, peer, leafSet);
+    List<byte[]> push = new ArrayList<>();
+    int[] conflicting = new int[1];
+    db.scan(colFam, (key, val) -> {
+      if (leafSet.get(local.leafOf(key))) {
+        Long digest = remoteDigests.remove(ByteBuffer.wrap(key));
+        if (digest == null) {
+          push.add(key);
+        } else if (digest != MerkleTree.digest(key, val)) {
+          conflicting[0]++;
+        }
+      }
+    });
+    if (conflicting[0] > 0) {
+      log.warn(peer + " holds " + conflicting[0] + " records of " + new String(colFam)
+          + " differently, they are left as they are");
+    }
+    List<byte[]> pull = new ArrayList<>(remoteDigests.size());
+    remoteDigests.keySet().forEach(key -> pull.add(key.array()));
+
+    for (int from = 0; from < push.size(); from += REPAIR_BATCH) {
+      List<byte[]> keys = push.subList(from, Math.min(from + REPAIR_BATCH, push.size()));
+      request(peer, Op.BULK_LOAD, colFam, ChiUtil.TS.getBytes(), ChicagoRecordBatch.encode(records(colFam, keys,
+          db.multiRead(colFam, keys)), true, 0));
+    }
+    for (int from = 0; from < pull.size(); from += REPAIR_BATCH) {
+      List<byte[]> keys = pull.subList(from, Math.min(from + REPAIR_BATCH, pull.size()));
+      List<byte[]> vals = ChicagoRecordBatch.wrap(request(peer, Op.MULTI_GET, colFam, null,
+          ChicagoRecordBatch.encodeKeys(keys))).values();
+      if (!db.bulkLoad(colFam, true, records(colFam, keys, vals))) {
+        throw new IllegalStateException("Could not load " + keys.size() + " records of " + new String(colFam) + " from " + peer);
+      }
+    }
+    return push.size() + pull.size();
+  }
+
+  // the keys with their values, those that are gone meanwhile left out
+  private static List<DBRecord> records(byte[] colFam, List<byte[]> keys, List<byte[]> vals) {
+    List<DBRecord> records = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      if (vals.get(i) != null) {
+        records.add(new DBRecord(colFam, keys.get(i), vals.get(i)));
+      }
+    }
+    return records;
+  }
+
+  private long[] remoteHashes(byte[] colFam, String peer, int level, List<Integer> indexes) throws Exception {
+    long[] hashes = new long[indexes.size()];
+    for (int from = 0; from < indexes.size(); from += MAX_INDEXES_PER_REQUEST) {
+      List<Integer> chunk = indexes.subList(from, Math.min(from + MAX_INDEXES_PER_REQUEST, indexes.size()));
+      ByteBuffer request = ByteBuffer.allocate(Integer.BYTES * (2 + chunk.size())).putInt(depth).putInt(level);
+      chunk.forEach(request::putInt);
+      ByteBuffer response = ByteBuffer.wrap(request(peer, Op.MERKLE_TREE, colFam, null, request.array()));
+      for (int i = 0; i < chunk.size(); i++) {
+        hashes[from + i] = response.getLong();
+      }
+    }
+    return hashes;
+  }
+
+  private Map<ByteBuffer, Long> remoteDigests(byte[] colFam, String peer, BitSet leaves) throws Exception {
+    byte[] bitmap = leaves.toByteArray();
+    ByteBuffer request = ByteBuffer.allocate(Integer.BYTES + bitmap.length).putInt(depth).put(bitmap);
+    Map<ByteBuffer, Long> digests = new HashMap<>();
+    ChicagoRecordBatch.wrap(request(peer, Op.MERKLE_KEYS, colFam, null, request.array())).forEach((key, val) -> {
+      byte[] k = new byte[key.readableBytes()];
+      key.getBytes(key.readerIndex(), k);
+      digests.put(ByteBuffer.wrap(k), val.getLong(val.readerIndex()));
+    });
+    return digests;
+  }
+
+  private byte[] request(String peer, Op op, byte[] colFam, byte[] key, byte[] val) throws Exception {
+    return peers.request(peer, op, colFam, key, val).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void close() {
+    server.shutdownNow();
+    syncer.shutdownNow();
+  }
+}
@@ -2,7 +2,15 @@ package com.xjeffrose.chicago.server;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
+import com.xjeffrose.chicago.Rebalancer;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.RetentionPolicy;
+import com.xjeffrose.chicago.db.WaitStrategy;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
@@ -28,12 +36,68 @@ public class ChiConfig {
   private boolean encryptAtRest;
   @Getter
   private List<String> witnessList;
+  @Getter
+  private int dbWorkers;
+  @Getter
+  private WaitStrategy dbWaitStrategy;
+  @Getter
+  private int dbGroupCommitMaxWrites;
+  @Getter
+  private int dbGroupCommitMaxBytes;
+  @Getter
+  private int dbReadThreads;
+  @Getter
+  private int dbReadQueueSize;
+  @Getter
+  private long maxInFlightRequests;
+  @Getter
+  private long maxInFlightBytes;
+  @Getter
+  private long responseFlushDelay;
+  @Getter
+  private int writeAcks;
+  @Getter
+  private long antiEntropyInterval;
+  @Getter
+  private int rebalanceParallelism;
+  @Getter
+  private long rebalanceRate;
+  private RetentionPolicy defaultRetention;
+  private Map<String, RetentionPolicy> retention;
+  @Getter
+  private long subscriptionLinger;
+  @Getter
+  private long subscriptionGapWait;
+  @Getter
+  private long timeIndexInterval;
 //  private ZkClient zkClient;
 
   public ChiConfig(Config conf) {
 
     this.conf = conf;
-    Config defaults = ConfigFactory.parseString("graceful = false");
+    Config defaults = ConfigFactory.parseString("graceful = false\n"
+      + "settings.dbWorkers = " + DBManager.DEFAULT_WORKERS + "\n"
+      + "settings.dbWorkerSpins = " + WaitStrategy.DEFAULT.getSpins() + "\n"
+      + "settings.dbWorkerYields = " + WaitStrategy.DEFAULT.getYields() + "\n"
+      + "settings.dbWorkerParkTime = " + WaitStrategy.DEFAULT.getParkNanos() + "ns\n"
+      + "settings.dbGroupCommitMaxWrites = " + DBManager.DEFAULT_MAX_GROUP_WRITES + "\n"
+      + "settings.dbGroupCommitMaxBytes = " + DBManager.DEFAULT_MAX_GROUP_BYTES + "\n"
+      + "settings.dbReadThreads = " + DBManager.DEFAULT_READ_THREADS + "\n"
+      + "settings.dbReadQueueSize = " + DBManager.DEFAULT_READ_QUEUE_SIZE + "\n"
+      + "settings.maxInFlightRequests = " + AdmissionController.DEFAULT_MAX_REQUESTS + "\n"
+      + "settings.maxInFlightBytes = " + AdmissionController.DEFAULT_MAX_BYTES + "\n"
+      + "settings.responseFlushDelay = " + ResponseFlusher.DEFAULT_MAX_DELAY_NANOS + "ns\n"
+      + "settings.writeAcks = 2\n"
+      + "settings.antiEntropyInterval = 24h\n"
+      + "settings.rebalanceParallelism = " + Rebalancer.DEFAULT_PARALLELISM + "\n"
+      + "settings.rebalanceRate = 64MB\n"
+      + "settings.retentionMaxAge = 0\n"
+      + "settings.retentionMaxSize = 0\n"
+      + "settings.retentionBucket = 1h\n"
+      + "settings.retention = {}\n"
+      + "settings.subscriptionLinger = 0\n"
+      + "settings.subscriptionGapWait = 2s\n"
+      + "settings.timeIndexInterval = 1s");
 
     this.dbPath = conf.getString("settings.dbPath");
     this.quorum = conf.getInt("settings.quorum");
@@ -43,6 +107,46 @@ public class ChiConfig {
     this.databaseMode = conf.getBoolean("settings.databaseMode");
     this.witnessList = conf.getStringList("settings.witnessList");
     this.encryptAtRest =  conf.getBoolean("settings.encryptAtRest");
+    this.dbWorkers = conf.withFallback(defaults).getInt("settings.dbWorkers");
+    this.dbWaitStrategy = new WaitStrategy(
+        conf.withFallback(defaults).getInt("settings.dbWorkerSpins"),
+        conf.withFallback(defaults).getInt("settings.dbWorkerYields"),
+        conf.withFallback(defaults).getDuration("settings.dbWorkerParkTime", TimeUnit.NANOSECONDS));
+    this.dbGroupCommitMaxWrites = conf.withFallback(defaults).getInt("settings.dbGroupCommitMaxWrites");
+    this.dbGroupCommitMaxBytes = (int) conf.withFallback(defaults).getMemorySize("settings.dbGroupCommitMaxBytes").toBytes();
+    this.dbReadThreads = conf.withFallback(defaults).getInt("settings.dbReadThreads");
+    this.dbReadQueueSize = conf.withFallback(defaults).getInt("settings.dbReadQueueSize");
+    this.maxInFlightRequests = conf.withFallback(defaults).getLong("settings.maxInFlightRequests");
+    this.maxInFlightBytes = conf.withFallback(defaults).getMemorySize("settings.maxInFlightBytes").toBytes();
+    this.responseFlushDelay = conf.withFallback(defaults).getDuration("settings.responseFlushDelay", TimeUnit.NANOSECONDS);
+    this.writeAcks = conf.withFallback(defaults).getInt("settings.writeAcks");
+    this.antiEntropyInterval = conf.withFallback(defaults).getDuration("settings.antiEntropyInterval", TimeUnit.MILLISECONDS);
+    this.rebalanceParallelism = conf.withFallback(defaults).getInt("settings.rebalanceParallelism");
+    this.rebalanceRate = conf.withFallback(defaults).getMemorySize("settings.rebalanceRate").toBytes();
+    this.defaultRetention = new RetentionPolicy(
+        conf.withFallback(defaults).getDuration("settings.retentionMaxAge", TimeUnit.MILLISECONDS),
+        conf.withFallback(defaults).getMemorySize("settings.retentionMaxSize").toBytes(),
+        conf.withFallback(defaults).getDuration("settings.retentionBucket", TimeUnit.MILLISECONDS));
+    this.retention = new HashMap<>();
+    Config overrides = conf.withFallback(defaults).getConfig("settings.retention");
+    for (String colFam : overrides.root().keySet()) {
+      Config policy = overrides.getConfig(ConfigUtil.joinPath(colFam));
+      retention.put(colFam, new RetentionPolicy(
+          policy.hasPath("maxAge") ? policy.getDuration("maxAge", TimeUnit.MILLISECONDS) : defaultRetention.getMaxAgeMillis(),
+          policy.hasPath("maxSize") ? policy.getMemorySize("maxSize").toBytes() : defaultRetention.getMaxBytes(),
+          policy.hasPath("bucket") ? policy.getDuration("bucket", TimeUnit.MILLISECONDS) : defaultRetention.getBucketMillis()));
+    }
+    this.subscriptionLinger = conf.withFallback(defaults).getDuration("settings.subscriptionLinger", TimeUnit.NANOSECONDS);
+    this.subscriptionGapWait = conf.withFallback(defaults).getDuration("settings.subscriptionGapWait", TimeUnit.NANOSECONDS);
+    this.timeIndexInterval = conf.withFallback(defaults).getDuration("settings.timeIndexInterval", TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * The retention of time series column family {@code colFam}: its entry under settings.retention if
+   * it has one, the settings.retention* defaults otherwise.
+   */
+  public RetentionPolicy getRetention(String colFam) {
+    return retention.getOrDefault(colFam, defaultRetention);
   }
 
   /*
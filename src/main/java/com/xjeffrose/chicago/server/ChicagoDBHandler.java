@@ -1,24 +1,37 @@
 package com.xjeffrose.chicago.server;
 
-import com.google.common.primitives.Bytes;
+import com.google.common.base.Function;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.xjeffrose.chicago.ByteBufChicagoMessage;
 import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoMessage;
-import com.xjeffrose.chicago.ChicagoObjectEncoder;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
 import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.RequestMetrics;
+import com.xjeffrose.chicago.RequestMetrics.Stage;
 import com.xjeffrose.chicago.db.DBManager;
 import com.xjeffrose.chicago.db.DBRecord;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -27,10 +40,100 @@ import org.slf4j.LoggerFactory;
 @ChannelHandler.Sharable
 public class ChicagoDBHandler extends SimpleChannelInboundHandler<ChicagoMessage> {
   private static final Logger log = LoggerFactory.getLogger(ChicagoDBHandler.class);
+  private static final ByteBuf DELIMITER = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(ChiUtil.delimiter.getBytes()));
+  // Upper bound on the records of one STREAM_RESPONSE chunk, in bytes
+  static final int STREAM_CHUNK_SIZE = 64 * 1024;
+  // Keys fetched from storage and sent per SCAN_KEYS chunk
+  static final int SCAN_PAGE_SIZE = 1000;
   private final DBManager db;
+  private final AdmissionController admission;
+  private final RequestMetrics metrics;
+  private final long flushDelayNanos;
+  private final OffsetSequencer sequencer;
+  // null when the server does not answer anti-entropy requests
+  private final AntiEntropy antiEntropy;
+  private final Subscriptions subscriptions;
+  // null until the server has joined the cluster, replicated writes are only stored here until then
+  private volatile ReplicaForwarder forwarder;
 
   public ChicagoDBHandler(DBManager db) {
+    this(db, AdmissionController.unbounded());
+  }
+
+  public ChicagoDBHandler(DBManager db, AdmissionController admission) {
+    this(db, admission, ResponseFlusher.DEFAULT_MAX_DELAY_NANOS);
+  }
+
+  /**
+   * @param flushDelayNanos how long a response may wait to be flushed together with others, 0 flushes
+   *                        each one right away
+   */
+  public ChicagoDBHandler(DBManager db, AdmissionController admission, long flushDelayNanos) {
+    this(db, admission, flushDelayNanos, new OffsetSequencer());
+  }
+
+  public ChicagoDBHandler(DBManager db, AdmissionController admission, long flushDelayNanos, OffsetSequencer sequencer) {
+    this(db, admission, flushDelayNanos, sequencer, null);
+  }
+
+  public ChicagoDBHandler(DBManager db, AdmissionController admission, long flushDelayNanos, OffsetSequencer sequencer,
+                          AntiEntropy antiEntropy) {
+    this(db, admission, flushDelayNanos, sequencer, antiEntropy, new Subscriptions(db, Subscriptions.DEFAULT_LINGER_NANOS,
+        Subscriptions.DEFAULT_GAP_WAIT_NANOS));
+  }
+
+  ChicagoDBHandler(DBManager db, AdmissionController admission, long flushDelayNanos, OffsetSequencer sequencer,
+                   AntiEntropy antiEntropy, Subscriptions subscriptions) {
     this.db = db;
+    this.admission = admission;
+    this.metrics = db.getMetrics();
+    this.flushDelayNanos = flushDelayNanos;
+    this.sequencer = sequencer;
+    this.antiEntropy = antiEntropy;
+    this.subscriptions = subscriptions;
+    db.setAppendListener(subscriptions);
+  }
+
+  public void setReplicaForwarder(ReplicaForwarder forwarder) {
+    this.forwarder = forwarder;
+  }
+
+  private ResponseFlusher flusher(ChannelHandlerContext ctx) {
+    return ResponseFlusher.of(ctx.channel(), flushDelayNanos);
+  }
+
+  private ChannelFuture respond(ChannelHandlerContext ctx, ChicagoMessage response) {
+    return flusher(ctx).write(ctx, response);
+  }
+
+  /**
+   * Answers {@code msg} with just a status, true, false or {@link ChiUtil#OVERLOADED}. Stream and scan
+   * requests get an empty last chunk so their aggregators finish.
+   */
+  private void replyStatus(ChannelHandlerContext ctx, ChicagoMessage msg, String status, ChannelFutureListener writeComplete) {
+    boolean streamed = msg.getOp() == Op.STREAM || msg.getOp() == Op.SCAN_KEYS || msg.getOp() == Op.SUBSCRIBE;
+    respond(ctx,
+      new DefaultChicagoMessage(
+        msg.getId(),
+        streamed ? Op.STREAM_RESPONSE : Op.RESPONSE,
+        msg.getColFam(),
+        status.getBytes(),
+        streamed ? ChicagoRecordBatch.encode(Collections.emptyList(), true, 0) : null
+      )
+    ).addListener(writeComplete);
+  }
+
+  // What a request costs against the admission budget
+  private static long requestSize(ChicagoMessage msg) {
+    if (msg instanceof ByteBufChicagoMessage) {
+      ByteBufChicagoMessage bufMsg = (ByteBufChicagoMessage) msg;
+      return bufMsg.colFamBuf().readableBytes() + bufMsg.keyBuf().readableBytes() + bufMsg.valBuf().readableBytes();
+    }
+    return length(msg.getColFam()) + length(msg.getKey()) + length(msg.getVal());
+  }
+
+  private static int length(byte[] bytes) {
+    return bytes == null ? 0 : bytes.length;
   }
 
   private ChicagoMessage createErrorMessage() {
@@ -50,15 +153,17 @@ public class ChicagoDBHandler extends SimpleChannelInboundHandler<ChicagoMessage
     log.debug("Connection InActive for: " + ctx.channel().localAddress());
     log.debug("Connection InActive for: " + ctx.channel().remoteAddress());
 
+    ChunkedReplyWriter.of(ctx.channel()).clear();
+    flusher(ctx).clear();
     ctx.fireChannelInactive();
   }
 
-  private void handleRead(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+  private ListenableFuture<?> handleRead(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
     ListenableFuture<byte[]> future = db.read(msg.getColFam(), msg.getKey());
     Futures.addCallback(future, new FutureCallback<byte[]>() {
       @Override
       public void onSuccess(byte[] result) {
-        ctx.writeAndFlush(
+        respond(ctx,
           new DefaultChicagoMessage(
             msg.getId(),
             Op.RESPONSE,
@@ -70,16 +175,24 @@ public class ChicagoDBHandler extends SimpleChannelInboundHandler<ChicagoMessage
       }
       @Override
       public void onFailure(Throwable error) {
+        // e.g. the read pool turned it away, answer rather than leave the client waiting
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
       }
     }, ctx.executor());
+    return future;
   }
 
-  private void handleWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
-    ListenableFuture<Boolean> future = db.write(msg.getColFam(), msg.getKey(), msg.getVal());
+  private ListenableFuture<?> handleWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    ListenableFuture<Boolean> future;
+    if (msg instanceof ByteBufChicagoMessage) {
+      future = db.write(msg.getColFam(), msg.getKey(), ((ByteBufChicagoMessage) msg).valBuf());
+    } else {
+      future = db.write(msg.getColFam(), msg.getKey(), msg.getVal());
+    }
     Futures.addCallback(future, new FutureCallback<Boolean>() {
       @Override
       public void onSuccess(Boolean result) {
-        ctx.writeAndFlush(
+        respond(ctx,
           new DefaultChicagoMessage(
             msg.getId(),
             Op.RESPONSE,
@@ -91,11 +204,201 @@ public class ChicagoDBHandler extends SimpleChannelInboundHandler<ChicagoMessage
       }
       @Override
       public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  private static ChicagoRecordBatch batchOf(ChicagoMessage msg) {
+    if (msg instanceof ByteBufChicagoMessage) {
+      return ChicagoRecordBatch.wrap(((ByteBufChicagoMessage) msg).valBuf());
+    }
+    return ChicagoRecordBatch.wrap(msg.getVal());
+  }
+
+  private ListenableFuture<?> handleMultiGet(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    final List<byte[]> keys = batchOf(msg).keys();
+    ListenableFuture<List<byte[]>> future = db.multiRead(msg.getColFam(), keys);
+    Futures.addCallback(future, new FutureCallback<List<byte[]>>() {
+      @Override
+      public void onSuccess(List<byte[]> result) {
+        byte[] val = null;
+        if (result != null) {
+          List<DBRecord> records = new ArrayList<>(keys.size());
+          for (int i = 0; i < keys.size(); i++) {
+            records.add(new DBRecord(msg.getColFam(), keys.get(i), result.get(i)));
+          }
+          val = ChicagoRecordBatch.encode(records, true, 0);
+        }
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            msg.getColFam(),
+            Boolean.toString(result != null).getBytes(),
+            val
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  private ListenableFuture<?> handleMultiPut(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    ListenableFuture<Boolean> future = db.multiWrite(msg.getColFam(), batchOf(msg).records(msg.getColFam()));
+    Futures.addCallback(future, new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean result) {
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            msg.getColFam(),
+            Boolean.toString(result).getBytes(),
+            null
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  /**
+   * Loads a batch of records moved here by a rebalance, the key says whether the column family holds
+   * a time series.
+   */
+  private ListenableFuture<?> handleBulkLoad(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    boolean timeSeries = msg.getKey() != null && ChiUtil.TS.equals(new String(msg.getKey()));
+    ListenableFuture<Boolean> future = db.bulkLoad(msg.getColFam(), timeSeries, batchOf(msg).records(msg.getColFam()));
+    Futures.addCallback(future, new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean result) {
+        replyStatus(ctx, msg, Boolean.toString(result), writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  /**
+   * Stores the offsets a consumer group commits, see {@link ConsumerOffsets}. The column family names
+   * the group.
+   */
+  private ListenableFuture<?> handleCommitOffsets(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    List<DBRecord> records = ConsumerOffsets.commits(msg.getColFam(), batchOf(msg));
+    if (records == null) {
+      replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      return null;
+    }
+    ListenableFuture<Boolean> future;
+    if (Arrays.equals(ConsumerOffsets.MERGE, msg.getKey())) {
+      // a copy from another replica, only offsets it raises are written
+      List<byte[]> keys = new ArrayList<>(records.size());
+      records.forEach(record -> keys.add(record.getKey()));
+      future = Futures.transformAsync(db.multiRead(ConsumerOffsets.COL_FAM, keys), current -> {
+        if (current == null) {
+          return Futures.immediateFuture(false);
+        }
+        List<DBRecord> raising = ConsumerOffsets.raising(records, current);
+        return raising.isEmpty() ? Futures.immediateFuture(true) : db.multiWrite(ConsumerOffsets.COL_FAM, raising);
+      });
+    } else {
+      future = db.multiWrite(ConsumerOffsets.COL_FAM, records);
+    }
+    Futures.addCallback(future, new FutureCallback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean result) {
+        replyStatus(ctx, msg, Boolean.toString(result), writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  /**
+   * Answers with the offsets the group committed for the column families asked for, as a batch of
+   * column family and offset, a null value where it has none.
+   */
+  private ListenableFuture<?> handleFetchOffsets(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    final List<byte[]> colFams = batchOf(msg).keys();
+    ListenableFuture<List<byte[]>> future = db.multiRead(ConsumerOffsets.COL_FAM, ConsumerOffsets.keys(msg.getColFam(), colFams));
+    Futures.addCallback(future, new FutureCallback<List<byte[]>>() {
+      @Override
+      public void onSuccess(List<byte[]> result) {
+        if (result == null) {
+          replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+          return;
+        }
+        List<DBRecord> offsets = new ArrayList<>(colFams.size());
+        for (int i = 0; i < colFams.size(); i++) {
+          offsets.add(new DBRecord(msg.getColFam(), colFams.get(i), result.get(i)));
+        }
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            msg.getColFam(),
+            Boolean.toString(true).getBytes(),
+            ChicagoRecordBatch.encode(offsets, true, 0)
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
       }
     }, ctx.executor());
+    return future;
   }
 
-  private void handleDelete(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+  /**
+   * Answers with the first offset of the column family written at or after the time in the value, in
+   * millis, looked up in the time index.
+   */
+  private ListenableFuture<?> handleSeekTime(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    byte[] millis = msg.getVal();
+    if (millis == null || millis.length != Longs.BYTES) {
+      replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      return null;
+    }
+    ListenableFuture<byte[]> future = db.seekTime(msg.getColFam(), Longs.fromByteArray(millis));
+    Futures.addCallback(future, new FutureCallback<byte[]>() {
+      @Override
+      public void onSuccess(byte[] result) {
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            msg.getColFam(),
+            Boolean.toString(result != null).getBytes(),
+            result
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  private ListenableFuture<?> handleDelete(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
     ListenableFuture<Boolean> future;
     if (msg.getKey().length == 0) {
       future = db.delete(msg.getColFam(), null);
@@ -108,158 +411,508 @@ public class ChicagoDBHandler extends SimpleChannelInboundHandler<ChicagoMessage
       }
       @Override
       public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
       }
     }, ctx.executor());
+    return future;
   }
 
-  private void handleTimeSeriesWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+  private ListenableFuture<?> handleTimeSeriesWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    ListenableFuture<byte[]> future;
     // TODO(CK): batch write should have it's own op
-    if (msg.getKey().length == 0) {
-      if (new String(msg.getVal()).contains(ChiUtil.delimiter)) {
-        ListenableFuture<byte[]> future = db.batchWrite(msg.getColFam(), msg.getVal());
-        Futures.addCallback(future, new FutureCallback<byte[]>() {
-          @Override
-          public void onSuccess(byte[] result) {
-            ctx.writeAndFlush(
-              new DefaultChicagoMessage(
-                msg.getId(),
-                Op.RESPONSE,
-                msg.getColFam(),
-                Boolean.toString(true).getBytes(),
-                result
-              )
-            ).addListener(writeComplete);
-          }
-          @Override
-          public void onFailure(Throwable error) {
-          }
-        }, ctx.executor());
+    if (msg.getKey().length == 0 && containsDelimiter(msg)) {
+      future = db.batchWrite(msg.getColFam(), msg.getVal());
+    } else {
+      byte[] key = msg.getKey().length == 0 ? null : msg.getKey();
+      if (msg instanceof ByteBufChicagoMessage) {
+        future = db.tsWrite(msg.getColFam(), key, ((ByteBufChicagoMessage) msg).valBuf());
       } else {
-        ListenableFuture<byte[]> future = db.tsWrite(msg.getColFam(), null, msg.getVal());
-        Futures.addCallback(future, new FutureCallback<byte[]>() {
-          @Override
-          public void onSuccess(byte[] result) {
-            ctx.writeAndFlush(
-              new DefaultChicagoMessage(
-                msg.getId(),
-                Op.RESPONSE,
-                msg.getColFam(),
-                Boolean.toString(true).getBytes(),
-                result
-              )
-            ).addListener(writeComplete);
-          }
-          @Override
-          public void onFailure(Throwable error) {
-          }
-        }, ctx.executor());
+        future = db.tsWrite(msg.getColFam(), key, msg.getVal());
       }
-    } else {
-      ListenableFuture<byte[]> future = db.tsWrite(msg.getColFam(), msg.getKey(), msg.getVal());
-      Futures.addCallback(future, new FutureCallback<byte[]>() {
-        @Override
-        public void onSuccess(byte[] result) {
-          ctx.writeAndFlush(
-            new DefaultChicagoMessage(
-              msg.getId(),
-              Op.RESPONSE,
-              msg.getColFam(),
-              Boolean.toString(true).getBytes(),
-              result
-            )
-          ).addListener(writeComplete);
-        }
-        @Override
-        public void onFailure(Throwable error) {
-        }
-      }, ctx.executor());
     }
+    Futures.addCallback(future, new FutureCallback<byte[]>() {
+      @Override
+      public void onSuccess(byte[] result) {
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            msg.getColFam(),
+            Boolean.toString(true).getBytes(),
+            result
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
   }
 
-  private void handleStreamingRead(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
-    ListenableFuture<List<DBRecord>> future = db.stream(msg.getColFam(), msg.getVal());
-    Futures.addCallback(future, new FutureCallback<List<DBRecord>>() {
+  /**
+   * Stores a write the client sent to this node only and forwards it to the other replicas, see
+   * {@link ReplicaForwarder}. Answers once enough replicas have it.
+   */
+  private ListenableFuture<?> handleReplicatedWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    // copies, the forwarded writes may outlive the inbound buffer
+    final byte[] colFam = msg.getColFam();
+    final byte[] key = msg.getKey();
+    final byte[] val = msg.getVal();
+    ListenableFuture<Boolean> local = db.write(colFam, key, val);
+    ReplicaForwarder replicas = forwarder;
+    ListenableFuture<Boolean> future = replicas == null ? local : replicas.replicate(Op.WRITE, colFam, key, val, local);
+    Futures.addCallback(future, new FutureCallback<Boolean>() {
       @Override
-      public void onSuccess(List<DBRecord> result) {
-        ByteBuf bb = Unpooled.buffer();
-        ChicagoObjectEncoder encoder = new ChicagoObjectEncoder();
-        for(int i =0; i<result.size(); i++){
-          DBRecord record = result.get(i);
-          if(i == result.size()-1){
-            ByteBuf lastval = Unpooled.buffer();
-            lastval.writeBytes(record.getValue());
-            lastval.writeBytes(ChiUtil.delimiter.getBytes());
-            lastval.writeBytes(record.getKey());
-            record.setValue(lastval.array());
-          }
-          bb.writeBytes(encoder.encode(new DefaultChicagoMessage(msg.getId(),Op.STREAM_RESPONSE,msg.getColFam(),Boolean.toString(true).getBytes(),record.getValue())));
-        }
-        ctx.writeAndFlush(bb).addListener(writeComplete);
+      public void onSuccess(Boolean result) {
+        replyStatus(ctx, msg, Boolean.toString(result), writeComplete);
       }
       @Override
       public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
       }
     }, ctx.executor());
+    return future;
   }
 
-  private void handleScanKeys(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
-    ListenableFuture<List<byte[]>> future = db.getKeys(msg.getColFam());
-    Futures.addCallback(future, new FutureCallback<List<byte[]>>() {
+  /**
+   * Like {@link #handleReplicatedWrite} for a single time series record. Without an offset the record
+   * is numbered by the cluster's offset sequencer, not this node's counter, and stored under that
+   * offset on every replica. That fails when this node does not own the sequences.
+   */
+  private ListenableFuture<?> handleReplicatedTimeSeriesWrite(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    final byte[] colFam = msg.getColFam();
+    final byte[] key = msg.getKey() == null || msg.getKey().length == 0 ? null : msg.getKey();
+    final byte[] val = msg.getVal();
+    ReplicaForwarder replicas = forwarder;
+    // the offset the record is stored under, null if not enough replicas have it
+    ListenableFuture<byte[]> future;
+    if (replicas == null) {
+      future = db.tsWrite(colFam, key, val);
+    } else {
+      ListenableFuture<byte[]> offset = key != null ? Futures.immediateFuture(key)
+          : Futures.transform(sequencer.lease(new String(colFam), 1),
+              (Function<OffsetRange, byte[]>) range -> Longs.toByteArray(range.getStart()));
+      // with a key given, enough peers may have acknowledged before the local write is done
+      future = Futures.transformAsync(offset, stamped -> Futures.transform(
+          replicas.replicate(Op.TS_WRITE, colFam, stamped, val, db.tsWrite(colFam, stamped, val)),
+          (Function<Boolean, byte[]>) replicated -> replicated ? stamped : null));
+    }
+    Futures.addCallback(future, new FutureCallback<byte[]>() {
       @Override
-      public void onSuccess(List<byte[]> result) {
-        ByteBuf bb = Unpooled.buffer();
-        for(byte[] record : result) {
-          String temp = new String(record) + ChiUtil.delimiter;
-          bb.writeBytes(temp.getBytes());
+      public void onSuccess(byte[] offset) {
+        if (offset == null) {
+          replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+          return;
         }
-        ctx.writeAndFlush(
+        respond(ctx,
+          new DefaultChicagoMessage(
+            msg.getId(),
+            Op.RESPONSE,
+            colFam,
+            Boolean.toString(true).getBytes(),
+            offset
+          )
+        ).addListener(writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  private static boolean containsDelimiter(ChicagoMessage msg) {
+    if (msg instanceof ByteBufChicagoMessage) {
+      return ByteBufUtil.indexOf(DELIMITER, ((ByteBufChicagoMessage) msg).valBuf()) >= 0;
+    }
+    return new String(msg.getVal()).contains(ChiUtil.delimiter);
+  }
+
+  private ListenableFuture<?> handleGetOffset(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    return ChicagoPaxosHandler.leaseOffsets(ctx, sequencer, msg, response -> respond(ctx, response).addListener(writeComplete));
+  }
+
+  /**
+   * Answers MERKLE_TREE and MERKLE_KEYS from another replica syncing with this one, see
+   * {@link AntiEntropy}.
+   */
+  private ListenableFuture<?> handleAntiEntropy(ChannelHandlerContext ctx, ChicagoMessage msg, ResponseTimer writeComplete) {
+    if (antiEntropy == null) {
+      replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
+      return null;
+    }
+    if (msg.getOp() == Op.MERKLE_KEYS) {
+      return handleLeafDigests(ctx, msg, writeComplete);
+    }
+    ListenableFuture<byte[]> future = antiEntropy.treeHashes(msg.getColFam(), msg.getVal());
+    Futures.addCallback(future, new FutureCallback<byte[]>() {
+      @Override
+      public void onSuccess(byte[] result) {
+        respond(ctx,
           new DefaultChicagoMessage(
             msg.getId(),
             Op.RESPONSE,
             msg.getColFam(),
             Boolean.toString(true).getBytes(),
-            bb.array()
+            result
           )
         ).addListener(writeComplete);
       }
       @Override
       public void onFailure(Throwable error) {
+        log.error("Error answering " + msg.getOp() + " for " + new String(msg.getColFam()), error);
+        replyStatus(ctx, msg, Boolean.toString(false), writeComplete);
       }
     }, ctx.executor());
+    return future;
   }
 
-  @Override
-  protected void channelRead0(ChannelHandlerContext ctx, ChicagoMessage msg) throws Exception {
-    ChannelFutureListener writeComplete = new ChannelFutureListener() {
+  /**
+   * The digests for MERKLE_KEYS can be many, they go out in chunks like a stream.
+   */
+  private ListenableFuture<?> handleLeafDigests(ChannelHandlerContext ctx, ChicagoMessage msg, ResponseTimer writeComplete) {
+    final UUID id = msg.getId();
+    final byte[] colFam = msg.getColFam();
+    ListenableFuture<List<DBRecord>> future = antiEntropy.leafDigests(colFam, msg.getVal());
+    Futures.addCallback(future, new FutureCallback<List<DBRecord>>() {
       @Override
-      public void operationComplete(ChannelFuture future) {
-        if (!future.isSuccess()) {
-          log.error("Server error writing :" + " For UUID" + msg.getId() + " and key " + new String(msg.getKey()));
-        }
+      public void onSuccess(List<DBRecord> digests) {
+        writeStreamChunks(ctx, id, colFam, digests, 0, 0, writeComplete);
       }
-    };
+      @Override
+      public void onFailure(Throwable error) {
+        log.error("Error answering " + msg.getOp() + " for " + new String(colFam), error);
+        writeChunk(ctx, id, colFam, false, ChicagoRecordBatch.encode(Collections.emptyList(), true, 0), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
 
+  private ListenableFuture<?> handleStreamingRead(ChannelHandlerContext ctx, ChicagoMessage msg, ResponseTimer writeComplete) {
+    final UUID id = msg.getId();
+    final byte[] colFam = msg.getColFam();
+    final byte[] offset = msg.getVal();
+    final long requestedOffset = offset.length == Longs.BYTES ? Longs.fromByteArray(offset) : 0;
+    ListenableFuture<List<DBRecord>> future = db.stream(colFam, offset);
+    Futures.addCallback(future, new FutureCallback<List<DBRecord>>() {
+      @Override
+      public void onSuccess(List<DBRecord> result) {
+        List<DBRecord> records = result == null ? Collections.emptyList() : result;
+        writeStreamChunks(ctx, id, colFam, records, 0, requestedOffset, writeComplete);
+      }
+      @Override
+      public void onFailure(Throwable error) {
+        writeChunk(ctx, id, colFam, false, ChicagoRecordBatch.encode(Collections.emptyList(), true, requestedOffset), writeComplete);
+      }
+    }, ctx.executor());
+    return future;
+  }
+
+  /**
+   * Starts pushing what is appended to the column family to the sender, see {@link Subscriptions}. The
+   * key is the credit in bytes and the value the offset to start at, both optional.
+   */
+  private ListenableFuture<?> handleSubscribe(ChannelHandlerContext ctx, ChicagoMessage msg, ChannelFutureListener writeComplete) {
+    byte[] credit = msg.getKey();
+    long bytes = credit != null && credit.length == Longs.BYTES ? Longs.fromByteArray(credit) : Subscriptions.DEFAULT_CREDIT;
+    return subscriptions.subscribe(ctx, msg.getId(), msg.getColFam(), msg.getVal(), bytes, writeComplete);
+  }
+
+  /**
+   * CREDIT lets a subscription be sent as many more bytes as its key says, UNSUBSCRIBE ends it. Neither
+   * is answered.
+   */
+  private ListenableFuture<?> handleSubscriptionControl(ChicagoMessage msg) {
+    if (msg.getOp() == Op.UNSUBSCRIBE) {
+      subscriptions.unsubscribe(msg.getId());
+    } else if (msg.getKey() != null && msg.getKey().length == Longs.BYTES) {
+      subscriptions.credit(msg.getId(), Longs.fromByteArray(msg.getKey()));
+    }
+    return null;
+  }
+
+  /**
+   * RELEASE_OFFSETS tells that the offset range in its value, left of a producer's lease, is never
+   * written, so subscribers need not wait for it. It is not answered.
+   */
+  private ListenableFuture<?> handleReleaseOffsets(ChicagoMessage msg) {
+    try {
+      subscriptions.released(msg.getColFam(), OffsetRange.decode(msg.getVal()));
+    } catch (IllegalArgumentException e) {
+      log.error("Bad RELEASE_OFFSETS for " + new String(msg.getColFam()), e);
+    }
+    return null;
+  }
+
+  int getSubscriptionCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * Sends records[from..] as STREAM_CHUNK_SIZE sized batches, one chunk per turn of the writer.
+   */
+  private void writeStreamChunks(ChannelHandlerContext ctx, UUID id, byte[] colFam, List<DBRecord> records, int from,
+                                 long requestedOffset, ResponseTimer writeComplete) {
+    int to = from;
+    int size = 0;
+    while (to < records.size() && (to == from || size + ChicagoRecordBatch.sizeOf(records.get(to)) <= STREAM_CHUNK_SIZE)) {
+      size += ChicagoRecordBatch.sizeOf(records.get(to));
+      to++;
+    }
+
+    final List<DBRecord> chunk = records.subList(from, to);
+    final boolean last = to >= records.size();
+    final long nextOffset = ChicagoRecordBatch.nextOffset(chunk, requestedOffset);
+    writeChunk(ctx, id, colFam, true, ChicagoRecordBatch.encode(chunk, last, nextOffset), writeComplete);
+
+    if (!last) {
+      final int next = to;
+      ChunkedReplyWriter.of(ctx.channel()).whenWritable(ctx,
+        () -> writeStreamChunks(ctx, id, colFam, records, next, nextOffset, writeComplete));
+    }
+  }
+
+  private void writeChunk(ChannelHandlerContext ctx, UUID id, byte[] colFam, boolean success, byte[] batch,
+                                 ResponseTimer writeComplete) {
+    ChannelFuture written = respond(ctx,
+      new DefaultChicagoMessage(
+        id,
+        Op.STREAM_RESPONSE,
+        colFam,
+        Boolean.toString(success).getBytes(),
+        batch
+      )
+    ).addListener(writeComplete);
+    if (ChicagoRecordBatch.isLast(batch)) {
+      written.addListener(f -> writeComplete.replied.set(null));
+    }
+  }
+
+  private ListenableFuture<?> handleScanKeys(ChannelHandlerContext ctx, ChicagoMessage msg, ResponseTimer writeComplete) {
+    final UUID id = msg.getId();
+    final byte[] colFam = msg.getColFam();
+    ListenableFuture<List<byte[]>> future = db.getKeys(colFam, new byte[0], SCAN_PAGE_SIZE);
+    Futures.addCallback(future, new ScanPage(ctx, id, colFam, writeComplete), ctx.executor());
+    return future;
+  }
+
+  /**
+   * Writes one page of a key scan as a chunk and, once the channel has room, asks for the next page.
+   */
+  private class ScanPage implements FutureCallback<List<byte[]>> {
+    private final ChannelHandlerContext ctx;
+    private final UUID id;
+    private final byte[] colFam;
+    private final ResponseTimer writeComplete;
+
+    ScanPage(ChannelHandlerContext ctx, UUID id, byte[] colFam, ResponseTimer writeComplete) {
+      this.ctx = ctx;
+      this.id = id;
+      this.colFam = colFam;
+      this.writeComplete = writeComplete;
+    }
+
+    @Override
+    public void onSuccess(List<byte[]> keys) {
+      if (keys == null) {
+        keys = Collections.emptyList();
+      }
+      final boolean last = keys.size() < SCAN_PAGE_SIZE;
+      List<DBRecord> records = new ArrayList<>(keys.size());
+      for (byte[] key : keys) {
+        records.add(new DBRecord(colFam, key, null));
+      }
+      writeChunk(ctx, id, colFam, true, ChicagoRecordBatch.encode(records, last, 0), writeComplete);
+
+      if (!last) {
+        final byte[] nextKey = successor(keys.get(keys.size() - 1));
+        ChunkedReplyWriter.of(ctx.channel()).whenWritable(ctx,
+          () -> Futures.addCallback(db.getKeys(colFam, nextKey, SCAN_PAGE_SIZE), this, ctx.executor()));
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable error) {
+      writeChunk(ctx, id, colFam, false, ChicagoRecordBatch.encode(Collections.emptyList(), true, 0), writeComplete);
+    }
+  }
+
+  // The smallest key sorting after {@code key} in bytewise order
+  private static byte[] successor(byte[] key) {
+    return Arrays.copyOf(key, key.length + 1);
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    flusher(ctx).readComplete(ctx);
+    ctx.fireChannelReadComplete();
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    ChunkedReplyWriter.of(ctx.channel()).writabilityChanged(ctx);
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  /*
+   * Logs failed response writes and records how long the first response of a request took to
+   * encode and flush, and the request as a whole.
+   */
+  private class ResponseTimer implements ChannelFutureListener {
+    private final UUID id;
+    private final Op op;
+    private final byte[] colFam;
+    private final long received;
+    // set when the storage op completes, 0 when there was none
+    volatile long storageDone;
+    // set once the last chunk of a chunked reply is written, or failed to be
+    final SettableFuture<Void> replied = SettableFuture.create();
+    private boolean recorded;
+
+    ResponseTimer(UUID id, Op op, byte[] colFam, long received) {
+      this.id = id;
+      this.op = op;
+      this.colFam = colFam;
+      this.received = received;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+      if (!future.isSuccess()) {
+        log.error("Server error writing :" + " For UUID" + id + " and op " + op);
+        return;
+      }
+      if (!recorded) {
+        recorded = true;
+        long now = System.nanoTime();
+        long responseStart = storageDone == 0 ? received : storageDone;
+        metrics.record(op, colFam, Stage.RESPONSE, now - responseStart);
+        metrics.record(op, colFam, Stage.TOTAL, now - received);
+      }
+    }
+  }
+
+  // Replies that go out as chunks once storage has answered, SUBSCRIBE is not one, it never ends
+  private static boolean isChunked(Op op) {
+    return op == Op.STREAM || op == Op.SCAN_KEYS || op == Op.MERKLE_KEYS;
+  }
+
+  // When the last chunk is written, or the channel closes, with the rest of the reply left unsent
+  private static ListenableFuture<Void> replied(ChannelHandlerContext ctx, ResponseTimer writeComplete) {
+    ChannelFutureListener closed = f -> writeComplete.replied.set(null);
+    ctx.channel().closeFuture().addListener(closed);
+    writeComplete.replied.addListener(() -> ctx.channel().closeFuture().removeListener(closed),
+        MoreExecutors.directExecutor());
+    return writeComplete.replied;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, ChicagoMessage msg) throws Exception {
+    final long received = System.nanoTime();
+    final UUID id = msg.getId();
+    final Op op = msg.getOp();
+    final byte[] colFam = msg.getColFam();
+    long decode = DecodeTimer.since(ctx.channel(), received);
+    if (decode >= 0) {
+      metrics.record(op, colFam, Stage.DECODE, decode);
+    }
+    ResponseTimer writeComplete = new ResponseTimer(id, op, colFam, received);
+
+    final long size = requestSize(msg);
+    if (!admission.tryAcquire(op, size)) {
+      replyStatus(ctx, msg, ChiUtil.OVERLOADED, writeComplete);
+      admission.pause(ctx.channel());
+      return;
+    }
+
+    ListenableFuture<?> future;
     switch (msg.getOp()) {
       case READ:
-        handleRead(ctx, msg, writeComplete);
+        future = handleRead(ctx, msg, writeComplete);
         break;
       case WRITE:
-        handleWrite(ctx, msg, writeComplete);
+        future = handleWrite(ctx, msg, writeComplete);
         break;
       case DELETE:
-        handleDelete(ctx, msg, writeComplete);
+        future = handleDelete(ctx, msg, writeComplete);
         break;
       case TS_WRITE:
-        handleTimeSeriesWrite(ctx, msg, writeComplete);
+        future = handleTimeSeriesWrite(ctx, msg, writeComplete);
         break;
       case STREAM:
-        handleStreamingRead(ctx, msg, writeComplete);
+        future = handleStreamingRead(ctx, msg, writeComplete);
         break;
       case SCAN_KEYS:
-        handleScanKeys(ctx, msg, writeComplete);
+        future = handleScanKeys(ctx, msg, writeComplete);
+        break;
+      case SUBSCRIBE:
+        future = handleSubscribe(ctx, msg, writeComplete);
+        break;
+      case CREDIT:
+      case UNSUBSCRIBE:
+        future = handleSubscriptionControl(msg);
+        break;
+      case RELEASE_OFFSETS:
+        future = handleReleaseOffsets(msg);
+        break;
+      case MULTI_GET:
+        future = handleMultiGet(ctx, msg, writeComplete);
+        break;
+      case MULTI_PUT:
+        future = handleMultiPut(ctx, msg, writeComplete);
+        break;
+      case BULK_LOAD:
+        future = handleBulkLoad(ctx, msg, writeComplete);
+        break;
+      case COMMIT_OFFSETS:
+        future = handleCommitOffsets(ctx, msg, writeComplete);
+        break;
+      case FETCH_OFFSETS:
+        future = handleFetchOffsets(ctx, msg, writeComplete);
+        break;
+      case SEEK_TIME:
+        future = handleSeekTime(ctx, msg, writeComplete);
+        break;
+      case GET_OFFSET:
+        future = handleGetOffset(ctx, msg, writeComplete);
+        break;
+      case REPLICATED_WRITE:
+        future = handleReplicatedWrite(ctx, msg, writeComplete);
+        break;
+      case REPLICATED_TS_WRITE:
+        future = handleReplicatedTimeSeriesWrite(ctx, msg, writeComplete);
+        break;
+      case MERKLE_TREE:
+      case MERKLE_KEYS:
+        future = handleAntiEntropy(ctx, msg, writeComplete);
         break;
       default:
+        future = null;
         break;
     }
+
+    if (future == null) {
+      admission.release(size);
+    } else {
+      future.addListener(() -> writeComplete.storageDone = System.nanoTime(), MoreExecutors.directExecutor());
+      // a chunked reply holds on to what it was admitted with until its last chunk is out
+      ListenableFuture<?> done = isChunked(op) ? replied(ctx, writeComplete) : future;
+      done.addListener(() -> admission.release(size), MoreExecutors.directExecutor());
+      // runs after the handler's callback has written the response, see below
+      ResponseFlusher flusher = flusher(ctx);
+      flusher.requestStarted();
+      future.addListener(() -> flusher.requestDone(ctx), ctx.executor());
+    }
+
+    if (future != null && msg instanceof ReferenceCounted) {
+      // Zero copy messages point into the inbound buffer, keep it alive until the storage op and the
+      // response built from the message are done. Listeners on the same executor run in the order they
+      // were added, so this runs after the callback registered by the handler.
+      ReferenceCountUtil.retain(msg);
+      future.addListener(() -> ReferenceCountUtil.release(msg), ctx.executor());
+    }
   }
 }
@@ -1,94 +1,76 @@
 package com.xjeffrose.chicago.server;
 
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoMessage;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
 import com.xjeffrose.chicago.Op;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.util.internal.PlatformDependent;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-// This is a state machine to manage offsets for our Time Series Database functionality
-// in our streaming functionality
+// Answers GET_OFFSET with a lease of offsets from the time series sequencer, see OffsetSequencer.
+//
+// Request: colFam, val = number of offsets wanted (int).
+// Response: "true" with an OffsetRange, "redirect" with the owner's address when this node does not
+// own the sequences, or "false".
 
 @ChannelHandler.Sharable
 public class ChicagoPaxosHandler extends SimpleChannelInboundHandler<ChicagoMessage> {
-  private final Map<String, AtomicLong> offset;
-  private final Map<String, Integer> q;
-  private final Map<String, Map<String, Long>> sessionCoordinator;
-  private final Map<String, AtomicInteger> qCount;
+  private static final Logger log = LoggerFactory.getLogger(ChicagoPaxosHandler.class);
 
-  public ChicagoPaxosHandler(Map<String, AtomicLong> offset,
-                             Map<String, Integer> q,
-                             Map<String, Map<String, Long>> sessionCoordinator,
-                             Map<String, AtomicInteger> qCount) {
+  private final OffsetSequencer sequencer;
 
-    this.offset = offset;
-    this.q = q;
-    this.sessionCoordinator = sessionCoordinator;
-    this.qCount = qCount;
+  public ChicagoPaxosHandler(OffsetSequencer sequencer) {
+    this.sequencer = sequencer;
+  }
+
+  /**
+   * Leases the offsets a GET_OFFSET asks for and hands the answer to {@code reply} on the channel's
+   * executor.
+   */
+  static ListenableFuture<OffsetRange> leaseOffsets(ChannelHandlerContext ctx, OffsetSequencer sequencer,
+                                                   ChicagoMessage msg, Consumer<ChicagoMessage> reply) {
+    final UUID id = msg.getId();
+    final byte[] colFam = msg.getColFam();
+    final byte[] val = msg.getVal();
+    final int count = val != null && val.length == Ints.BYTES ? Ints.fromByteArray(val) : 1;
+
+    ListenableFuture<OffsetRange> future = sequencer.lease(new String(colFam), count);
+    Futures.addCallback(future, new FutureCallback<OffsetRange>() {
+      @Override
+      public void onSuccess(OffsetRange range) {
+        reply.accept(new DefaultChicagoMessage(id, Op.RESPONSE, colFam, Boolean.toString(true).getBytes(), range.encode()));
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        if (error instanceof OffsetSequencer.NotOwnerException) {
+          String owner = ((OffsetSequencer.NotOwnerException) error).getOwner();
+          reply.accept(new DefaultChicagoMessage(id, Op.RESPONSE, colFam, ChiUtil.REDIRECT.getBytes(),
+              owner == null ? null : owner.getBytes()));
+        } else {
+          log.error("Error leasing offsets of " + new String(colFam), error);
+          reply.accept(new DefaultChicagoMessage(id, Op.RESPONSE, colFam, Boolean.toString(false).getBytes(), null));
+        }
+      }
+    }, ctx.executor());
+    return future;
   }
 
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, ChicagoMessage msg) throws Exception {
     switch (msg.getOp()) {
       case GET_OFFSET:
-        // The ColFam Exists
-        if (offset.containsKey(new String(msg.getColFam()))) {
-          // This offset has been written to all members of the replica set
-          if (qCount.get(new String(msg.getColFam())).get() == q.get(new String(msg.getColFam()))) {
-            if (sessionCoordinator.containsKey(new String(msg.getColFam()))) {
-
-            } else {
-              sessionCoordinator.put(new String(msg.getColFam()), PlatformDependent.newConcurrentHashMap());
-              sessionCoordinator.get(new String(msg.getKey())).put(new String(msg.getKey()), offset.get(new String(msg.getColFam())).incrementAndGet());
-            }
-
-            ctx.writeAndFlush(new DefaultChicagoMessage(
-                msg.getId(),
-                Op.RESPONSE,
-                msg.getColFam(),
-                null,
-                Longs.toByteArray(offset.get(new String(msg.getColFam())).incrementAndGet())));
-            qCount.get(new String(msg.getColFam())).incrementAndGet();
-            sessionCoordinator.get(new String(msg.getColFam())).put(new String(msg.getKey()), offset.get(new String(msg.getColFam())).get());
-
-          } else {
-            // Return current offset to member of the replica set
-            ctx.writeAndFlush(new DefaultChicagoMessage(
-                msg.getId(),
-                Op.RESPONSE,
-                msg.getColFam(),
-                null,
-                Longs.toByteArray(offset.get(new String(msg.getColFam())).get())));
-            qCount.get(new String(msg.getColFam())).incrementAndGet();
-
-          }
-
-
-
-        } else {
-          // Create the offset for the ColFam on first message (ColFam Create)
-          offset.put(new String(msg.getColFam()), new AtomicLong());
-          q.put(new String(msg.getColFam()), Ints.fromByteArray(msg.getVal()));
-          qCount.put(new String(msg.getColFam()), new AtomicInteger());
-          sessionCoordinator.put(new String(msg.getColFam()), PlatformDependent.newConcurrentHashMap());
-
-          ctx.writeAndFlush(new DefaultChicagoMessage(
-              msg.getId(),
-              Op.RESPONSE,
-              msg.getColFam(),
-              null,
-              Longs.toByteArray(offset.get(new String(msg.getColFam())).get())));
-          qCount.get(new String(msg.getColFam())).incrementAndGet();
-          sessionCoordinator.get(new String(msg.getColFam())).put(new String(msg.getKey()), offset.get(new String(msg.getColFam())).get());
-
-        }
+        leaseOffsets(ctx, sequencer, msg, ctx::writeAndFlush);
         break;
 
       default:
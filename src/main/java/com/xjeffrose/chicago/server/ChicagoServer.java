@@ -25,8 +25,11 @@ public class ChicagoServer {
     this.config = config;
     zkClient = new ZkClient(config.getZkHosts(),true);
     db = getStorageProvider(config);
-    nodeWatcher = new NodeWatcher(NODE_LIST_PATH, NODE_LOCK_PATH, config.getQuorum());
-    dbRouter = new DBRouter(db);
+    Rebalancer rebalancer = new Rebalancer(db, NODE_LIST_PATH, NODE_LOCK_PATH, config.getQuorum(),
+        config.getRebalanceParallelism(), config.getRebalanceRate());
+    nodeWatcher = new NodeWatcher(NODE_LIST_PATH, rebalancer);
+    dbRouter = new DBRouter(config, db);
+    dbRouter.setRebalancer(rebalancer);
 //    config.setZkClient(zkClient);
   }
 
@@ -54,10 +57,16 @@ public class ChicagoServer {
       zkClient.start();
     }
     zkClient.register(NODE_LIST_PATH, config, dbRouter.getDBBoundInetAddress());
-    zkClient.electLeader(ELECTION_PATH);
+    zkClient.electLeader(ELECTION_PATH, getDBAddress());
     zkClient.createIfNotExist(NODE_LOCK_PATH,"");
     nodeWatcher.refresh(zkClient, db, getDBAddress());
     db.setZkClient(zkClient);
+    dbRouter.setZkClient(zkClient);
+    // InMemDBImpl cannot list keys, so hints are only kept in database mode
+    ReplicaForwarder forwarder = new ReplicaForwarder(zkClient, getDBAddress(), config.getQuorum(), config.getWriteAcks(),
+        config.isDatabaseMode() ? db : null);
+    dbRouter.setReplicaForwarder(forwarder);
+    dbRouter.startAntiEntropy(forwarder, zkClient, getDBAddress(), config.getAntiEntropyInterval());
   }
 
   public void stop() {
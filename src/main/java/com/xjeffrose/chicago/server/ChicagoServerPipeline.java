@@ -1,8 +1,12 @@
 package com.xjeffrose.chicago.server;
 
 import com.xjeffrose.chicago.ChicagoCodec;
+import com.xjeffrose.chicago.ChicagoCompressionHandler;
+import com.xjeffrose.chicago.ChicagoWireFormat;
 import com.xjeffrose.xio.pipeline.XioTlsServerPipeline;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
 
 public class ChicagoServerPipeline extends XioTlsServerPipeline {
 
@@ -14,7 +18,17 @@ public class ChicagoServerPipeline extends XioTlsServerPipeline {
 
   @Override
   public ChannelHandler getCodecHandler() {
-    return new ChicagoCodec();
+    // Server side handlers release what they are handed, so skip the per message heap copies
+    final ChicagoCodec codec = new ChicagoCodec(ChicagoWireFormat.V1, true);
+    // xio only installs one codec handler, slot the compression stage in front of the codec once it is added
+    return new ChannelHandlerAdapter() {
+      @Override
+      public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ctx.pipeline().addBefore(ctx.name(), "chicago compression", ChicagoCompressionHandler.server());
+        ctx.pipeline().addBefore("chicago compression", "chicago decode timer", new DecodeTimer());
+        ctx.pipeline().replace(this, ctx.name(), codec);
+      }
+    };
   }
 
   @Override
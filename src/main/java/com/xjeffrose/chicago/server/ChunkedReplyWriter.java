@@ -0,0 +1,64 @@
+package com.xjeffrose.chicago.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/*
+ * Paces replies that go out as several chunks. Between chunks the reply hands its continuation to
+ * whenWritable, which runs it right away while the channel can take more and otherwise parks it until
+ * channelWritabilityChanged reports room in the outbound buffer again. A reply therefore never has
+ * more than one chunk queued beyond the high water mark, however large it is in total.
+ *
+ * One per channel, only used from the channel's event loop.
+ */
+class ChunkedReplyWriter {
+  private static final AttributeKey<ChunkedReplyWriter> KEY = AttributeKey.valueOf("chicagoChunkedReplyWriter");
+
+  private final Queue<Runnable> parked = new ArrayDeque<>();
+
+  static ChunkedReplyWriter of(Channel channel) {
+    Attribute<ChunkedReplyWriter> attr = channel.attr(KEY);
+    ChunkedReplyWriter writer = attr.get();
+    if (writer == null) {
+      writer = new ChunkedReplyWriter();
+      ChunkedReplyWriter existing = attr.setIfAbsent(writer);
+      if (existing != null) {
+        writer = existing;
+      }
+    }
+    return writer;
+  }
+
+  /**
+   * Runs {@code next} once the channel is writable. Continuations run in the order they were handed in.
+   */
+  void whenWritable(ChannelHandlerContext ctx, Runnable next) {
+    if (!ctx.channel().isActive()) {
+      return;
+    }
+    if (parked.isEmpty() && ctx.channel().isWritable()) {
+      next.run();
+    } else {
+      parked.add(next);
+    }
+  }
+
+  void writabilityChanged(ChannelHandlerContext ctx) {
+    Runnable next;
+    while (ctx.channel().isWritable() && (next = parked.poll()) != null) {
+      next.run();
+    }
+  }
+
+  void clear() {
+    parked.clear();
+  }
+
+  int parked() {
+    return parked.size();
+  }
+}
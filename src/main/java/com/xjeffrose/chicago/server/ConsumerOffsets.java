@@ -0,0 +1,201 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.StorageProvider;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Offsets committed by consumer groups, kept in a node local column family on the replicas of the
+ * column families they consume, see ConsumerGroup.
+ *
+ * Key: <group> 0x00 <colFam>, so the offsets of a group are contiguous.
+ * Value: <offset, 8 bytes>, where the group picks up reading the column family.
+ *
+ * COMMIT_OFFSETS and FETCH_OFFSETS name the group as their column family and carry the consumed
+ * column families as the keys of a record batch, with the offsets as values on a commit.
+ *
+ * The offsets of a column family follow it to the nodes that become its replicas: a rebalance move
+ * copies them after the records, and anti-entropy pushes those of the first replica to the others. Both
+ * send a COMMIT_OFFSETS keyed MERGE, which only raises an offset, so a copy never takes a group back
+ * behind what it committed to the receiving node itself.
+ *
+ * The lag of a
+ * group is how far its offset is behind the end of the column family on this node. Working it out
+ * scans the offsets, so it is done on a thread of its own at most every LAG_REFRESH_MILLIS, and
+ * scrapes get the lag as of then.
+ */
+@Slf4j
+public class ConsumerOffsets implements Closeable {
+  static final byte[] COL_FAM = (ChiUtil.LOCAL_COLFAM_PREFIX + "offsets").getBytes();
+  // key of a COMMIT_OFFSETS copied from another replica
+  static final byte[] MERGE = "merge".getBytes();
+  static final long LAG_REFRESH_MILLIS = 5000;
+
+  private final StorageProvider db;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("chicago-consumer-lag-%d")
+      .setDaemon(true)
+      .build());
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile Map<String, Number> lag = Collections.emptyMap();
+  // nanoTime of the last refresh, null before the first
+  private volatile Long refreshedAt;
+
+  ConsumerOffsets(StorageProvider db) {
+    this.db = db;
+  }
+
+  static byte[] key(byte[] group, byte[] colFam) {
+    byte[] key = new byte[group.length + 1 + colFam.length];
+    System.arraycopy(group, 0, key, 0, group.length);
+    System.arraycopy(colFam, 0, key, group.length + 1, colFam.length);
+    return key;
+  }
+
+  /**
+   * The records to store for a COMMIT_OFFSETS of {@code group}, null if an offset is not 8 bytes.
+   */
+  static List<DBRecord> commits(byte[] group, ChicagoRecordBatch batch) {
+    List<DBRecord> records = new ArrayList<>(batch.count());
+    for (DBRecord offset : batch.records(group)) {
+      if (offset.getValue() == null || offset.getValue().length != Longs.BYTES) {
+        return null;
+      }
+      records.add(new DBRecord(COL_FAM, key(group, offset.getKey()), offset.getValue()));
+    }
+    return records;
+  }
+
+  static List<byte[]> keys(byte[] group, List<byte[]> colFams) {
+    List<byte[]> keys = new ArrayList<>(colFams.size());
+    for (byte[] colFam : colFams) {
+      keys.add(key(group, colFam));
+    }
+    return keys;
+  }
+
+  /**
+   * Of {@code commits}, the ones that raise the offsets {@code current} holds for them in order, null
+   * where there is none.
+   */
+  static List<DBRecord> raising(List<DBRecord> commits, List<byte[]> current) {
+    List<DBRecord> raising = new ArrayList<>(commits.size());
+    for (int i = 0; i < commits.size(); i++) {
+      byte[] offset = current.get(i);
+      if (offset == null || offset.length != Longs.BYTES
+          || Longs.fromByteArray(commits.get(i).getValue()) > Longs.fromByteArray(offset)) {
+        raising.add(commits.get(i));
+      }
+    }
+    return raising;
+  }
+
+  /**
+   * The offsets committed here for {@code colFam}, by group, as the records of a COMMIT_OFFSETS.
+   */
+  static Map<String, List<DBRecord>> committed(StorageProvider db, byte[] colFam) {
+    Map<String, List<DBRecord>> byGroup = new LinkedHashMap<>();
+    db.scan(COL_FAM, (key, val) -> {
+      int separator = separator(key);
+      if (separator < 0 || val.length != Longs.BYTES || key.length - separator - 1 != colFam.length) {
+        return;
+      }
+      for (int i = 0; i < colFam.length; i++) {
+        if (key[separator + 1 + i] != colFam[i]) {
+          return;
+        }
+      }
+      String group = new String(key, 0, separator);
+      byGroup.computeIfAbsent(group, k -> new ArrayList<>()).add(new DBRecord(group.getBytes(), colFam, val));
+    });
+    return byGroup;
+  }
+
+  /**
+   * Sends the offsets committed here for {@code colFam} to {@code node}, one COMMIT_OFFSETS per group.
+   * The node keeps the higher of its own offset and the copy.
+   */
+  public static void copy(StorageProvider db, byte[] colFam, ChicagoAsyncClient client, String node,
+                          long timeoutMillis) throws Exception {
+    for (Map.Entry<String, List<DBRecord>> group : committed(db, colFam).entrySet()) {
+      client.request(node, Op.COMMIT_OFFSETS, group.getKey().getBytes(), MERGE,
+          ChicagoRecordBatch.encode(group.getValue(), true, 0)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static int separator(byte[] key) {
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The lag as of the last refresh, for the stats server, without blocking. Starts a refresh if that
+   * one is older than LAG_REFRESH_MILLIS.
+   */
+  Map<String, Number> lag() {
+    Long last = refreshedAt;
+    if ((last == null || System.nanoTime() - last >= TimeUnit.MILLISECONDS.toNanos(LAG_REFRESH_MILLIS))
+        && refreshing.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          lag = currentLag();
+          refreshedAt = System.nanoTime();
+        } catch (Exception e) {
+          log.error("Could not work out the consumer lag", e);
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    }
+    return lag;
+  }
+
+  /**
+   * Lag of every group with an offset here, by group and column family, as labeled gauges. Groups of
+   * column families this node does not hold are left out.
+   */
+  Map<String, Number> currentLag() {
+    Map<String, Number> lag = new LinkedHashMap<>();
+    db.scan(COL_FAM, (key, val) -> {
+      int separator = separator(key);
+      if (separator < 0 || val.length != Longs.BYTES) {
+        return;
+      }
+      String group = new String(key, 0, separator);
+      byte[] colFam = new byte[key.length - separator - 1];
+      System.arraycopy(key, separator + 1, colFam, 0, colFam.length);
+      byte[] end = db.nextOffset(colFam);
+      if (end == null) {
+        return;
+      }
+      lag.put(StatsHandler.series("consumer_lag", "group", group, "colfam", new String(colFam)),
+          Math.max(Longs.fromByteArray(end) - Longs.fromByteArray(val), 0));
+    });
+    return lag;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -1,5 +1,10 @@
 package com.xjeffrose.chicago.server;
 
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoCompressionHandler;
+import com.xjeffrose.chicago.Rebalancer;
+import com.xjeffrose.chicago.RequestMetrics;
+import com.xjeffrose.chicago.ZkClient;
 import com.xjeffrose.chicago.db.DBManager;
 import com.xjeffrose.chicago.db.RocksDBImpl;
 import com.xjeffrose.chicago.db.StorageProvider;
@@ -8,13 +13,11 @@ import com.xjeffrose.xio.bootstrap.ApplicationBootstrap;
 
 import com.xjeffrose.xio.pipeline.XioSslHttp1_1Pipeline;
 import io.netty.channel.ChannelHandler;
-import io.netty.util.internal.PlatformDependent;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,24 +27,77 @@ public class DBRouter implements Closeable {
   //TODO(JR): Make this concurrent to applow for parallel streams
   private final StorageProvider db;
   private final DBManager manager;
-  private final ChannelHandler handler;
+  private final ChicagoDBHandler handler;
+  private final AdmissionController admission;
+  private final StatsHandler statsHandler;
+  private final AdminHandler adminHandler;
+  private final OffsetSequencer sequencer;
   private final ChicagoPaxosHandler chicagoPaxosHandler;
-  private final Map<String, AtomicLong> offset;
-  private final Map<String, Integer> q;
-  private final Map<String, Map<String, Long>> sessionCoordinator;
-  private final Map<String, AtomicInteger> qCount;
+  private final AntiEntropy antiEntropy;
+  private final ConsumerOffsets consumerOffsets;
+  private volatile ReplicaForwarder forwarder;
 
   private Application application;
 
   public DBRouter(StorageProvider db) {
+    this(db, new DBManager(db), AdmissionController.unbounded(), ResponseFlusher.DEFAULT_MAX_DELAY_NANOS,
+        Subscriptions.DEFAULT_LINGER_NANOS, Subscriptions.DEFAULT_GAP_WAIT_NANOS);
+  }
+
+  public DBRouter(ChiConfig config, StorageProvider db) {
+    this(db, new DBManager(db, config.getDbWorkers(), config.getDbWaitStrategy(),
+        config.getDbGroupCommitMaxWrites(), config.getDbGroupCommitMaxBytes(),
+        config.getDbReadThreads(), config.getDbReadQueueSize(), new RequestMetrics()),
+        new AdmissionController(config.getMaxInFlightRequests(), config.getMaxInFlightBytes()),
+        config.getResponseFlushDelay(), config.getSubscriptionLinger(),
+        config.getSubscriptionGapWait());
+  }
+
+  private DBRouter(StorageProvider db, DBManager manager, AdmissionController admission, long flushDelayNanos,
+                   long subscriptionLingerNanos, long subscriptionGapWaitNanos) {
     this.db = db;
-    this.manager = new DBManager(db);
-    this.handler = new ChicagoDBHandler(manager);
-    this.offset = PlatformDependent.newConcurrentHashMap();
-    this.q = PlatformDependent.newConcurrentHashMap();
-    this.sessionCoordinator = PlatformDependent.newConcurrentHashMap();
-    this.qCount = PlatformDependent.newConcurrentHashMap();
-    this.chicagoPaxosHandler = new ChicagoPaxosHandler(offset, q, sessionCoordinator, qCount);
+    this.manager = manager;
+    this.admission = admission;
+    this.sequencer = new OffsetSequencer();
+    this.antiEntropy = new AntiEntropy(db);
+    this.consumerOffsets = new ConsumerOffsets(db);
+    this.handler = new ChicagoDBHandler(manager, admission, flushDelayNanos, sequencer, antiEntropy,
+        new Subscriptions(manager, subscriptionLingerNanos, subscriptionGapWaitNanos));
+    this.statsHandler = new StatsHandler(manager.getMetrics(), this::gauges);
+    this.adminHandler = new AdminHandler(db);
+    this.chicagoPaxosHandler = new ChicagoPaxosHandler(sequencer);
+  }
+
+  /**
+   * Hands the offset sequencer to ZooKeeper: from now on only the elected leader leases offsets.
+   */
+  public void setZkClient(ZkClient zkClient) {
+    sequencer.setZkClient(zkClient);
+  }
+
+  /**
+   * From now on writes clients send to this node only are forwarded to the other replicas.
+   */
+  public void setReplicaForwarder(ReplicaForwarder forwarder) {
+    this.forwarder = forwarder;
+    handler.setReplicaForwarder(forwarder);
+  }
+
+  /**
+   * Reports the progress of {@code rebalancer} on the admin server.
+   */
+  public void setRebalancer(Rebalancer rebalancer) {
+    adminHandler.setRebalancer(rebalancer);
+  }
+
+  /**
+   * Starts syncing the time series this node is the first replica of every {@code intervalMillis},
+   * see {@link AntiEntropy}. Other replicas are answered either way. The type of a column family is
+   * the data of its replication lock.
+   */
+  public void startAntiEntropy(ReplicaForwarder forwarder, ZkClient zkClient, String self, long intervalMillis) {
+    antiEntropy.start(forwarder.getPeers(), self, intervalMillis,
+        colFam -> ChiUtil.TS.equals(zkClient.get(ChicagoServer.NODE_LOCK_PATH + "/" + colFam)));
   }
 
   private ChicagoServerPipeline buildDbPipeline() {
@@ -53,6 +109,45 @@ public class DBRouter implements Closeable {
     };
   }
 
+  private XioSslHttp1_1Pipeline buildAdminPipeline() {
+    return new XioSslHttp1_1Pipeline() {
+      @Override
+      public ChannelHandler getApplicationHandler() {
+        return adminHandler;
+      }
+    };
+  }
+
+  private XioSslHttp1_1Pipeline buildStatsPipeline() {
+    return new XioSslHttp1_1Pipeline() {
+      @Override
+      public ChannelHandler getApplicationHandler() {
+        return statsHandler;
+      }
+    };
+  }
+
+  private Map<String, Number> gauges() {
+    Map<String, Number> gauges = new LinkedHashMap<>();
+    for (int i = 0; i < manager.getWorkerCount(); i++) {
+      gauges.put("db_worker_" + i + "_queue_depth", manager.getQueueDepth(i));
+    }
+    gauges.put("db_pending_reads", manager.getPendingReads());
+    gauges.put("in_flight_requests", admission.getInFlightRequests());
+    gauges.put("in_flight_bytes", admission.getInFlightBytes());
+    gauges.put("rejected_requests_total", admission.getRejected());
+    gauges.put("subscriptions", handler.getSubscriptionCount());
+    gauges.putAll(consumerOffsets.lag());
+    ChicagoCompressionHandler.Stats compression = ChicagoCompressionHandler.SERVER_TOTALS;
+    gauges.put("compression_raw_bytes_out_total", compression.getRawBytesOut());
+    gauges.put("compression_compressed_bytes_out_total", compression.getCompressedBytesOut());
+    gauges.put("compression_nanos_total", compression.getCompressNanos());
+    gauges.put("compression_compressed_bytes_in_total", compression.getCompressedBytesIn());
+    gauges.put("compression_raw_bytes_in_total", compression.getRawBytesIn());
+    gauges.put("decompression_nanos_total", compression.getDecompressNanos());
+    return gauges;
+  }
+
   private ChicagoServerPipeline buildPaxosPipeline() {
     return new ChicagoServerPipeline("paxos") {
       @Override
@@ -67,8 +162,8 @@ public class DBRouter implements Closeable {
     manager.startAsync().awaitRunning();
 
     application = new ApplicationBootstrap("chicago.application")
-      .addServer("admin", (bs) -> bs.addToPipeline(new XioSslHttp1_1Pipeline()))
-      .addServer("stats", (bs) -> bs.addToPipeline(new XioSslHttp1_1Pipeline()))
+      .addServer("admin", (bs) -> bs.addToPipeline(buildAdminPipeline()))
+      .addServer("stats", (bs) -> bs.addToPipeline(buildStatsPipeline()))
       .addServer("db", (bs) -> bs.addToPipeline(buildDbPipeline()))
         .addServer("paxos", (bs) -> bs.addToPipeline(buildPaxosPipeline()))
         .build();
@@ -77,6 +172,13 @@ public class DBRouter implements Closeable {
   @Override
   public void close() throws IOException {
     application.close();
+    adminHandler.close();
+    sequencer.close();
+    antiEntropy.close();
+    consumerOffsets.close();
+    if (forwarder != null) {
+      forwarder.close();
+    }
     manager.stopAsync().awaitTerminated();
   }
 
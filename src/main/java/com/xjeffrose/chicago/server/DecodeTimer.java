@@ -0,0 +1,40 @@
+package com.xjeffrose.chicago.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+/*
+ * Sits in front of the decompression and codec handlers and notes when bytes came off the socket,
+ * so the request handler can tell how long the read it was decoded from took to get to it.
+ *
+ * One per channel.
+ */
+class DecodeTimer extends ChannelInboundHandlerAdapter {
+  private static final AttributeKey<DecodeTimer> KEY = AttributeKey.valueOf("chicagoDecodeTimer");
+
+  private long readNanos;
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    ctx.channel().attr(KEY).set(this);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    readNanos = System.nanoTime();
+    ctx.fireChannelRead(msg);
+  }
+
+  /**
+   * Nanos from the last socket read on {@code channel} to {@code now}, -1 without a timer.
+   */
+  static long since(Channel channel, long now) {
+    DecodeTimer timer = channel.attr(KEY).get();
+    if (timer == null) {
+      return -1;
+    }
+    return now - timer.readNanos;
+  }
+}
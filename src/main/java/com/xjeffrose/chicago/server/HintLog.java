@@ -0,0 +1,171 @@
+package com.xjeffrose.chicago.server;
+
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.StorageProvider;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Writes this node could not forward to a replica, kept in a node local column family until they are
+ * replayed to it, see HintedHandoff.
+ *
+ * Key: <peer> 0x00 <sequence, 8 bytes>, so the hints of a peer are contiguous and in the order their
+ * writes were sent, which need not be the order they were logged in.
+ * Value: <op, 1 byte> <colFam length, 4 bytes> <colFam> <key length, 4 bytes> <key> <val>
+ */
+class HintLog {
+  static final byte[] COL_FAM = (ChiUtil.LOCAL_COLFAM_PREFIX + "hints").getBytes();
+
+  private final StorageProvider db;
+  // starts from the clock so hints logged before a graceful restart still sort first
+  private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+  HintLog(StorageProvider db) {
+    this.db = db;
+  }
+
+  private static byte[] prefix(String peer) {
+    byte[] peerBytes = peer.getBytes();
+    byte[] prefix = new byte[peerBytes.length + 1];
+    System.arraycopy(peerBytes, 0, prefix, 0, peerBytes.length);
+    return prefix;
+  }
+
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    if (bytes.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A number for a write to log, numbers handed out later sort after it.
+   */
+  long nextSequence() {
+    return sequence.getAndIncrement();
+  }
+
+  /**
+   * Logs a write {@code peer} missed under {@code sequence}, from {@link #nextSequence}, so it is
+   * replayed in that order whenever it is logged.
+   */
+  boolean add(String peer, long sequence, Op op, byte[] colFam, byte[] key, byte[] val) {
+    byte[] prefix = prefix(peer);
+    byte[] id = ByteBuffer.allocate(prefix.length + Long.BYTES)
+        .put(prefix)
+        .putLong(sequence)
+        .array();
+    return db.write(COL_FAM, id, new Hint(id, op, colFam, key, val).encode());
+  }
+
+  /**
+   * The peers with hints logged, one seek each.
+   */
+  List<String> peers() {
+    List<String> peers = new ArrayList<>();
+    byte[] from = new byte[0];
+    while (true) {
+      List<byte[]> keys = db.getKeys(COL_FAM, from, 1);
+      if (keys == null || keys.isEmpty()) {
+        return peers;
+      }
+      byte[] key = keys.get(0);
+      int end = 0;
+      while (end < key.length && key[end] != 0) {
+        end++;
+      }
+      if (end < key.length) {
+        peers.add(new String(key, 0, end));
+      }
+      // past every key of that peer
+      from = Arrays.copyOf(key, end + 1);
+      from[end] = 1;
+    }
+  }
+
+  /**
+   * The oldest {@code limit} hints for {@code peer}.
+   */
+  List<Hint> next(String peer, int limit) {
+    byte[] prefix = prefix(peer);
+    List<byte[]> keys = db.getKeys(COL_FAM, prefix, limit);
+    List<byte[]> ids = new ArrayList<>();
+    if (keys != null) {
+      for (byte[] key : keys) {
+        if (!startsWith(key, prefix)) {
+          break;
+        }
+        ids.add(key);
+      }
+    }
+    List<Hint> hints = new ArrayList<>(ids.size());
+    if (ids.isEmpty()) {
+      return hints;
+    }
+    List<byte[]> values = db.multiRead(COL_FAM, ids);
+    for (int i = 0; i < ids.size(); i++) {
+      if (values.get(i) != null) {
+        hints.add(Hint.decode(ids.get(i), values.get(i)));
+      }
+    }
+    return hints;
+  }
+
+  void remove(List<Hint> hints) {
+    for (Hint hint : hints) {
+      db.delete(COL_FAM, hint.id);
+    }
+  }
+
+  static final class Hint {
+    final byte[] id;
+    final Op op;
+    final byte[] colFam;
+    final byte[] key;
+    final byte[] val;
+
+    Hint(byte[] id, Op op, byte[] colFam, byte[] key, byte[] val) {
+      this.id = id;
+      this.op = op;
+      this.colFam = colFam;
+      this.key = key == null ? new byte[0] : key;
+      this.val = val == null ? new byte[0] : val;
+    }
+
+    long sequence() {
+      return ByteBuffer.wrap(id, id.length - Long.BYTES, Long.BYTES).getLong();
+    }
+
+    byte[] encode() {
+      return ByteBuffer.allocate(1 + Integer.BYTES + colFam.length + Integer.BYTES + key.length + val.length)
+          .put((byte) op.getOp())
+          .putInt(colFam.length)
+          .put(colFam)
+          .putInt(key.length)
+          .put(key)
+          .put(val)
+          .array();
+    }
+
+    static Hint decode(byte[] id, byte[] bytes) {
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
+      Op op = Op.fromInt(buf.get());
+      byte[] colFam = new byte[buf.getInt()];
+      buf.get(colFam);
+      byte[] key = new byte[buf.getInt()];
+      buf.get(key);
+      byte[] val = new byte[buf.remaining()];
+      buf.get(val);
+      return new Hint(id, op, colFam, key, val);
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.client.ChicagoClientException;
+import com.xjeffrose.chicago.client.NodeListener;
+import com.xjeffrose.chicago.db.DBRecord;
+import io.netty.util.internal.PlatformDependent;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Keeps the writes a replica missed while it could not be reached and hands them to it once it is
+ * back, so a short outage heals in seconds instead of waiting for NodeWatcher to copy whole column
+ * families.
+ *
+ * Missed writes go to the HintLog. They are replayed in batches of REPLAY_BATCH when the replica's
+ * node reappears in ZooKeeper, and every REPLAY_INTERVAL_MILLIS for replicas that never left the node
+ * list. Plain writes of a batch are sent as one MULTI_PUT per column family, time series writes one by
+ * one since they also move the replica's sequence.
+ *
+ * A replica is handed its writes in order. Every write forwarded through here is numbered and logged
+ * under its number, so it replays in the order it was sent whenever it failed. The replica is marked
+ * pending as soon as a write to it fails, from then on its writes are logged behind the failed one
+ * instead of being sent. Writes already in flight when that happens may still reach it ahead of the
+ * failed one; for plain writes the newest number the replica acknowledged per key is kept until no
+ * earlier write to it can be logged anymore, and replay drops hints older than that. Replay waits for
+ * the writes in flight to the replica to be answered. Replicas with hints logged before a restart are
+ * pending from the start.
+ */
+@Slf4j
+public class HintedHandoff implements NodeListener<String>, Closeable {
+  static final int REPLAY_BATCH = 1000;
+  static final long REPLAY_INTERVAL_MILLIS = 10000;
+  static final long REQUEST_TIMEOUT_MILLIS = 3000;
+
+  // what is known about the writes to one peer
+  private static final class Peer {
+    // numbers of the writes sent to it and not answered yet
+    final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    // newest number it acknowledged per colFam 0x00 key, while an earlier write may still be hinted
+    final Map<String, Long> acknowledged = PlatformDependent.newConcurrentHashMap();
+    // the same by number, to drop them oldest first
+    final ConcurrentSkipListMap<Long, String> acknowledgedBySequence = new ConcurrentSkipListMap<>();
+    // it has hints, the log itself is only read on replay; set under the lock
+    volatile boolean pending;
+  }
+
+  private final HintLog hints;
+  private final ChicagoAsyncClient peers;
+  private final Map<String, Peer> peerStates = PlatformDependent.newConcurrentHashMap();
+  // logging and replaying happen one at a time on this thread, storage and replay calls block
+  private final ListeningScheduledExecutorService executor = MoreExecutors.listeningDecorator(
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("chicago-hints-%d")
+          .setDaemon(true)
+          .build()));
+
+  HintedHandoff(HintLog hints, ChicagoAsyncClient peers) {
+    this.hints = hints;
+    this.peers = peers;
+    for (String peer : hints.peers()) {
+      state(peer).pending = true;
+    }
+    executor.scheduleWithFixedDelay(this::replayAll, REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private Peer state(String peer) {
+    return peerStates.computeIfAbsent(peer, k -> new Peer());
+  }
+
+  boolean hasHints(String peer) {
+    Peer state = peerStates.get(peer);
+    return state != null && state.pending;
+  }
+
+  private static String id(byte[] colFam, byte[] key) {
+    return new String(colFam) + '\0' + new String(key == null ? new byte[0] : key);
+  }
+
+  /**
+   * Sends the write to {@code peer}, or logs it behind the writes the peer missed. The future fails
+   * if the peer does not have the write now, it is handed to it later either way.
+   */
+  ListenableFuture<byte[]> forward(String peer, Op op, byte[] colFam, byte[] key, byte[] val) {
+    Peer state = state(peer);
+    long sequence = hints.nextSequence();
+    boolean send;
+    synchronized (state) {
+      send = !state.pending;
+      if (send) {
+        state.inFlight.add(sequence);
+      }
+    }
+    if (!send) {
+      // the peer gets it after the writes it missed, it does not count towards the acks
+      hint(peer, sequence, op, colFam, key, val);
+      return Futures.immediateFailedFuture(new ChicagoClientException("Queued behind the hints for " + peer));
+    }
+
+    ListenableFuture<byte[]> request = withTimeout(peers.request(peer, op, colFam, key, val));
+    Futures.addCallback(request, new FutureCallback<byte[]>() {
+      @Override
+      public void onSuccess(byte[] result) {
+        // an earlier write still in flight, or one that failed, may be replayed over this one
+        if (op == Op.WRITE && (state.inFlight.first() < sequence || state.pending)) {
+          String id = id(colFam, key);
+          state.acknowledged.merge(id, sequence, Math::max);
+          state.acknowledgedBySequence.put(sequence, id);
+        }
+        state.inFlight.remove(sequence);
+        if (!state.pending) {
+          prune(state);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        // before it leaves the writes in flight, so writes acknowledged after it see it
+        synchronized (state) {
+          state.pending = true;
+        }
+        hint(peer, sequence, op, colFam, key, val);
+      }
+    });
+    return request;
+  }
+
+  /**
+   * Logs a write {@code peer} missed, it is sent again once the peer is back. A failed write stays in
+   * flight until then, so no replay runs ahead of it.
+   */
+  private void hint(String peer, long sequence, Op op, byte[] colFam, byte[] key, byte[] val) {
+    Peer state = state(peer);
+    executor.execute(() -> {
+      if (hints.add(peer, sequence, op, colFam, key, val)) {
+        synchronized (state) {
+          state.pending = true;
+        }
+      } else {
+        log.error("Could not log a hint for " + peer + ", it misses a write to " + new String(colFam));
+      }
+      state.inFlight.remove(sequence);
+    });
+  }
+
+  // acknowledgements no write still in flight or logged is older than do not matter anymore
+  private static void prune(Peer state) {
+    Long oldest = state.inFlight.ceiling(Long.MIN_VALUE);
+    while (true) {
+      Map.Entry<Long, String> entry = state.acknowledgedBySequence.firstEntry();
+      if (entry == null || (oldest != null && entry.getKey() >= oldest)) {
+        return;
+      }
+      state.acknowledgedBySequence.remove(entry.getKey());
+      state.acknowledged.remove(entry.getValue(), entry.getKey());
+    }
+  }
+
+  /**
+   * Fails {@code request} if it is not answered within REQUEST_TIMEOUT_MILLIS, a replica that is down
+   * but still listed may never answer.
+   */
+  private <V> ListenableFuture<V> withTimeout(ListenableFuture<V> request) {
+    return Futures.withTimeout(request, REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, executor);
+  }
+
+  @Override
+  public void nodeAdded(String node) {
+    if (hasHints(node)) {
+      log.info(node + " is back, replaying its hints");
+      replayNow(node);
+    }
+  }
+
+  @Override
+  public void nodeRemoved(String node) {
+  }
+
+  /**
+   * Replays the hints of {@code peer} on the hints thread, after whatever was logged before.
+   */
+  ListenableFuture<?> replayNow(String peer) {
+    return executor.submit(() -> replay(peer));
+  }
+
+  private void replayAll() {
+    for (Map.Entry<String, Peer> peer : peerStates.entrySet()) {
+      if (peer.getValue().pending) {
+        replay(peer.getKey());
+      }
+    }
+  }
+
+  private void replay(String peer) {
+    Peer state = state(peer);
+    synchronized (state) {
+      // while pending nothing new is sent, the writes in flight are answered within the timeout
+      if (!state.inFlight.isEmpty()) {
+        return;
+      }
+    }
+    int replayed = 0;
+    int overtaken = 0;
+    while (true) {
+      List<HintLog.Hint> batch = hints.next(peer, REPLAY_BATCH);
+      if (batch.isEmpty()) {
+        synchronized (state) {
+          state.pending = false;
+        }
+        prune(state);
+        if (replayed > 0 || overtaken > 0) {
+          log.info("Replayed " + replayed + " hints to " + peer + ", dropped " + overtaken + " a newer write overtook");
+        }
+        return;
+      }
+      List<HintLog.Hint> current = new ArrayList<>(batch.size());
+      for (HintLog.Hint hint : batch) {
+        Long acknowledged = hint.op == Op.WRITE ? state.acknowledged.get(id(hint.colFam, hint.key)) : null;
+        if (acknowledged != null && acknowledged > hint.sequence()) {
+          overtaken++;
+        } else {
+          current.add(hint);
+        }
+      }
+      try {
+        Futures.allAsList(send(peer, current)).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+        log.info("Could not replay hints to " + peer + ", will retry", e);
+        return;
+      }
+      hints.remove(batch);
+      replayed += current.size();
+    }
+  }
+
+  private List<ListenableFuture<byte[]>> send(String peer, List<HintLog.Hint> batch) {
+    List<ListenableFuture<byte[]>> requests = new ArrayList<>();
+    // in log order per column family, a MULTI_PUT applies its records in order
+    Map<String, List<DBRecord>> writes = new LinkedHashMap<>();
+    for (HintLog.Hint hint : batch) {
+      if (hint.op == Op.WRITE) {
+        writes.computeIfAbsent(new String(hint.colFam), k -> new ArrayList<>())
+            .add(new DBRecord(hint.colFam, hint.key, hint.val));
+      } else {
+        requests.add(peers.request(peer, hint.op, hint.colFam, hint.key, hint.val));
+      }
+    }
+    for (Map.Entry<String, List<DBRecord>> colFam : writes.entrySet()) {
+      requests.add(peers.request(peer, Op.MULTI_PUT, colFam.getKey().getBytes(), null,
+          ChicagoRecordBatch.encode(colFam.getValue(), true, 0)));
+    }
+    return requests;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
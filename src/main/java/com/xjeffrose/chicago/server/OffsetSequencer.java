@@ -0,0 +1,138 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.xjeffrose.chicago.OffsetRange;
+import com.xjeffrose.chicago.ZkClient;
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Hands out the offsets of time series column families, so that every replica stores a record under
+ * the same offset instead of counting on its own.
+ *
+ * One node of the cluster, the leader elected through ZkClient.electLeader, owns the sequences; the
+ * others answer GET_OFFSET with a redirect to it. Producers lease ranges of offsets and stamp their
+ * writes with them locally, so the owner sees one request per lease rather than one per record.
+ *
+ * The owner leases from blocks of BLOCK_SIZE offsets it reserves with an atomic add on
+ * OFFSETS_PATH/<colFam> in ZooKeeper. Reserved blocks are never handed to anyone else, so a leader
+ * that lost its leadership and has not noticed yet cannot hand out offsets the new leader also gives
+ * away. What a leader had reserved but not leased when it went away is skipped: offsets are unique
+ * and increasing per lease, not gap free.
+ *
+ * Without a ZkClient (a standalone server) this node owns every sequence and blocks are reserved in
+ * memory.
+ */
+@Slf4j
+public class OffsetSequencer implements Closeable {
+  public static final String OFFSETS_PATH = "/chicago/offsets";
+  public static final long BLOCK_SIZE = 100000;
+  // largest lease handed out at once, larger requests get this many
+  public static final int MAX_LEASE = 100000;
+
+  private final long blockSize;
+  private final Map<String, Sequence> sequences = new HashMap<>();
+  // standalone only, the next unreserved offset per colFam
+  private final Map<String, Long> memoryReservations = new HashMap<>();
+  // reservations and leases happen one at a time on this thread, ZooKeeper calls block
+  private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("chicago-sequencer-%d")
+          .setDaemon(true)
+          .build()));
+  private volatile ZkClient zkClient;
+
+  public OffsetSequencer() {
+    this(BLOCK_SIZE);
+  }
+
+  OffsetSequencer(long blockSize) {
+    this.blockSize = blockSize;
+  }
+
+  public void setZkClient(ZkClient zkClient) {
+    // blocks reserved in memory until now are not known to ZooKeeper, start over from its reservations
+    executor.execute(() -> {
+      this.zkClient = zkClient;
+      sequences.clear();
+    });
+  }
+
+  public boolean isOwner() {
+    ZkClient zk = zkClient;
+    return zk == null || zk.isLeader();
+  }
+
+  /**
+   * Address of the node that owns the sequences, null if this one does or it is not known.
+   */
+  public String getOwner() {
+    ZkClient zk = zkClient;
+    return zk == null ? null : zk.getLeaderId();
+  }
+
+  /**
+   * Leases up to {@code count} offsets of {@code colFam}. Fails with {@link NotOwnerException} when
+   * this node does not own the sequences.
+   */
+  public ListenableFuture<OffsetRange> lease(String colFam, int count) {
+    return executor.submit(() -> {
+      if (!isOwner()) {
+        throw new NotOwnerException(getOwner());
+      }
+      int granted = Math.max(1, Math.min(count, MAX_LEASE));
+      Sequence sequence = sequences.computeIfAbsent(colFam, k -> new Sequence());
+      if (sequence.next + granted > sequence.end) {
+        // what is left of the current block is dropped rather than split over two blocks
+        long size = Math.max(blockSize, granted);
+        sequence.next = reserve(colFam, size);
+        sequence.end = sequence.next + size;
+      }
+      OffsetRange range = new OffsetRange(sequence.next, granted);
+      sequence.next += granted;
+      return range;
+    });
+  }
+
+  private long reserve(String colFam, long size) throws Exception {
+    ZkClient zk = zkClient;
+    long start;
+    if (zk == null) {
+      start = memoryReservations.getOrDefault(colFam, 0L);
+      memoryReservations.put(colFam, start + size);
+    } else {
+      start = zk.getAndAdd(OFFSETS_PATH + "/" + colFam, size);
+    }
+    log.info("Reserved offsets [" + start + ", " + (start + size) + ") of " + colFam);
+    return start;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static final class Sequence {
+    long next;
+    long end;
+  }
+
+  public static class NotOwnerException extends Exception {
+    private final String owner;
+
+    NotOwnerException(String owner) {
+      super("Not the offset sequencer, the owner is " + owner);
+      this.owner = owner;
+    }
+
+    public String getOwner() {
+      return owner;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.ZkClient;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.db.StorageProvider;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Forwards the writes a client sent to this node alone (REPLICATED_WRITE, REPLICATED_TS_WRITE) to the
+ * other replicas of their column family.
+ *
+ * Peers are reached through a ChicagoAsyncClient sharing the server's ZkClient, so the replicas are
+ * picked by the same RendezvousHash the clients use and the connections to them are pooled and kept
+ * open across writes. The write goes to all of them at once and is acknowledged as soon as acks
+ * replicas, this one included, have it. Writes a replica misses are handed to it later through
+ * HintedHandoff.
+ */
+@Slf4j
+public class ReplicaForwarder implements Closeable {
+  private final ChicagoAsyncClient peers;
+  private final String self;
+  private final int acks;
+  // null when missed writes are not kept
+  private final HintedHandoff handoff;
+
+  /**
+   * @param zkClient a started client, shared with the server
+   * @param self this node's address as registered in the node list
+   * @param replicas replicas per column family
+   * @param acks replicas, this one included, that must have a write before it is acknowledged
+   * @param hintStore where the writes replicas missed are kept, null to not keep them
+   */
+  public ReplicaForwarder(ZkClient zkClient, String self, int replicas, int acks, StorageProvider hintStore) {
+    this(new ChicagoAsyncClient(zkClient, replicas), self, acks, hintStore);
+  }
+
+  private ReplicaForwarder(ChicagoAsyncClient peers, String self, int acks, StorageProvider hintStore) {
+    this(peers, self, acks, hintStore == null ? null : new HintedHandoff(new HintLog(hintStore), peers));
+    peers.start();
+    if (handoff != null) {
+      peers.registerNodeListener(handoff);
+    }
+  }
+
+  ReplicaForwarder(ChicagoAsyncClient peers, String self, int acks, HintedHandoff handoff) {
+    this.peers = peers;
+    this.self = self;
+    this.acks = acks;
+    this.handoff = handoff;
+  }
+
+  /**
+   * The client this node talks to the other replicas through.
+   */
+  ChicagoAsyncClient getPeers() {
+    return peers;
+  }
+
+  /**
+   * The replicas of {@code colFam} other than this node.
+   */
+  List<String> peersOf(byte[] colFam) {
+    List<String> nodes = new ArrayList<>(peers.getEffectiveNodes(colFam));
+    nodes.remove(self);
+    return nodes;
+  }
+
+  /**
+   * Sends the write as a plain {@code op} to the other replicas of {@code colFam}, so it is not
+   * forwarded again. The future is true once enough replicas, {@code local} counting as this one, have
+   * the write and false once that cannot happen anymore.
+   */
+  public ListenableFuture<Boolean> replicate(Op op, byte[] colFam, byte[] key, byte[] val, ListenableFuture<?> local) {
+    List<ListenableFuture<?>> writes = new ArrayList<>();
+    writes.add(local);
+    for (String peer : peersOf(colFam)) {
+      writes.add(forward(peer, op, colFam, key, val));
+    }
+    // a column family with fewer live replicas than acks is acknowledged by all of them
+    return quorum(writes, Math.min(acks, writes.size()));
+  }
+
+  private ListenableFuture<byte[]> forward(String peer, Op op, byte[] colFam, byte[] key, byte[] val) {
+    if (handoff == null) {
+      return peers.request(peer, op, colFam, key, val);
+    }
+    return handoff.forward(peer, op, colFam, key, val);
+  }
+
+  /**
+   * True once {@code needed} of {@code writes} succeeded, false once too many failed for that.
+   */
+  static ListenableFuture<Boolean> quorum(List<ListenableFuture<?>> writes, int needed) {
+    SettableFuture<Boolean> f = SettableFuture.create();
+    AtomicInteger succeeded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    int tolerated = writes.size() - needed;
+    for (ListenableFuture<?> write : writes) {
+      Futures.addCallback(write, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          // local storage answers false rather than failing
+          if (Boolean.FALSE.equals(result)) {
+            failed();
+          } else if (succeeded.incrementAndGet() == needed) {
+            f.set(true);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+          log.debug("Replica write failed", error);
+          failed();
+        }
+
+        private void failed() {
+          if (failed.incrementAndGet() == tolerated + 1) {
+            f.set(false);
+          }
+        }
+      });
+    }
+    return f;
+  }
+
+  @Override
+  public void close() {
+    if (handoff != null) {
+      handoff.close();
+    }
+    try {
+      peers.close();
+    } catch (Exception e) {
+      log.error("Error closing the replica client", e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.xjeffrose.chicago.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coalesces response flushes. A pipelining client sends many requests per read and would otherwise get
+ * one flush, and with it one TLS record and one syscall, per response. Responses are written without a
+ * flush while requests of the connection are still being worked on, and flushed together when
+ *
+ *   - the read burst is done (channelReadComplete),
+ *   - the last request in flight completes,
+ *   - the channel stops being writable, so chunked replies waiting on writability make progress,
+ *   - or the oldest unflushed response has waited maxDelayNanos.
+ *
+ * A delay of 0 flushes every response right away. One per channel, only used from its event loop.
+ */
+class ResponseFlusher {
+  public static final long DEFAULT_MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final AttributeKey<ResponseFlusher> KEY = AttributeKey.valueOf("chicagoResponseFlusher");
+
+  private final long maxDelayNanos;
+  private int inFlight;
+  private int unflushed;
+  private long flushes;
+  private ScheduledFuture<?> scheduled;
+
+  ResponseFlusher(long maxDelayNanos) {
+    this.maxDelayNanos = maxDelayNanos;
+  }
+
+  static ResponseFlusher of(Channel channel, long maxDelayNanos) {
+    Attribute<ResponseFlusher> attr = channel.attr(KEY);
+    ResponseFlusher flusher = attr.get();
+    if (flusher == null) {
+      flusher = new ResponseFlusher(maxDelayNanos);
+      ResponseFlusher existing = attr.setIfAbsent(flusher);
+      if (existing != null) {
+        flusher = existing;
+      }
+    }
+    return flusher;
+  }
+
+  /**
+   * A request was handed to storage, its response will follow.
+   */
+  void requestStarted() {
+    inFlight++;
+  }
+
+  /**
+   * The request's storage op completed, after its response (if any) has been written.
+   */
+  void requestDone(ChannelHandlerContext ctx) {
+    // cleared when the channel closed
+    if (inFlight > 0 && --inFlight == 0) {
+      flush(ctx);
+    }
+  }
+
+  ChannelFuture write(ChannelHandlerContext ctx, Object msg) {
+    if (maxDelayNanos <= 0) {
+      flushes++;
+      return ctx.writeAndFlush(msg);
+    }
+    ChannelFuture future = ctx.write(msg);
+    unflushed++;
+    if (inFlight == 0 || !ctx.channel().isWritable()) {
+      flush(ctx);
+    } else if (scheduled == null) {
+      scheduled = ctx.executor().schedule(() -> {
+        scheduled = null;
+        flush(ctx);
+      }, maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+    return future;
+  }
+
+  void readComplete(ChannelHandlerContext ctx) {
+    flush(ctx);
+  }
+
+  void flush(ChannelHandlerContext ctx) {
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    if (unflushed > 0) {
+      unflushed = 0;
+      flushes++;
+      ctx.flush();
+    }
+  }
+
+  void clear() {
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    inFlight = 0;
+    unflushed = 0;
+  }
+
+  int unflushed() {
+    return unflushed;
+  }
+
+  long flushes() {
+    return flushes;
+  }
+}
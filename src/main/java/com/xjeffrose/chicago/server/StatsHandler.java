@@ -0,0 +1,252 @@
+package com.xjeffrose.chicago.server;
+
+import com.xjeffrose.chicago.RequestMetrics;
+import com.xjeffrose.chicago.RequestMetrics.Snapshot;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.HdrHistogram.Histogram;
+
+/*
+ * Serves the request metrics on the stats server:
+ *
+ *   GET /metrics       Prometheus text format
+ *   GET /metrics.json  the same as JSON
+ *
+ * Latencies are summaries in seconds with p50 / p90 / p99 / p999 quantiles, labeled by op or colFam
+ * and stage. Gauges are whatever the server hands in, sampled on each request; a gauge named like
+ * {@code name{label="value"}}, see series, is one labeled series of {@code name}, the series of a name
+ * come in one after the other. In the JSON they are a list of their labels and values under the name.
+ * A name ending in {@code _total} is a monotonic count and typed as a counter.
+ */
+@ChannelHandler.Sharable
+public class StatsHandler extends SimpleChannelInboundHandler<HttpObject> {
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] JSON_QUANTILES = {"p50Ms", "p90Ms", "p99Ms", "p999Ms"};
+
+  private final RequestMetrics metrics;
+  private final Supplier<Map<String, Number>> gauges;
+
+  public StatsHandler(RequestMetrics metrics, Supplier<Map<String, Number>> gauges) {
+    this.metrics = metrics;
+    this.gauges = gauges;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+    // only the request line matters, bodies are ignored
+    if (!(msg instanceof HttpRequest)) {
+      return;
+    }
+    HttpRequest request = (HttpRequest) msg;
+    String path = new QueryStringDecoder(request.uri()).path();
+
+    FullHttpResponse response;
+    switch (path) {
+      case "/metrics":
+        response = response(HttpResponseStatus.OK, "text/plain; version=0.0.4", prometheus(metrics, gauges.get()));
+        break;
+      case "/metrics.json":
+        response = response(HttpResponseStatus.OK, "application/json", json(metrics, gauges.get()));
+        break;
+      default:
+        response = response(HttpResponseStatus.NOT_FOUND, "text/plain", "Not found: " + path + "\n");
+        break;
+    }
+
+    send(ctx, request, response);
+  }
+
+  static void send(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response) {
+    boolean keepAlive = HttpUtil.isKeepAlive(request);
+    HttpUtil.setKeepAlive(response, keepAlive);
+    if (keepAlive) {
+      ctx.writeAndFlush(response);
+    } else {
+      ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+  static FullHttpResponse response(HttpResponseStatus status, String contentType, String body) {
+    ByteBuf content = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    HttpUtil.setContentLength(response, content.readableBytes());
+    return response;
+  }
+
+  private static double seconds(double nanos) {
+    return nanos / 1e9;
+  }
+
+  static String prometheus(RequestMetrics metrics, Map<String, Number> gauges) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# TYPE chicago_uptime_seconds gauge\n");
+    sb.append("chicago_uptime_seconds ").append(metrics.getUptimeSeconds()).append('\n');
+    String type = null;
+    for (Map.Entry<String, Number> gauge : gauges.entrySet()) {
+      int labels = gauge.getKey().indexOf('{');
+      String name = labels < 0 ? gauge.getKey() : gauge.getKey().substring(0, labels);
+      if (!name.equals(type)) {
+        sb.append("# TYPE chicago_").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+        type = name;
+      }
+      sb.append("chicago_").append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+    }
+    summaries(sb, "chicago_op_latency_seconds", "op", metrics.opSnapshots());
+    summaries(sb, "chicago_colfam_latency_seconds", "colfam", metrics.colFamSnapshots());
+    return sb.toString();
+  }
+
+  private static void summaries(StringBuilder sb, String metric, String label, List<Snapshot> snapshots) {
+    sb.append("# TYPE ").append(metric).append(" summary\n");
+    for (Snapshot snapshot : snapshots) {
+      Histogram h = snapshot.histogram;
+      String labels = label + "=\"" + escape(snapshot.name) + "\",stage=\"" + snapshot.stage.label() + "\"";
+      for (double q : QUANTILES) {
+        sb.append(metric).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+            .append(seconds(h.getValueAtPercentile(q * 100))).append('\n');
+      }
+      sb.append(metric).append("_sum{").append(labels).append("} ")
+          .append(seconds(h.getMean() * h.getTotalCount())).append('\n');
+      sb.append(metric).append("_count{").append(labels).append("} ").append(h.getTotalCount()).append('\n');
+    }
+  }
+
+  /**
+   * The gauge name of the series of {@code name} with {@code labels}, label names and values in turn.
+   * Label values are escaped here, and only here.
+   */
+  static String series(String name, String... labels) {
+    StringBuilder sb = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+    }
+    return sb.append('}').toString();
+  }
+
+  // the labels of a gauge named by series, values unescaped
+  private static Map<String, String> labels(String series) {
+    Map<String, String> labels = new LinkedHashMap<>();
+    int i = series.indexOf('{') + 1;
+    while (i > 0 && i < series.length() && series.charAt(i) != '}') {
+      int value = series.indexOf("=\"", i);
+      if (value < 0) {
+        break;
+      }
+      StringBuilder sb = new StringBuilder();
+      int j = value + 2;
+      for (; j < series.length() && series.charAt(j) != '"'; j++) {
+        char c = series.charAt(j);
+        if (c == '\\' && j + 1 < series.length()) {
+          c = series.charAt(++j);
+          sb.append(c == 'n' ? '\n' : c);
+        } else {
+          sb.append(c);
+        }
+      }
+      labels.put(series.substring(i, value), sb.toString());
+      i = j + 1;
+      if (i < series.length() && series.charAt(i) == ',') {
+        i++;
+      }
+    }
+    return labels;
+  }
+
+  static String json(RequestMetrics metrics, Map<String, Number> gauges) {
+    StringBuilder sb = new StringBuilder("{\"uptimeSeconds\":").append(metrics.getUptimeSeconds());
+    sb.append(",\"gauges\":{");
+    boolean first = true;
+    // name of the labeled series being listed
+    String series = null;
+    for (Map.Entry<String, Number> gauge : gauges.entrySet()) {
+      int labels = gauge.getKey().indexOf('{');
+      String name = labels < 0 ? gauge.getKey() : gauge.getKey().substring(0, labels);
+      if (series != null && !series.equals(name)) {
+        sb.append(']');
+        series = null;
+      }
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      if (labels < 0) {
+        sb.append('"').append(escape(name)).append("\":").append(gauge.getValue());
+        continue;
+      }
+      if (series == null) {
+        sb.append('"').append(escape(name)).append("\":[");
+        series = name;
+      }
+      sb.append('{');
+      for (Map.Entry<String, String> label : labels(gauge.getKey()).entrySet()) {
+        sb.append('"').append(escape(label.getKey())).append("\":\"").append(escape(label.getValue())).append("\",");
+      }
+      sb.append("\"value\":").append(gauge.getValue()).append('}');
+    }
+    if (series != null) {
+      sb.append(']');
+    }
+    sb.append("},\"ops\":");
+    jsonLatencies(sb, metrics.opSnapshots(), metrics.getUptimeSeconds());
+    sb.append(",\"colFams\":");
+    jsonLatencies(sb, metrics.colFamSnapshots(), metrics.getUptimeSeconds());
+    return sb.append("}\n").toString();
+  }
+
+  // { name: { stage: { count, ratePerSec, meanMs, p50Ms, ... maxMs } } }, snapshots come grouped by name
+  private static void jsonLatencies(StringBuilder sb, List<Snapshot> snapshots, double uptime) {
+    sb.append('{');
+    String current = null;
+    for (Snapshot snapshot : snapshots) {
+      if (!snapshot.name.equals(current)) {
+        if (current != null) {
+          sb.append("},");
+        }
+        current = snapshot.name;
+        sb.append('"').append(escape(current)).append("\":{");
+      } else {
+        sb.append(',');
+      }
+      Histogram h = snapshot.histogram;
+      sb.append('"').append(snapshot.stage.label()).append("\":{")
+          .append("\"count\":").append(h.getTotalCount())
+          .append(",\"ratePerSec\":").append(uptime > 0 ? h.getTotalCount() / uptime : 0)
+          .append(",\"meanMs\":").append(h.getMean() / 1e6);
+      for (int i = 0; i < QUANTILES.length; i++) {
+        sb.append(",\"").append(JSON_QUANTILES[i]).append("\":")
+            .append(h.getValueAtPercentile(QUANTILES[i] * 100) / 1e6);
+      }
+      sb.append(",\"maxMs\":").append(h.getMaxValue() / 1e6).append('}');
+    }
+    if (current != null) {
+      sb.append('}');
+    }
+    sb.append('}');
+  }
+
+  static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,416 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.DBRecord;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.internal.PlatformDependent;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Tail subscriptions, for consumers that want records pushed to them as they are appended rather than
+ * poll with STREAM.
+ *
+ * A SUBSCRIBE names a column family, the offset to start at (none starts after the newest record) and a
+ * credit in bytes. The subscriber is answered with a first, possibly empty, batch that tells it where it
+ * starts. From then on every time series or batch write the DBManager commits to the column family
+ * wakes its subscribers, and each reads from where it is and pushes what is new. Pushes are
+ * STREAM_RESPONSEs with the last flag set, so client aggregators hand each one over as it arrives.
+ *
+ * Every push is charged its encoded size against the credit, and once that is used up nothing more is
+ * sent until the consumer grants more with CREDIT. Appends that come in while a read is running are
+ * picked up by one more read when it is done, so a busy column family is read in batches of whatever
+ * arrived meanwhile rather than once per write, and lingerNanos can hold a read back to let more
+ * gather. A subscription lasts until UNSUBSCRIBE or until its connection closes.
+ *
+ * Writers stamp records with offsets leased from the sequencer, so a record can be committed before
+ * one with a lower offset that is still on its way. A subscriber is only moved over offsets with
+ * nothing missing below them: a push stops at the first gap, and the nextOffset of every push is
+ * where the subscriber could resume without missing anything. Producers RELEASE_OFFSETS what is left
+ * of a lease they drop, a gap made up of released ranges is skipped right away. Any other gap is waited
+ * on until gapWaitNanos, longer than producers keep a lease, have passed since the record above it was
+ * committed, then taken for offsets never written and skipped; a record that lands in it later is not
+ * pushed. Commit times are kept per column family with subscribers, at a resolution of a 64th of the
+ * wait; records committed before its first subscriber count as committed then. So gaps are skipped as
+ * they age, not one wait after another. A record below where a subscription from the end starts is
+ * not pushed either.
+ *
+ * Shared by all connections of a server, the state of a subscriber is only touched from its channel's
+ * event loop.
+ */
+class Subscriptions implements DBManager.AppendListener {
+  private static final Logger log = LoggerFactory.getLogger(Subscriptions.class);
+  // what a SUBSCRIBE without a credit may be sent before granting more
+  static final long DEFAULT_CREDIT = 1024 * 1024;
+  static final long DEFAULT_LINGER_NANOS = 0;
+  static final long DEFAULT_GAP_WAIT_NANOS = TimeUnit.SECONDS.toNanos(2);
+  // released ranges kept per column family
+  static final int MAX_RELEASED = 1024;
+
+  private final DBManager db;
+  private final long lingerNanos;
+  private final long gapWaitNanos;
+  private final Map<UUID, Subscriber> byId = PlatformDependent.newConcurrentHashMap();
+  private final Map<String, Set<Subscriber>> byColFam = PlatformDependent.newConcurrentHashMap();
+  private final Map<String, Gaps> gaps = PlatformDependent.newConcurrentHashMap();
+
+  Subscriptions(DBManager db, long lingerNanos, long gapWaitNanos) {
+    this.db = db;
+    this.lingerNanos = lingerNanos;
+    this.gapWaitNanos = gapWaitNanos;
+  }
+
+  /**
+   * Registers subscription {@code id} of the channel of {@code ctx} to {@code colFam}, starting at
+   * {@code offset}, or after the newest record if it is empty. The future completes once the first
+   * batch is written.
+   */
+  ListenableFuture<?> subscribe(ChannelHandlerContext ctx, UUID id, byte[] colFam, byte[] offset, long credit,
+                                ChannelFutureListener writeComplete) {
+    Gaps colFamGaps = gaps.computeIfAbsent(new String(colFam), k -> new Gaps(db.nextOffset(colFam)));
+    Subscriber subscriber = new Subscriber(ctx, id, colFam, colFamGaps, credit, writeComplete);
+    if (offset != null && offset.length == Longs.BYTES) {
+      subscriber.nextOffset = Longs.fromByteArray(offset);
+    }
+    if (byId.putIfAbsent(id, subscriber) != null) {
+      log.error("Subscription " + id + " to " + new String(colFam) + " exists already");
+      subscriber.closed = true;
+      subscriber.write(false, ChicagoRecordBatch.encode(Collections.emptyList(), true, 0));
+      return Futures.immediateFuture(null);
+    }
+    byColFam.computeIfAbsent(new String(colFam), k -> Collections.newSetFromMap(PlatformDependent.newConcurrentHashMap()))
+        .add(subscriber);
+    ctx.channel().closeFuture().addListener(f -> remove(subscriber));
+    // registered before the first read, so nothing appended from here on is missed
+    subscriber.pending = true;
+    subscriber.pump();
+    return subscriber.started;
+  }
+
+  /**
+   * Lets subscription {@code id} be sent {@code bytes} more. Clients pool connections, so credits may
+   * come in over another connection than the one the subscription is pushed on.
+   */
+  void credit(UUID id, long bytes) {
+    Subscriber subscriber = byId.get(id);
+    if (subscriber != null) {
+      subscriber.ctx.executor().execute(() -> subscriber.credit(bytes));
+    }
+  }
+
+  void unsubscribe(UUID id) {
+    Subscriber subscriber = byId.get(id);
+    if (subscriber != null) {
+      remove(subscriber);
+    }
+  }
+
+  @Override
+  public void appended(byte[] colFam) {
+    if (byId.isEmpty()) {
+      return;
+    }
+    Gaps colFamGaps = gaps.get(new String(colFam));
+    if (colFamGaps != null) {
+      colFamGaps.committed(db.nextOffset(colFam));
+    }
+    signal(colFam);
+  }
+
+  /**
+   * Lets the subscribers of {@code colFam} skip {@code range} once they get to it, its producer gave
+   * it up without writing it.
+   */
+  void released(byte[] colFam, OffsetRange range) {
+    Gaps colFamGaps = gaps.get(new String(colFam));
+    if (colFamGaps != null && range.getCount() > 0) {
+      colFamGaps.released(range);
+      signal(colFam);
+    }
+  }
+
+  private void signal(byte[] colFam) {
+    Set<Subscriber> subscribers = byColFam.get(new String(colFam));
+    if (subscribers != null) {
+      subscribers.forEach(Subscriber::signal);
+    }
+  }
+
+  int size() {
+    return byId.size();
+  }
+
+  private void remove(Subscriber subscriber) {
+    if (byId.remove(subscriber.id, subscriber)) {
+      subscriber.closed = true;
+      // releases the SUBSCRIBE of a subscriber that went away before its first batch
+      subscriber.started.set(null);
+      Set<Subscriber> subscribers = byColFam.get(new String(subscriber.colFam));
+      if (subscribers != null) {
+        subscribers.remove(subscriber);
+      }
+    }
+  }
+
+  // what is known of the offsets of a column family with subscribers, from any thread
+  private final class Gaps {
+    // {nanoTime, end offset} after commits, oldest first, one older than the wait is kept
+    private final ArrayDeque<long[]> commits = new ArrayDeque<>();
+    // ranges producers gave up, start to end
+    private final TreeMap<Long, Long> released = new TreeMap<>();
+
+    Gaps(byte[] end) {
+      committed(end);
+    }
+
+    synchronized void committed(byte[] end) {
+      if (end == null || end.length != Longs.BYTES) {
+        return;
+      }
+      long now = System.nanoTime();
+      long offset = Longs.fromByteArray(end);
+      long[] last = commits.peekLast();
+      if (last != null && offset <= last[1]) {
+        return;
+      }
+      if (last != null && now - last[0] < gapWaitNanos / 64) {
+        last[1] = offset;
+      } else {
+        commits.addLast(new long[] {now, offset});
+      }
+      while (commits.size() > 1) {
+        Iterator<long[]> i = commits.iterator();
+        i.next();
+        if (now - i.next()[0] < gapWaitNanos) {
+          break;
+        }
+        commits.removeFirst();
+      }
+    }
+
+    // the nanoTime by which {@code offset} was committed, now if that is not known yet
+    synchronized long committedBy(long offset) {
+      for (long[] commit : commits) {
+        if (commit[1] > offset) {
+          return commit[0];
+        }
+      }
+      return System.nanoTime();
+    }
+
+    synchronized void released(OffsetRange range) {
+      released.put(range.getStart(), range.end());
+      while (released.size() > MAX_RELEASED) {
+        released.pollFirstEntry();
+      }
+    }
+
+    // whether all of [from, to) was released, by one producer or several after one another
+    synchronized boolean isReleased(long from, long to) {
+      long at = from;
+      while (at < to) {
+        Map.Entry<Long, Long> range = released.floorEntry(at);
+        if (range == null || range.getValue() <= at) {
+          return false;
+        }
+        at = range.getValue();
+      }
+      return true;
+    }
+  }
+
+  private final class Subscriber {
+    final ChannelHandlerContext ctx;
+    final UUID id;
+    final byte[] colFam;
+    final Gaps gaps;
+    final ChannelFutureListener writeComplete;
+    // set once the first batch is written
+    final SettableFuture<Void> started = SettableFuture.create();
+    // coalesces the appends reported before the event loop got to the last one
+    final AtomicBoolean signalled = new AtomicBoolean();
+    volatile boolean closed;
+    // -1 until the first read found the end of the column family
+    long nextOffset = -1;
+    long credit;
+    // appended to since the last read started
+    boolean pending;
+    boolean reading;
+    boolean recheckScheduled;
+
+    Subscriber(ChannelHandlerContext ctx, UUID id, byte[] colFam, Gaps gaps, long credit,
+               ChannelFutureListener writeComplete) {
+      this.ctx = ctx;
+      this.id = id;
+      this.colFam = colFam;
+      this.gaps = gaps;
+      this.credit = credit;
+      this.writeComplete = writeComplete;
+    }
+
+    // from any thread
+    void signal() {
+      if (signalled.compareAndSet(false, true)) {
+        ctx.executor().execute(() -> {
+          signalled.set(false);
+          pending = true;
+          pump();
+        });
+      }
+    }
+
+    void credit(long bytes) {
+      credit += bytes;
+      pump();
+    }
+
+    void pump() {
+      if (closed || reading || !pending || (credit <= 0 && started.isDone())) {
+        return;
+      }
+      reading = true;
+      pending = false;
+      if (lingerNanos > 0 && started.isDone()) {
+        ctx.executor().schedule(() -> ChunkedReplyWriter.of(ctx.channel()).whenWritable(ctx, this::read),
+            lingerNanos, TimeUnit.NANOSECONDS);
+      } else {
+        ChunkedReplyWriter.of(ctx.channel()).whenWritable(ctx, this::read);
+      }
+    }
+
+    private void read() {
+      final boolean fromEnd = nextOffset < 0;
+      Futures.addCallback(db.stream(colFam, fromEnd ? new byte[0] : Longs.toByteArray(nextOffset)),
+          new FutureCallback<List<DBRecord>>() {
+            @Override
+            public void onSuccess(List<DBRecord> result) {
+              reading = false;
+              if (closed) {
+                return;
+              }
+              List<DBRecord> records = result == null ? Collections.emptyList() : result;
+              if (fromEnd) {
+                // the newest record is where the subscriber starts, not something to send
+                nextOffset = ChicagoRecordBatch.nextOffset(records, 0);
+                records = Collections.emptyList();
+              }
+              push(fromEnd ? records : upToGap(records));
+              pump();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+              reading = false;
+              log.error("Error reading " + new String(colFam) + " for subscription " + id, error);
+              remove(Subscriber.this);
+              write(false, ChicagoRecordBatch.encode(Collections.emptyList(), true, Math.max(nextOffset, 0)));
+            }
+          }, ctx.executor());
+    }
+
+    /**
+     * The records up to the first gap in the offsets from nextOffset on that is neither released nor
+     * older than gapWaitNanos. A read is scheduled for when it is.
+     */
+    private List<DBRecord> upToGap(List<DBRecord> records) {
+      long expected = nextOffset;
+      for (int i = 0; i < records.size(); i++) {
+        byte[] key = records.get(i).getKey();
+        if (key.length != Longs.BYTES) {
+          continue;
+        }
+        long offset = Longs.fromByteArray(key);
+        if (offset > expected && !gaps.isReleased(expected, offset)) {
+          // as old as the record above it
+          long waited = System.nanoTime() - gaps.committedBy(offset);
+          if (waited < gapWaitNanos) {
+            recheck(gapWaitNanos - waited);
+            return records.subList(0, i);
+          }
+          log.warn("Subscription " + id + " skips offsets " + expected + " to " + (offset - 1) + " of "
+              + new String(colFam) + ", nothing was committed there for " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms");
+        }
+        expected = offset + 1;
+      }
+      return records;
+    }
+
+    private void recheck(long delayNanos) {
+      if (recheckScheduled) {
+        return;
+      }
+      recheckScheduled = true;
+      ctx.executor().schedule(() -> {
+        recheckScheduled = false;
+        pending = true;
+        pump();
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends as much of {@code records} as the credit allows, in chunks of at most STREAM_CHUNK_SIZE.
+     * Whatever is left is read again once there is credit for it.
+     */
+    private void push(List<DBRecord> records) {
+      if (records.isEmpty()) {
+        if (!started.isDone()) {
+          write(true, ChicagoRecordBatch.encode(records, true, nextOffset));
+        }
+        return;
+      }
+      int from = 0;
+      while (from < records.size() && (credit > 0 || !started.isDone())) {
+        long budget = Math.min(ChicagoDBHandler.STREAM_CHUNK_SIZE, credit) - ChicagoRecordBatch.HEADER_SIZE;
+        int to = from;
+        long size = 0;
+        // at least one record, however large
+        while (to < records.size() && (to == from || size + ChicagoRecordBatch.sizeOf(records.get(to)) <= budget)) {
+          size += ChicagoRecordBatch.sizeOf(records.get(to));
+          to++;
+        }
+        List<DBRecord> chunk = records.subList(from, to);
+        nextOffset = ChicagoRecordBatch.nextOffset(chunk, nextOffset);
+        byte[] batch = ChicagoRecordBatch.encode(chunk, true, nextOffset);
+        credit -= batch.length;
+        write(true, batch);
+        from = to;
+      }
+      // the read may have stopped at its size limit, look again for more
+      pending = true;
+    }
+
+    private void write(boolean success, byte[] batch) {
+      // a push that is lost would leave a gap in what the subscriber sees, close the connection instead
+      ctx.writeAndFlush(
+        new DefaultChicagoMessage(
+          id,
+          Op.STREAM_RESPONSE,
+          colFam,
+          Boolean.toString(success).getBytes(),
+          batch
+        )
+      ).addListener(started.isDone() ? ChannelFutureListener.CLOSE_ON_FAILURE : writeComplete);
+      started.set(null);
+    }
+  }
+}
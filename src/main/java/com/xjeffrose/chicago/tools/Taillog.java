@@ -3,12 +3,15 @@ package com.xjeffrose.chicago.tools;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.google.common.primitives.Longs;
-import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
 import com.xjeffrose.chicago.client.ChicagoClient;
+import com.xjeffrose.chicago.client.ConsumerGroup;
+import com.xjeffrose.chicago.client.Subscription;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,10 +34,11 @@ public class Taillog {
   private String endTime;
   @Parameter(names = {"--infinteLoop", "-i"}, description = "Keep streaming infintely ?")
   private Boolean infinte = false;
+  @Parameter(names = {"--group", "-g"}, description = "Consumer group to read the topic as, starting where the group left off")
+  private String group;
   @Parameter(names = {"--help", "-h"}, description = "Show usage", help = true)
   private boolean help;
   private ChicagoClient chicagoClient;
-  private Date lastTime;
 
   public static void main(String... args) throws Exception {
     Taillog main = new Taillog();
@@ -49,6 +53,11 @@ public class Taillog {
       return;
     }
 
+    if (group != null) {
+      consume();
+      return;
+    }
+
     if (sc == null) {
       chicagoClient = new ChicagoClient(zkString, 3);
       chicagoClient.startAndWaitForNodes(3);
@@ -77,128 +86,94 @@ public class Taillog {
       resp = chicagoClient.stream(key.getBytes(), Longs.toByteArray(offset)).get().get(0);
     }
 
-    byte[] resultArray = resp;
-    String result = new String(resultArray);
     long old = -1;
     while (true) {
-      if (!result.contains(ChiUtil.delimiter)) {
-        System.out.println("No delimetr present");
-        System.out.println(result);
+      if (resp == null) {
+        System.out.println("No response for stream");
         break;
       }
 
-      offset = ChiUtil.findOffset(resultArray);
+      ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(resp);
+      offset = batch.nextOffset();
 
-      String[] lines = (result.split(ChiUtil.delimiter)[0]).split("\0");
-      int count = 0;
-      for (String line : lines) {
-        if (line.length() != 0) {
-          if (debug) {
-            System.out.print("Last offset =" + offset + ":");
-          }
-          if (endDateTime != null && endDateTime.before(getDate(line))) {
-            System.out.println("End time reached.");
-            System.exit(0);
-          }
-          printLine(line);
-          count++;
-        }
-      }
-      if (count > 0) {
-        offset = offset + 1;
-      }
+      printRecords(batch, offset, endDateTime);
       if (old != -1 && (old == offset)) {
         if (!infinte) {
           System.out.println("Reached the end of stream ");
           System.exit(0);
         }
-        Thread.sleep(500);
+        tail(key, offset, endDateTime);
+        break;
       }
 
-      resultArray = chicagoClient.stream(key.getBytes(), Longs.toByteArray(offset)).get().get(0);
-      result = new String(resultArray);
+      resp = chicagoClient.stream(key.getBytes(), Longs.toByteArray(offset)).get().get(0);
       old = offset;
     }
     return;
   }
 
-  public long getNearestOffset(String key, String startTime) throws Exception {
-    long offset = -1;
-    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    Date targetDate = dateFormat.parse(startTime);
-
-    long startOffset = 0;
-    long endOffset = getLastOffset(key);
-    if (endOffset == -1) {
-      log.error("Cannot find last offset");
-    }
-
-    if (debug) {
-      log.info("End Offset = " + endOffset);
-    }
-    Date startDate = getDate(key, startOffset);
-    if (startDate == null) {
-      System.out.println("Cannot find earliest date");
-      System.exit(0);
-    }
-    if (debug) {
-      log.info("Start date = " + startDate.toString());
-    }
-
-    if (targetDate.before(startDate)) {
-      System.out.println("start time is earlier than chicago logs");
-      System.exit(0);
-    }
-
-    Date endDate = this.lastTime;
-    if (endDate == null) {
-      log.error("Cannot find last date");
-      System.exit(0);
-    }
-    if (debug) {
-      log.info("End date = " + endDate.toString());
-    }
-
-    if (targetDate.after(endDate)) {
-      System.out.println("start time is ahead of chicago logs");
-      System.exit(0);
-    }
-    System.out.print("Finding offset.");
-    long midOffset = -1;
-    while (endOffset > startOffset) {
-      midOffset = (endOffset + startOffset) / 2;
-
-      Date midDate = getDate(key, midOffset);
-      if (midDate.before(targetDate) && (TimeUnit.MILLISECONDS.toMinutes(targetDate.getTime() - midDate.getTime()) < 10)) {
-        return midOffset;
+  /**
+   * Caught up, from here on the server pushes new lines as they are appended.
+   */
+  private void tail(String key, long offset, Date endDateTime) throws Exception {
+    CountDownLatch closed = new CountDownLatch(1);
+    chicagoClient.subscribe(key.getBytes(), Longs.toByteArray(offset), new Subscription.Listener() {
+      @Override
+      public void onBatch(ChicagoRecordBatch batch) {
+        printRecords(batch, batch.nextOffset(), endDateTime);
       }
 
-      if (midDate.after(targetDate)) {
-        endOffset = midOffset - 1;
-      } else {
-        startOffset = midOffset + 1;
+      @Override
+      public void onClose(Throwable cause) {
+        if (cause != null) {
+          System.out.println("Stream ended: " + cause.getMessage());
+        }
+        closed.countDown();
       }
-      System.out.print(" .");
-    }
-    System.out.println("\nCannot find the nearest Offset to starting time. Starting Taillog from the nearest timestamp.");
-    return midOffset;
+    });
+    closed.await();
   }
 
-  public Long getLastOffset(String key) {
-    long endOffset = -1;
-    try {
-      byte[] resultArray = chicagoClient.stream(key.getBytes()).get().get(0);
-      String result = new String(resultArray);
-      if (result.contains(ChiUtil.delimiter)) {
-        endOffset = ChiUtil.findOffset(resultArray);
-        this.lastTime = getDate(result);
+  /**
+   * Reads the topic as a member of the consumer group until stopped, other members started with the
+   * same group take over some of its partitions.
+   */
+  private void consume() throws Exception {
+    ChicagoAsyncClient client = new ChicagoAsyncClient(zkString, 3);
+    client.start();
+    ConsumerGroup member = client.joinGroup(group, topic, (partition, batch) -> printRecords(batch, batch.nextOffset(), null));
+    Runtime.getRuntime().addShutdownHook(new Thread(member::close));
+    new CountDownLatch(1).await();
+  }
+
+  private void printRecords(ChicagoRecordBatch batch, long offset, Date endDateTime) {
+    for (byte[] record : batch.values()) {
+      String line = new String(record);
+      if (line.length() != 0) {
+        if (debug) {
+          System.out.print("Next offset =" + offset + ":");
+        }
+        if (endDateTime != null && endDateTime.before(getDate(line))) {
+          System.out.println("End time reached.");
+          System.exit(0);
+        }
+        printLine(line);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
     }
-    return endOffset;
   }
 
+  /**
+   * The first offset of the topic written at or after {@code startTime}, from the servers' time index.
+   */
+  public long getNearestOffset(String key, String startTime) throws Exception {
+    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    Date targetDate = dateFormat.parse(startTime);
+    long offset = chicagoClient.seekTime(key.getBytes(), targetDate.getTime());
+    if (debug) {
+      log.info("Start offset for " + startTime + " = " + offset);
+    }
+    return offset;
+  }
 
   public Date getDate(String key, Long offset) {
     String data = null;
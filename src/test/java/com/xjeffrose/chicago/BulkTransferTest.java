@@ -0,0 +1,116 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.client.ChicagoClientException;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import com.xjeffrose.chicago.server.ChiConfig;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BulkTransferTest {
+  private final byte[] colFam = "colFam".getBytes();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private RocksDBImpl db;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.newFolder("chicago"), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    db.open();
+    byte[] val = new byte[5000];
+    for (int i = 0; i < 3000; i++) {
+      db.write(colFam, String.format("key%04d", i).getBytes(), val);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    db.close();
+  }
+
+  @Test
+  public void reportsProgressInKeyOrder() throws Exception {
+    List<SettableFuture<byte[]>> batches = Collections.synchronizedList(new ArrayList<>());
+    ChicagoAsyncClient client = mock(ChicagoAsyncClient.class);
+    when(client.request(eq("target"), eq(Op.BULK_LOAD), any(byte[].class), any(byte[].class), any(byte[].class))).thenAnswer(invocation -> {
+      SettableFuture<byte[]> f = SettableFuture.create();
+      batches.add(f);
+      return f;
+    });
+    List<String> progress = Collections.synchronizedList(new ArrayList<>());
+    Future<Long> sent = executor.submit(() -> BulkTransfer.send(db, colFam, false, client, "target", new byte[0], null,
+        (lastKey, records, bytes) -> progress.add(new String(lastKey))));
+
+    // 15MB in batches of 4MB
+    while (batches.size() < 4) {
+      Thread.sleep(10);
+    }
+    for (int i = 3; i > 0; i--) {
+      batches.get(i).set(null);
+    }
+    assertTrue(progress.isEmpty());
+    batches.get(0).set(null);
+
+    assertEquals(3000, (long) sent.get());
+    assertEquals(4, progress.size());
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i - 1).compareTo(progress.get(i)) < 0);
+    }
+    assertEquals("key2999", progress.get(3));
+  }
+
+  @Test
+  public void resumesFromAKey() throws Exception {
+    ChicagoAsyncClient client = mock(ChicagoAsyncClient.class);
+    when(client.request(eq("target"), eq(Op.BULK_LOAD), any(byte[].class), any(byte[].class), any(byte[].class)))
+        .thenAnswer(invocation -> {
+          SettableFuture<byte[]> f = SettableFuture.create();
+          f.set(null);
+          return f;
+        });
+
+    assertEquals(1000, BulkTransfer.send(db, colFam, false, client, "target", "key2000".getBytes(), null,
+        (lastKey, records, bytes) -> {}));
+  }
+
+  @Test(expected = ChicagoClientException.class)
+  public void failsWhenABatchIsNotLoaded() throws Exception {
+    ChicagoAsyncClient client = mock(ChicagoAsyncClient.class);
+    when(client.request(eq("target"), eq(Op.BULK_LOAD), any(byte[].class), any(byte[].class), any(byte[].class)))
+        .thenAnswer(invocation -> {
+          SettableFuture<byte[]> f = SettableFuture.create();
+          f.setException(new RuntimeException("Request Failed"));
+          return f;
+        });
+
+    BulkTransfer.send(db, colFam, false, client, "target");
+  }
+}
@@ -0,0 +1,182 @@
+package com.xjeffrose.chicago;
+
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.InMemDBImpl;
+import com.xjeffrose.chicago.db.StorageProvider;
+import com.xjeffrose.chicago.server.ChicagoDBHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ResourceLeakDetector;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Every test checks that the inbound buffer is back at refCnt 0 once the server is done with it,
+// with the leak detector in paranoid mode so anything that slips through is also reported.
+public class ByteBufChicagoMessageTest extends org.junit.Assert {
+  private static ResourceLeakDetector.Level previousLevel;
+
+  private final ChicagoObjectEncoder encoder = new ChicagoObjectEncoder();
+
+  @BeforeClass
+  public static void paranoid() {
+    previousLevel = ResourceLeakDetector.getLevel();
+    ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+  }
+
+  @AfterClass
+  public static void restore() {
+    ResourceLeakDetector.setLevel(previousLevel);
+  }
+
+  private ByteBuf frames(ChicagoMessage... msgs) {
+    ByteBuf bb = PooledByteBufAllocator.DEFAULT.directBuffer();
+    for (ChicagoMessage msg : msgs) {
+      ByteBuf frame = encoder.encode(msg);
+      bb.writeBytes(frame);
+      frame.release();
+    }
+    return bb;
+  }
+
+  private static String string(ByteBuf bb) {
+    return bb.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void decodeSlicesTheFrame() {
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoObjectDecoder(true));
+    UUID id1 = UUID.randomUUID();
+    UUID id2 = UUID.randomUUID();
+    ByteBuf in = frames(
+      new DefaultChicagoMessage(id1, Op.WRITE, "colFam".getBytes(), "key1".getBytes(), "val1".getBytes()),
+      new DefaultChicagoMessage(id2, Op.WRITE, "colFam".getBytes(), "key2".getBytes(), new byte[100000]));
+
+    ch.writeInbound(in);
+
+    ByteBufChicagoMessage m1 = ch.readInbound();
+    ByteBufChicagoMessage m2 = ch.readInbound();
+    assertEquals(id1, m1.getId());
+    assertEquals(Op.WRITE, m1.getOp());
+    assertEquals("colFam", string(m1.colFamBuf()));
+    assertEquals("key1", string(m1.keyBuf()));
+    assertEquals("val1", string(m1.valBuf()));
+    assertEquals(id2, m2.getId());
+    assertEquals(100000, m2.valBuf().readableBytes());
+
+    // the decoder dropped its own reference, the two messages hold the rest
+    assertEquals(2, in.refCnt());
+    m1.release();
+    assertEquals(1, in.refCnt());
+    m2.release();
+    assertEquals(0, in.refCnt());
+    assertFalse(ch.finish());
+  }
+
+  @Test
+  public void decodeV2StatusKey() {
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoObjectDecoder(true));
+    ChicagoObjectEncoder v2Encoder = new ChicagoObjectEncoder(ChicagoWireFormat.V2);
+    ByteBuf in = PooledByteBufAllocator.DEFAULT.directBuffer();
+    ByteBuf frame = v2Encoder.encode(
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.RESPONSE, "colFam".getBytes(), "false".getBytes(), "val".getBytes()));
+    in.writeBytes(frame);
+    frame.release();
+
+    ch.writeInbound(in);
+
+    ByteBufChicagoMessage msg = ch.readInbound();
+    assertFalse(msg.getSuccess());
+    assertEquals("false", new String(msg.getKey()));
+    assertEquals("val", string(msg.valBuf()));
+    msg.release();
+    assertEquals(0, in.refCnt());
+  }
+
+  @Test
+  public void handlerReleasesAfterWrite() throws Exception {
+    InMemDBImpl inMemDB = new InMemDBImpl();
+    DBManager manager = new DBManager(inMemDB);
+    manager.startAsync().awaitRunning();
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoObjectDecoder(true), new ChicagoDBHandler(manager));
+    UUID id = UUID.randomUUID();
+
+    ChicagoMessage[] writes = new ChicagoMessage[50];
+    for (int i = 0; i < writes.length; i++) {
+      writes[i] = new DefaultChicagoMessage(id, Op.WRITE, "ColFam".getBytes(), ("Key" + i).getBytes(), ("Val" + i).getBytes());
+    }
+    ByteBuf in = frames(writes);
+    ch.writeInbound(in);
+
+    manager.waitForEmptyQueue().get();
+    ch.runPendingTasks();
+
+    assertEquals(0, in.refCnt());
+    for (int i = 0; i < writes.length; i++) {
+      assertEquals("Val" + i, new String(inMemDB.read("ColFam".getBytes(), ("Key" + i).getBytes())));
+      ChicagoMessage response = ch.readOutbound();
+      assertNotNull(response);
+      assertEquals(id, response.getId());
+      assertEquals(Op.RESPONSE, response.getOp());
+    }
+
+    manager.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void handlerReleasesAfterReadAndTsWrite() throws Exception {
+    InMemDBImpl inMemDB = new InMemDBImpl();
+    DBManager manager = new DBManager(inMemDB);
+    manager.startAsync().awaitRunning();
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoObjectDecoder(true), new ChicagoDBHandler(manager));
+    inMemDB.write("ColFam".getBytes(), "Key".getBytes(), "Val".getBytes());
+
+    ByteBuf in = frames(
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.READ, "ColFam".getBytes(), "Key".getBytes(), null),
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.TS_WRITE, "TsColFam".getBytes(), null, "tsVal".getBytes()));
+    ch.writeInbound(in);
+
+    manager.waitForEmptyQueue().get();
+    ch.runPendingTasks();
+
+    assertEquals(0, in.refCnt());
+    ChicagoMessage read = ch.readOutbound();
+    assertEquals("Val", new String(read.getVal()));
+    ChicagoMessage tsWrite = ch.readOutbound();
+    assertNotNull(tsWrite);
+
+    manager.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void handlerReleasesWhenStorageFails() throws Exception {
+    StorageProvider backend = mock(StorageProvider.class);
+    when(backend.write(any(byte[].class), any(byte[].class), any(ByteBuf.class))).thenThrow(new RuntimeException("boom"));
+    DBManager manager = new DBManager(backend);
+    manager.startAsync().awaitRunning();
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoObjectDecoder(true), new ChicagoDBHandler(manager));
+
+    ByteBuf in = frames(
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "ColFam".getBytes(), "Key".getBytes(), "Val".getBytes()));
+    ch.writeInbound(in);
+
+    manager.waitForEmptyQueue().get();
+    ch.runPendingTasks();
+
+    assertEquals(0, in.refCnt());
+    Object response;
+    while ((response = ch.readOutbound()) != null) {
+      ReferenceCountUtil.release(response);
+    }
+
+    manager.stopAsync().awaitTerminated();
+  }
+}
@@ -0,0 +1,114 @@
+package com.xjeffrose.chicago;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.UUID;
+import org.junit.Test;
+
+public class ChicagoCompressionHandlerTest extends org.junit.Assert {
+
+  private static byte[] logLines(int size) {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < size) {
+      sb.append("2016-09-01 12:00:00,000 INFO request served in 12ms\n");
+    }
+    return sb.substring(0, size).getBytes();
+  }
+
+  // moves everything one side wrote into the other side
+  private static void shuttle(EmbeddedChannel from, EmbeddedChannel to) {
+    ByteBuf bb;
+    while ((bb = from.readOutbound()) != null) {
+      to.writeInbound(bb);
+    }
+  }
+
+  private void roundTrip(ChicagoCompressionCodec offered) {
+    ChicagoCompressionHandler clientHandler = ChicagoCompressionHandler.client(offered);
+    ChicagoCompressionHandler serverHandler = ChicagoCompressionHandler.server();
+    long totalOut = ChicagoCompressionHandler.SERVER_TOTALS.getCompressedBytesOut();
+    EmbeddedChannel client = new EmbeddedChannel(clientHandler, new ChicagoCodec());
+    EmbeddedChannel server = new EmbeddedChannel(serverHandler, new ChicagoCodec());
+
+    UUID id = UUID.randomUUID();
+    byte[] val = logLines(64 * 1024);
+    client.writeAndFlush(new DefaultChicagoMessage(id, Op.WRITE, "colFam".getBytes(), "key".getBytes(), val));
+    shuttle(client, server);
+
+    ChicagoMessage request = server.readInbound();
+    assertEquals(id, request.getId());
+    assertArrayEquals(val, request.getVal());
+    assertEquals(offered, serverHandler.codec());
+
+    server.writeAndFlush(new DefaultChicagoMessage(id, Op.RESPONSE, "colFam".getBytes(), "true".getBytes(), val));
+    shuttle(server, client);
+
+    ChicagoMessage response = client.readInbound();
+    assertEquals(id, response.getId());
+    assertArrayEquals(val, response.getVal());
+    assertEquals(offered, clientHandler.codec());
+
+    // the client only learns the codec from the answer, its first block went out uncompressed
+    assertEquals(0, serverHandler.stats().getRawBytesIn());
+    assertTrue(serverHandler.stats().getCompressionRatio() > 5);
+    assertEquals(serverHandler.stats().getCompressedBytesOut(), clientHandler.stats().getCompressedBytesIn());
+    // the stats server reports the sum over all server connections
+    assertTrue(ChicagoCompressionHandler.SERVER_TOTALS.getCompressedBytesOut()
+        >= totalOut + serverHandler.stats().getCompressedBytesOut());
+
+    client.writeAndFlush(new DefaultChicagoMessage(id, Op.WRITE, "colFam".getBytes(), "key".getBytes(), val));
+    shuttle(client, server);
+    request = server.readInbound();
+    assertArrayEquals(val, request.getVal());
+    assertTrue(clientHandler.stats().getCompressionRatio() > 5);
+
+    assertFalse(client.finish());
+    assertFalse(server.finish());
+  }
+
+  @Test
+  public void lz4RoundTrip() {
+    roundTrip(ChicagoCompressionCodec.LZ4);
+  }
+
+  @Test
+  public void snappyRoundTrip() {
+    roundTrip(ChicagoCompressionCodec.SNAPPY);
+  }
+
+  @Test
+  public void smallBlocksStayRaw() {
+    ChicagoCompressionHandler clientHandler = ChicagoCompressionHandler.client(ChicagoCompressionCodec.LZ4);
+    EmbeddedChannel client = new EmbeddedChannel(clientHandler, new ChicagoCodec());
+    EmbeddedChannel server = new EmbeddedChannel(ChicagoCompressionHandler.server(), new ChicagoCodec());
+
+    client.writeAndFlush(new DefaultChicagoMessage(UUID.randomUUID(), Op.READ, "colFam".getBytes(), "key".getBytes(), null));
+    shuttle(client, server);
+    ChicagoMessage request = server.readInbound();
+    server.writeAndFlush(new DefaultChicagoMessage(request.getId(), Op.RESPONSE, "colFam".getBytes(), "true".getBytes(), "val".getBytes()));
+    shuttle(server, client);
+
+    ChicagoMessage response = client.readInbound();
+    assertEquals("val", new String(response.getVal()));
+    assertEquals(0, clientHandler.stats().getCompressedBytesIn());
+  }
+
+  @Test
+  public void serverPassesThroughPlainClients() {
+    ChicagoCompressionHandler serverHandler = ChicagoCompressionHandler.server();
+    EmbeddedChannel client = new EmbeddedChannel(new ChicagoCodec());
+    EmbeddedChannel server = new EmbeddedChannel(serverHandler, new ChicagoCodec());
+
+    byte[] val = logLines(8 * 1024);
+    client.writeAndFlush(new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colFam".getBytes(), "key".getBytes(), val));
+    shuttle(client, server);
+    ChicagoMessage request = server.readInbound();
+    assertArrayEquals(val, request.getVal());
+
+    server.writeAndFlush(new DefaultChicagoMessage(request.getId(), Op.RESPONSE, "colFam".getBytes(), "true".getBytes(), val));
+    shuttle(server, client);
+    ChicagoMessage response = client.readInbound();
+    assertArrayEquals(val, response.getVal());
+    assertEquals(ChicagoCompressionCodec.NONE, serverHandler.codec());
+  }
+}
@@ -1,9 +1,12 @@
 package com.xjeffrose.chicago;
 
 import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.DBRecord;
 import com.xjeffrose.chicago.server.ChicagoDBHandler;
 import com.xjeffrose.chicago.db.InMemDBImpl;
 import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import org.junit.Test;
 
@@ -56,4 +59,47 @@ public class ChicagoDBHandlerTest extends org.junit.Assert {
 
     manager.stopAsync().awaitTerminated();
   }
+
+  @Test
+  public void multiPutAndGet() throws Exception {
+    InMemDBImpl inMemDB = new InMemDBImpl();
+    DBManager manager = new DBManager(inMemDB);
+    manager.startAsync().awaitRunning();
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoDBHandler(manager));
+
+    List<DBRecord> records = new ArrayList<>();
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      records.add(new DBRecord("ColFam".getBytes(), ("Key" + i).getBytes(), ("Val" + i).getBytes()));
+      keys.add(("Key" + i).getBytes());
+    }
+    keys.add("Missing".getBytes());
+
+    UUID putId = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(putId, Op.MULTI_PUT, "ColFam".getBytes(), null, ChicagoRecordBatch.encode(records, true, 0)));
+    manager.waitForEmptyQueue().get();
+    ch.runPendingTasks();
+
+    ChicagoMessage put = ch.readOutbound();
+    assertEquals(putId, put.getId());
+    assertTrue(put.getSuccess());
+    assertEquals("Val42", new String(inMemDB.read("ColFam".getBytes(), "Key42".getBytes())));
+
+    UUID getId = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(getId, Op.MULTI_GET, "ColFam".getBytes(), null, ChicagoRecordBatch.encodeKeys(keys)));
+    manager.waitForEmptyQueue().get();
+    ch.runPendingTasks();
+
+    ChicagoMessage get = ch.readOutbound();
+    assertEquals(getId, get.getId());
+    assertTrue(get.getSuccess());
+    List<byte[]> values = ChicagoRecordBatch.wrap(get.getVal()).values();
+    assertEquals(101, values.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(("Val" + i), new String(values.get(i)));
+    }
+    assertNull(values.get(100));
+
+    manager.stopAsync().awaitTerminated();
+  }
 }
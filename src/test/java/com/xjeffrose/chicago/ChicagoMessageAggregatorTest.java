@@ -1,14 +1,20 @@
 package com.xjeffrose.chicago;
 
+import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.db.DBRecord;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  *
@@ -32,16 +38,16 @@ public class ChicagoMessageAggregatorTest {
 
     ChicagoMessage cm1 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key1".getBytes(), "val1@@@".getBytes());
+        "true".getBytes(), batch(true, 1, "val1"));
     ChicagoMessage cm2 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key2".getBytes(), "val2@@@".getBytes());
+        "true".getBytes(), batch(true, 2, "val2"));
     ChicagoMessage cm3 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key3".getBytes(), "val3@@@".getBytes());
+        "true".getBytes(), batch(true, 3, "val3"));
     ChicagoMessage cm4 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key4".getBytes(), "val4@@@".getBytes());
+        "true".getBytes(), batch(true, 4, "val4"));
 
     ByteBuf message1 = Unpooled.buffer();
     message1.writeBytes(encoder.encode(cm1));
@@ -55,10 +61,10 @@ public class ChicagoMessageAggregatorTest {
     channel.writeInbound(message2);
 
     assertEquals(getFirstMessageString(channel), 4, channel.inboundMessages().size());
-    assertStreamResponse(channel, cm1);
-    assertStreamResponse(channel, cm2);
-    assertStreamResponse(channel, cm3);
-    assertStreamResponse(channel, cm4);
+    assertStreamResponse(channel, cm1, 1, "val1");
+    assertStreamResponse(channel, cm2, 2, "val2");
+    assertStreamResponse(channel, cm3, 3, "val3");
+    assertStreamResponse(channel, cm4, 4, "val4");
   }
 
   @Test
@@ -68,16 +74,16 @@ public class ChicagoMessageAggregatorTest {
     UUID sharedId = UUID.randomUUID();
     ChicagoMessage cm1 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key1".getBytes(), "val1".getBytes());
+        "true".getBytes(), batch(false, 1, "val1"));
     ChicagoMessage cm2 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key2".getBytes(), "val2".getBytes());
+        "true".getBytes(), batch(false, 2, "val2"));
     ChicagoMessage cm3 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key3".getBytes(), "val3".getBytes());
+        "true".getBytes(), batch(false, 3, "val3"));
     ChicagoMessage cm4 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key4".getBytes(), "val4@@@".getBytes());
+        "true".getBytes(), batch(true, 4, "val4"));
 
     ByteBuf message1 = Unpooled.buffer();
     message1.writeBytes(encoder.encode(cm1));
@@ -88,11 +94,11 @@ public class ChicagoMessageAggregatorTest {
     message2.writeBytes(encoder.encode(cm4));
 
     channel.writeInbound(message1);
+    assertEquals(0, channel.inboundMessages().size());
     channel.writeInbound(message2);
 
-    // I think a stream termination message needs to exist for this test to work.
     assertEquals(getFirstMessageString(channel), 1, channel.inboundMessages().size());
-    assertStreamResponse(channel, cm1, cm2, cm3, cm4);
+    assertStreamResponse(channel, cm1, 4, "val1", "val2", "val3", "val4");
   }
 
   @Test
@@ -101,16 +107,16 @@ public class ChicagoMessageAggregatorTest {
 
     ChicagoMessage cm1 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key1".getBytes(), "val1@@@".getBytes());
+        "true".getBytes(), batch(true, 1, "val1"));
     ChicagoMessage cm2 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key2".getBytes(), "val2@@@".getBytes());
+        "true".getBytes(), batch(true, 2, "val2"));
     ChicagoMessage cm3 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key3".getBytes(), "val3@@@".getBytes());
+        "true".getBytes(), batch(true, 3, "val3"));
     ChicagoMessage cm4 =
       new DefaultChicagoMessage(UUID.randomUUID(), Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key4".getBytes(), "val4@@@".getBytes());
+        "true".getBytes(), batch(true, 4));
 
     ByteBuf message1 = Unpooled.buffer();
     message1.writeBytes(encoder.encode(cm1));
@@ -121,10 +127,10 @@ public class ChicagoMessageAggregatorTest {
     channel.writeInbound(message1);
 
     assertEquals(getFirstMessageString(channel), 4, channel.inboundMessages().size());
-    assertStreamResponse(channel, cm1);
-    assertStreamResponse(channel, cm2);
-    assertStreamResponse(channel, cm3);
-    assertStreamResponse(channel, cm4);
+    assertStreamResponse(channel, cm1, 1, "val1");
+    assertStreamResponse(channel, cm2, 2, "val2");
+    assertStreamResponse(channel, cm3, 3, "val3");
+    assertStreamResponse(channel, cm4, 4);
   }
 
   @Test
@@ -134,16 +140,16 @@ public class ChicagoMessageAggregatorTest {
     UUID sharedId = UUID.randomUUID();
     ChicagoMessage cm1 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key1".getBytes(), "val1".getBytes());
+        "true".getBytes(), batch(false, 2, "val1", "val2"));
     ChicagoMessage cm2 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key2".getBytes(), "val2".getBytes());
+        "true".getBytes(), batch(false, 2));
     ChicagoMessage cm3 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key3".getBytes(), "val3".getBytes());
+        "true".getBytes(), batch(false, 3, "val3"));
     ChicagoMessage cm4 =
       new DefaultChicagoMessage(sharedId, Op.STREAM_RESPONSE, "colfFam".getBytes(),
-        "key4".getBytes(), "val4@@@".getBytes());
+        "true".getBytes(), batch(true, 5, "val4"));
 
     ByteBuf message1 = Unpooled.buffer();
     message1.writeBytes(encoder.encode(cm1));
@@ -154,25 +160,83 @@ public class ChicagoMessageAggregatorTest {
     channel.writeInbound(message1);
 
     assertEquals(getFirstMessageString(channel), 1, channel.inboundMessages().size());
-    assertStreamResponse(channel, cm1, cm2, cm3, cm4);
+    assertStreamResponse(channel, cm1, 5, "val1", "val2", "val3", "val4");
   }
 
-  private void assertStreamResponse(EmbeddedChannel channel, ChicagoMessage firstMessage,
-    ChicagoMessage... inputMessages) {
+  @Test
+  public void testDecode_interleavedStreamsCompleteOutOfOrder() {
+    EmbeddedChannel channel = new EmbeddedChannel(decoder, aggregator);
+
+    UUID first = UUID.randomUUID();
+    UUID second = UUID.randomUUID();
+    ChicagoMessage a1 = new DefaultChicagoMessage(first, Op.STREAM_RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), batch(false, 1, "a1"));
+    ChicagoMessage b1 = new DefaultChicagoMessage(second, Op.STREAM_RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), batch(false, 11, "b1"));
+    ChicagoMessage read = new DefaultChicagoMessage(UUID.randomUUID(), Op.RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), "val".getBytes());
+    ChicagoMessage b2 = new DefaultChicagoMessage(second, Op.STREAM_RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), batch(true, 12, "b2"));
+    ChicagoMessage a2 = new DefaultChicagoMessage(first, Op.STREAM_RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), batch(false, 2, "a2"));
+    ChicagoMessage a3 = new DefaultChicagoMessage(first, Op.STREAM_RESPONSE, "colfFam".getBytes(),
+      "true".getBytes(), batch(true, 3, "a3"));
+
+    ByteBuf message = Unpooled.buffer();
+    for (ChicagoMessage cm : new ChicagoMessage[] {a1, b1, read, b2, a2}) {
+      message.writeBytes(encoder.encode(cm));
+    }
+    channel.writeInbound(message);
+
+    assertEquals(2, channel.inboundMessages().size());
+    assertEquals(1, aggregator.inFlight());
+    assertEquals(read.getId(), ((ChicagoMessage) channel.inboundMessages().poll()).getId());
+    assertStreamResponse(channel, b1, 12, "b1", "b2");
+
+    channel.writeInbound(Unpooled.wrappedBuffer(encoder.encode(a3)));
+
+    assertEquals(0, aggregator.inFlight());
+    assertStreamResponse(channel, a1, 3, "a1", "a2", "a3");
+  }
+
+  @Test
+  public void testRecordBatch_binaryValues() {
+    byte[] binary = new byte[] {0, '@', '@', '@', 0, -1};
+    ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(
+      ChicagoRecordBatch.encode(Collections.singletonList(new DBRecord(null, Longs.toByteArray(7), binary)), true, 8));
+
+    assertTrue(batch.isLast());
+    assertEquals(1, batch.count());
+    assertEquals(8, batch.nextOffset());
+    assertArrayEquals(binary, batch.values().get(0));
+  }
+
+  // A batch whose records are keyed by consecutive offsets ending just before nextOffset
+  private static byte[] batch(boolean last, long nextOffset, String... vals) {
+    List<DBRecord> records = new ArrayList<>();
+    long offset = nextOffset - vals.length;
+    for (String val : vals) {
+      records.add(new DBRecord(null, Longs.toByteArray(offset++), val.getBytes()));
+    }
+    return ChicagoRecordBatch.encode(records, last, nextOffset);
+  }
+
+  private void assertStreamResponse(EmbeddedChannel channel, ChicagoMessage firstMessage, long nextOffset,
+    String... vals) {
     ChicagoMessage chicagoMessage = (ChicagoMessage) channel.inboundMessages().poll();
     assertEquals(firstMessage.getId(), chicagoMessage.getId());
     assertArrayEquals(firstMessage.getColFam(), chicagoMessage.getColFam());
     assertEquals(firstMessage.getOp(), chicagoMessage.getOp());
     assertArrayEquals("true".getBytes(), chicagoMessage.getKey());
-    ByteBuf expectedValue = Unpooled.buffer();
-    expectedValue.writeBytes(firstMessage.getVal());
-    for (ChicagoMessage cm : inputMessages) {
-      expectedValue.writeByte('\0').writeBytes(cm.getVal());
+
+    ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(chicagoMessage.getVal());
+    assertTrue(batch.isLast());
+    assertEquals(vals.length, batch.count());
+    assertEquals(nextOffset, batch.nextOffset());
+    List<byte[]> values = batch.values();
+    for (int i = 0; i < vals.length; i++) {
+      assertEquals(vals[i], new String(values.get(i)));
     }
-    byte[] expectedValueArray = new byte[expectedValue.writerIndex()];
-    expectedValue.readBytes(expectedValueArray);
-    assertArrayEquals(new String(expectedValueArray) + " vs " + new String(chicagoMessage.getVal()),
-      expectedValueArray, chicagoMessage.getVal());
   }
 
   private String getFirstMessageString(EmbeddedChannel channel) {
@@ -16,6 +16,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ChicagoObjectDecoderTest {
@@ -207,6 +208,83 @@ public class ChicagoObjectDecoderTest {
     assertEquals(cm4, channel.inboundMessages().poll());
   }
 
+  @Test
+  public void testDecode_v2PartialMessages() {
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    ChicagoObjectEncoder v2Encoder = new ChicagoObjectEncoder(ChicagoWireFormat.V2);
+
+    ChicagoMessage cm1 =
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colfFam".getBytes(),
+        "key1".getBytes(), new byte[300]);
+    ChicagoMessage cm2 =
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.RESPONSE, "colfFam".getBytes(),
+        "false".getBytes(), "val2".getBytes());
+
+    ByteBuf message1 = Unpooled.buffer();
+    message1.writeBytes(v2Encoder.encode(cm1));
+    message1.writeBytes(v2Encoder.encode(cm2));
+
+    int messageLength = message1.writerIndex();
+    for (int offset = 0; offset < messageLength; offset++) {
+      ByteBuf tmp = Unpooled.wrappedBuffer(message1.array(), offset, 1);
+      channel.writeInbound(tmp);
+    }
+
+    assertEquals(getFirstMessageString(channel), 2, channel.inboundMessages().size());
+    assertEquals(cm1, channel.inboundMessages().poll());
+    assertEquals(cm2, channel.inboundMessages().poll());
+    assertEquals(ChicagoWireFormat.V2, (int) channel.attr(ChicagoWireFormat.VERSION).get());
+  }
+
+  @Test
+  public void testDecode_mixedVersions() {
+    EmbeddedChannel channel = new EmbeddedChannel(decoder);
+    ChicagoObjectEncoder v2Encoder = new ChicagoObjectEncoder(ChicagoWireFormat.V2);
+
+    ChicagoMessage cm1 =
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colfFam".getBytes(),
+        "key1".getBytes(), "val1".getBytes());
+    ChicagoMessage cm2 =
+      new DefaultChicagoMessage(UUID.randomUUID(), Op.RESPONSE, "colfFam".getBytes(),
+        "true".getBytes(), "val2".getBytes());
+
+    ByteBuf v1 = encoder.encode(cm1);
+    ByteBuf v2 = v2Encoder.encode(cm2);
+    assertTrue(v2.readableBytes() < v1.readableBytes());
+
+    ByteBuf message1 = Unpooled.buffer();
+    message1.writeBytes(v1);
+    message1.writeBytes(v2);
+
+    channel.writeInbound(message1);
+
+    assertEquals(getFirstMessageString(channel), 2, channel.inboundMessages().size());
+    assertEquals(cm1, channel.inboundMessages().poll());
+    assertEquals(cm2, channel.inboundMessages().poll());
+  }
+
+  @Test
+  public void testCodec_repliesInPeerVersion() {
+    EmbeddedChannel channel = new EmbeddedChannel(new ChicagoCodec());
+    ChicagoObjectEncoder v2Encoder = new ChicagoObjectEncoder(ChicagoWireFormat.V2);
+
+    UUID id = UUID.randomUUID();
+    channel.writeInbound(v2Encoder.encode(
+      new DefaultChicagoMessage(id, Op.READ, "colfFam".getBytes(), "key1".getBytes(), null)));
+    channel.writeOutbound(
+      new DefaultChicagoMessage(id, Op.RESPONSE, "colfFam".getBytes(), "true".getBytes(), "val1".getBytes()));
+
+    ByteBuf reply = (ByteBuf) channel.readOutbound();
+    assertEquals(ChicagoWireFormat.V2_MAGIC, reply.getByte(reply.readerIndex()));
+    byte[] replyBytes = new byte[reply.readableBytes()];
+    reply.getBytes(reply.readerIndex(), replyBytes);
+    ChicagoMessage decoded = decoder.decode(replyBytes);
+    assertEquals(id, decoded.getId());
+    assertEquals("true", new String(decoded.getKey()));
+    assertEquals("val1", new String(decoded.getVal()));
+    reply.release();
+  }
+
   private String getFirstMessageString(EmbeddedChannel channel) {
     return channel.inboundMessages().peek().toString();
   }
@@ -5,6 +5,7 @@ import com.xjeffrose.chicago.db.InMemDBImpl;
 import com.xjeffrose.chicago.db.StorageProvider;
 import com.xjeffrose.chicago.server.ChicagoDBHandler;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
@@ -58,4 +59,28 @@ public class ChicagoObjectEncoderTest {
 
   }
 
-}
\ No newline at end of file
+  @Test
+  public void encodeExactSizeAndComposite() throws Exception {
+    ChicagoObjectEncoder encoder = new ChicagoObjectEncoder();
+    ChicagoObjectDecoder decoder = new ChicagoObjectDecoder();
+
+    ChicagoMessage small = new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colfFam".getBytes(), "key1".getBytes(), "val1".getBytes());
+    ByteBuf smallBuf = encoder.encode(small);
+    assertFalse(smallBuf instanceof CompositeByteBuf);
+    assertEquals(smallBuf.readableBytes(), smallBuf.capacity());
+
+    byte[] bigVal = new byte[ChicagoObjectEncoder.COMPOSITE_THRESHOLD * 4];
+    bigVal[bigVal.length - 1] = 7;
+    ChicagoMessage big = new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colfFam".getBytes(), "key2".getBytes(), bigVal);
+    ByteBuf bigBuf = encoder.encode(big);
+    assertTrue(bigBuf instanceof CompositeByteBuf);
+
+    for (ChicagoMessage msg : new ChicagoMessage[] {small, big}) {
+      ByteBuf bb = msg == small ? smallBuf : bigBuf;
+      byte[] bytes = new byte[bb.readableBytes()];
+      bb.getBytes(bb.readerIndex(), bytes);
+      assertEquals(msg, decoder.decode(bytes));
+    }
+  }
+
+}
@@ -0,0 +1,155 @@
+package com.xjeffrose.chicago;
+
+import com.google.common.hash.Funnels;
+import com.xjeffrose.chicago.client.RendezvousHash;
+import com.xjeffrose.chicago.db.StorageProvider;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RebalancerTest {
+  private final Rebalancer rebalancer = new Rebalancer(mock(StorageProvider.class), "/nodes", "/locks", 3, 2, 0);
+
+  @After
+  public void tearDown() {
+    rebalancer.close();
+  }
+
+  private static List<String> colFams(int n) {
+    List<String> colFams = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      colFams.add("colFam" + i);
+    }
+    return colFams;
+  }
+
+  // the moves every node in nodes plans, each keeps only those it is the source of
+  private List<Rebalancer.Move> planEverywhere(List<String> nodes, String node, boolean added) {
+    List<Rebalancer.Move> moves = new ArrayList<>();
+    for (String self : nodes) {
+      if (!self.equals(node)) {
+        moves.addAll(rebalancer.plan(self, colFams(100), nodes, node, added));
+      }
+    }
+    return moves;
+  }
+
+  @Test
+  public void movesToTheNodeThatJoined() {
+    List<String> nodes = Arrays.asList("10.0.0.1:12000", "10.0.0.2:12000", "10.0.0.3:12000", "10.0.0.4:12000");
+    RendezvousHash<String> hash = new RendezvousHash<>(Funnels.stringFunnel(Charset.defaultCharset()), nodes, 3);
+
+    List<Rebalancer.Move> moves = planEverywhere(nodes, "10.0.0.4:12000", true);
+
+    int owned = 0;
+    for (String colFam : colFams(100)) {
+      if (hash.get(colFam.getBytes()).contains("10.0.0.4:12000")) {
+        owned++;
+      }
+    }
+    assertTrue(owned > 0);
+    // one copy per column family, not one per replica holding it
+    assertEquals(owned, moves.size());
+    Set<String> moved = new HashSet<>();
+    for (Rebalancer.Move move : moves) {
+      assertEquals("10.0.0.4:12000", move.getTarget());
+      assertEquals(Rebalancer.State.PENDING, move.getState());
+      assertTrue(moved.add(move.getColFam()));
+    }
+  }
+
+  @Test
+  public void movesToTheNodesThatTookOver() {
+    List<String> nodes = Arrays.asList("10.0.0.1:12000", "10.0.0.2:12000", "10.0.0.3:12000", "10.0.0.4:12000");
+
+    List<Rebalancer.Move> moves = planEverywhere(nodes, "10.0.0.5:12000", false);
+
+    assertFalse(moves.isEmpty());
+    Set<String> moved = new HashSet<>();
+    for (Rebalancer.Move move : moves) {
+      assertNotEquals("10.0.0.5:12000", move.getTarget());
+      assertTrue(moved.add(move.getColFam() + "/" + move.getTarget()));
+    }
+  }
+
+  @Test
+  public void onlyTheFirstReplicaCopies() {
+    List<String> nodes = Arrays.asList("10.0.0.1:12000", "10.0.0.2:12000", "10.0.0.3:12000", "10.0.0.4:12000");
+    List<String> before = Arrays.asList("10.0.0.1:12000", "10.0.0.2:12000", "10.0.0.3:12000");
+    RendezvousHash<String> hash = new RendezvousHash<>(Funnels.stringFunnel(Charset.defaultCharset()), before, 3);
+
+    for (String self : before) {
+      for (Rebalancer.Move move : rebalancer.plan(self, colFams(100), nodes, "10.0.0.4:12000", true)) {
+        assertEquals(self, hash.get(move.getColFam().getBytes()).get(0));
+      }
+    }
+  }
+
+  @Test
+  public void resumesAfterTheCheckpoint() {
+    Rebalancer.Move move = new Rebalancer.Move("colFam", "10.0.0.2:12000", 1000, 4096, "key999".getBytes());
+    Rebalancer.Move resumed = Rebalancer.Move.resume(move.key(), move.checkpoint());
+
+    assertEquals("colFam", resumed.getColFam());
+    assertEquals("10.0.0.2:12000", resumed.getTarget());
+    assertEquals(1000, resumed.getRecords());
+    assertEquals(4096, resumed.getBytes());
+    assertArrayEquals("key999\0".getBytes(), resumed.from());
+    assertArrayEquals(new byte[0], new Rebalancer.Move("colFam", "10.0.0.2:12000", 0, 0, new byte[0]).from());
+  }
+
+  @Test
+  public void backsOffBetweenRetries() {
+    assertEquals(Rebalancer.RETRY_MIN_MILLIS, Rebalancer.retryDelayMillis(1));
+    assertEquals(2 * Rebalancer.RETRY_MIN_MILLIS, Rebalancer.retryDelayMillis(2));
+    assertEquals(Rebalancer.RETRY_MAX_MILLIS, Rebalancer.retryDelayMillis(100));
+  }
+
+  @Test
+  public void dropsACheckpointedMoveItIsNoLongerTheSourceOf() {
+    List<String> nodes = Arrays.asList("10.0.0.1:12000", "10.0.0.2:12000", "10.0.0.3:12000", "10.0.0.4:12000");
+    RendezvousHash<String> hash = new RendezvousHash<>(Funnels.stringFunnel(Charset.defaultCharset()), nodes, 3);
+    String target = hash.get("colFam".getBytes()).get(1);
+    List<String> others = new ArrayList<>(nodes);
+    others.remove(target);
+    String source = new RendezvousHash<>(Funnels.stringFunnel(Charset.defaultCharset()), others, 3)
+        .get("colFam".getBytes()).get(0);
+    others.remove(source);
+    String self = others.get(0);
+
+    Rebalancer.Move move = new Rebalancer.Move("colFam", target, 1000, 4096, "key999".getBytes());
+    StorageProvider db = mock(StorageProvider.class);
+    doAnswer(invocation -> {
+      ((StorageProvider.RecordVisitor) invocation.getArguments()[1]).visit(move.key(), move.checkpoint());
+      return null;
+    }).when(db).scan(eq(Rebalancer.COL_FAM), any(StorageProvider.RecordVisitor.class));
+    ZkClient zkClient = mock(ZkClient.class);
+    when(zkClient.list("/nodes")).thenReturn(nodes);
+
+    Rebalancer restarted = new Rebalancer(db, "/nodes", "/locks", 3, 2, 0);
+    try {
+      restarted.start(zkClient, self);
+      verify(db).delete(Rebalancer.COL_FAM, move.key());
+      verify(zkClient).deleteLockPath("/locks/colFam/" + target, self);
+      verify(zkClient, never()).createLockPath(anyString(), anyString(), anyString());
+      assertTrue(restarted.getMoves().isEmpty());
+    } finally {
+      restarted.close();
+    }
+  }
+}
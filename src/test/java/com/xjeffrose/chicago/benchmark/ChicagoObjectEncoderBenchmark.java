@@ -0,0 +1,97 @@
+package com.xjeffrose.chicago.benchmark;
+
+import com.google.common.primitives.Ints;
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.ChicagoObjectEncoder;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Encoder throughput against the byte[] / writeBytes encoder it replaced, both allocating from the
+ * pooled allocator the server pipeline uses. Run with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.xjeffrose.chicago.benchmark.ChicagoObjectEncoderBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChicagoObjectEncoderBenchmark {
+
+  @Param({"16", "1024", "102400"})
+  int valSize;
+
+  private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+  private final ChicagoObjectEncoder encoder = new ChicagoObjectEncoder();
+  private ChicagoMessage msg;
+
+  @Setup
+  public void setup() {
+    msg = new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, "colFam".getBytes(), "someKey".getBytes(), new byte[valSize]);
+  }
+
+  @Benchmark
+  public int legacyEncode() {
+    ByteBuf bb = legacyEncode(alloc, msg.getId(), msg.getOp(), msg.getColFam(), msg.getKey(), msg.getVal());
+    int size = bb.readableBytes();
+    bb.release();
+    return size;
+  }
+
+  @Benchmark
+  public int exactSizeEncode() {
+    ByteBuf bb = encoder.encode(alloc, msg);
+    int size = bb.readableBytes();
+    bb.release();
+    return size;
+  }
+
+  // The encoder as it was before sizing frames up front
+  private static ByteBuf legacyEncode(ByteBufAllocator alloc, UUID _id, Op _op, byte[] colFam, byte[] key, byte[] val) {
+    byte[] id = _id.toString().getBytes();
+    byte[] op = Ints.toByteArray(_op.getOp());
+    byte[] colFamSize = Ints.toByteArray(colFam.length);
+    byte[] keySize = Ints.toByteArray(key.length);
+    byte[] valSize = Ints.toByteArray(val.length);
+
+    ByteBuf bb = alloc.directBuffer();
+
+    bb.writeBytes(id);
+    bb.writeBytes(op);
+    bb.writeBytes(colFamSize);
+    bb.writeBytes(colFam);
+    bb.writeBytes(keySize);
+    bb.writeBytes(key);
+    bb.writeBytes(valSize);
+    bb.writeBytes(val);
+
+    return bb;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(ChicagoObjectEncoderBenchmark.class.getSimpleName())
+      .build()).run();
+  }
+}
@@ -0,0 +1,92 @@
+package com.xjeffrose.chicago.benchmark;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import com.xjeffrose.chicago.db.WaitStrategy;
+import com.xjeffrose.chicago.server.ChiConfig;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Write throughput of DBManager over RocksDB as the number of workers grows, with the writes spread
+ * over COL_FAMS column families so the stripes have independent work. Run with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.xjeffrose.chicago.benchmark.DBManagerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBManagerBenchmark {
+  private static final int COL_FAMS = 16;
+  private static final int WRITES = 1024;
+
+  @Param({"1", "2", "4", "8"})
+  int workers;
+
+  private DBManager manager;
+  private File dbPath;
+  private final byte[][] colFams = new byte[COL_FAMS][];
+  private final byte[] val = new byte[256];
+  private long key;
+
+  @Setup
+  public void setup() throws Exception {
+    dbPath = Files.createTempDirectory("chicago-bench").toFile();
+    Config config = ConfigFactory.parseMap(Collections.singletonMap("settings.dbPath", new File(dbPath, "rocks.db").getPath()))
+      .withFallback(ConfigFactory.load().getConfig("chicago.application"));
+
+    manager = new DBManager(new RocksDBImpl(new ChiConfig(config)), workers, WaitStrategy.DEFAULT);
+    manager.startAsync().awaitRunning();
+    for (int i = 0; i < COL_FAMS; i++) {
+      colFams[i] = ("colFam" + i).getBytes();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.stopAsync().awaitTerminated();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WRITES)
+  public List<Boolean> write() throws Exception {
+    List<ListenableFuture<Boolean>> writes = new ArrayList<>(WRITES);
+    for (int i = 0; i < WRITES; i++) {
+      writes.add(manager.write(colFams[i % COL_FAMS], ("key" + key++).getBytes(), val));
+    }
+    return Futures.allAsList(writes).get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(DBManagerBenchmark.class.getSimpleName())
+      .build()).run();
+  }
+}
@@ -0,0 +1,107 @@
+package com.xjeffrose.chicago.benchmark;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import com.xjeffrose.chicago.db.WaitStrategy;
+import com.xjeffrose.chicago.server.ChiConfig;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Point read latency while another thread ingests large values into the same column family. Sample
+ * mode reports the read percentiles separately from the ingest, compare readThreads=0 (reads queued
+ * with the writes) against the read pool. Run with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.xjeffrose.chicago.benchmark.DBManagerReadLatencyBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBManagerReadLatencyBenchmark {
+  private static final int KEYS = 10000;
+  private static final int INGEST_BATCH = 64;
+
+  @Param({"0", "4"})
+  int readThreads;
+
+  private DBManager manager;
+  private final byte[] colFam = "colFam".getBytes();
+  private final byte[] bigVal = new byte[64 * 1024];
+  private final AtomicLong ingested = new AtomicLong();
+  private final AtomicLong nextRead = new AtomicLong();
+
+  @Setup
+  public void setup() throws Exception {
+    File dbPath = Files.createTempDirectory("chicago-bench").toFile();
+    Config config = ConfigFactory.parseMap(Collections.singletonMap("settings.dbPath", new File(dbPath, "rocks.db").getPath()))
+      .withFallback(ConfigFactory.load().getConfig("chicago.application"));
+
+    manager = new DBManager(new RocksDBImpl(new ChiConfig(config)), 1, WaitStrategy.DEFAULT,
+      DBManager.DEFAULT_MAX_GROUP_WRITES, DBManager.DEFAULT_MAX_GROUP_BYTES, readThreads, DBManager.DEFAULT_READ_QUEUE_SIZE);
+    manager.startAsync().awaitRunning();
+
+    List<ListenableFuture<Boolean>> writes = new ArrayList<>(KEYS);
+    for (int i = 0; i < KEYS; i++) {
+      writes.add(manager.write(colFam, ("key" + i).getBytes(), ("val" + i).getBytes()));
+    }
+    Futures.allAsList(writes).get();
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.stopAsync().awaitTerminated();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public List<Boolean> ingest() throws Exception {
+    List<ListenableFuture<Boolean>> writes = new ArrayList<>(INGEST_BATCH);
+    for (int i = 0; i < INGEST_BATCH; i++) {
+      writes.add(manager.write(colFam, ("big" + ingested.getAndIncrement()).getBytes(), bigVal));
+    }
+    return Futures.allAsList(writes).get();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public byte[] read() throws Exception {
+    return manager.read(colFam, ("key" + (nextRead.getAndIncrement() % KEYS)).getBytes()).get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(DBManagerReadLatencyBenchmark.class.getSimpleName())
+      .build()).run();
+  }
+}
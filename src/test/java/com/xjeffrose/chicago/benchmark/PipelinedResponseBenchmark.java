@@ -0,0 +1,143 @@
+package com.xjeffrose.chicago.benchmark;
+
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.InMemDBImpl;
+import com.xjeffrose.chicago.server.AdmissionController;
+import com.xjeffrose.chicago.server.ChicagoDBHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * A client pipelines PIPELINE writes in one flush and waits for all the responses, with the server
+ * flushing each response (flushDelayNanos=0) against coalesced flushes. The flushes counter is the
+ * number of flushes the server issued, each of which is a TLS record and a write syscall on a real
+ * socket; compare it with the responses counter. Run with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.xjeffrose.chicago.benchmark.PipelinedResponseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelinedResponseBenchmark {
+  private static final int PIPELINE = 1000;
+
+  @Param({"0", "1000000"})
+  long flushDelayNanos;
+
+  private EventLoopGroup group;
+  private DBManager manager;
+  private Channel client;
+  private final AtomicLong serverFlushes = new AtomicLong();
+  private volatile CountDownLatch responses;
+  private final byte[] colFam = "colFam".getBytes();
+  private final byte[] val = new byte[128];
+  private long key;
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class Counters {
+    public long flushes;
+    public long responses;
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    group = new DefaultEventLoopGroup(2);
+    manager = new DBManager(new InMemDBImpl());
+    manager.startAsync().awaitRunning();
+    ChicagoDBHandler handler = new ChicagoDBHandler(manager, AdmissionController.unbounded(), flushDelayNanos);
+    LocalAddress address = new LocalAddress("chicago-bench-" + flushDelayNanos);
+
+    new ServerBootstrap()
+      .group(group)
+      .channel(LocalServerChannel.class)
+      .childHandler(new ChannelInitializer<LocalChannel>() {
+        @Override
+        protected void initChannel(LocalChannel ch) {
+          ch.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) throws Exception {
+              serverFlushes.incrementAndGet();
+              super.flush(ctx);
+            }
+          }, handler);
+        }
+      })
+      .bind(address).sync();
+
+    client = new Bootstrap()
+      .group(group)
+      .channel(LocalChannel.class)
+      .handler(new SimpleChannelInboundHandler<ChicagoMessage>() {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ChicagoMessage msg) {
+          responses.countDown();
+        }
+      })
+      .connect(address).sync().channel();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    client.close().sync();
+    group.shutdownGracefully().sync();
+    manager.stopAsync().awaitTerminated();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIPELINE)
+  public void pipelinedWrites(Counters counters) throws Exception {
+    responses = new CountDownLatch(PIPELINE);
+    long flushesBefore = serverFlushes.get();
+    for (int i = 0; i < PIPELINE; i++) {
+      client.write(new DefaultChicagoMessage(UUID.randomUUID(), Op.WRITE, colFam, ("key" + key++).getBytes(), val));
+    }
+    client.flush();
+    responses.await();
+    counters.flushes += serverFlushes.get() - flushesBefore;
+    counters.responses += PIPELINE;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(PipelinedResponseBenchmark.class.getSimpleName())
+      .build()).run();
+  }
+}
@@ -1,27 +1,37 @@
 package com.xjeffrose.chicago.client;
 
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoCodec;
 import com.xjeffrose.chicago.ChicagoMessage;
 import com.xjeffrose.chicago.ChicagoMessageAggregator;
 import com.xjeffrose.chicago.ChicagoObjectDecoder;
 import com.xjeffrose.chicago.ChicagoObjectEncoder;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
 import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.DBRecord;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.internal.PlatformDependent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
@@ -29,6 +39,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ChicagoAsyncClientTest {
   private final ChicagoObjectEncoder encoder = new ChicagoObjectEncoder();
@@ -48,10 +59,8 @@ public class ChicagoAsyncClientTest {
 
   @Before
   public void setUp() throws Exception {
-    try (ChicagoAsyncClient chicagoClient = new ChicagoAsyncClient(ch1, futureMap, 1)) {
-      this.chicagoClient = chicagoClient;
-      chicagoClient.start();
-    }
+    chicagoClient = new ChicagoAsyncClient(ch1, futureMap, 1);
+    chicagoClient.start();
   }
 
   @After
@@ -165,7 +174,10 @@ public class ChicagoAsyncClientTest {
     Futures.addCallback(futureMap.get(id), new FutureCallback<byte[]>() {
       @Override
       public void onSuccess(@Nullable byte[] bytes) {
-        assertEquals("val1\0val2\0val3\0val4@@@", new String(bytes));
+        ChicagoRecordBatch batch = ChicagoRecordBatch.wrap(bytes);
+        assertEquals(4, batch.count());
+        assertEquals(4, batch.nextOffset());
+        assertEquals("val4", new String(batch.values().get(3)));
         l.countDown();
       }
 
@@ -175,11 +187,10 @@ public class ChicagoAsyncClientTest {
       }
     });
 
-    ChicagoMessage cm1 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), "val1".getBytes());
-    ChicagoMessage cm2 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), "val2".getBytes());
-    ChicagoMessage cm3 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), "val3".getBytes());
-    ChicagoMessage cm4 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(),
-        ("val4" + ChiUtil.delimiter).getBytes());
+    ChicagoMessage cm1 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), batch(0, false, "val1"));
+    ChicagoMessage cm2 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), batch(1, false, "val2"));
+    ChicagoMessage cm3 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), batch(2, false, "val3"));
+    ChicagoMessage cm4 = new DefaultChicagoMessage(id, Op.STREAM_RESPONSE, "colfFam".getBytes(), Boolean.toString(true).getBytes(), batch(3, true, "val4"));
 
     ByteBuf bb = Unpooled.buffer();
 
@@ -207,4 +218,55 @@ public class ChicagoAsyncClientTest {
 
   }
 
+  @Test
+  public void usedUpLeaseIsRefilledOnce() throws Exception {
+    ChicagoAsyncClient.OffsetLease lease = new ChicagoAsyncClient.OffsetLease();
+    SettableFuture<OffsetRange> range = SettableFuture.create();
+    AtomicInteger leased = new AtomicInteger();
+    List<ListenableFuture<Long>> offsets = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      offsets.add(lease.next(() -> {
+        leased.incrementAndGet();
+        return range;
+      }));
+    }
+    range.set(new OffsetRange(100, 10));
+
+    assertEquals(1, leased.get());
+    assertEquals(Arrays.asList(100L, 101L, 102L, 103L, 104L), Futures.allAsList(offsets).get());
+    assertEquals(105, lease.take());
+  }
+
+  @Test
+  public void unansweredRequestTimesOut() throws Exception {
+    ListenableFuture<byte[]> f = chicagoClient.request("node", Op.WRITE, "colFam".getBytes(), "key".getBytes(),
+        "val".getBytes(), 20);
+    try {
+      f.get(1, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertTrue(futureMap.isEmpty());
+  }
+
+  @Test
+  public void unusedLeaseRunsOut() throws Exception {
+    List<OffsetRange> released = new ArrayList<>();
+    ChicagoAsyncClient.OffsetLease lease = new ChicagoAsyncClient.OffsetLease(20, released::add);
+    assertEquals(100L, (long) lease.next(() -> Futures.immediateFuture(new OffsetRange(100, 10))).get());
+    Thread.sleep(50);
+    assertEquals(-1, lease.take());
+    assertEquals(1, released.size());
+    assertEquals(101, released.get(0).getStart());
+    assertEquals(9, released.get(0).getCount());
+    assertEquals(-1, lease.take());
+    assertEquals(1, released.size());
+    assertEquals(200L, (long) lease.next(() -> Futures.immediateFuture(new OffsetRange(200, 10))).get());
+  }
+
+  private static byte[] batch(long offset, boolean last, String val) {
+    return ChicagoRecordBatch.encode(
+      Collections.singletonList(new DBRecord("colfFam".getBytes(), Longs.toByteArray(offset), val.getBytes())), last, offset + 1);
+  }
 }
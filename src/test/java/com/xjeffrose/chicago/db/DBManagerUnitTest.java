@@ -3,9 +3,19 @@ package com.xjeffrose.chicago.db;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class DBManagerUnitTest {
 
@@ -107,4 +117,64 @@ public class DBManagerUnitTest {
     verify(backend).tsWrite(eq(colFam), eq(key), eq(val));
   }
 
+  @Test
+  public void testGroupCommit() throws InterruptedException, ExecutionException {
+    byte[] colFam = "colFam".getBytes();
+    doAnswer((invocation) -> {
+      List<GroupWrite> writes = (List<GroupWrite>) invocation.getArguments()[0];
+      writes.forEach((w) -> w.succeeded(w.getKey() == null ? "ts".getBytes() : w.getKey()));
+      return null;
+    }).when(backend).groupWrite(anyList());
+
+    // hold the worker so the writes queue up behind each other
+    SettableFuture<Boolean> gate = SettableFuture.create();
+    when(backend.read(colFam, "gate".getBytes())).thenAnswer((invocation) -> {
+      gate.get();
+      return null;
+    });
+    manager.read(colFam, "gate".getBytes());
+    ListenableFuture<Boolean> write = manager.write(colFam, "key".getBytes(), "val".getBytes());
+    ListenableFuture<byte[]> tsWrite = manager.tsWrite(colFam, null, "val".getBytes());
+    gate.set(true);
+
+    assertTrue(write.get());
+    assertEquals("ts", new String(tsWrite.get()));
+    verify(backend).groupWrite(anyList());
+    verify(backend, never()).write(any(byte[].class), any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void testReadBypassesQueuedWrites() throws Exception {
+    byte[] colFam = "colFam".getBytes();
+    SettableFuture<Boolean> gate = SettableFuture.create();
+    when(backend.write(colFam, "slow".getBytes(), "val".getBytes())).thenAnswer((invocation) -> gate.get());
+    when(backend.read(colFam, "key".getBytes())).thenReturn("val".getBytes());
+
+    ListenableFuture<Boolean> write = manager.write(colFam, "slow".getBytes(), "val".getBytes());
+    assertEquals("val", new String(manager.read(colFam, "key".getBytes()).get(5, TimeUnit.SECONDS)));
+    assertFalse(write.isDone());
+
+    gate.set(true);
+    assertTrue(write.get());
+  }
+
+  @Test
+  public void testStripedWorkers() throws InterruptedException, ExecutionException {
+    DBManager striped = new DBManager(backend, 4, WaitStrategy.DEFAULT);
+    striped.startAsync().awaitRunning();
+    try {
+      assertEquals(4, striped.getWorkerCount());
+      List<ListenableFuture<Boolean>> writes = new ArrayList<>();
+      for (int i = 0; i < 16; i++) {
+        writes.add(striped.write(("colFam" + i).getBytes(), "key".getBytes(), "val".getBytes()));
+      }
+      Futures.allAsList(writes).get();
+      striped.waitForEmptyQueue().get();
+
+      assertEquals(Arrays.asList(0, 0, 0, 0), striped.getQueueDepths());
+    } finally {
+      striped.stopAsync().awaitTerminated();
+    }
+  }
+
 }
@@ -5,6 +5,8 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.xjeffrose.chicago.server.ChiConfig;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +17,8 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class RocksDBImplTest {
@@ -30,6 +34,9 @@ public class RocksDBImplTest {
 
     Map<String, Object> mapping = new HashMap<>();
     mapping.put("settings.dbPath", db_filename.getPath());
+    mapping.put("settings.retention.Retained.maxAge", "2h");
+    mapping.put("settings.retention.Retained.bucket", "1h");
+    mapping.put("settings.timeIndexInterval", "10ms");
 
     Config defaults = ConfigFactory.load().getConfig("chicago.application");
     Config overrides = ConfigFactory.parseMap(mapping);
@@ -80,6 +87,76 @@ public class RocksDBImplTest {
     }
   }
 
+  @Test
+  public void multiWriteAndRead() throws Exception {
+    List<DBRecord> records = new ArrayList<>();
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      records.add(new DBRecord("ColFam".getBytes(), ("Key" + i).getBytes(), ("Val" + i).getBytes()));
+      keys.add(("Key" + i).getBytes());
+    }
+    keys.add("Missing".getBytes());
+
+    assertTrue(rocksDbImpl.multiWrite("ColFam".getBytes(), records));
+
+    List<byte[]> values = rocksDbImpl.multiRead("ColFam".getBytes(), keys);
+    assertEquals(keys.size(), values.size());
+    for (int i = 0; i < 500; i++) {
+      assertEquals(("Val" + i), new String(values.get(i)));
+    }
+    assertNull(values.get(500));
+    assertNull(rocksDbImpl.multiRead("NoSuchColFam".getBytes(), keys).get(0));
+  }
+
+  @Test
+  public void groupWrite() throws Exception {
+    List<GroupWrite> writes = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      writes.add(GroupWrite.write("ColFam".getBytes(), ("Key" + i).getBytes(), ("Val" + i).getBytes()));
+      writes.add(GroupWrite.tsWrite("TsColFam".getBytes(), null, ("Ts" + i).getBytes()));
+    }
+    writes.add(GroupWrite.write("ColFam".getBytes(), null, "NoKey".getBytes()));
+
+    rocksDbImpl.groupWrite(writes);
+
+    for (int i = 0; i < 100; i++) {
+      GroupWrite write = writes.get(2 * i);
+      GroupWrite tsWrite = writes.get(2 * i + 1);
+      assertTrue(write.isSuccess());
+      assertEquals(("Val" + i), new String(rocksDbImpl.read("ColFam".getBytes(), ("Key" + i).getBytes())));
+      assertTrue(tsWrite.isSuccess());
+      assertEquals(i, Longs.fromByteArray(tsWrite.getResultKey()));
+      assertEquals(("Ts" + i), new String(rocksDbImpl.read("TsColFam".getBytes(), tsWrite.getResultKey())));
+    }
+    assertFalse(writes.get(200).isSuccess());
+  }
+
+  @Test
+  public void writesALowerOffsetAfterAFlush() throws Exception {
+    byte[] colFam = "ColFam".getBytes();
+    for (long offset = 0; offset < 100; offset += 2) {
+      assertEquals(offset, Longs.fromByteArray(rocksDbImpl.tsWrite(colFam, Longs.toByteArray(offset), ("Val" + offset).getBytes())));
+    }
+    assertTrue(rocksDbImpl.flush(colFam));
+
+    // offsets leased by another writer land in the range of what is already on disk
+    for (long offset = 1; offset < 100; offset += 2) {
+      assertEquals(offset, Longs.fromByteArray(rocksDbImpl.tsWrite(colFam, Longs.toByteArray(offset), ("Val" + offset).getBytes())));
+    }
+    List<GroupWrite> writes = new ArrayList<>();
+    writes.add(GroupWrite.tsWrite(colFam, Longs.toByteArray(101), "Val101".getBytes()));
+    writes.add(GroupWrite.tsWrite(colFam, Longs.toByteArray(100), "Val100".getBytes()));
+    rocksDbImpl.groupWrite(writes);
+    assertTrue(rocksDbImpl.flush(colFam));
+    writes = Collections.singletonList(GroupWrite.tsWrite(colFam, Longs.toByteArray(99), "Other".getBytes()));
+    rocksDbImpl.groupWrite(writes);
+    assertTrue(writes.get(0).isSuccess());
+
+    for (long offset = 0; offset < 102; offset++) {
+      assertEquals("Val" + offset, new String(rocksDbImpl.read(colFam, Longs.toByteArray(offset))));
+    }
+  }
+
   @Test
   public void batchWrite() throws Exception {
     for (int i = 0; i < 100000; i++) {
@@ -108,4 +185,123 @@ public class RocksDBImplTest {
 //    }
   }
 
+  @Test
+  public void scanAndBulkLoad() throws Exception {
+    for (int i = 0; i < 3000; i++) {
+      rocksDbImpl.tsWrite("Source".getBytes(), ("Val" + i).getBytes());
+    }
+    List<DBRecord> records = new ArrayList<>();
+    rocksDbImpl.scan("Source".getBytes(), (key, val) -> records.add(new DBRecord("Target".getBytes(), key, val)));
+    assertEquals(3000, records.size());
+    assertEquals(2999, Longs.fromByteArray(records.get(2999).getKey()));
+
+    assertTrue(rocksDbImpl.bulkLoad("Target".getBytes(), true, records));
+    assertEquals("Val1234", new String(rocksDbImpl.read("Target".getBytes(), Longs.toByteArray(1234))));
+    // the sequence continues after the loaded offsets
+    assertEquals(3000, Longs.fromByteArray(rocksDbImpl.tsWrite("Target".getBytes(), "next".getBytes())));
+  }
+
+  @Test
+  public void expiresWholeBuckets() throws Exception {
+    byte[] colFam = "Retained".getBytes();
+    rocksDbImpl.tsWrite(colFam, "Val0".getBytes());
+    long start = System.currentTimeMillis();
+    for (int i = 1; i < 100; i++) {
+      rocksDbImpl.tsWrite(colFam, ("Val" + i).getBytes());
+    }
+    rocksDbImpl.enforceRetention(start + 3600000);
+    for (int i = 100; i < 200; i++) {
+      assertEquals(i, Longs.fromByteArray(rocksDbImpl.tsWrite(colFam, ("Val" + i).getBytes())));
+    }
+
+    assertEquals("2", rocksDbImpl.getColFamProperties(colFam).get("chicago.buckets"));
+    assertEquals(200, rocksDbImpl.getKeys(colFam, new byte[0]).size());
+    assertEquals(150, rocksDbImpl.stream(colFam, Longs.toByteArray(50)).size());
+    assertEquals("Val50", new String(rocksDbImpl.read(colFam, Longs.toByteArray(50))));
+    assertEquals("Val150", new String(rocksDbImpl.read(colFam, Longs.toByteArray(150))));
+
+    rocksDbImpl.enforceRetention(start + 2 * 3600000);
+    assertEquals("Val50", new String(rocksDbImpl.read(colFam, Longs.toByteArray(50))));
+    // the first bucket's records are older than two hours once the second is
+    rocksDbImpl.enforceRetention(start + 3 * 3600000);
+    assertNull(rocksDbImpl.read(colFam, Longs.toByteArray(50)));
+    assertEquals("Val150", new String(rocksDbImpl.read(colFam, Longs.toByteArray(150))));
+    assertEquals(100, rocksDbImpl.getKeys(colFam, new byte[0]).size());
+    assertEquals("Val199", new String(rocksDbImpl.stream(colFam).get(0).getValue()));
+    assertEquals(200, Longs.fromByteArray(rocksDbImpl.tsWrite(colFam, "Val200".getBytes())));
+    assertEquals(Collections.singletonList("Retained"), rocksDbImpl.getColFams());
+  }
+
+  @Test
+  public void scanOutlivesTheBucketsItReads() throws Exception {
+    byte[] colFam = "Retained".getBytes();
+    rocksDbImpl.tsWrite(colFam, "Val0".getBytes());
+    long start = System.currentTimeMillis();
+    for (int i = 1; i < 300; i++) {
+      if (i % 100 == 0) {
+        rocksDbImpl.enforceRetention(start + i / 100 * 3600000);
+      }
+      rocksDbImpl.tsWrite(colFam, ("Val" + i).getBytes());
+    }
+    assertEquals("3", rocksDbImpl.getColFamProperties(colFam).get("chicago.buckets"));
+
+    List<String> visited = new ArrayList<>();
+    rocksDbImpl.scan(colFam, (key, val) -> {
+      if (visited.isEmpty()) {
+        // drops the first two buckets while the scan holds them
+        rocksDbImpl.enforceRetention(start + 4 * 3600000);
+      }
+      visited.add(new String(val));
+    });
+    assertEquals(300, visited.size());
+    assertEquals("Val150", visited.get(150));
+    assertNull(rocksDbImpl.read(colFam, Longs.toByteArray(150)));
+    assertEquals("Val250", new String(rocksDbImpl.read(colFam, Longs.toByteArray(250))));
+  }
+
+  @Test
+  public void seeksByTime() throws Exception {
+    byte[] colFam = "Logs".getBytes();
+    long before = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      rocksDbImpl.tsWrite(colFam, ("Val" + i).getBytes());
+    }
+    Thread.sleep(50);
+    long middle = System.currentTimeMillis();
+    for (int i = 5; i < 10; i++) {
+      rocksDbImpl.tsWrite(colFam, ("Val" + i).getBytes());
+    }
+
+    assertEquals(0, Longs.fromByteArray(rocksDbImpl.seekTime(colFam, before - 1000)));
+    assertEquals(5, Longs.fromByteArray(rocksDbImpl.seekTime(colFam, middle)));
+    // nothing written since, the next record is where to start
+    assertEquals(10, Longs.fromByteArray(rocksDbImpl.seekTime(colFam, middle + 60000)));
+    assertNull(rocksDbImpl.seekTime("Missing".getBytes(), middle));
+
+    rocksDbImpl.delete(colFam);
+    rocksDbImpl.tsWrite(colFam, "Val0".getBytes());
+    assertEquals(0, Longs.fromByteArray(rocksDbImpl.seekTime(colFam, before - 1000)));
+  }
+
+  @Test
+  public void adminOperations() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(rocksDbImpl.write("ColFam".getBytes(), ("Key" + i).getBytes(), ("Val" + i).getBytes()));
+    }
+    assertNull(rocksDbImpl.getColFamProperties("Missing".getBytes()));
+    assertFalse(rocksDbImpl.flush("Missing".getBytes()));
+
+    Map<String, String> properties = rocksDbImpl.getColFamProperties("ColFam".getBytes());
+    assertTrue(Long.parseLong(properties.get("rocksdb.estimate-num-keys")) > 0);
+    assertTrue(Long.parseLong(properties.get("rocksdb.cur-size-all-mem-tables")) > 0);
+
+    assertTrue(rocksDbImpl.flush("ColFam".getBytes()));
+    assertTrue(rocksDbImpl.compact("ColFam".getBytes()));
+    assertEquals("Val999", new String(rocksDbImpl.read("ColFam".getBytes(), "Key999".getBytes())));
+
+    Map<String, Number> stats = rocksDbImpl.getStatistics();
+    assertTrue(stats.containsKey("block_cache_hit_rate"));
+    assertTrue(stats.containsKey("block_cache_hit"));
+  }
+
 }
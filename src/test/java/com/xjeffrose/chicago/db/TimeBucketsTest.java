@@ -0,0 +1,71 @@
+package com.xjeffrose.chicago.db;
+
+import com.google.common.primitives.Longs;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeBucketsTest {
+
+  private static TimeBuckets buckets(RetentionPolicy policy, long... createdMillis) {
+    TimeBuckets buckets = new TimeBuckets(policy);
+    for (int i = 0; i < createdMillis.length; i++) {
+      buckets.add(new TimeBuckets.Bucket(i * 100, createdMillis[i], TimeBuckets.name("colFam", i * 100), null));
+    }
+    return buckets;
+  }
+
+  @Test
+  public void findsTheBucketOfAKey() {
+    TimeBuckets buckets = buckets(new RetentionPolicy(0, 1000, 10), 0, 10, 20);
+
+    assertEquals(0, buckets.forKey(Longs.toByteArray(99)).firstOffset);
+    assertEquals(100, buckets.forKey(Longs.toByteArray(100)).firstOffset);
+    assertEquals(200, buckets.forKey(Longs.toByteArray(5000)).firstOffset);
+    assertEquals(200, buckets.forKey("key".getBytes()).firstOffset);
+    assertEquals(2, buckets.from(Longs.toByteArray(150)).size());
+    assertEquals(3, buckets.from(new byte[0]).size());
+  }
+
+  @Test
+  public void keepsRecordsBelowTheOldestBucketInIt() {
+    TimeBuckets buckets = buckets(new RetentionPolicy(0, 1000, 10), 0, 10);
+    buckets.remove(buckets.forKey(Longs.toByteArray(0)));
+
+    assertEquals(100, buckets.forKey(Longs.toByteArray(42)).firstOffset);
+  }
+
+  @Test
+  public void startsABucketWhenTheNewestIsDueAndHoldsRecords() {
+    TimeBuckets buckets = buckets(new RetentionPolicy(1000, 0, 10), 0, 10);
+
+    assertFalse(buckets.isDue(19, 150));
+    assertTrue(buckets.isDue(20, 150));
+    assertFalse(buckets.isDue(20, 100));
+  }
+
+  @Test
+  public void dropsTheOldestBucketsBeyondTheSize() {
+    TimeBuckets buckets = buckets(new RetentionPolicy(0, 100, 10), 0, 10, 20);
+    Map<Long, Long> sizes = new HashMap<>();
+    sizes.put(0L, 60L);
+    sizes.put(100L, 50L);
+    sizes.put(200L, 40L);
+
+    List<TimeBuckets.Bucket> expired = buckets.expired(30, bucket -> sizes.get(bucket.firstOffset));
+    assertEquals(1, expired.size());
+    assertEquals(0, expired.get(0).firstOffset);
+  }
+
+  @Test
+  public void neverDropsTheNewestBucket() {
+    TimeBuckets buckets = buckets(new RetentionPolicy(5, 10, 10), 0, 10);
+
+    List<TimeBuckets.Bucket> expired = buckets.expired(1000, bucket -> 500L);
+    assertEquals(1, expired.size());
+    assertEquals(0, expired.get(0).firstOffset);
+  }
+}
@@ -0,0 +1,48 @@
+package com.xjeffrose.chicago.db;
+
+import com.google.common.primitives.Longs;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeIndexTest {
+  private final byte[] colFam = "colFam".getBytes();
+
+  @Test
+  public void indexesTheFirstRecordOfEachSlot() {
+    TimeIndex index = new TimeIndex(1000);
+
+    DBRecord first = index.record(colFam, 0, 1500);
+    assertArrayEquals(TimeIndex.key(colFam, 1000), first.getKey());
+    assertEquals(0, Longs.fromByteArray(first.getValue()));
+    assertNull(index.record(colFam, 1, 1999));
+    assertEquals(2, Longs.fromByteArray(index.record(colFam, 2, 2000).getValue()));
+    // a record that took its offset first but came in late still leads the slot
+    assertEquals(1, Longs.fromByteArray(index.record(colFam, 1, 2001).getValue()));
+    assertNotNull(index.record("other".getBytes(), 0, 2001));
+  }
+
+  @Test
+  public void seeksFromTheStartOfTheSlot() {
+    TimeIndex index = new TimeIndex(1000);
+
+    assertArrayEquals(TimeIndex.key(colFam, 14000), index.seekKey(colFam, 14999));
+    assertArrayEquals(TimeIndex.key(colFam, 0), index.seekKey(colFam, -5));
+  }
+
+  @Test
+  public void keysOfAColumnFamilyShareItsPrefix() {
+    byte[] key = TimeIndex.key(colFam, 42);
+    byte[] prefix = TimeIndex.prefix(colFam);
+
+    assertEquals(prefix.length + Longs.BYTES, key.length);
+    assertEquals(0, key[colFam.length]);
+    assertEquals(42, Longs.fromByteArray(Arrays.copyOfRange(key, prefix.length, key.length)));
+  }
+
+  @Test
+  public void indexesNothingWithoutAnInterval() {
+    assertNull(new TimeIndex(0).record(colFam, 0, 1500));
+  }
+}
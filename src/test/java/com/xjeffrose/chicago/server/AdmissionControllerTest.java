@@ -0,0 +1,122 @@
+package com.xjeffrose.chicago.server;
+
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.InMemDBImpl;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+
+public class AdmissionControllerTest extends org.junit.Assert {
+
+  @Test
+  public void scansAreShedBeforeReads() {
+    AdmissionController admission = new AdmissionController(10, Long.MAX_VALUE);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(admission.tryAcquire(Op.WRITE, 0));
+    }
+    assertFalse(admission.tryAcquire(Op.STREAM, 0));
+    assertFalse(admission.tryAcquire(Op.SCAN_KEYS, 0));
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(admission.tryAcquire(Op.WRITE, 0));
+    }
+    assertFalse(admission.tryAcquire(Op.WRITE, 0));
+    assertTrue(admission.tryAcquire(Op.READ, 0));
+    assertFalse(admission.tryAcquire(Op.READ, 0));
+
+    assertEquals(10, admission.getInFlightRequests());
+    assertEquals(4, admission.getRejected());
+  }
+
+  @Test
+  public void byteBudget() {
+    AdmissionController admission = new AdmissionController(Long.MAX_VALUE, 1000);
+    // larger than the budget but alone, let it through
+    assertTrue(admission.tryAcquire(Op.WRITE, 5000));
+    assertFalse(admission.tryAcquire(Op.READ, 1));
+    admission.release(5000);
+
+    assertTrue(admission.tryAcquire(Op.WRITE, 800));
+    assertFalse(admission.tryAcquire(Op.WRITE, 200));
+    assertTrue(admission.tryAcquire(Op.READ, 200));
+    assertEquals(1000, admission.getInFlightBytes());
+  }
+
+  @Test
+  public void pausesUntilDrained() {
+    AdmissionController admission = new AdmissionController(4, Long.MAX_VALUE);
+    EmbeddedChannel ch = new EmbeddedChannel();
+    for (int i = 0; i < 4; i++) {
+      assertTrue(admission.tryAcquire(Op.READ, 0));
+    }
+
+    admission.pause(ch);
+    assertFalse(ch.config().isAutoRead());
+    assertEquals(1, admission.paused());
+
+    admission.release(0);
+    ch.runPendingTasks();
+    assertFalse(ch.config().isAutoRead());
+
+    admission.release(0);
+    ch.runPendingTasks();
+    assertTrue(ch.config().isAutoRead());
+    assertEquals(0, admission.paused());
+  }
+
+  @Test
+  public void handlerAnswersOverloaded() throws Exception {
+    DBManager manager = new DBManager(new InMemDBImpl());
+    manager.startAsync().awaitRunning();
+    AdmissionController admission = new AdmissionController(0, Long.MAX_VALUE);
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoDBHandler(manager, admission));
+
+    UUID id = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.READ, "ColFam".getBytes(), "Key".getBytes(), null));
+    ChicagoMessage response = ch.readOutbound();
+    assertEquals(id, response.getId());
+    assertEquals(Op.RESPONSE, response.getOp());
+    assertEquals(ChiUtil.OVERLOADED, new String(response.getKey()));
+    assertFalse(ch.config().isAutoRead());
+
+    manager.stopAsync().awaitTerminated();
+  }
+
+  // runs the event loop until {@code done} or a few seconds have passed
+  private static void runUntil(EmbeddedChannel ch, BooleanSupplier done) throws Exception {
+    for (int i = 0; i < 500 && !done.getAsBoolean(); i++) {
+      Thread.sleep(10);
+      ch.runPendingTasks();
+    }
+  }
+
+  @Test
+  public void chunkedReplyHoldsItsAdmissionUntilTheLastChunk() throws Exception {
+    DBManager manager = new DBManager(new InMemDBImpl());
+    manager.startAsync().awaitRunning();
+    for (int i = 0; i <= ChicagoDBHandler.SCAN_PAGE_SIZE; i++) {
+      manager.write("ColFam".getBytes(), ("Key" + i).getBytes(), "Val".getBytes()).get();
+    }
+    AdmissionController admission = new AdmissionController(10, Long.MAX_VALUE);
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoDBHandler(manager, admission, 0));
+
+    // the first page goes out, the second waits for room
+    ch.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.SCAN_KEYS, "ColFam".getBytes(), null, null));
+    runUntil(ch, () -> ch.outboundMessages().size() == 1);
+    assertEquals(1, ch.outboundMessages().size());
+    assertEquals(1, admission.getInFlightRequests());
+
+    ch.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+    runUntil(ch, () -> admission.getInFlightRequests() == 0);
+    assertEquals(2, ch.outboundMessages().size());
+    assertEquals(0, admission.getInFlightRequests());
+
+    manager.stopAsync().awaitTerminated();
+  }
+}
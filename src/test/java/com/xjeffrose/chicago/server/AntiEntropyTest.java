@@ -0,0 +1,165 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.base.Function;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.ChiUtil;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.MerkleTree;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AntiEntropyTest {
+  private final byte[] colFam = "colFam".getBytes();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private RocksDBImpl primary;
+  private RocksDBImpl replica;
+  private AntiEntropy primaryAntiEntropy;
+  private AntiEntropy replicaAntiEntropy;
+  private final Map<Op, Integer> requests = new HashMap<>();
+
+  private RocksDBImpl open(String name) throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.newFolder(name), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    RocksDBImpl db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    db.open();
+    return db;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    primary = open("primary");
+    replica = open("replica");
+    primaryAntiEntropy = new AntiEntropy(primary, 8);
+    replicaAntiEntropy = new AntiEntropy(replica, 8);
+
+    // the replica's side of the requests, answered in process
+    ChicagoAsyncClient peers = mock(ChicagoAsyncClient.class);
+    when(peers.request(eq("replica"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenAnswer(invocation -> {
+      Op op = (Op) invocation.getArguments()[1];
+      byte[] cf = (byte[]) invocation.getArguments()[2];
+      byte[] key = (byte[]) invocation.getArguments()[3];
+      byte[] val = (byte[]) invocation.getArguments()[4];
+      switch (op) {
+        case MERKLE_TREE:
+          return replicaAntiEntropy.treeHashes(cf, val);
+        case MERKLE_KEYS:
+          requests.merge(op, 1, Integer::sum);
+          return Futures.transform(replicaAntiEntropy.leafDigests(cf, val),
+              (Function<List<DBRecord>, byte[]>) digests -> ChicagoRecordBatch.encode(digests, true, 0));
+        case BULK_LOAD:
+          assertEquals(ChiUtil.TS, new String(key));
+          replica.bulkLoad(cf, true, ChicagoRecordBatch.wrap(val).records(cf));
+          return Futures.immediateFuture(null);
+        case MULTI_GET:
+          List<byte[]> keys = ChicagoRecordBatch.wrap(val).keys();
+          List<byte[]> vals = replica.multiRead(cf, keys);
+          List<DBRecord> records = new ArrayList<>();
+          for (int i = 0; i < keys.size(); i++) {
+            records.add(new DBRecord(cf, keys.get(i), vals.get(i)));
+          }
+          return Futures.immediateFuture(ChicagoRecordBatch.encode(records, true, 0));
+        default:
+          throw new AssertionError("Unexpected " + op);
+      }
+    });
+    primaryAntiEntropy.start(peers, "primary", 0, name -> true);
+  }
+
+  @After
+  public void tearDown() {
+    primaryAntiEntropy.close();
+    replicaAntiEntropy.close();
+    primary.close();
+    replica.close();
+  }
+
+  private static byte[] offset(long offset) {
+    return Longs.toByteArray(offset);
+  }
+
+  private static String read(RocksDBImpl db, byte[] colFam, long offset) {
+    byte[] val = db.read(colFam, offset(offset));
+    return val == null ? null : new String(val);
+  }
+
+  @Test
+  public void copiesWhatEitherSideLacks() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      primary.tsWrite(colFam, offset(i), ("val" + i).getBytes());
+      replica.tsWrite(colFam, offset(i), ("val" + i).getBytes());
+    }
+    primary.tsWrite(colFam, offset(2000), "p".getBytes());
+    // e.g. acknowledged by the replicas while the first one was down
+    replica.tsWrite(colFam, offset(2001), "r".getBytes());
+
+    assertEquals(2, primaryAntiEntropy.sync(colFam, "replica"));
+    assertEquals("p", read(replica, colFam, 2000));
+    assertEquals("r", read(primary, colFam, 2001));
+    // loaded records move the sequence past them
+    assertEquals(2002, Longs.fromByteArray(primary.nextOffset(colFam)));
+    assertEquals(2002, Longs.fromByteArray(replica.nextOffset(colFam)));
+    assertEquals(0, primaryAntiEntropy.sync(colFam, "replica"));
+  }
+
+  @Test
+  public void neverOverwritesARecord() throws Exception {
+    primary.tsWrite(colFam, offset(0), "val".getBytes());
+    replica.tsWrite(colFam, offset(0), "other".getBytes());
+
+    assertEquals(0, primaryAntiEntropy.sync(colFam, "replica"));
+    assertEquals("val", read(primary, colFam, 0));
+    assertEquals("other", read(replica, colFam, 0));
+  }
+
+  @Test
+  public void listsAllDifferingLeavesInOneRequest() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      primary.tsWrite(colFam, offset(i), ("val" + i).getBytes());
+      if (i % 10 != 0) {
+        replica.tsWrite(colFam, offset(i), ("val" + i).getBytes());
+      }
+    }
+
+    assertEquals(200, primaryAntiEntropy.sync(colFam, "replica"));
+    assertEquals(Integer.valueOf(1), requests.get(Op.MERKLE_KEYS));
+    assertEquals(MerkleTree.build(primary, colFam, 8).root(), MerkleTree.build(replica, colFam, 8).root());
+  }
+
+  @Test
+  public void treesDoNotDependOnWriteOrder() {
+    MerkleTree forward = new MerkleTree(4);
+    MerkleTree backward = new MerkleTree(4);
+    for (int i = 0; i < 100; i++) {
+      forward.add(("key" + i).getBytes(), ("val" + i).getBytes());
+      backward.add(("key" + (99 - i)).getBytes(), ("val" + (99 - i)).getBytes());
+    }
+    forward.seal();
+    backward.seal();
+    assertEquals(forward.root(), backward.root());
+  }
+}
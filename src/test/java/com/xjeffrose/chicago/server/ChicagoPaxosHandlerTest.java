@@ -1,59 +1,93 @@
 package com.xjeffrose.chicago.server;
 
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
+import com.xjeffrose.chicago.ChiUtil;
 import com.xjeffrose.chicago.ChicagoMessage;
 import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.OffsetRange;
 import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.ZkClient;
 import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.util.internal.PlatformDependent;
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class ChicagoPaxosHandlerTest {
-  private Map<String, AtomicLong> offset;
-  private Map<String, Integer> q;
-  private Map<String, Map<String, Long>> sessionCoordinator;
-  private Map<String, AtomicInteger> qCount;
 
-  @Test
-  public void getOffsetHappyPath() throws Exception {
-    this.offset = PlatformDependent.newConcurrentHashMap();
-    this.q = PlatformDependent.newConcurrentHashMap();
-    this.sessionCoordinator = PlatformDependent.newConcurrentHashMap();
-    this.qCount = PlatformDependent.newConcurrentHashMap();
+  private static ChicagoMessage getOffset(EmbeddedChannel ch, String colFam, int count) throws Exception {
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.GET_OFFSET, colFam.getBytes(), null, Ints.toByteArray(count)));
+    // the lease is made on the sequencer's thread, the answer comes back through the channel's executor
+    for (int i = 0; i < 1000; i++) {
+      ch.runPendingTasks();
+      ChicagoMessage response = ch.readOutbound();
+      if (response != null) {
+        return response;
+      }
+      Thread.sleep(1);
+    }
+    fail("No response to GET_OFFSET");
+    return null;
+  }
 
-    ChicagoPaxosHandler paxosHandler = new ChicagoPaxosHandler(offset, q, sessionCoordinator, qCount);
+  @Test
+  public void leasesDoNotOverlap() throws Exception {
+    OffsetSequencer sequencer = new OffsetSequencer(10);
+    ChicagoPaxosHandler paxosHandler = new ChicagoPaxosHandler(sequencer);
 
     EmbeddedChannel ch1 = new EmbeddedChannel(paxosHandler);
     EmbeddedChannel ch2 = new EmbeddedChannel(paxosHandler);
-    EmbeddedChannel ch3 = new EmbeddedChannel(paxosHandler);
-    EmbeddedChannel ch4 = new EmbeddedChannel(paxosHandler);
-
-    ChicagoMessage cm1 = new DefaultChicagoMessage(UUID.randomUUID(), Op.GET_OFFSET, "ColFam".getBytes(), "id1".getBytes(), Ints.toByteArray(3));
-    ChicagoMessage cm2 = new DefaultChicagoMessage(UUID.randomUUID(), Op.GET_OFFSET, "ColFam".getBytes(), "id2".getBytes(), Ints.toByteArray(3));
-    ChicagoMessage cm3 = new DefaultChicagoMessage(UUID.randomUUID(), Op.GET_OFFSET, "ColFam".getBytes(), "id3".getBytes(), Ints.toByteArray(3));
-    ChicagoMessage cm4 = new DefaultChicagoMessage(UUID.randomUUID(), Op.GET_OFFSET, "ColFam".getBytes(), "id4".getBytes(), Ints.toByteArray(3));
-
-    ch1.writeInbound(cm1);
-    ch2.writeInbound(cm2);
-    ch3.writeInbound(cm3);
-    ch4.writeInbound(cm4);
-
-    ChicagoMessage resp1 = ch1.readOutbound();
-    ChicagoMessage resp2 = ch2.readOutbound();
-    ChicagoMessage resp3 = ch3.readOutbound();
-    ChicagoMessage resp4 = ch4.readOutbound();
-
-    assertEquals(0, Longs.fromByteArray(resp1.getVal()));
-    assertEquals(0, Longs.fromByteArray(resp2.getVal()));
-    assertEquals(0, Longs.fromByteArray(resp3.getVal()));
-    assertEquals(1, Longs.fromByteArray(resp4.getVal()));
+
+    ChicagoMessage resp1 = getOffset(ch1, "ColFam", 3);
+    ChicagoMessage resp2 = getOffset(ch2, "ColFam", 3);
+    ChicagoMessage resp3 = getOffset(ch1, "ColFam", 3);
+    // does not fit in the rest of the first block
+    ChicagoMessage resp4 = getOffset(ch2, "ColFam", 3);
+    ChicagoMessage other = getOffset(ch1, "OtherColFam", 5);
+
+    assertEquals("true", new String(resp1.getKey()));
+    assertEquals(0, OffsetRange.decode(resp1.getVal()).getStart());
+    assertEquals(3, OffsetRange.decode(resp1.getVal()).getCount());
+    assertEquals(3, OffsetRange.decode(resp2.getVal()).getStart());
+    assertEquals(6, OffsetRange.decode(resp3.getVal()).getStart());
+    assertEquals(10, OffsetRange.decode(resp4.getVal()).getStart());
+    assertEquals(0, OffsetRange.decode(other.getVal()).getStart());
+    assertEquals(5, OffsetRange.decode(other.getVal()).getCount());
+
+    sequencer.close();
+  }
+
+  @Test
+  public void redirectsToTheOwner() throws Exception {
+    ZkClient zkClient = mock(ZkClient.class);
+    when(zkClient.isLeader()).thenReturn(false);
+    when(zkClient.getLeaderId()).thenReturn("10.0.0.1:12000");
+    OffsetSequencer sequencer = new OffsetSequencer();
+    sequencer.setZkClient(zkClient);
+
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoPaxosHandler(sequencer));
+    ChicagoMessage resp = getOffset(ch, "ColFam", 100);
+
+    assertEquals(ChiUtil.REDIRECT, new String(resp.getKey()));
+    assertEquals("10.0.0.1:12000", new String(resp.getVal()));
+
+    sequencer.close();
   }
 
-}
\ No newline at end of file
+  @Test
+  public void ownerLeasesFromZooKeeperBlocks() throws Exception {
+    ZkClient zkClient = mock(ZkClient.class);
+    when(zkClient.isLeader()).thenReturn(true);
+    when(zkClient.getAndAdd(OffsetSequencer.OFFSETS_PATH + "/ColFam", 10)).thenReturn(500L);
+    OffsetSequencer sequencer = new OffsetSequencer(10);
+    sequencer.setZkClient(zkClient);
+
+    EmbeddedChannel ch = new EmbeddedChannel(new ChicagoPaxosHandler(sequencer));
+    assertEquals(500, OffsetRange.decode(getOffset(ch, "ColFam", 4).getVal()).getStart());
+    assertEquals(504, OffsetRange.decode(getOffset(ch, "ColFam", 4).getVal()).getStart());
+
+    sequencer.close();
+  }
+}
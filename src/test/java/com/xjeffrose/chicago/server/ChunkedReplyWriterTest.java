@@ -0,0 +1,69 @@
+package com.xjeffrose.chicago.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ChunkedReplyWriterTest extends org.junit.Assert {
+
+  private static class Writer extends ChannelInboundHandlerAdapter {
+    ChannelHandlerContext ctx;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      ChunkedReplyWriter.of(ctx.channel()).writabilityChanged(ctx);
+    }
+  }
+
+  private static void setWritable(EmbeddedChannel ch, boolean writable) {
+    ch.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+  }
+
+  @Test
+  public void parksWhileUnwritable() {
+    Writer handler = new Writer();
+    EmbeddedChannel ch = new EmbeddedChannel(handler);
+    ChunkedReplyWriter writer = ChunkedReplyWriter.of(ch);
+    List<Integer> ran = new ArrayList<>();
+
+    writer.whenWritable(handler.ctx, () -> ran.add(1));
+    assertEquals(1, ran.size());
+
+    setWritable(ch, false);
+    writer.whenWritable(handler.ctx, () -> ran.add(2));
+    writer.whenWritable(handler.ctx, () -> ran.add(3));
+    assertEquals(1, ran.size());
+    assertEquals(2, writer.parked());
+
+    setWritable(ch, true);
+    assertEquals(3, ran.size());
+    assertEquals(Integer.valueOf(2), ran.get(1));
+    assertEquals(Integer.valueOf(3), ran.get(2));
+    assertEquals(0, writer.parked());
+  }
+
+  @Test
+  public void dropsParkedOnClose() {
+    Writer handler = new Writer();
+    EmbeddedChannel ch = new EmbeddedChannel(handler);
+    ChunkedReplyWriter writer = ChunkedReplyWriter.of(ch);
+    List<Integer> ran = new ArrayList<>();
+
+    setWritable(ch, false);
+    writer.whenWritable(handler.ctx, () -> ran.add(1));
+    writer.clear();
+    ch.close();
+    writer.whenWritable(handler.ctx, () -> ran.add(2));
+
+    assertTrue(ran.isEmpty());
+    assertEquals(0, writer.parked());
+  }
+}
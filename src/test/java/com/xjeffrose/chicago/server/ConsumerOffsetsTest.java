@@ -0,0 +1,144 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.primitives.Longs;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ConsumerOffsetsTest {
+  private final byte[] group = "group".getBytes();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private RocksDBImpl db;
+  private DBManager manager;
+  private EmbeddedChannel ch;
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.getRoot(), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    manager = new DBManager(db);
+    manager.startAsync().awaitRunning();
+    ch = new EmbeddedChannel(new ChicagoDBHandler(manager, AdmissionController.unbounded(), 0));
+  }
+
+  @After
+  public void tearDown() {
+    ch.close();
+    manager.stopAsync().awaitTerminated();
+  }
+
+  private ChicagoMessage request(Op op, byte[] val) throws Exception {
+    return request(op, null, val);
+  }
+
+  private ChicagoMessage request(Op op, byte[] key, byte[] val) throws Exception {
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), op, group, key, val));
+    for (int i = 0; i < 10; i++) {
+      manager.waitForEmptyQueue().get();
+      ch.runPendingTasks();
+    }
+    return ch.readOutbound();
+  }
+
+  private static DBRecord offset(String colFam, long offset) {
+    return new DBRecord(null, colFam.getBytes(), Longs.toByteArray(offset));
+  }
+
+  @Test
+  public void fetchesWhatWasCommitted() throws Exception {
+    ChicagoMessage commit = request(Op.COMMIT_OFFSETS,
+        ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 3), offset("t2", 7)), true, 0));
+    assertEquals("true", new String(commit.getKey()));
+
+    ChicagoMessage fetch = request(Op.FETCH_OFFSETS,
+        ChicagoRecordBatch.encodeKeys(Arrays.asList("t2".getBytes(), "t3".getBytes())));
+    assertEquals("true", new String(fetch.getKey()));
+    List<byte[]> offsets = ChicagoRecordBatch.wrap(fetch.getVal()).values();
+    assertEquals(7, Longs.fromByteArray(offsets.get(0)));
+    assertNull(offsets.get(1));
+  }
+
+  @Test
+  public void rejectsOffsetsThatAreNotLongs() throws Exception {
+    ChicagoMessage commit = request(Op.COMMIT_OFFSETS,
+        ChicagoRecordBatch.encode(Arrays.asList(new DBRecord(null, "t1".getBytes(), "3".getBytes())), true, 0));
+    assertEquals("false", new String(commit.getKey()));
+  }
+
+  @Test
+  public void lagIsTheDistanceToTheEnd() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      manager.tsWrite("t1".getBytes(), null, ("val" + i).getBytes()).get();
+    }
+    request(Op.COMMIT_OFFSETS, ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 4)), true, 0));
+
+    Map<String, Number> lag = new ConsumerOffsets(db).currentLag();
+    assertEquals(6L, lag.get("consumer_lag{group=\"group\",colfam=\"t1\"}"));
+  }
+
+  @Test
+  public void scrapesGetTheLagOfTheLastRefresh() throws Exception {
+    manager.tsWrite("t1".getBytes(), null, "val".getBytes()).get();
+    request(Op.COMMIT_OFFSETS, ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 0)), true, 0));
+
+    try (ConsumerOffsets offsets = new ConsumerOffsets(db)) {
+      // worked out off the caller's thread, the first scrape comes back empty
+      assertTrue(offsets.lag().isEmpty());
+      long deadline = System.currentTimeMillis() + 5000;
+      while (offsets.lag().isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1L, offsets.lag().get("consumer_lag{group=\"group\",colfam=\"t1\"}"));
+    }
+  }
+
+  @Test
+  public void aCopyOnlyRaisesOffsets() throws Exception {
+    request(Op.COMMIT_OFFSETS, ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 5), offset("t2", 5)), true, 0));
+    request(Op.COMMIT_OFFSETS, ConsumerOffsets.MERGE,
+        ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 3), offset("t2", 8), offset("t3", 1)), true, 0));
+
+    List<byte[]> offsets = ChicagoRecordBatch.wrap(request(Op.FETCH_OFFSETS,
+        ChicagoRecordBatch.encodeKeys(Arrays.asList("t1".getBytes(), "t2".getBytes(), "t3".getBytes()))).getVal()).values();
+    assertEquals(5, Longs.fromByteArray(offsets.get(0)));
+    assertEquals(8, Longs.fromByteArray(offsets.get(1)));
+    assertEquals(1, Longs.fromByteArray(offsets.get(2)));
+  }
+
+  @Test
+  public void listsTheOffsetsOfAColumnFamilyByGroup() throws Exception {
+    request(Op.COMMIT_OFFSETS, ChicagoRecordBatch.encode(Arrays.asList(offset("t1", 4), offset("t10", 9)), true, 0));
+
+    Map<String, List<DBRecord>> committed = ConsumerOffsets.committed(db, "t1".getBytes());
+    assertEquals(1, committed.size());
+    List<DBRecord> records = committed.get("group");
+    assertEquals(1, records.size());
+    assertEquals("t1", new String(records.get(0).getKey()));
+    assertEquals(4, Longs.fromByteArray(records.get(0).getValue()));
+  }
+}
@@ -0,0 +1,80 @@
+package com.xjeffrose.chicago.server;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class HintLogTest {
+  private RocksDBImpl db;
+  private HintLog hints;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.newFolder("chicago"), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    db.open();
+    hints = new HintLog(db);
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void keepsHintsPerPeerInOrder() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(hints.add("10.0.0.2:12000", hints.nextSequence(), Op.WRITE, "colFam".getBytes(), ("key" + i).getBytes(), ("val" + i).getBytes()));
+    }
+    hints.add("10.0.0.20:12000", hints.nextSequence(), Op.TS_WRITE, "topic".getBytes(), new byte[8], "record".getBytes());
+
+    List<HintLog.Hint> batch = hints.next("10.0.0.2:12000", 3);
+    assertEquals(3, batch.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Op.WRITE, batch.get(i).op);
+      assertEquals("colFam", new String(batch.get(i).colFam));
+      assertEquals("key" + i, new String(batch.get(i).key));
+      assertEquals("val" + i, new String(batch.get(i).val));
+    }
+
+    hints.remove(batch);
+    assertEquals(2, hints.next("10.0.0.2:12000", 10).size());
+    assertEquals("key3", new String(hints.next("10.0.0.2:12000", 10).get(0).key));
+
+    List<HintLog.Hint> other = hints.next("10.0.0.20:12000", 10);
+    assertEquals(1, other.size());
+    assertEquals(Op.TS_WRITE, other.get(0).op);
+    assertEquals("record", new String(other.get(0).val));
+    assertTrue(hints.next("10.0.0.3:12000", 10).isEmpty());
+  }
+
+  @Test
+  public void ordersHintsBySequenceNotByWhenTheyWereLogged() {
+    long first = hints.nextSequence();
+    long second = hints.nextSequence();
+    hints.add("10.0.0.2:12000", second, Op.WRITE, "colFam".getBytes(), "key".getBytes(), "new".getBytes());
+    hints.add("10.0.0.2:12000", first, Op.WRITE, "colFam".getBytes(), "key".getBytes(), "old".getBytes());
+
+    List<HintLog.Hint> batch = hints.next("10.0.0.2:12000", 10);
+    assertEquals(first, batch.get(0).sequence());
+    assertEquals("old", new String(batch.get(0).val));
+    assertEquals(second, batch.get(1).sequence());
+  }
+}
@@ -0,0 +1,168 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.db.DBRecord;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import java.io.File;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HintedHandoffTest {
+  private static final String PEER = "10.0.0.2:12000";
+  private final byte[] colFam = "colFam".getBytes();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private RocksDBImpl db;
+  private HintLog hints;
+  private ChicagoAsyncClient peers;
+  private HintedHandoff handoff;
+  private SettableFuture<byte[]> write1;
+  private SettableFuture<byte[]> write2;
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.newFolder("chicago"), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    db.open();
+    hints = new HintLog(db);
+    peers = mock(ChicagoAsyncClient.class);
+    write1 = SettableFuture.create();
+    write2 = SettableFuture.create();
+    when(peers.request(eq(PEER), eq(Op.WRITE), any(byte[].class), any(byte[].class), any(byte[].class)))
+        .thenReturn(write1, write2);
+    when(peers.request(eq(PEER), eq(Op.MULTI_PUT), any(byte[].class), any(byte[].class), any(byte[].class)))
+        .thenReturn(Futures.immediateFuture(new byte[0]));
+    handoff = new HintedHandoff(hints, peers);
+  }
+
+  @After
+  public void tearDown() {
+    handoff.close();
+    db.close();
+  }
+
+  private ListenableFuture<byte[]> write(String key, String val) {
+    return handoff.forward(PEER, Op.WRITE, colFam, key.getBytes(), val.getBytes());
+  }
+
+  private List<DBRecord> replayed() {
+    ArgumentCaptor<byte[]> batch = ArgumentCaptor.forClass(byte[].class);
+    verify(peers).request(eq(PEER), eq(Op.MULTI_PUT), eq(colFam), any(byte[].class), batch.capture());
+    return ChicagoRecordBatch.wrap(batch.getValue()).records(colFam);
+  }
+
+  @Test
+  public void writesAfterAFailureQueueBehindIt() throws Exception {
+    ListenableFuture<byte[]> first = write("key1", "val1");
+    write1.setException(new ConnectException("Connection refused"));
+    assertTrue(first.isDone());
+    // pending right away, not once the hint is logged
+    assertTrue(handoff.hasHints(PEER));
+
+    ListenableFuture<byte[]> second = write("key2", "val2");
+    assertTrue(second.isDone());
+    verify(peers, times(1)).request(eq(PEER), eq(Op.WRITE), any(byte[].class), any(byte[].class), any(byte[].class));
+
+    handoff.replayNow(PEER).get();
+    List<DBRecord> records = replayed();
+    assertEquals(2, records.size());
+    assertEquals("key1", new String(records.get(0).getKey()));
+    assertEquals("key2", new String(records.get(1).getKey()));
+    assertFalse(handoff.hasHints(PEER));
+    assertTrue(hints.next(PEER, 10).isEmpty());
+  }
+
+  @Test
+  public void replayDropsWritesANewerOneOvertook() throws Exception {
+    write("key", "old");
+    write("key", "new");
+    // the newer write reaches the peer, the older one times out after it
+    write2.set(new byte[0]);
+    write1.setException(new TimeoutException());
+
+    handoff.replayNow(PEER).get();
+    verify(peers, never()).request(eq(PEER), eq(Op.MULTI_PUT), any(byte[].class), any(byte[].class), any(byte[].class));
+    assertFalse(handoff.hasHints(PEER));
+    assertTrue(hints.next(PEER, 10).isEmpty());
+  }
+
+  @Test
+  public void replayKeepsWritesToOtherKeys() throws Exception {
+    write("key1", "val1");
+    write("key2", "val2");
+    write2.set(new byte[0]);
+    write1.setException(new TimeoutException());
+
+    handoff.replayNow(PEER).get();
+    List<DBRecord> records = replayed();
+    assertEquals(1, records.size());
+    assertEquals("key1", new String(records.get(0).getKey()));
+    assertEquals("val1", new String(records.get(0).getValue()));
+  }
+
+  @Test
+  public void replayWaitsForWritesInFlight() throws Exception {
+    write("key1", "val1");
+    write("key1", "val2");
+    write1.setException(new ConnectException("Connection refused"));
+
+    // the second write may still overtake the first
+    handoff.replayNow(PEER).get();
+    verify(peers, never()).request(eq(PEER), eq(Op.MULTI_PUT), any(byte[].class), any(byte[].class), any(byte[].class));
+    assertTrue(handoff.hasHints(PEER));
+
+    write2.set(new byte[0]);
+    handoff.replayNow(PEER).get();
+    verify(peers, never()).request(eq(PEER), eq(Op.MULTI_PUT), any(byte[].class), any(byte[].class), any(byte[].class));
+    assertFalse(handoff.hasHints(PEER));
+  }
+
+  @Test
+  public void replaysHintsLoggedBeforeARestart() throws Exception {
+    write("key1", "val1");
+    write1.setException(new ConnectException("Connection refused"));
+    // logged on the hints thread
+    while (hints.next(PEER, 10).isEmpty()) {
+      Thread.sleep(10);
+    }
+    handoff.close();
+
+    handoff = new HintedHandoff(hints, peers);
+    assertTrue(handoff.hasHints(PEER));
+    assertFalse(handoff.hasHints("10.0.0.3:12000"));
+    handoff.replayNow(PEER).get();
+    List<DBRecord> records = replayed();
+    assertEquals(1, records.size());
+    assertEquals("key1", new String(records.get(0).getKey()));
+    assertFalse(handoff.hasHints(PEER));
+  }
+}
@@ -0,0 +1,110 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.client.ChicagoAsyncClient;
+import com.xjeffrose.chicago.client.ChicagoClientException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReplicaForwarderTest {
+  private final byte[] colFam = "colFam".getBytes();
+  private final byte[] key = "key".getBytes();
+  private final byte[] val = "val".getBytes();
+
+  private ChicagoAsyncClient peers;
+  private SettableFuture<byte[]> peer1;
+  private SettableFuture<byte[]> peer2;
+
+  @Before
+  public void setUp() {
+    peers = mock(ChicagoAsyncClient.class);
+    peer1 = SettableFuture.create();
+    peer2 = SettableFuture.create();
+    when(peers.getEffectiveNodes(colFam)).thenReturn(Arrays.asList("10.0.0.2:12000", "10.0.0.1:12000", "10.0.0.3:12000"));
+    when(peers.request(eq("10.0.0.2:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(peer1);
+    when(peers.request(eq("10.0.0.3:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(peer2);
+  }
+
+  @Test
+  public void forwardsToThePeersOnly() {
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 2, (HintedHandoff) null);
+    forwarder.replicate(Op.WRITE, colFam, key, val, Futures.immediateFuture(true));
+
+    verify(peers).request("10.0.0.2:12000", Op.WRITE, colFam, key, val);
+    verify(peers).request("10.0.0.3:12000", Op.WRITE, colFam, key, val);
+    verify(peers, never()).request(eq("10.0.0.1:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void acknowledgesAtQuorum() throws Exception {
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 2, (HintedHandoff) null);
+    ListenableFuture<Boolean> acked = forwarder.replicate(Op.WRITE, colFam, key, val, Futures.immediateFuture(true));
+    assertFalse(acked.isDone());
+
+    peer2.set(null);
+    assertTrue(acked.get());
+  }
+
+  @Test
+  public void failsOnceQuorumIsOutOfReach() throws Exception {
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 2, (HintedHandoff) null);
+    SettableFuture<Boolean> local = SettableFuture.create();
+    ListenableFuture<Boolean> acked = forwarder.replicate(Op.TS_WRITE, colFam, key, val, local);
+
+    local.set(false);
+    assertFalse(acked.isDone());
+    peer1.setException(new ChicagoClientException("Request Failed"));
+    assertFalse(acked.get());
+  }
+
+  @Test
+  public void acknowledgesWithFewerReplicasThanAcks() throws Exception {
+    when(peers.getEffectiveNodes(colFam)).thenReturn(Arrays.asList("10.0.0.1:12000"));
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 2, (HintedHandoff) null);
+
+    assertTrue(forwarder.replicate(Op.WRITE, colFam, key, val, Futures.immediateFuture(true)).get());
+  }
+
+  @Test
+  public void forwardsThroughTheHandoff() throws Exception {
+    HintedHandoff handoff = mock(HintedHandoff.class);
+    when(handoff.forward(eq("10.0.0.2:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(peer1);
+    when(handoff.forward(eq("10.0.0.3:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(peer2);
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 2, handoff);
+    ListenableFuture<Boolean> acked = forwarder.replicate(Op.WRITE, colFam, key, val, Futures.immediateFuture(true));
+
+    peer1.setException(new ConnectException("Connection refused"));
+    peer2.set(null);
+    assertTrue(acked.get());
+    verify(handoff).forward("10.0.0.2:12000", Op.WRITE, colFam, key, val);
+    verify(handoff).forward("10.0.0.3:12000", Op.WRITE, colFam, key, val);
+    verify(peers, never()).request(any(String.class), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void queuedWritesDoNotCount() throws Exception {
+    HintedHandoff handoff = mock(HintedHandoff.class);
+    when(handoff.forward(eq("10.0.0.2:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class)))
+        .thenReturn(Futures.immediateFailedFuture(new ChicagoClientException("Queued behind the hints for 10.0.0.2:12000")));
+    when(handoff.forward(eq("10.0.0.3:12000"), any(Op.class), any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(peer2);
+    ReplicaForwarder forwarder = new ReplicaForwarder(peers, "10.0.0.1:12000", 3, handoff);
+    ListenableFuture<Boolean> acked = forwarder.replicate(Op.WRITE, colFam, key, val, Futures.immediateFuture(true));
+
+    peer2.set(null);
+    // the queued write does not count, three acks are out of reach
+    assertFalse(acked.get());
+  }
+}
@@ -0,0 +1,88 @@
+package com.xjeffrose.chicago.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ResponseFlusherTest extends org.junit.Assert {
+
+  private static class FlushCounter extends ChannelOutboundHandlerAdapter {
+    int flushes;
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+      flushes++;
+      super.flush(ctx);
+    }
+  }
+
+  private final FlushCounter counter = new FlushCounter();
+  private final EmbeddedChannel ch = new EmbeddedChannel(counter, new ChannelInboundHandlerAdapter());
+
+  private ChannelHandlerContext ctx() {
+    return ch.pipeline().lastContext();
+  }
+
+  @Test
+  public void flushesOnceWhenTheLastRequestCompletes() {
+    ResponseFlusher flusher = new ResponseFlusher(TimeUnit.SECONDS.toNanos(10));
+    for (int i = 0; i < 100; i++) {
+      flusher.requestStarted();
+    }
+    for (int i = 0; i < 100; i++) {
+      flusher.write(ctx(), "response" + i);
+      flusher.requestDone(ctx());
+    }
+
+    assertEquals(1, counter.flushes);
+    assertEquals(0, flusher.unflushed());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("response" + i, ch.readOutbound());
+    }
+  }
+
+  @Test
+  public void flushesOnReadComplete() {
+    ResponseFlusher flusher = new ResponseFlusher(TimeUnit.SECONDS.toNanos(10));
+    flusher.requestStarted();
+    flusher.requestStarted();
+    flusher.write(ctx(), "overloaded");
+    assertEquals(0, counter.flushes);
+    assertNull(ch.readOutbound());
+
+    flusher.readComplete(ctx());
+    assertEquals(1, counter.flushes);
+    assertEquals("overloaded", ch.readOutbound());
+  }
+
+  @Test
+  public void flushesAfterTheMaxDelay() throws Exception {
+    ResponseFlusher flusher = new ResponseFlusher(TimeUnit.MILLISECONDS.toNanos(1));
+    flusher.requestStarted();
+    flusher.requestStarted();
+    flusher.write(ctx(), "first");
+    flusher.requestDone(ctx());
+    assertEquals(0, counter.flushes);
+
+    Thread.sleep(5);
+    ch.runPendingTasks();
+    ch.runScheduledPendingTasks();
+    assertEquals(1, counter.flushes);
+    assertEquals("first", ch.readOutbound());
+  }
+
+  @Test
+  public void writesNotInABatchAreFlushedRightAway() {
+    ResponseFlusher flusher = new ResponseFlusher(TimeUnit.SECONDS.toNanos(10));
+    flusher.write(ctx(), "chunk");
+    assertEquals(1, counter.flushes);
+
+    ResponseFlusher unbatched = new ResponseFlusher(0);
+    unbatched.requestStarted();
+    unbatched.write(ctx(), "response");
+    assertEquals(2, counter.flushes);
+  }
+}
@@ -0,0 +1,109 @@
+package com.xjeffrose.chicago.server;
+
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.RequestMetrics;
+import com.xjeffrose.chicago.RequestMetrics.Stage;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class StatsHandlerTest extends org.junit.Assert {
+
+  private FullHttpResponse get(RequestMetrics metrics, String uri) {
+    EmbeddedChannel channel = new EmbeddedChannel(
+        new StatsHandler(metrics, () -> Collections.singletonMap("db_pending_reads", 3)));
+    channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+    return channel.readOutbound();
+  }
+
+  @Test
+  public void prometheus() {
+    RequestMetrics metrics = new RequestMetrics();
+    for (int i = 1; i <= 100; i++) {
+      metrics.record(Op.READ, "colFam".getBytes(), Stage.STORAGE, TimeUnit.MICROSECONDS.toNanos(i * 10));
+    }
+
+    FullHttpResponse response = get(metrics, "/metrics");
+    assertEquals(HttpResponseStatus.OK, response.status());
+    String body = response.content().toString(StandardCharsets.UTF_8);
+    response.release();
+
+    assertTrue(body.contains("chicago_db_pending_reads 3\n"));
+    assertTrue(body.contains("chicago_op_latency_seconds_count{op=\"READ\",stage=\"storage\"} 100\n"));
+    assertTrue(body.contains("chicago_colfam_latency_seconds_count{colfam=\"colFam\",stage=\"storage\"} 100\n"));
+    assertTrue(body.contains("chicago_op_latency_seconds{op=\"READ\",stage=\"storage\",quantile=\"0.99\"} "));
+    assertFalse(body.contains("op=\"WRITE\""));
+  }
+
+  @Test
+  public void labeledGaugesShareOneType() {
+    Map<String, Number> gauges = new LinkedHashMap<>();
+    gauges.put("consumer_lag{group=\"a\",colfam=\"t1\"}", 5);
+    gauges.put("consumer_lag{group=\"b\",colfam=\"t1\"}", 0);
+    String body = StatsHandler.prometheus(new RequestMetrics(), gauges);
+
+    assertEquals(body.indexOf("# TYPE chicago_consumer_lag gauge\n"), body.lastIndexOf("# TYPE chicago_consumer_lag gauge\n"));
+    assertTrue(body.contains("chicago_consumer_lag{group=\"a\",colfam=\"t1\"} 5\n"));
+    assertTrue(body.contains("chicago_consumer_lag{group=\"b\",colfam=\"t1\"} 0\n"));
+  }
+
+  @Test
+  public void labelValuesAreEscapedOnce() {
+    Map<String, Number> gauges = new LinkedHashMap<>();
+    gauges.put("subscriptions", 1);
+    gauges.put(StatsHandler.series("consumer_lag", "group", "a\"b", "colfam", "t1"), 5);
+    gauges.put(StatsHandler.series("consumer_lag", "group", "c", "colfam", "t1"), 0);
+
+    assertTrue(StatsHandler.prometheus(new RequestMetrics(), gauges)
+        .contains("chicago_consumer_lag{group=\"a\\\"b\",colfam=\"t1\"} 5\n"));
+    assertTrue(StatsHandler.json(new RequestMetrics(), gauges).contains("\"gauges\":{\"subscriptions\":1,"
+        + "\"consumer_lag\":[{\"group\":\"a\\\"b\",\"colfam\":\"t1\",\"value\":5},"
+        + "{\"group\":\"c\",\"colfam\":\"t1\",\"value\":0}]}"));
+  }
+
+  @Test
+  public void totalsAreCounters() {
+    Map<String, Number> gauges = new LinkedHashMap<>();
+    gauges.put("in_flight_requests", 2);
+    gauges.put("rejected_requests_total", 7);
+    String body = StatsHandler.prometheus(new RequestMetrics(), gauges);
+
+    assertTrue(body.contains("# TYPE chicago_in_flight_requests gauge\n"));
+    assertTrue(body.contains("# TYPE chicago_rejected_requests_total counter\nchicago_rejected_requests_total 7\n"));
+  }
+
+  @Test
+  public void json() {
+    RequestMetrics metrics = new RequestMetrics();
+    metrics.record(Op.WRITE, "a".getBytes(), Stage.QUEUE, 1000);
+    metrics.record(Op.WRITE, "a".getBytes(), Stage.STORAGE, 2000);
+    metrics.record(Op.READ, "b".getBytes(), Stage.STORAGE, 3000);
+
+    FullHttpResponse response = get(metrics, "/metrics.json");
+    assertEquals(HttpResponseStatus.OK, response.status());
+    String body = response.content().toString(StandardCharsets.UTF_8);
+    response.release();
+
+    assertTrue(body.contains("\"gauges\":{\"db_pending_reads\":3}"));
+    assertTrue(body.contains("\"WRITE\":{\"queue\":{\"count\":1,"));
+    assertTrue(body.contains("},\"storage\":{\"count\":1,"));
+    assertTrue(body.contains("\"colFams\":{\"a\":{"));
+    assertTrue(body.contains("\"b\":{\"storage\":{\"count\":1,"));
+  }
+
+  @Test
+  public void notFound() {
+    FullHttpResponse response = get(new RequestMetrics(), "/nope");
+    assertEquals(HttpResponseStatus.NOT_FOUND, response.status());
+    response.release();
+  }
+}
@@ -0,0 +1,229 @@
+package com.xjeffrose.chicago.server;
+
+import com.google.common.primitives.Longs;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.xjeffrose.chicago.ChicagoMessage;
+import com.xjeffrose.chicago.ChicagoRecordBatch;
+import com.xjeffrose.chicago.DefaultChicagoMessage;
+import com.xjeffrose.chicago.Op;
+import com.xjeffrose.chicago.OffsetRange;
+import com.xjeffrose.chicago.db.DBManager;
+import com.xjeffrose.chicago.db.RocksDBImpl;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionsTest {
+  private final byte[] colFam = "topic".getBytes();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private DBManager manager;
+  private ChicagoDBHandler handler;
+  private EmbeddedChannel ch;
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, Object> mapping = new HashMap<>();
+    mapping.put("settings.dbPath", new File(tmp.getRoot(), "rocks.db").getPath());
+    Config defaults = ConfigFactory.load().getConfig("chicago.application");
+    RocksDBImpl db = new RocksDBImpl(new ChiConfig(ConfigFactory.parseMap(mapping).withFallback(defaults)));
+    manager = new DBManager(db);
+    manager.startAsync().awaitRunning();
+    handler = new ChicagoDBHandler(manager);
+    ch = new EmbeddedChannel(handler);
+  }
+
+  @After
+  public void tearDown() {
+    ch.close();
+    manager.stopAsync().awaitTerminated();
+  }
+
+  private void append(String val) throws Exception {
+    manager.tsWrite(colFam, null, val.getBytes()).get();
+  }
+
+  // as a writer with a lease of its own does
+  private void append(long offset, String val) throws Exception {
+    manager.tsWrite(colFam, Longs.toByteArray(offset), val.getBytes()).get();
+  }
+
+  // runs storage and the event loop until neither has anything left to do
+  private List<ChicagoMessage> pushed() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      manager.waitForEmptyQueue().get();
+      ch.runPendingTasks();
+    }
+    List<ChicagoMessage> messages = new ArrayList<>();
+    ChicagoMessage msg;
+    while ((msg = ch.readOutbound()) != null) {
+      messages.add(msg);
+    }
+    return messages;
+  }
+
+  private static List<String> values(List<ChicagoMessage> messages) {
+    List<String> values = new ArrayList<>();
+    for (ChicagoMessage msg : messages) {
+      assertEquals(Op.STREAM_RESPONSE, msg.getOp());
+      assertTrue(msg.getSuccess());
+      // each push stands on its own, aggregators hand it over as it is
+      assertTrue(ChicagoRecordBatch.isLast(msg.getVal()));
+      ChicagoRecordBatch.wrap(msg.getVal()).values().forEach(v -> values.add(new String(v)));
+    }
+    return values;
+  }
+
+  @Test
+  public void pushesWhatIsAppendedAfterSubscribing() throws Exception {
+    append("before");
+    UUID id = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.SUBSCRIBE, colFam, null, null));
+
+    List<ChicagoMessage> first = pushed();
+    assertEquals(1, first.size());
+    assertEquals(id, first.get(0).getId());
+    assertEquals(0, ChicagoRecordBatch.wrap(first.get(0).getVal()).count());
+    assertEquals(1, ChicagoRecordBatch.wrap(first.get(0).getVal()).nextOffset());
+    assertEquals(1, handler.getSubscriptionCount());
+
+    append("one");
+    append("two");
+    append("three");
+    List<ChicagoMessage> pushes = pushed();
+    assertEquals(3, values(pushes).size());
+    assertEquals("one", values(pushes).get(0));
+    assertEquals("three", values(pushes).get(2));
+    assertEquals(4, ChicagoRecordBatch.wrap(pushes.get(pushes.size() - 1).getVal()).nextOffset());
+
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.UNSUBSCRIBE, colFam, null, null));
+    append("four");
+    assertTrue(pushed().isEmpty());
+    assertEquals(0, handler.getSubscriptionCount());
+  }
+
+  @Test
+  public void stopsAtTheCreditUntilMoreIsGranted() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      append("val" + i);
+    }
+    // key and value lengths, the offset and a 4 byte value
+    long perRecord = 4 + 8 + 4 + 4;
+    UUID id = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.SUBSCRIBE, colFam,
+        Longs.toByteArray(ChicagoRecordBatch.HEADER_SIZE + 3 * perRecord), Longs.toByteArray(0)));
+
+    List<String> values = values(pushed());
+    assertEquals(3, values.size());
+    assertEquals("val0", values.get(0));
+
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.CREDIT, colFam, Longs.toByteArray(100 * perRecord), null));
+    values = values(pushed());
+    assertEquals(7, values.size());
+    assertEquals("val3", values.get(0));
+    assertEquals("val9", values.get(6));
+  }
+
+  @Test
+  public void waitsForOffsetsCommittedOutOfOrder() throws Exception {
+    append(0, "val0");
+    UUID id = UUID.randomUUID();
+    ch.writeInbound(new DefaultChicagoMessage(id, Op.SUBSCRIBE, colFam, null, Longs.toByteArray(0)));
+    assertEquals(Collections.singletonList("val0"), values(pushed()));
+
+    append(2, "val2");
+    append(4, "val4");
+    assertTrue(values(pushed()).isEmpty());
+
+    append(1, "val1");
+    List<ChicagoMessage> pushes = pushed();
+    assertEquals(Arrays.asList("val1", "val2"), values(pushes));
+    // resuming from the last push misses nothing
+    assertEquals(3, ChicagoRecordBatch.wrap(pushes.get(pushes.size() - 1).getVal()).nextOffset());
+
+    append(3, "val3");
+    assertEquals(Arrays.asList("val3", "val4"), values(pushed()));
+  }
+
+  @Test
+  public void skipsAGapNothingFillsInTime() throws Exception {
+    ch.close();
+    ch = new EmbeddedChannel(new ChicagoDBHandler(manager, AdmissionController.unbounded(), 0, new OffsetSequencer(),
+        null, new Subscriptions(manager, 0, TimeUnit.MILLISECONDS.toNanos(50))));
+    append(0, "val0");
+    append(2, "val2");
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.SUBSCRIBE, colFam, null, Longs.toByteArray(0)));
+    assertEquals(Collections.singletonList("val0"), values(pushed()));
+
+    Thread.sleep(100);
+    assertEquals(Collections.singletonList("val2"), values(pushed()));
+  }
+
+  @Test
+  public void skipsGapsInARowAsTheyAge() throws Exception {
+    ch.close();
+    ch = new EmbeddedChannel(new ChicagoDBHandler(manager, AdmissionController.unbounded(), 0, new OffsetSequencer(),
+        null, new Subscriptions(manager, 0, TimeUnit.MILLISECONDS.toNanos(50))));
+    append(0, "val0");
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.SUBSCRIBE, colFam, null, Longs.toByteArray(0)));
+    assertEquals(Collections.singletonList("val0"), values(pushed()));
+
+    append(2, "val2");
+    append(4, "val4");
+    append(6, "val6");
+    assertTrue(values(pushed()).isEmpty());
+
+    // each gap is as old as the record above it, not waited on after the one before
+    Thread.sleep(100);
+    assertEquals(Arrays.asList("val2", "val4", "val6"), values(pushed()));
+  }
+
+  @Test
+  public void skipsReleasedOffsetsAtOnce() throws Exception {
+    append(0, "val0");
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.SUBSCRIBE, colFam, null, Longs.toByteArray(0)));
+    assertEquals(Collections.singletonList("val0"), values(pushed()));
+
+    append(3, "val3");
+    append(5, "val5");
+    assertTrue(values(pushed()).isEmpty());
+
+    // two producers gave up what was left of their leases
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.RELEASE_OFFSETS, colFam, null,
+        new OffsetRange(1, 1).encode()));
+    assertTrue(values(pushed()).isEmpty());
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.RELEASE_OFFSETS, colFam, null,
+        new OffsetRange(2, 1).encode()));
+    assertEquals(Collections.singletonList("val3"), values(pushed()));
+
+    append(4, "val4");
+    assertEquals(Arrays.asList("val4", "val5"), values(pushed()));
+  }
+
+  @Test
+  public void closingTheConnectionEndsTheSubscription() throws Exception {
+    ch.writeInbound(new DefaultChicagoMessage(UUID.randomUUID(), Op.SUBSCRIBE, colFam, null, null));
+    pushed();
+    assertEquals(1, handler.getSubscriptionCount());
+    ch.close();
+    ch.runPendingTasks();
+    assertEquals(0, handler.getSubscriptionCount());
+  }
+}